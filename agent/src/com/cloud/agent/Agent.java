@@ -122,6 +122,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     long  _startupWaitDefault = 180000;
     long  _startupWait = _startupWaitDefault;
     boolean                     _reconnectAllowed     = true;
+    // Set once the management server told us it decodes binary requests
+    volatile boolean            _binaryCodec          = false;
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor     _ugentTaskPool;
     ExecutorService _executor;
@@ -384,6 +386,8 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         link.close();
         link.terminated();
+        // The next management server may be an older one
+        _binaryCodec = false;
 
         setLink(null);
         cancelTasks();
@@ -610,6 +614,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.useBinaryCodec(_binaryCodec);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -724,6 +729,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
+                request.useBinaryCodec(_binaryCodec);
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
@@ -873,6 +879,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    _binaryCodec = request.isBinaryCodecAccepted();
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
                         processResponse((Response) request, task.getLink());
@@ -0,0 +1,57 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/*
+ * Broadcast to the other management servers after a table that is kept in
+ * a near cache has been written to, so that they drop the entity from their
+ * caches as well. A null id means any entity of the table may have changed.
+ */
+public class CacheInvalidationCommand extends Command {
+    String table;
+    String id;
+    long msId;
+
+    protected CacheInvalidationCommand() {
+    }
+
+    public CacheInvalidationCommand(String table, String id, long msId) {
+        this.table = table;
+        this.id = id;
+        this.msId = msId;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the server that wrote to the table.
+     */
+    public long getMsId() {
+        return msId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/*
+ * Exchanged between management servers so threads waiting for a lock held
+ * by a peer are woken up as soon as the peer releases it. A waiting server
+ * sends it to the holder with released set to false, and the holder sends
+ * it back with released set to true when the lock is gone.
+ */
+public class LockNotificationCommand extends Command {
+    String key;
+    long msId;
+    boolean released;
+
+    protected LockNotificationCommand() {
+    }
+
+    public LockNotificationCommand(String key, long msId, boolean released) {
+        this.key = key;
+        this.msId = msId;
+        this.released = released;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the server that sent the notification.
+     */
+    public long getMsId() {
+        return msId;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/*
+ * Sent to the other management servers after an item has been added to a
+ * sync queue, so that they look at the queue instead of waiting for their
+ * next scan of the queue table.
+ */
+public class SyncQueueReadyCommand extends Command {
+    long queueId;
+    long msId;
+
+    protected SyncQueueReadyCommand() {
+    }
+
+    public SyncQueueReadyCommand(long queueId, long msId) {
+        this.queueId = queueId;
+        this.msId = msId;
+    }
+
+    public long getQueueId() {
+        return queueId;
+    }
+
+    /**
+     * @return the server that queued the item.
+     */
+    public long getMsId() {
+        return msId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.dao;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 
 import com.cloud.utils.db.GenericSearchBuilder;
@@ -66,6 +67,15 @@ public interface EntityManager {
      */
     public <T> T findByUuidIncludingRemoved(Class<T> entityType, String uuid);
 
+    /**
+     * Finds the entities with the uuids, including removed ones, with one query.
+     * @param <T> entity class
+     * @param entityType
+     * @param uuids
+     * @return the entities found, in no particular order
+     */
+    public <T> List<? extends T> listByUuidsIncludingRemoved(Class<T> entityType, Collection<String> uuids);
+
     /**
      * Finds an entity by external id which is always String
      * @param <T> entity class
@@ -230,6 +230,9 @@ public class ApiConstants {
     public static final String PAGE = "page";
     public static final String PAGE_SIZE = "pagesize";
     public static final String COUNT = "count";
+    public static final String COUNT_MODE = "countmode";
+    public static final String CURSOR = "cursor";
+    public static final String NEXT_CURSOR = "nextcursor";
     public static final String TRAFFIC_TYPE = "traffictype";
     public static final String NETWORK_OFFERING_ID = "networkofferingid";
     public static final String NETWORK_IDS = "networkids";
@@ -38,13 +38,32 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.CURSOR, type = CommandType.STRING, description = "lists the page after the one that returned this " +
+            "continuation token instead of a page by number, * starts with the first page. The token of the next page is returned as " +
+            ApiConstants.NEXT_CURSOR + ". Only the lists of virtual machines, security groups, routers, projects, hosts and storage " +
+            "pools support it, the others reject it")
+    private String cursor;
+
+    @Parameter(name = ApiConstants.COUNT_MODE, type = CommandType.STRING, description = "how the total count is worked out: exact " +
+            "counts the rows for every page, approximate counts them for the first page of a cursor listing and returns that count " +
+            "for the pages after it, none does not count them and leaves the count out of the response. The default is exact, or " +
+            "approximate with a cursor. Only the list commands that take a cursor support it")
+    private String countMode;
+
+    // The continuation token of the page after the one listed, it is not a parameter
+    private String nextCursor;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
 
+    public enum CountMode {
+        exact, approximate, none
+    }
+
     public BaseListCmd() {
     }
-    
+
     public String getKeyword() {
         return keyword;
     }
@@ -65,6 +84,42 @@ public abstract class BaseListCmd extends BaseCmd {
         return pageSize;
     }
 
+    public String getCursor() {
+        if (cursor != null && page != null) {
+            throw new InvalidParameterValueException("Can't specify page parameter together with cursor");
+        }
+        return cursor;
+    }
+
+    public CountMode getCountMode() {
+        if (countMode == null) {
+            return cursor != null ? CountMode.approximate : CountMode.exact;
+        }
+        for (CountMode mode : CountMode.values()) {
+            if (mode.name().equalsIgnoreCase(countMode)) {
+                return mode;
+            }
+        }
+        throw new InvalidParameterValueException("Invalid count mode " + countMode + ", it is one of exact, approximate or none");
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return true if the command lists its page with a cursor and counts it
+     * as the countmode parameter asks.  The commands that don't reject both
+     * parameters.
+     */
+    public boolean isCursorSupported() {
+        return false;
+    }
+
     public void configure() {
     	if(MAX_PAGESIZE == null) {
 	        if (_configService.getDefaultPageSize().longValue() != PAGESIZE_UNLIMITED) {
@@ -158,6 +158,12 @@ public class ListHostsCmd extends BaseListCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        // The hosts a vm can migrate to are paged by offset only
+        return getVirtualMachineId() == null;
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.Host;
     }
@@ -124,6 +124,11 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        return true;
+    }
+
     @Override
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.DomainRouter;
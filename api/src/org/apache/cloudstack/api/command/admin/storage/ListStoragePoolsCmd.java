@@ -105,6 +105,11 @@ public class ListStoragePoolsCmd extends BaseListCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        return true;
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.StoragePool;
     }
@@ -82,6 +82,11 @@ public class ListProjectsCmd extends BaseListAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        return true;
+    }
+
     public Map<String, String> getTags() {
         Map<String, String> tagsMap = null;
         if (tags != null && !tags.isEmpty()) {
@@ -70,6 +70,11 @@ public class ListSecurityGroupsCmd extends BaseListTaggedResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        return true;
+    }
+
     @Override
     public void execute(){
         ListResponse<SecurityGroupResponse> response = _queryService.searchForSecurityGroups(this);
@@ -202,6 +202,11 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isCursorSupported() {
+        return true;
+    }
+
     @Override
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.VirtualMachine;
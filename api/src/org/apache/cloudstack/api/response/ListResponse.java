@@ -24,6 +24,8 @@ import org.apache.cloudstack.api.ResponseObject;
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
     private transient Integer count;
+    private transient String nextCursor;
+    private transient boolean countOmitted;
 
     public List<T> getResponses() {
         return responses;
@@ -40,6 +42,9 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
 
 
     public Integer getCount() {
+        if (countOmitted) {
+            return null;
+        }
         if (count != null) {
             return count;
         }
@@ -50,4 +55,24 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
 
         return null;
     }
+
+    /**
+     * @return the continuation token of the next page of a cursor listing,
+     * null if there is none.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Leaves the count out of the response instead of the number of
+     * responses, for a list that was not counted.
+     */
+    public void setCountOmitted(boolean countOmitted) {
+        this.countOmitted = countOmitted;
+    }
 }
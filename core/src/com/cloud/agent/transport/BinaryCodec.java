@@ -0,0 +1,296 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * BinaryCodec is the content encoding of Version.v4 requests.  It encodes
+ * the same element tree Gson builds for the json encoding, so every type
+ * adapter registered in GsonHelper applies unchanged, but it skips the
+ * text formatting and parsing.  Numbers are written as varints or raw
+ * doubles and every string shorter than MAX_SHARED_STRING is sent once and
+ * then referred to by index, which takes care of the field names that
+ * repeat in every element of the stats and ruleset lists.
+ *
+ * Each element starts with a tag byte:
+ * NULL, TRUE, FALSE - no data;
+ * LONG - zigzag varint;
+ * DOUBLE - 8 bytes;
+ * NUMBER - varint length and UTF-8 decimal text, for big numbers;
+ * STRING - varint length and UTF-8 bytes;
+ * SHARED_STRING - same as STRING and the string is added to the table;
+ * STRING_REF - varint index into the table;
+ * ARRAY - varint count and the elements;
+ * OBJECT - varint count and for each member a string element and a value.
+ */
+public class BinaryCodec {
+    protected static final byte NULL = 0;
+    protected static final byte TRUE = 1;
+    protected static final byte FALSE = 2;
+    protected static final byte LONG = 3;
+    protected static final byte DOUBLE = 4;
+    protected static final byte NUMBER = 5;
+    protected static final byte STRING = 6;
+    protected static final byte SHARED_STRING = 7;
+    protected static final byte STRING_REF = 8;
+    protected static final byte ARRAY = 9;
+    protected static final byte OBJECT = 10;
+
+    protected static final int MAX_SHARED_STRING = 128;
+
+    private static final String UTF8 = "UTF-8";
+
+    private BinaryCodec() {
+    }
+
+    public static byte[] encode(Gson gson, Object src, Type typeOfSrc) {
+        Encoder encoder = new Encoder();
+        encoder.write(gson.toJsonTree(src, typeOfSrc));
+        return encoder.toByteArray();
+    }
+
+    /**
+     * @param buffer content to decode, from its position to its limit.  The
+     * position is moved past the decoded content.
+     */
+    public static <T> T decode(Gson gson, ByteBuffer buffer, Type typeOfT) {
+        Decoder decoder = new Decoder(buffer);
+        return gson.<T>fromJson(decoder.read(), typeOfT);
+    }
+
+    protected static class Encoder {
+        private byte[] _buf = new byte[1024];
+        private int _count = 0;
+        private final Map<String, Integer> _strings = new HashMap<String, Integer>();
+
+        protected void write(JsonElement element) {
+            if (element == null || element.isJsonNull()) {
+                writeByte(NULL);
+            } else if (element.isJsonPrimitive()) {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+                } else if (primitive.isNumber()) {
+                    writeNumber(primitive.getAsNumber());
+                } else {
+                    writeString(primitive.getAsString());
+                }
+            } else if (element.isJsonArray()) {
+                JsonArray array = element.getAsJsonArray();
+                writeByte(ARRAY);
+                writeVarint(array.size());
+                for (JsonElement item : array) {
+                    write(item);
+                }
+            } else {
+                JsonObject object = element.getAsJsonObject();
+                writeByte(OBJECT);
+                writeVarint(object.entrySet().size());
+                for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                    writeString(entry.getKey());
+                    write(entry.getValue());
+                }
+            }
+        }
+
+        private void writeNumber(Number number) {
+            if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                long value = number.longValue();
+                writeByte(LONG);
+                writeVarint((value << 1) ^ (value >> 63));
+            } else if (number instanceof Double || number instanceof Float) {
+                writeByte(DOUBLE);
+                long bits = Double.doubleToRawLongBits(number.doubleValue());
+                ensure(8);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    _buf[_count++] = (byte)(bits >>> shift);
+                }
+            } else {
+                writeByte(NUMBER);
+                writeBytes(toUtf8(number.toString()));
+            }
+        }
+
+        private void writeString(String str) {
+            if (str.length() >= MAX_SHARED_STRING) {
+                writeByte(STRING);
+                writeBytes(toUtf8(str));
+                return;
+            }
+
+            Integer index = _strings.get(str);
+            if (index != null) {
+                writeByte(STRING_REF);
+                writeVarint(index);
+            } else {
+                _strings.put(str, _strings.size());
+                writeByte(SHARED_STRING);
+                writeBytes(toUtf8(str));
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buf, _count, bytes.length);
+            _count += bytes.length;
+        }
+
+        private void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                _buf[_count++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buf[_count++] = (byte)value;
+        }
+
+        private void writeByte(byte b) {
+            ensure(1);
+            _buf[_count++] = b;
+        }
+
+        private void ensure(int length) {
+            if (_count + length > _buf.length) {
+                byte[] buf = new byte[Math.max(_buf.length << 1, _count + length)];
+                System.arraycopy(_buf, 0, buf, 0, _count);
+                _buf = buf;
+            }
+        }
+
+        protected byte[] toByteArray() {
+            byte[] bytes = new byte[_count];
+            System.arraycopy(_buf, 0, bytes, 0, _count);
+            return bytes;
+        }
+    }
+
+    protected static class Decoder {
+        private final ByteBuffer _buffer;
+        private final List<String> _strings = new ArrayList<String>();
+
+        protected Decoder(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        protected JsonElement read() {
+            byte tag = _buffer.get();
+            switch (tag) {
+            case NULL:
+                return new JsonNull();
+            case TRUE:
+                return new JsonPrimitive(Boolean.TRUE);
+            case FALSE:
+                return new JsonPrimitive(Boolean.FALSE);
+            case LONG:
+                long value = readVarint();
+                return new JsonPrimitive((value >>> 1) ^ -(value & 1));
+            case DOUBLE:
+                return new JsonPrimitive(Double.longBitsToDouble(_buffer.getLong()));
+            case NUMBER:
+                return new JsonPrimitive(new BigDecimal(readUtf8()));
+            case STRING:
+            case SHARED_STRING:
+            case STRING_REF:
+                return new JsonPrimitive(readString(tag));
+            case ARRAY:
+                JsonArray array = new JsonArray();
+                for (int count = (int)readVarint(); count > 0; count--) {
+                    array.add(read());
+                }
+                return array;
+            case OBJECT:
+                JsonObject object = new JsonObject();
+                for (int count = (int)readVarint(); count > 0; count--) {
+                    String name = readString(_buffer.get());
+                    object.add(name, read());
+                }
+                return object;
+            default:
+                throw new JsonParseException("Unknown tag " + tag + " at " + (_buffer.position() - 1));
+            }
+        }
+
+        private String readString(byte tag) {
+            if (tag == STRING_REF) {
+                return _strings.get((int)readVarint());
+            }
+            String str = readUtf8();
+            if (tag == SHARED_STRING) {
+                _strings.add(str);
+            } else if (tag != STRING) {
+                throw new JsonParseException("Expected a string but got tag " + tag);
+            }
+            return str;
+        }
+
+        private String readUtf8() {
+            int length = (int)readVarint();
+            String str;
+            try {
+                if (_buffer.hasArray()) {
+                    str = new String(_buffer.array(), _buffer.arrayOffset() + _buffer.position(), length, UTF8);
+                    _buffer.position(_buffer.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    _buffer.get(bytes);
+                    str = new String(bytes, UTF8);
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new CloudRuntimeException("UTF-8 is not supported", e);
+            }
+            return str;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _buffer.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static byte[] toUtf8(String str) {
+        try {
+            return str.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException("UTF-8 is not supported", e);
+        }
+    }
+}
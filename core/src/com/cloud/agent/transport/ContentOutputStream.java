@@ -0,0 +1,144 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ContentOutputStream collects the content of a Request as it is
+ * serialized.  The first bytes go into a per thread scratch buffer.  Once
+ * the content reaches the compression threshold, the scratch buffer and
+ * everything written after it are gzipped on the fly, so a large answer
+ * is never held as text, bytes and compressed bytes at the same time.
+ *
+ * It is not thread safe and a thread must finish() one stream before it
+ * opens the next.
+ */
+public class ContentOutputStream extends OutputStream {
+    private static final ThreadLocal<byte[]> s_scratch = new ThreadLocal<byte[]>();
+
+    private final int _threshold;
+    private byte[] _plain;
+    private int _plainCount = 0;
+    private long _size = 0;
+    private GZIPOutputStream _gzip;
+    private CompressedSink _sink;
+
+    /**
+     * @param threshold content of at least this many bytes is compressed.
+     */
+    public ContentOutputStream(int threshold) {
+        _threshold = threshold;
+        byte[] scratch = s_scratch.get();
+        if (scratch == null || scratch.length < threshold) {
+            scratch = new byte[threshold];
+            s_scratch.set(scratch);
+        }
+        _plain = scratch;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        _size += len;
+        if (_gzip == null && _plainCount + len < _threshold) {
+            System.arraycopy(b, off, _plain, _plainCount, len);
+            _plainCount += len;
+            return;
+        }
+        if (_gzip == null) {
+            _sink = new CompressedSink(_threshold / 2);
+            _gzip = new GZIPOutputStream(_sink, 8192);
+            _gzip.write(_plain, 0, _plainCount);
+        }
+        _gzip.write(b, off, len);
+    }
+
+    /**
+     * @return true if the content finish() returns is gzipped.
+     */
+    public boolean isCompressed() {
+        return _gzip != null;
+    }
+
+    /**
+     * @return number of bytes written, before any compression.
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * Completes the content.  The stream must not be written afterwards.
+     *
+     * @return the content, compressed if isCompressed() is true.
+     */
+    public ByteBuffer finish() throws IOException {
+        if (_gzip == null) {
+            return ByteBuffer.wrap(Arrays.copyOf(_plain, _plainCount));
+        }
+        _gzip.finish();
+        _gzip.close();
+        return ByteBuffer.wrap(_sink._buf, 0, _sink._count);
+    }
+
+    /**
+     * Releases the compressor if the content was never finished.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_gzip != null) {
+            _gzip.close();
+        }
+    }
+
+    protected static class CompressedSink extends OutputStream {
+        byte[] _buf;
+        int _count = 0;
+
+        protected CompressedSink(int size) {
+            _buf = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            _buf[_count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, _buf, _count, len);
+            _count += len;
+        }
+
+        private void ensure(int len) {
+            if (_count + len > _buf.length) {
+                _buf = Arrays.copyOf(_buf, Math.max(_buf.length << 1, _count + len));
+            }
+        }
+    }
+}
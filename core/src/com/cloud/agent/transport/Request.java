@@ -16,10 +16,16 @@
 // under the License.
 package com.cloud.agent.transport;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -59,7 +65,7 @@ import com.google.gson.stream.JsonReader;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
+ * 2. Flags - 3 bytes, the first one carries the capabilities of the sender;
  * 3. Sequence - 8 bytes;
  * 4. Length - 4 bytes;
  * 5. ManagementServerId - 8 bytes;
@@ -77,7 +83,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Same as v1 but the content is encoded by BinaryCodec.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -97,6 +104,13 @@ public class Request {
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
 
+    /* Capabilities of the sender, in the byte before the flags */
+    protected static final byte        CAP_BINARY_CODEC     = 0x1;
+
+    /* Content of at least this many bytes is compressed */
+    protected static final int         COMPRESSION_THRESHOLD = 8192;
+    protected static final String      CONTENT_CHARSET      = "UTF-8";
+
 
     protected Version   _ver;
     protected long      _session;
@@ -107,6 +121,10 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected ByteBuffer _jsonContent;
+    protected int       _jsonContentSize;
+    protected ByteBuffer _binaryContent;
+    protected byte      _peerCapabilities;
     
     protected Request() {
     }
@@ -158,7 +176,8 @@ public class Request {
     }
 
     protected Request(final Request that, final Command[] cmds) {
-        this._ver = that._ver;
+        // Answer in binary if the sender told us it can decode it
+        this._ver = (that._ver == Version.v1 && that.isBinaryCodecAccepted()) ? Version.v4 : that._ver;
         this._seq = that._seq;
         setInSequence(that.executeInSequence());
         setStopOnError(that.stopOnError());
@@ -201,6 +220,24 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * @return true if this was received from a peer that is able to decode
+     * content encoded by BinaryCodec.
+     */
+    public boolean isBinaryCodecAccepted() {
+        return (_peerCapabilities & CAP_BINARY_CODEC) != 0;
+    }
+
+    /**
+     * Switches a v1 request to the binary encoding.  Only call this when the
+     * peer is known to accept it, see isBinaryCodecAccepted().
+     */
+    public void useBinaryCodec(boolean binary) {
+        if (binary && _ver == Version.v1 && _content == null && _cmds != null) {
+            _ver = Version.v4;
+        }
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -229,18 +266,74 @@ public class Request {
     public Command[] getCommands() {
         if (_cmds == null) {
             try {
-                StringReader reader = new StringReader(_content);
-                JsonReader jsonReader = new JsonReader(reader);
-                jsonReader.setLenient(true);
-                _cmds = s_gson.fromJson(jsonReader, (Type)Command[].class);
+                _cmds = deserializeContent(Command[].class);
             } catch (RuntimeException e) {
-                s_logger.error("Caught problem with " + _content, e);
+                s_logger.error("Caught problem with " + contentToString(), e);
                 throw e;
             }
         }
         return _cmds;
     }
 
+    protected Command[] deserializeContent(Type type) {
+        if (_binaryContent != null) {
+            return BinaryCodec.decode(s_gson, _binaryContent.duplicate(), type);
+        }
+        Reader reader = _jsonContent != null ? openJsonContent() : new StringReader(_content);
+        try {
+            JsonReader jsonReader = new JsonReader(reader);
+            jsonReader.setLenient(true);
+            return s_gson.fromJson(jsonReader, type);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                s_logger.debug("Unable to close the content reader", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the json content straight from the received bytes, inflating
+     * them on the way if they were compressed.
+     */
+    protected Reader openJsonContent() {
+        InputStream in = new ByteArrayInputStream(_jsonContent.array(), _jsonContent.arrayOffset() + _jsonContent.position(), _jsonContent.remaining());
+        try {
+            if ((_flags & FLAG_COMPRESSED) != 0) {
+                in = new GZIPInputStream(in);
+            }
+            return new InputStreamReader(in, CONTENT_CHARSET);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to read the content of " + _agentId + "-" + _seq, e);
+        }
+    }
+
+    /**
+     * @return the content as text, only meant for error messages.
+     */
+    protected String contentToString() {
+        if (_content != null) {
+            return _content;
+        }
+        if (_jsonContent == null) {
+            return _ver + " content";
+        }
+        StringBuilder content = new StringBuilder();
+        Reader reader = openJsonContent();
+        try {
+            char[] chars = new char[1024];
+            int len;
+            while ((len = reader.read(chars)) > 0) {
+                content.append(chars, 0, len);
+            }
+            reader.close();
+        } catch (IOException e) {
+            content.append("...");
+        }
+        return content.toString();
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -248,7 +341,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put(CAP_BINARY_CODEC);
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -291,15 +384,20 @@ public class Request {
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
         byte[] array;
+        int offset = 0;
+        int len;
         if (buffer.hasArray()) {
             array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            len = buffer.remaining();
         } else {
-            array = new byte[buffer.capacity()];
+            array = new byte[buffer.remaining()];
             buffer.get(array);
+            len = array.length;
         }
         try {
             GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            out.write(array, offset, len);
             out.finish();
             out.close();
         } catch (IOException e) {
@@ -311,16 +409,34 @@ public class Request {
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
+        int capacity;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
-        }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
-        /* Check if we need to compress the data */
-        if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
-            _flags |= FLAG_COMPRESSED;
+        if (_ver == Version.v4) {
+            if (_binaryContent == null) {
+                _binaryContent = ByteBuffer.wrap(BinaryCodec.encode(s_gson, _cmds, _cmds.getClass()));
+            }
+            tmp = _binaryContent.duplicate();
+            capacity = tmp.remaining();
+            /* Check if we need to compress the data */
+            if (capacity >= COMPRESSION_THRESHOLD) {
+                tmp = doCompress(tmp, capacity);
+                _flags |= FLAG_COMPRESSED;
+            }
+        } else if (_jsonContent != null) {
+            // A parsed request is forwarded as it came in, its commands are not encoded again
+            tmp = _jsonContent.duplicate();
+            capacity = _jsonContentSize;
+        } else {
+            ContentOutputStream out = serializeJsonContent();
+            try {
+                tmp = out.finish();
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize " + _agentId + "-" + _seq, e);
+            }
+            capacity = (int)out.getSize();
+            if (out.isCompressed()) {
+                _flags |= FLAG_COMPRESSED;
+            }
         }
         buffers[1] = tmp;
         buffers[0] = serializeHeader(capacity);
@@ -328,6 +444,38 @@ public class Request {
         return buffers;
     }
 
+    /**
+     * Gson writes the json through a UTF-8 writer straight into the content
+     * buffer, which compresses it on the fly if it turns out to be large.
+     */
+    protected ContentOutputStream serializeJsonContent() {
+        ContentOutputStream out = new ContentOutputStream(COMPRESSION_THRESHOLD);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, CONTENT_CHARSET), 4096);
+            if (_content != null) {
+                writer.write(_content);
+            } else {
+                s_gson.toJson(_cmds, _cmds.getClass(), writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            closeQuietly(out);
+            throw new CloudRuntimeException("Unable to serialize " + _agentId + "-" + _seq, e);
+        } catch (RuntimeException e) {
+            closeQuietly(out);
+            throw e;
+        }
+        return out;
+    }
+
+    private static void closeQuietly(ContentOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            s_logger.debug("Unable to close the content stream", e);
+        }
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
         final int len1 = buffers[0].remaining();
@@ -383,9 +531,9 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = deserializeContent(this instanceof Response ? Answer[].class : Command[].class);
                 } catch (RuntimeException e) {
-                    s_logger.error("Unable to convert to json: " + _content);
+                    s_logger.error("Unable to convert to json: " + contentToString());
                     throw e;
                 }
             }
@@ -405,7 +553,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserializeContent(this instanceof Response ? Answer[].class : Command[].class);
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -444,10 +592,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte capabilities = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -458,34 +606,37 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
-        if ((flags & FLAG_COMPRESSED) != 0) {
-            buff = doDecompress(buff, size);
-        }
-        
-        byte[] command = null;
-        int offset = 0;
-        if (buff.hasArray()) {
-            command = buff.array();
-            offset = buff.arrayOffset() + buff.position();
-        } else {
-            command = new byte[buff.remaining()];
-            buff.get(command);
-            offset = 0;
+        Request req;
+        if (version == Version.v4) {
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                buff = doDecompress(buff, size);
+            }
+            if (isRequest) {
+                req = new Request(version, seq, agentId, mgmtId, via, flags, (String)null);
+            } else {
+                req = new Response(version, seq, agentId, mgmtId, via, flags, (String)null);
+            }
+            req._binaryContent = buff.slice();
+            req._peerCapabilities = capabilities;
+            return req;
         }
 
-        final String content = new String(command, offset, command.length - offset);
-
+        // The json is only read, and inflated if need be, when the commands are asked for
         if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+            req = new Request(version, seq, agentId, mgmtId, via, flags, (String)null);
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            req = new Response(version, seq, agentId, mgmtId, via, flags, (String)null);
         }
+        req._jsonContent = buff.slice();
+        req._jsonContentSize = size;
+        req._peerCapabilities = capabilities;
+        return req;
     }
 
     public long getAgentId() {
@@ -17,6 +17,7 @@
 package com.cloud.agent.transport;
 
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
 import com.cloud.exception.UnsupportedVersionException;
 
 /**
@@ -55,11 +56,16 @@ public class Response extends Request {
 
     public Answer[] getAnswers() {
         if (_cmds == null) {
-            _cmds = s_gson.fromJson(_content, Answer[].class);
+            _cmds = deserializeContent(Answer[].class);
         }
         return (Answer[])_cmds;
     }
 
+    @Override
+    public Command[] getCommands() {
+        return getAnswers();
+    }
+
     @Override
     protected String getType() {
         return "Ans: ";
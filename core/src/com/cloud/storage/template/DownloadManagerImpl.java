@@ -220,6 +220,7 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadConnections = HttpTemplateDownloader.DEFAULT_CONNECTIONS;
     private boolean _sslCopy;
 
     /**
@@ -330,8 +331,10 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         _storage.mkdirs(resourcePath);
         dnld.setTmpltPath(finalResourcePath);
 
+        // Without a probe the file has to be read once more for its checksum
+        TemplateProbe probe = td.getProbe();
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        String checkSum = probe != null ? probe.getChecksum() : computeCheckSum(originalTemplate);
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -368,7 +371,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         scr.add("-t", resourcePath);
         scr.add("-f", td.getDownloadLocalPath());
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
-            scr.add("-c", dnld.getChecksum());
+            // -C records the checksum without reading the file once more to verify it
+            scr.add(probe != null ? "-C" : "-c", dnld.getChecksum());
         }
         scr.add("-u"); // cleanup
         String result;
@@ -401,13 +405,17 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             return "Unable to download due to " + e.getMessage();
         }
 
+        if (probe != null && probe.isCompressed()) {
+            // The script uncompressed it, what the probe saw is not the image
+            probe = null;
+        }
         Iterator<Processor> en = _processors.values().iterator();
         while (en.hasNext()) {
             Processor processor = en.next();
 
             FormatInfo info = null;
             try {
-                info = processor.process(resourcePath, null, templateName);
+                info = processor.process(resourcePath, null, templateName, probe);
             } catch (InternalErrorException e) {
                 s_logger.error("Template process exception ", e);
                 return e.toString();
@@ -478,7 +486,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                    HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                    httpDownloader.setConnections(downloadConnections);
+                    td = httpDownloader;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -911,6 +921,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String) params.get("install.timeout.pergig");
         this.installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        value = (String) params.get("download.connections");
+        this.downloadConnections = NumbersUtil.parseInt(value, HttpTemplateDownloader.DEFAULT_CONNECTIONS);
+
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
@@ -18,7 +18,10 @@ package com.cloud.storage.template;
 
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
@@ -27,7 +30,23 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.httpclient.Credentials;
@@ -50,25 +69,48 @@ import com.cloud.agent.api.storage.DownloadCommand.ResourceType;
 import com.cloud.storage.StorageLayer;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
  * Download a template file using HTTP
  *
+ * When the server answers range requests the file is fetched in ranges over
+ * several connections, written into a preallocated file and synced once per
+ * range.  The ranges that made it to disk are listed in a journal next to
+ * the file so that an interrupted download resumes with the ranges that are
+ * still missing.  The bytes are shown to a TemplateProbe in file order, as
+ * they arrive when possible and from the freshly written file otherwise.
  */
 public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
+    static {
+        // The default of two connections per host would serialize the range requests
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(32);
+        s_httpClientManager.getParams().setMaxTotalConnections(128);
+    }
+
+	public static final int DEFAULT_CONNECTIONS = 4;
+	public static final long DEFAULT_RANGE_SIZE = 64L*1024*1024; //64M
+	private static final String RANGES_SUFFIX = ".ranges";
+	private static final int RANGE_ATTEMPTS = 3;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+0-0/(\\d+)");
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private static final long SYNC_INTERVAL = 64L*1024*1024; //64M
 	private String downloadUrl;
 	private String toFile;
-	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
+	public volatile TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
 	public String errorString = " ";
 	private long remoteSize = 0;
 	public long downloadTime = 0;
-	public long totalBytes;
+	public volatile long totalBytes;
 	private final HttpClient client;
 	private GetMethod request;
+	private final Set<GetMethod> rangeRequests = Collections.synchronizedSet(new HashSet<GetMethod>());
+	private int connections = DEFAULT_CONNECTIONS;
+	private long rangeSize = DEFAULT_RANGE_SIZE;
+	private TemplateProbe probe;
 	private boolean resume = false;
 	private DownloadCompleteCallback completionCallback;
 	StorageLayer _storage;
@@ -159,7 +201,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	}
 	
 
-	private  Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
+	protected Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
 		try {
 			URI uri = new URI(url);
 			if (!uri.getScheme().equalsIgnoreCase("http") && !uri.getScheme().equalsIgnoreCase("https") ) {
@@ -208,114 +250,480 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		default:
 
 		}
-        int bytes=0;
 		File file = new File(toFile);
+		File rangesFile = new File(toFile + RANGES_SUFFIX);
 		try {
-			
-			long localFileSize = 0;
-			if (file.exists() && resume) {
-				localFileSize = file.length();
-				s_logger.info("Resuming download to file (current size)=" + localFileSize);
-			}
-			
-            Date start = new Date();
-
-			int responseCode=0;
-			
-			if (localFileSize > 0 ) {
-				// require partial content support for resume
-				request.addRequestHeader("Range", "bytes=" + localFileSize + "-");
-				if (client.executeMethod(request) != HttpStatus.SC_PARTIAL_CONTENT) {
-					errorString = "HTTP Server does not support partial get";
-					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-					return 0;
+			if (connections > 1) {
+				long size = getRangedSize();
+				if (size > 0) {
+					return downloadRanges(file, rangesFile, size, resume);
 				}
-			} else if ((responseCode = client.executeMethod(request)) != HttpStatus.SC_OK) {
-				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-				errorString = " HTTP Server returned " + responseCode + " (expected 200 OK) ";
-                return 0; //FIXME: retry?
-            }
-			
-            Header contentLengthHeader = request.getResponseHeader("Content-Length");
-            boolean chunked = false;
-            long remoteSize2 = 0;
-            if (contentLengthHeader == null) {
-            	Header chunkedHeader = request.getResponseHeader("Transfer-Encoding");
-            	if (chunkedHeader == null || !"chunked".equalsIgnoreCase(chunkedHeader.getValue())) {
-            		status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-            		errorString=" Failed to receive length of download ";
-            		return 0; //FIXME: what status do we put here? Do we retry?
-            	} else if ("chunked".equalsIgnoreCase(chunkedHeader.getValue())){
-            		chunked = true;
-            	}
-            } else {
-            	remoteSize2 = Long.parseLong(contentLengthHeader.getValue());
+				s_logger.info("No range support from " + getDownloadUrl() + ", downloading over a single connection");
+			}
+			return downloadSequentially(file, rangesFile, resume);
+		}catch (HttpException hte) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			errorString = hte.getMessage();
+		} catch (IOException ioe) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
+			errorString = ioe.getMessage();
+		} finally {
+			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
+				file.delete();
+			}
+			if (status == Status.UNRECOVERABLE_ERROR || status == Status.DOWNLOAD_FINISHED) {
+				rangesFile.delete();
+			}
+			request.releaseConnection();
+            if (callback != null) {
+            	callback.downloadComplete(status);
             }
+		}
+		return 0;
+	}
 
-            if (remoteSize == 0) {
-            	remoteSize = remoteSize2;
-            }
-            
-            if (remoteSize > MAX_TEMPLATE_SIZE_IN_BYTES) {
-            	s_logger.info("Remote size is too large: " + remoteSize + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
-            	status = Status.UNRECOVERABLE_ERROR;
-            	errorString = "Download file size is too large";
-            	return 0;
-            }
-            
-            if (remoteSize == 0) {
-            	remoteSize = MAX_TEMPLATE_SIZE_IN_BYTES;
+	private long downloadSequentially(File file, File rangesFile, boolean resume) throws IOException {
+		int bytes=0;
+		long localFileSize = 0;
+		if (rangesFile.exists()) {
+			// A ranged download was preallocated to the full size, its length says nothing
+			s_logger.info("Discarding partial ranged download in " + toFile);
+			rangesFile.delete();
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				out.setLength(0);
+			} finally {
+				out.close();
+			}
+		} else if (file.exists() && resume) {
+			localFileSize = file.length();
+			s_logger.info("Resuming download to file (current size)=" + localFileSize);
+		}
+
+        Date start = new Date();
+
+		int responseCode=0;
+
+		if (localFileSize > 0 ) {
+			// require partial content support for resume
+			request.addRequestHeader("Range", "bytes=" + localFileSize + "-");
+			if (client.executeMethod(request) != HttpStatus.SC_PARTIAL_CONTENT) {
+				errorString = "HTTP Server does not support partial get";
+				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+				return 0;
+			}
+		} else if ((responseCode = client.executeMethod(request)) != HttpStatus.SC_OK) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			errorString = " HTTP Server returned " + responseCode + " (expected 200 OK) ";
+            return 0; //FIXME: retry?
+        }
+
+        Header contentLengthHeader = request.getResponseHeader("Content-Length");
+        boolean chunked = false;
+        long remoteSize2 = 0;
+        if (contentLengthHeader == null) {
+        	Header chunkedHeader = request.getResponseHeader("Transfer-Encoding");
+        	if (chunkedHeader == null || !"chunked".equalsIgnoreCase(chunkedHeader.getValue())) {
+        		status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+        		errorString=" Failed to receive length of download ";
+        		return 0; //FIXME: what status do we put here? Do we retry?
+        	} else if ("chunked".equalsIgnoreCase(chunkedHeader.getValue())){
+        		chunked = true;
+        	}
+        } else {
+        	remoteSize2 = Long.parseLong(contentLengthHeader.getValue());
+        }
+
+        if (remoteSize == 0) {
+        	remoteSize = remoteSize2;
+        }
+
+        if (remoteSize > MAX_TEMPLATE_SIZE_IN_BYTES) {
+        	s_logger.info("Remote size is too large: " + remoteSize + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+        	status = Status.UNRECOVERABLE_ERROR;
+        	errorString = "Download file size is too large";
+        	return 0;
+        }
+
+        if (remoteSize == 0) {
+        	remoteSize = MAX_TEMPLATE_SIZE_IN_BYTES;
+        }
+
+        InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
+        						: new ChunkedInputStream(request.getResponseBodyAsStream());
+
+        // Full blocks go out as plain writes and are synced every SYNC_INTERVAL,
+        // "rwd" used to sync every read off the socket
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            if (probe == null || probe.getSize() != localFileSize) {
+                probe = new TemplateProbe();
+                probeFile(channel, 0, localFileSize);
             }
-            
-            InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
-            						: new ChunkedInputStream(request.getResponseBodyAsStream());
-            
-            RandomAccessFile out = new RandomAccessFile(file, "rwd");
-            out.seek(localFileSize);
 
             s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
-            
+
             byte[] block = new byte[CHUNK_SIZE];
-            long offset=0;
+            long offset=localFileSize;
+            long unsynced = 0;
             boolean done=false;
             status = TemplateDownloader.Status.IN_PROGRESS;
-            while (!done && status != Status.ABORTED && offset <= remoteSize) {
-            	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-            		out.write(block, 0, bytes);
+            while (!done && status != Status.ABORTED && offset - localFileSize <= remoteSize) {
+            	if ( (bytes = fill(in, block, CHUNK_SIZE)) > 0) {
+            		write(channel, block, bytes, offset);
+            		probe.update(block, 0, bytes);
             		offset +=bytes;
-            		out.seek(offset);
             		totalBytes += bytes;
+            		unsynced += bytes;
+            		if (unsynced >= SYNC_INTERVAL) {
+            			channel.force(false);
+            			unsynced = 0;
+            		}
             	} else {
             		done = true;
             	}
             }
-            Date finish = new Date();
-            String downloaded = "(incomplete download)";
-            if (totalBytes >= remoteSize) {
-            	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
-            	downloaded = "(download complete remote=" + remoteSize + "bytes)";
-            }
-            errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
-            downloadTime += finish.getTime() - start.getTime();
+            channel.force(true);
+        } finally {
             out.close();
-            
-            return totalBytes;
-		}catch (HttpException hte) {
+        }
+        Date finish = new Date();
+        String downloaded = "(incomplete download)";
+        if (totalBytes >= remoteSize) {
+        	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+        	downloaded = "(download complete remote=" + remoteSize + "bytes)";
+        }
+        errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
+        downloadTime += finish.getTime() - start.getTime();
+
+        return totalBytes;
+	}
+
+	/**
+	 * Asks for the first byte of the file to find out whether the server
+	 * answers range requests.
+	 * @return size of the file if it does, 0 if it does not.
+	 */
+	private long getRangedSize() throws IOException {
+		GetMethod probe = new GetMethod(downloadUrl);
+		probe.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+		probe.addRequestHeader("Range", "bytes=0-0");
+		try {
+			if (client.executeMethod(probe) != HttpStatus.SC_PARTIAL_CONTENT) {
+				// Do not let the release read the whole file off the connection
+				probe.abort();
+				return 0;
+			}
+			Header contentRange = probe.getResponseHeader("Content-Range");
+			if (contentRange == null) {
+				return 0;
+			}
+			Matcher matcher = CONTENT_RANGE.matcher(contentRange.getValue().trim());
+			return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+		} finally {
+			probe.releaseConnection();
+		}
+	}
+
+	private long downloadRanges(File file, File rangesFile, long size, boolean resume) throws IOException {
+		if (size > MAX_TEMPLATE_SIZE_IN_BYTES) {
+			s_logger.info("Remote size is too large: " + size + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+			status = Status.UNRECOVERABLE_ERROR;
+			errorString = "Download file size is too large";
+			return 0;
+		}
+		remoteSize = size;
+		int count = (int)((size + rangeSize - 1) / rangeSize);
+
+		BitSet completed = null;
+		if (resume && rangesFile.exists() && file.length() == size) {
+			completed = readCompletedRanges(rangesFile, size, count);
+		}
+		if (completed == null || probe == null) {
+			probe = new TemplateProbe();
+		}
+		if (completed == null) {
+			completed = new BitSet(count);
+			FileOutputStream journal = new FileOutputStream(rangesFile);
+			try {
+				journal.write((size + " " + rangeSize + "\n").getBytes());
+			} finally {
+				journal.close();
+			}
+		} else {
+			s_logger.info("Resuming download to " + toFile + " with " + completed.cardinality() + " of " + count + " ranges done");
+		}
+		int completedBefore = completed.cardinality();
+
+		Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+		long doneBytes = 0;
+		for (int i = 0; i < count; i++) {
+			if (completed.get(i)) {
+				doneBytes += getRangeEnd(i) - getRangeStart(i) + 1;
+			} else {
+				pending.add(i);
+			}
+		}
+		totalBytes = doneBytes;
+
+		Date start = new Date();
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		FileOutputStream journal = new FileOutputStream(rangesFile, true);
+		RangeFetcher[] fetchers = new RangeFetcher[Math.min(connections, Math.max(pending.size(), 1))];
+		try {
+			if (out.length() != size) {
+				out.setLength(size);
+			}
+			advanceProbe(out.getChannel(), completed);
+			s_logger.info("Starting ranged download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , ranges=" + pending.size() + " , connections=" + fetchers.length);
+			status = TemplateDownloader.Status.IN_PROGRESS;
+
+			ExecutorService executor = Executors.newFixedThreadPool(fetchers.length, new NamedThreadFactory("HttpRangeDownload"));
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>(fetchers.length);
+				for (int i = 0; i < fetchers.length; i++) {
+					fetchers[i] = new RangeFetcher(out.getChannel(), pending, completed, journal);
+					futures.add(executor.submit(fetchers[i]));
+				}
+				for (Future<?> future : futures) {
+					try {
+						future.get();
+					} catch (InterruptedException e) {
+						status = Status.ABORTED;
+						throw new IOException("Interrupted while waiting for the range downloads");
+					} catch (ExecutionException e) {
+						throw new IOException("Range download failed: " + e.getCause());
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			out.getChannel().force(true);
+		} finally {
+			journal.close();
+			out.close();
+		}
+		Date finish = new Date();
+		downloadTime += finish.getTime() - start.getTime();
+
+		if (status == Status.ABORTED) {
+			return totalBytes;
+		}
+		String error = null;
+		for (RangeFetcher fetcher : fetchers) {
+			if (fetcher.error != null) {
+				error = fetcher.error;
+			}
+		}
+		int completedAfter = completed.cardinality();
+		if (completedAfter == count) {
+			status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+			errorString = "Downloaded " + totalBytes + " bytes (download complete remote=" + remoteSize + "bytes)";
+		} else if (completedAfter > completedBefore) {
+			// Still IN_PROGRESS, so the download manager resumes with the missing ranges
+			errorString = "Downloaded " + totalBytes + " bytes (incomplete download) " + error;
+		} else {
 			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-			errorString = hte.getMessage();
-		} catch (IOException ioe) {
-			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
-			errorString = ioe.getMessage();
+			errorString = error;
+		}
+		return totalBytes;
+	}
+
+	private long getRangeStart(int index) {
+		return index * rangeSize;
+	}
+
+	private long getRangeEnd(int index) {
+		return Math.min((index + 1) * rangeSize, remoteSize) - 1;
+	}
+
+	/**
+	 * Reads the journal of a previous ranged download of this file.
+	 * @return the ranges that are on disk, null if the journal is for a
+	 *         different file size or range size.
+	 */
+	private BitSet readCompletedRanges(File rangesFile, long size, int count) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(rangesFile));
+		try {
+			String line = reader.readLine();
+			if (line == null || !line.equals(size + " " + rangeSize)) {
+				s_logger.info("Ranges in " + rangesFile + " do not match the download, starting over");
+				return null;
+			}
+			BitSet completed = new BitSet(count);
+			while ((line = reader.readLine()) != null) {
+				try {
+					int index = Integer.parseInt(line.trim());
+					if (index >= 0 && index < count) {
+						completed.set(index);
+					}
+				} catch (NumberFormatException e) {
+					// A line cut short when the last download was interrupted
+				}
+			}
+			return completed;
 		} finally {
-			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
-				file.delete();
+			reader.close();
+		}
+	}
+
+	/**
+	 * Shows the probe the ranges that follow the bytes it has seen, as far as
+	 * they are complete.
+	 */
+	private void advanceProbe(FileChannel channel, BitSet completed) throws IOException {
+		synchronized (probe) {
+			while (probe.getSize() < remoteSize) {
+				int index = (int)(probe.getSize() / rangeSize);
+				synchronized (completed) {
+					if (!completed.get(index)) {
+						return;
+					}
+				}
+				probeFile(channel, probe.getSize(), getRangeEnd(index) + 1);
+			}
+		}
+	}
+
+	private void probeFile(FileChannel channel, long from, long to) throws IOException {
+		byte[] block = new byte[CHUNK_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		for (long position = from; position < to;) {
+			buffer.clear();
+			buffer.limit((int)Math.min(CHUNK_SIZE, to - position));
+			int bytes = channel.read(buffer, position);
+			if (bytes < 0) {
+				throw new IOException("Unexpected end of " + toFile + " at " + position);
+			}
+			probe.update(block, 0, bytes);
+			position += bytes;
+		}
+	}
+
+	private synchronized void addDownloadedBytes(long bytes) {
+		totalBytes += bytes;
+	}
+
+	/**
+	 * Reads until the block is full or the stream ends.
+	 */
+	private static int fill(InputStream in, byte[] block, int length) throws IOException {
+		int filled = 0;
+		while (filled < length) {
+			int bytes = in.read(block, filled, length - filled);
+			if (bytes < 0) {
+				break;
+			}
+			filled += bytes;
+		}
+		return filled;
+	}
+
+	private static void write(FileChannel channel, byte[] block, int length, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Takes ranges off the queue until it is empty and writes each one where
+	 * it belongs in the file.  A range is synced before it is added to the
+	 * journal.
+	 */
+	private class RangeFetcher implements Runnable {
+		private final FileChannel channel;
+		private final Queue<Integer> pending;
+		private final BitSet completed;
+		private final FileOutputStream journal;
+		private final byte[] block = new byte[CHUNK_SIZE];
+		String error;
+
+		RangeFetcher(FileChannel channel, Queue<Integer> pending, BitSet completed, FileOutputStream journal) {
+			this.channel = channel;
+			this.pending = pending;
+			this.completed = completed;
+			this.journal = journal;
+		}
+
+		@Override
+		public void run() {
+			Integer index;
+			while (status == Status.IN_PROGRESS && (index = pending.poll()) != null) {
+				for (int attempt = 1; status == Status.IN_PROGRESS; attempt++) {
+					try {
+						fetch(index);
+						break;
+					} catch (IOException e) {
+						if (status != Status.IN_PROGRESS) {
+							return;
+						}
+						s_logger.warn("Attempt " + attempt + " to download range " + index + " of " + toFile + " failed: " + e.getMessage());
+						if (attempt >= RANGE_ATTEMPTS) {
+							// Leave the rest to the other connections, the range is fetched again on resume
+							error = e.getMessage();
+							return;
+						}
+					}
+				}
+			}
+		}
+
+		private void fetch(int index) throws IOException {
+			long start = getRangeStart(index);
+			long end = getRangeEnd(index);
+			GetMethod method = new GetMethod(downloadUrl);
+			method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+			method.addRequestHeader("Range", "bytes=" + start + "-" + end);
+			rangeRequests.add(method);
+			long position = start;
+			boolean synced = false;
+			try {
+				int responseCode = client.executeMethod(method);
+				if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+					method.abort();
+					throw new IOException("HTTP Server returned " + responseCode + " for range " + start + "-" + end + " (expected 206 Partial Content)");
+				}
+				Header contentRange = method.getResponseHeader("Content-Range");
+				if (contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + start + "-" + end + "/")) {
+					method.abort();
+					throw new IOException("HTTP Server returned range " + (contentRange == null ? null : contentRange.getValue()) + " (expected " + start + "-" + end + ")");
+				}
+				InputStream in = method.getResponseBodyAsStream();
+				while (position <= end && status == Status.IN_PROGRESS) {
+					int bytes = fill(in, block, (int)Math.min(CHUNK_SIZE, end + 1 - position));
+					if (bytes == 0) {
+						throw new IOException("Range " + start + "-" + end + " ended after " + (position - start) + " bytes");
+					}
+					write(channel, block, bytes, position);
+					synchronized (probe) {
+						if (probe.getSize() == position) {
+							probe.update(block, 0, bytes);
+						}
+					}
+					position += bytes;
+					addDownloadedBytes(bytes);
+				}
+				if (position <= end) {
+					throw new IOException("Download of range " + start + "-" + end + " stopped");
+				}
+				channel.force(false);
+				synchronized (completed) {
+					completed.set(index);
+					journal.write((index + "\n").getBytes());
+				}
+				synced = true;
+				advanceProbe(channel, completed);
+			} finally {
+				if (!synced) {
+					// Bytes of a range that did not make it are fetched again
+					addDownloadedBytes(start - position);
+				}
+				rangeRequests.remove(method);
+				method.releaseConnection();
 			}
-			request.releaseConnection();
-            if (callback != null) {
-            	callback.downloadComplete(status);
-            }
 		}
-		return 0;
 	}
 
 	public String getDownloadUrl() {
@@ -347,10 +755,15 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public boolean stopDownload() {
 		switch (getStatus()) {
 		case IN_PROGRESS:
+			status = TemplateDownloader.Status.ABORTED;
 			if (request != null) {
 				request.abort();
 			}
-			status = TemplateDownloader.Status.ABORTED;
+			synchronized (rangeRequests) {
+				for (GetMethod rangeRequest : rangeRequests) {
+					rangeRequest.abort();
+				}
+			}
 			return true;
 		case UNKNOWN:
 		case NOT_STARTED:
@@ -363,6 +776,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			if (f.exists()) {
 				f.delete();
 			}
+			new File(toFile + RANGES_SUFFIX).delete();
 			return true;
 
 		default:
@@ -416,6 +830,34 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		this.resume = resume;
 	}
 
+	@Override
+	public TemplateProbe getProbe() {
+		if (status != Status.DOWNLOAD_FINISHED || probe == null || probe.getSize() != new File(toFile).length()) {
+			return null;
+		}
+		return probe;
+	}
+
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @param connections number of ranges fetched at the same time, 1 keeps
+	 *        the download on a single connection.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public long getRangeSize() {
+		return rangeSize;
+	}
+
+	public void setRangeSize(long rangeSize) {
+		this.rangeSize = rangeSize;
+	}
+
 	public void setToDir(String toDir) {
 		this.toDir = toDir;
 	}
@@ -65,4 +65,9 @@ public class IsoProcessor extends AdapterBase implements Processor {
         }
         return true;
     }
+
+    @Override
+    public FormatInfo process(String templatePath, ImageFormat format, String templateName, TemplateProbe probe) {
+        return process(templatePath, format, templateName);
+    }
 }
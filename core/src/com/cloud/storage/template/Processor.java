@@ -37,6 +37,14 @@ public interface Processor extends Adapter {
      *        that exists in case a conversion can be done.
      */
     FormatInfo process(String templatePath, ImageFormat format, String templateName) throws InternalErrorException;
+
+    /**
+     * Same as process() but takes the header and the footer of the file from
+     * what was seen while it was downloaded instead of reading the file.
+     *
+     * @param probe the probe that saw the whole file, null to read the file.
+     */
+    FormatInfo process(String templatePath, ImageFormat format, String templateName, TemplateProbe probe) throws InternalErrorException;
     
     public static class FormatInfo {
         public ImageFormat format;
@@ -39,6 +39,12 @@ public class QCOW2Processor extends AdapterBase implements Processor {
 	@Override
 	public FormatInfo process(String templatePath, ImageFormat format,
 			String templateName) {
+		return process(templatePath, format, templateName, null);
+	}
+
+	@Override
+	public FormatInfo process(String templatePath, ImageFormat format,
+			String templateName, TemplateProbe probe) {
 		if (format != null) {
             s_logger.debug("We currently don't handle conversion from " + format + " to QCOW2.");
             return null;
@@ -58,8 +64,15 @@ public class QCOW2Processor extends AdapterBase implements Processor {
         File qcow2File = _storage.getFile(qcow2Path);
         
         info.size = _storage.getSize(qcow2Path);
-        FileInputStream strm = null;
         byte[] b = new byte[8];
+        if (probe != null && probe.getSize() == info.size && info.size >= 32) {
+            // The header went by while the file was downloaded
+            System.arraycopy(probe.getHeader(), 24, b, 0, b.length);
+            info.virtualSize = NumbersUtil.bytesToLong(b);
+            return info;
+        }
+
+        FileInputStream strm = null;
         try {
             strm = new FileInputStream(qcow2File);
             strm.skip(24);
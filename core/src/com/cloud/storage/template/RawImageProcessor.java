@@ -68,4 +68,9 @@ public class RawImageProcessor extends AdapterBase implements Processor {
         return info;
 	}
 
+	@Override
+	public FormatInfo process(String templatePath, ImageFormat format,
+			String templateName, TemplateProbe probe) throws InternalErrorException {
+		return process(templatePath, format, templateName);
+	}
 }
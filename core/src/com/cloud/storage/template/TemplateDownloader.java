@@ -90,4 +90,10 @@ public interface TemplateDownloader extends Runnable{
 	
 	public long getMaxTemplateSizeInBytes();
 
+	/**
+	 * @return the probe that saw every byte of the downloaded file, null if
+	 *         the download is not finished or the downloader does not probe.
+	 */
+	public TemplateProbe getProbe();
+
 }
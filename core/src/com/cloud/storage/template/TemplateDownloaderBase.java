@@ -121,6 +121,11 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
     public long getMaxTemplateSizeInBytes() { 
 		return this.MAX_TEMPLATE_SIZE_IN_BYTES;
 	}
+
+    @Override
+    public TemplateProbe getProbe() {
+        return null;
+    }
     
     @Override
     public void run() {
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * TemplateProbe looks at the bytes of a template while they are written.
+ * It computes the MD5 checksum and keeps the first and the last bytes of
+ * the file, which is where the image formats keep their headers and
+ * footers, so that neither the checksum nor the virtual size needs another
+ * pass over the file.  The bytes must be fed in order and without gaps.
+ */
+public class TemplateProbe {
+    public static final int HEADER_SIZE = 512;
+    public static final int FOOTER_SIZE = 512;
+
+    private final MessageDigest _digest;
+    private final byte[] _header = new byte[HEADER_SIZE];
+    // The last FOOTER_SIZE bytes seen, _size % FOOTER_SIZE is the oldest one
+    private final byte[] _footer = new byte[FOOTER_SIZE];
+    private long _size;
+    private String _checksum;
+
+    public TemplateProbe() {
+        try {
+            _digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("Unable to get MD5 MessageDigest", e);
+        }
+    }
+
+    /**
+     * Adds the bytes that follow the ones already seen.
+     */
+    public void update(byte[] b, int offset, int length) {
+        if (_checksum != null) {
+            throw new IllegalStateException("The checksum has already been computed");
+        }
+        _digest.update(b, offset, length);
+
+        if (_size < HEADER_SIZE) {
+            System.arraycopy(b, offset, _header, (int)_size, (int)Math.min(length, HEADER_SIZE - _size));
+        }
+
+        // Only the bytes that can end up in the footer have to be copied
+        int skip = Math.max(0, length - FOOTER_SIZE);
+        long position = _size + skip;
+        for (int i = offset + skip; i < offset + length;) {
+            int slot = (int)(position % FOOTER_SIZE);
+            int count = Math.min(FOOTER_SIZE - slot, offset + length - i);
+            System.arraycopy(b, i, _footer, slot, count);
+            i += count;
+            position += count;
+        }
+        _size += length;
+    }
+
+    /**
+     * @return number of bytes seen.
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * @return MD5 checksum of the bytes seen, in the format DownloadManager
+     *         always used.  No bytes can be added afterwards.
+     */
+    public String getChecksum() {
+        if (_checksum == null) {
+            _checksum = String.format("%032x", new BigInteger(1, _digest.digest()));
+        }
+        return _checksum;
+    }
+
+    /**
+     * @return the first HEADER_SIZE bytes, fewer if the file is smaller.
+     */
+    public byte[] getHeader() {
+        return Arrays.copyOf(_header, (int)Math.min(_size, HEADER_SIZE));
+    }
+
+    /**
+     * @return the last FOOTER_SIZE bytes, fewer if the file is smaller.
+     */
+    public byte[] getFooter() {
+        if (_size < FOOTER_SIZE) {
+            return Arrays.copyOf(_footer, (int)_size);
+        }
+        byte[] footer = new byte[FOOTER_SIZE];
+        int oldest = (int)(_size % FOOTER_SIZE);
+        System.arraycopy(_footer, oldest, footer, 0, FOOTER_SIZE - oldest);
+        System.arraycopy(_footer, 0, footer, FOOTER_SIZE - oldest, oldest);
+        return footer;
+    }
+
+    /**
+     * @return true if the file is one that createtmplt.sh uncompresses, in
+     *         which case the header and the footer are not the image's.
+     */
+    public boolean isCompressed() {
+        byte[] header = getHeader();
+        if (header.length >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) {
+            return true; // gzip
+        }
+        if (header.length >= 3 && header[0] == 'B' && header[1] == 'Z' && header[2] == 'h') {
+            return true; // bzip2
+        }
+        return header.length >= 4 && header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4; // zip
+    }
+}
@@ -52,6 +52,11 @@ public class VhdProcessor extends AdapterBase implements Processor {
 
     @Override
     public FormatInfo process(String templatePath, ImageFormat format, String templateName) throws InternalErrorException {
+        return process(templatePath, format, templateName, null);
+    }
+
+    @Override
+    public FormatInfo process(String templatePath, ImageFormat format, String templateName, TemplateProbe probe) throws InternalErrorException {
         if (format != null) {
             s_logger.debug("We currently don't handle conversion from " + format + " to VHD.");
             return null;
@@ -71,9 +76,17 @@ public class VhdProcessor extends AdapterBase implements Processor {
         File vhdFile = _storage.getFile(vhdPath);
         
         info.size = _storage.getSize(vhdPath);
-        FileInputStream strm = null;
         byte[] currentSize = new byte[8];
         byte[] creatorApp = new byte[4];
+        if (probe != null && probe.getSize() == info.size && info.size >= vhd_footer_size) {
+            // The footer went by while the file was downloaded
+            byte[] footer = probe.getFooter();
+            System.arraycopy(footer, vhd_footer_current_size_offset, currentSize, 0, currentSize.length);
+            info.virtualSize = NumbersUtil.bytesToLong(currentSize);
+            return info;
+        }
+
+        FileInputStream strm = null;
         try {
             strm = new FileInputStream(vhdFile);
             strm.skip(info.size - vhd_footer_size + vhd_footer_creator_app_offset);
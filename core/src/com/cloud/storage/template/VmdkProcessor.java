@@ -144,4 +144,9 @@ public class VmdkProcessor extends AdapterBase implements Processor {
     	
     	return true;
     }
+
+    @Override
+    public FormatInfo process(String templatePath, ImageFormat format, String templateName, TemplateProbe probe) throws InternalErrorException {
+        return process(templatePath, format, templateName);
+    }
 }
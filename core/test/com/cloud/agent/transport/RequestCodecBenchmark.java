@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Compares encode/decode throughput and bytes on the wire of the json (v1)
+ * and binary (v4) encodings for a few commands that dominate the agent
+ * traffic, along with the bytes each message allocates.  It is not picked up by the regular build, run it with
+ * mvn test -Dtest=RequestCodecBenchmark
+ */
+public class RequestCodecBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(RequestCodecBenchmark.class);
+
+    private static final int ITERATIONS = Integer.getInteger("codec.benchmark.iterations", 2000);
+    private static final int VMS = 200;
+
+    private final com.sun.management.ThreadMXBean _mxBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public void testGetVmStatsAnswer() throws Exception {
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < VMS; i++) {
+            VmStatsEntry entry = new VmStatsEntry(Math.random() * 100, Math.random() * 10000, Math.random() * 10000, 2, "UserVm");
+            stats.put("i-2-" + i + "-VM", entry);
+        }
+        GetVmStatsCommand cmd = new GetVmStatsCommand(new ArrayList<String>(stats.keySet()), "host-guid", "host");
+        Request request = new Request(1, 1, new Command[] { cmd }, true, true);
+        GetVmStatsAnswer answer = new GetVmStatsAnswer(cmd, stats);
+
+        run("GetVmStatsAnswer", request, new Answer[] { answer });
+    }
+
+    public void testPingRoutingCommand() throws Exception {
+        HashMap<String, State> states = new HashMap<String, State>();
+        for (int i = 0; i < VMS; i++) {
+            states.put("i-2-" + i + "-VM", State.Running);
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 1, states);
+
+        run("PingRoutingCommand", new Command[] { ping });
+    }
+
+    public void testSecurityGroupRulesCmd() throws Exception {
+        IpPortAndProto[] ingress = new IpPortAndProto[50];
+        for (int i = 0; i < ingress.length; i++) {
+            String[] cidrs = new String[20];
+            for (int j = 0; j < cidrs.length; j++) {
+                cidrs[j] = "10." + i + "." + j + ".0/24";
+            }
+            ingress[i] = new IpPortAndProto("tcp", 1000 + i, 1000 + i, cidrs);
+        }
+        IpPortAndProto[] egress = new IpPortAndProto[] { new IpPortAndProto("all", 0, 65535, new String[] { "0.0.0.0/0" }) };
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd("10.1.1.2", "02:00:4c:5f:00:01", "i-2-3-VM", 3L, "5f4dcc3b5aa765d61d8327deb882cf99", 100L, ingress, egress);
+
+        run("SecurityGroupRulesCmd", new Command[] { cmd });
+    }
+
+    private void run(String name, Command[] cmds) throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            byte[] bytes = null;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Request req = new Request(1, 1, cmds, true, true);
+                req.useBinaryCodec(binary);
+                bytes = req.getBytes();
+            }
+            long encode = System.nanoTime() - start;
+            long encodeAllocated = allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Request.parse(bytes).getCommands();
+            }
+            long decode = System.nanoTime() - start;
+            long decodeAllocated = allocatedBytes() - allocated;
+            report(name, binary, bytes.length, encode, decode, encodeAllocated, decodeAllocated);
+        }
+    }
+
+    private void run(String name, Request request, Answer[] answers) throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            Request parsed = Request.parse(request.getBytes());
+            byte[] bytes = null;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Response resp = new Response(parsed, answers);
+                if (!binary) {
+                    // Pretend the request came from a peer that only knows json
+                    resp._ver = Request.Version.v1;
+                }
+                bytes = resp.getBytes();
+            }
+            long encode = System.nanoTime() - start;
+            long encodeAllocated = allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Response.parse(bytes).getAnswers();
+            }
+            long decode = System.nanoTime() - start;
+            long decodeAllocated = allocatedBytes() - allocated;
+            report(name, binary, bytes.length, encode, decode, encodeAllocated, decodeAllocated);
+        }
+    }
+
+    private long allocatedBytes() {
+        return _mxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void report(String name, boolean binary, int length, long encodeNanos, long decodeNanos, long encodeAllocated, long decodeAllocated) {
+        s_logger.info(name + (binary ? " binary: " : " json: ") + length + " bytes on the wire, encode " + (ITERATIONS * 1000000000L / encodeNanos)
+                + " msgs/sec and " + (encodeAllocated / ITERATIONS) + " bytes/msg, decode " + (ITERATIONS * 1000000000L / decodeNanos) + " msgs/sec and "
+                + (decodeAllocated / ITERATIONS) + " bytes/msg");
+    }
+}
@@ -17,6 +17,9 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import junit.framework.TestCase;
 
@@ -27,8 +30,13 @@ import org.junit.Assert;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
+import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
 import com.cloud.exception.UnsupportedVersionException;
@@ -162,6 +170,116 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testStreamedJsonContent() throws Exception {
+        s_logger.info("Testing json content that is compressed while it is serialized");
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < 200; i++) {
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(0.5 + i, 1024.25, 2048.75, 2, "vm\u00e9"));
+        }
+        GetVmStatsCommand cmd = new GetVmStatsCommand(new ArrayList<String>(stats.keySet()), "guid", "host");
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(1);
+
+        byte[] bytes = sreq.getBytes();
+        assert (bytes[3] & Request.FLAG_COMPRESSED) == 0 : "A small request should not be compressed";
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        assertEquals(200, ((GetVmStatsCommand)creq.getCommand()).getVmNames().size());
+
+        Response sresp = new Response(sreq, new GetVmStatsAnswer(cmd, stats));
+        assert sresp.getVersion() == Request.Version.v1;
+        bytes = sresp.getBytes();
+        assert (bytes[3] & Request.FLAG_COMPRESSED) != 0 : "A large response should be compressed";
+
+        Response cresp = Response.parse(bytes);
+        compareRequest(cresp, sresp);
+        GetVmStatsAnswer answer = (GetVmStatsAnswer)cresp.getAnswer();
+        assertEquals(200, answer.getVmStatsMap().size());
+        assertEquals(10.5, answer.getVmStatsMap().get("i-2-10-VM").getCPUUtilization(), 0);
+        assertEquals("vm\u00e9", answer.getVmStatsMap().get("i-2-10-VM").getEntityType());
+    }
+
+    public void testParsedJsonIsForwardedUnchanged() throws Exception {
+        s_logger.info("Testing that a parsed request is forwarded without encoding it again");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(1);
+        byte[] bytes = sreq.getBytes();
+
+        Request creq = Request.parse(bytes);
+        creq.getCommands();
+        assertTrue(Arrays.equals(bytes, creq.getBytes()));
+
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < 200; i++) {
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(0.5 + i, 1024.25, 2048.75, 2, "vm"));
+        }
+        Response sresp = new Response(sreq, new GetVmStatsAnswer(new GetVmStatsCommand(new ArrayList<String>(stats.keySet()), "guid", "host"), stats));
+        bytes = sresp.getBytes();
+        assert (bytes[3] & Request.FLAG_COMPRESSED) != 0 : "A large response should be compressed";
+
+        Response cresp = Response.parse(bytes);
+        assertTrue(Arrays.equals(bytes, cresp.getBytes()));
+        assertEquals(200, ((GetVmStatsAnswer)Response.parse(cresp.getBytes()).getAnswer()).getVmStatsMap().size());
+    }
+
+    public void testBinaryCodec() throws Exception {
+        s_logger.info("Testing the binary codec");
+        IpPortAndProto[] ingress = new IpPortAndProto[] { new IpPortAndProto("tcp", 22, 22, new String[] { "10.1.1.0/24", "192.168.1.1/32" }) };
+        IpPortAndProto[] egress = new IpPortAndProto[] { new IpPortAndProto("udp", 53, 53, new String[] { "0.0.0.0/0" }) };
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd("10.1.1.2", "02:00:4c:5f:00:01", "i-2-3-VM", 3L, "signature", 100L, ingress, egress);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(892403717);
+        sreq.useBinaryCodec(true);
+        assert sreq.getVersion() == Request.Version.v4;
+
+        byte[] bytes = sreq.getBytes();
+        assert Request.getVersion(bytes) == Request.Version.v4;
+        assert Request.getViaAgentId(bytes) == 2;
+
+        Request creq = Request.parse(bytes);
+        assert creq.isBinaryCodecAccepted();
+        compareRequest(creq, sreq);
+        SecurityGroupRulesCmd ccmd = (SecurityGroupRulesCmd)creq.getCommand();
+        assertEquals("10.1.1.2", ccmd.getGuestIp());
+        assertEquals("i-2-3-VM", ccmd.getVmName());
+        assertEquals(Long.valueOf(100), ccmd.getSeqNum());
+        assertEquals(2, ccmd.getIngressRuleSet()[0].getAllowedCidrs().length);
+        assertEquals("192.168.1.1/32", ccmd.getIngressRuleSet()[0].getAllowedCidrs()[1]);
+
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < 200; i++) {
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(0.5 + i, 1024.25, 2048.75, 2, "vm"));
+        }
+        GetVmStatsAnswer answer = new GetVmStatsAnswer(new GetVmStatsCommand(new ArrayList<String>(stats.keySet()), "guid", "host"), stats);
+        Response cresp = new Response(creq, answer);
+        assert cresp.getVersion() == Request.Version.v4 : "Response should use the codec the request came with";
+
+        Response sresp = Response.parse(cresp.getBytes());
+        compareRequest(cresp, sresp);
+        GetVmStatsAnswer sanswer = (GetVmStatsAnswer)sresp.getAnswer();
+        assertEquals(200, sanswer.getVmStatsMap().size());
+        assertEquals(10.5, sanswer.getVmStatsMap().get("i-2-10-VM").getCPUUtilization(), 0);
+        assertEquals(2048.75, sanswer.getVmStatsMap().get("i-2-10-VM").getNetworkWriteKBs(), 0);
+    }
+
+    public void testJsonRequestNegotiatesBinaryResponse() throws Exception {
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(1);
+        assert sreq.getVersion() == Request.Version.v1;
+
+        Request creq = Request.parse(sreq.getBytes());
+        assert creq.getVersion() == Request.Version.v1;
+        assert creq.isBinaryCodecAccepted();
+        assert !sreq.isBinaryCodecAccepted() : "Nothing is known about the peer of a local request";
+
+        Response resp = new Response(creq, new Answer(cmd, true, "ok"));
+        assert resp.getVersion() == Request.Version.v4;
+        Response parsed = Response.parse(resp.getBytes());
+        assertEquals("ok", parsed.getAnswer().getDetails());
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -0,0 +1,201 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.storage.DownloadCommand.ResourceType;
+import com.cloud.storage.template.TemplateDownloader.Status;
+import com.cloud.utils.Pair;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTemplateDownloaderTest {
+    private static final int RANGE_SIZE = 256 * 1024;
+
+    private HttpServer _server;
+    private File _dir;
+    private byte[] _content;
+
+    // What the server does with the requests it gets
+    private volatile boolean _supportRanges = true;
+    private volatile long _failRangesFrom = Long.MAX_VALUE;
+    private final List<Long> _rangeStarts = Collections.synchronizedList(new ArrayList<Long>());
+
+    /**
+     * The downloader refuses to talk to the loopback address, the embedded
+     * server is all it talks to here.
+     */
+    private static class LocalDownloader extends HttpTemplateDownloader {
+        LocalDownloader(String url, String toDir) {
+            super(null, url, toDir, null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null, null, ResourceType.TEMPLATE);
+        }
+
+        @Override
+        protected Pair<String, Integer> validateUrl(String url) {
+            return new Pair<String, Integer>("127.0.0.1", 0);
+        }
+    }
+
+    private class TemplateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range == null || !_supportRanges) {
+                    exchange.sendResponseHeaders(200, _content.length);
+                    write(exchange, 0, _content.length);
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                long start = Long.parseLong(bounds[0]);
+                long end = bounds[1].length() == 0 ? _content.length - 1 : Math.min(Long.parseLong(bounds[1]), _content.length - 1);
+                if (end > start) {
+                    _rangeStarts.add(start);
+                }
+                if (start >= _failRangesFrom) {
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + _content.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+                write(exchange, (int)start, (int)(end - start + 1));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void write(HttpExchange exchange, int offset, int length) throws IOException {
+            OutputStream out = exchange.getResponseBody();
+            out.write(_content, offset, length);
+            out.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _content = new byte[12 * RANGE_SIZE + 12345];
+        new Random(7).nextBytes(_content);
+
+        _dir = File.createTempFile("download", "test");
+        _dir.delete();
+        _dir.mkdirs();
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/template.vhd", new TemplateHandler());
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop(0);
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private HttpTemplateDownloader createDownloader() {
+        HttpTemplateDownloader downloader = new LocalDownloader("http://127.0.0.1:" + _server.getAddress().getPort() + "/template.vhd", _dir.getAbsolutePath());
+        downloader.setRangeSize(RANGE_SIZE);
+        return downloader;
+    }
+
+    private void assertDownloaded(HttpTemplateDownloader downloader) throws Exception {
+        assertEquals(downloader.getDownloadError(), Status.DOWNLOAD_FINISHED, downloader.getStatus());
+        assertEquals(_content.length, downloader.getDownloadedBytes());
+        assertEquals(100, downloader.getDownloadPercent());
+        assertFalse(new File(downloader.getToFile() + ".ranges").exists());
+
+        // The probe saw every byte in order, whichever way they came in
+        TemplateProbe probe = downloader.getProbe();
+        assertEquals(_content.length, probe.getSize());
+        assertArrayEquals(Arrays.copyOfRange(_content, _content.length - TemplateProbe.FOOTER_SIZE, _content.length), probe.getFooter());
+        assertEquals(String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(_content))), probe.getChecksum());
+
+        RandomAccessFile file = new RandomAccessFile(downloader.getToFile(), "r");
+        try {
+            byte[] downloaded = new byte[(int)file.length()];
+            file.readFully(downloaded);
+            assertArrayEquals(_content, downloaded);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testRangesAreFetchedInParallel() throws Exception {
+        HttpTemplateDownloader downloader = createDownloader();
+        downloader.download(false, null);
+
+        assertDownloaded(downloader);
+        assertEquals(13, _rangeStarts.size());
+    }
+
+    @Test
+    public void testInterruptedDownloadResumesWithMissingRanges() throws Exception {
+        _failRangesFrom = 4 * RANGE_SIZE;
+        HttpTemplateDownloader downloader = createDownloader();
+        downloader.download(false, null);
+
+        // Some ranges made it, so the download manager would resume it
+        assertEquals(Status.IN_PROGRESS, downloader.getStatus());
+        assertTrue(new File(downloader.getToFile() + ".ranges").exists());
+        assertEquals(4 * RANGE_SIZE, downloader.getDownloadedBytes());
+
+        _failRangesFrom = Long.MAX_VALUE;
+        _rangeStarts.clear();
+        downloader.download(true, null);
+
+        assertDownloaded(downloader);
+        assertEquals(9, _rangeStarts.size());
+        for (long start : _rangeStarts) {
+            assertTrue("Fetched range at " + start + " again", start >= 4 * RANGE_SIZE);
+        }
+    }
+
+    @Test
+    public void testSingleConnectionWithoutRangeSupport() throws Exception {
+        _supportRanges = false;
+        HttpTemplateDownloader downloader = createDownloader();
+        downloader.download(false, null);
+
+        assertDownloaded(downloader);
+        assertTrue(_rangeStarts.isEmpty());
+    }
+}
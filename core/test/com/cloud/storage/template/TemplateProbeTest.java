@@ -0,0 +1,64 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TemplateProbeTest {
+
+    @Test
+    public void testHeaderAndFooterWhateverTheWrites() throws Exception {
+        byte[] content = new byte[10000];
+        new Random(3).nextBytes(content);
+        int[] sizes = { 1, 7, 511, 512, 513, 4096, 10000 };
+
+        for (int size : sizes) {
+            TemplateProbe probe = new TemplateProbe();
+            for (int offset = 0; offset < content.length; offset += size) {
+                probe.update(content, offset, Math.min(size, content.length - offset));
+            }
+            assertEquals(content.length, probe.getSize());
+            assertArrayEquals(Arrays.copyOf(content, TemplateProbe.HEADER_SIZE), probe.getHeader());
+            assertArrayEquals("Writes of " + size, Arrays.copyOfRange(content, content.length - TemplateProbe.FOOTER_SIZE, content.length), probe.getFooter());
+        }
+
+        TemplateProbe probe = new TemplateProbe();
+        probe.update(content, 0, 100);
+        assertArrayEquals(Arrays.copyOf(content, 100), probe.getHeader());
+        assertArrayEquals(Arrays.copyOf(content, 100), probe.getFooter());
+    }
+
+    @Test
+    public void testChecksumAndCompression() {
+        TemplateProbe probe = new TemplateProbe();
+        probe.update("hello".getBytes(), 0, 5);
+        assertEquals("5d41402abc4b2a76b9719d911017c592", probe.getChecksum());
+        assertFalse(probe.isCompressed());
+
+        probe = new TemplateProbe();
+        probe.update(new byte[] { 0x1f, (byte)0x8b, 8, 0 }, 0, 4);
+        assertTrue(probe.isCompressed());
+    }
+}
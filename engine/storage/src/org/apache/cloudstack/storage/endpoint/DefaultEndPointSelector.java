@@ -18,9 +18,6 @@
  */
 package org.apache.cloudstack.storage.endpoint;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,10 +37,8 @@ import org.springframework.stereotype.Component;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
-import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
-import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.exception.CloudRuntimeException;
 
@@ -53,10 +48,8 @@ public class DefaultEndPointSelector implements EndPointSelector {
             .getLogger(DefaultEndPointSelector.class);
     @Inject
     HostDao hostDao;
-    private String findOneHostInaScope = "select id from host where "
-            + " status == 'Up' and hypervisor_type != 'VMware' and type in ('Routing', 'SecondaryStorageVM') ";
-    private String findOneHostOnPrimaryStorage = "select id from host where"
-            +  "status == 'Up' and type == 'Routing' ";
+    @Inject
+    EndPointRegistry endPointRegistry;
 
     protected boolean moveBetweenPrimaryImage(DataStore srcStore,
             DataStore destStore) {
@@ -70,56 +63,14 @@ public class DefaultEndPointSelector implements EndPointSelector {
         }
     }
 
-    @DB
-    protected EndPoint findEndPointInScope(Scope scope, String sqlBase) {
-        StringBuilder sbuilder = new StringBuilder();
-        sbuilder.append(sqlBase);
-
-        if (scope.getScopeType() == ScopeType.HOST) {
-            sbuilder.append(" and id = ");
-            sbuilder.append(scope.getScopeId());
-        } else if (scope.getScopeType() == ScopeType.CLUSTER) {
-            sbuilder.append(" and cluster_id = ");
-            sbuilder.append(scope.getScopeId());
-        } else if (scope.getScopeType() == ScopeType.ZONE) {
-            sbuilder.append(" and data_center_id = ");
-            sbuilder.append(scope.getScopeId());
-        }
-//TODO: order by rand() is slow if there are lot of hosts
-        sbuilder.append(" ORDER by rand() limit 1");
-        String sql = sbuilder.toString();
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        HostVO host = null;
-        Transaction txn = Transaction.currentTxn();
-
-        try {
-            pstmt = txn.prepareStatement(sql);
-            rs = pstmt.executeQuery();
-            while (rs.next()) {
-                long id = rs.getLong(1);
-                host = hostDao.findById(id);
-            }
-        } catch (SQLException e) {
-            s_logger.warn("can't find endpoint", e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
-            }
-        }
-
+    protected EndPoint findEndPointInScope(Scope scope, EndPointRegistry.Purpose purpose) {
+        EndPointRegistry.HostRef host = endPointRegistry.select(scope, purpose);
         if (host == null) {
             return null;
         }
 
         return HypervisorHostEndPoint.getHypervisorHostEndPoint(host.getId(),
-                host.getPrivateIpAddress());
+                host.getAddress());
     }
 
     protected EndPoint findEndPointForImageMove(DataStore srcStore,
@@ -138,7 +89,7 @@ public class DefaultEndPointSelector implements EndPointSelector {
             // if both are zone scope
             selectedScope = srcScope;
         }
-        return findEndPointInScope(selectedScope, findOneHostInaScope);
+        return findEndPointInScope(selectedScope, EndPointRegistry.Purpose.DataMotion);
     }
 
     @Override
@@ -157,7 +108,7 @@ public class DefaultEndPointSelector implements EndPointSelector {
     }
     
     protected EndPoint findEndpointForPrimaryStorage(DataStore store) {
-        return findEndPointInScope(store.getScope(), findOneHostOnPrimaryStorage);
+        return findEndPointInScope(store.getScope(), EndPointRegistry.Purpose.PrimaryStorage);
     }
     
     @Override
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.endpoint;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.Scope;
+import org.apache.cloudstack.engine.subsystem.api.storage.ScopeType;
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.manager.AgentAttache;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.db.SearchCriteria2;
+import com.cloud.utils.db.SearchCriteriaService;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * EndPointRegistry keeps the hosts that are up in memory, by host, cluster
+ * and zone, so that an endpoint can be picked without going to the
+ * database.  Of two hosts picked at random in the scope, it returns the one
+ * with fewer storage motion commands outstanding on its agent attache.
+ *
+ * The hosts are reloaded from the database periodically and shortly after
+ * a host connects to this management server.  A host that disconnects is
+ * dropped right away.
+ */
+@Component
+public class EndPointRegistry implements Listener {
+    private static final Logger s_logger = Logger.getLogger(EndPointRegistry.class);
+
+    /**
+     * What the endpoint is for, which decides the hosts that can serve it.
+     */
+    public enum Purpose {
+        /** Moving data between primary and image stores, on any host but VMware ones or on a secondary storage vm */
+        DataMotion {
+            @Override
+            boolean accepts(HostVO host) {
+                return (host.getType() == Host.Type.Routing || host.getType() == Host.Type.SecondaryStorageVM) && host.getHypervisorType() != HypervisorType.VMware;
+            }
+        },
+        /** Working on a primary store, on a hypervisor host */
+        PrimaryStorage {
+            @Override
+            boolean accepts(HostVO host) {
+                return host.getType() == Host.Type.Routing;
+            }
+        };
+
+        abstract boolean accepts(HostVO host);
+    }
+
+    public static class HostRef {
+        private final long _id;
+        private final String _address;
+        private final long _zoneId;
+        private final Long _clusterId;
+        private final EnumMap<Purpose, Boolean> _purposes = new EnumMap<Purpose, Boolean>(Purpose.class);
+
+        HostRef(HostVO host) {
+            _id = host.getId();
+            _address = host.getPrivateIpAddress();
+            _zoneId = host.getDataCenterId();
+            _clusterId = host.getClusterId();
+            for (Purpose purpose : Purpose.values()) {
+                _purposes.put(purpose, purpose.accepts(host));
+            }
+        }
+
+        public long getId() {
+            return _id;
+        }
+
+        public String getAddress() {
+            return _address;
+        }
+
+        boolean serves(Purpose purpose) {
+            return _purposes.get(purpose);
+        }
+    }
+
+    /**
+     * An immutable view of the hosts, replaced as a whole on every change.
+     */
+    static class Hosts {
+        final Map<Long, HostRef> _byId = new HashMap<Long, HostRef>();
+        final Map<Purpose, Map<Long, HostRef[]>> _byCluster = new EnumMap<Purpose, Map<Long, HostRef[]>>(Purpose.class);
+        final Map<Purpose, Map<Long, HostRef[]>> _byZone = new EnumMap<Purpose, Map<Long, HostRef[]>>(Purpose.class);
+
+        Hosts(List<HostRef> hosts) {
+            for (Purpose purpose : Purpose.values()) {
+                Map<Long, List<HostRef>> byCluster = new HashMap<Long, List<HostRef>>();
+                Map<Long, List<HostRef>> byZone = new HashMap<Long, List<HostRef>>();
+                for (HostRef host : hosts) {
+                    _byId.put(host._id, host);
+                    if (host.serves(purpose)) {
+                        if (host._clusterId != null) {
+                            add(byCluster, host._clusterId, host);
+                        }
+                        add(byZone, host._zoneId, host);
+                    }
+                }
+                _byCluster.put(purpose, toArrays(byCluster));
+                _byZone.put(purpose, toArrays(byZone));
+            }
+        }
+
+        List<HostRef> list() {
+            return new ArrayList<HostRef>(_byId.values());
+        }
+
+        HostRef[] find(Scope scope, Purpose purpose) {
+            if (scope.getScopeType() == ScopeType.HOST) {
+                HostRef host = _byId.get(scope.getScopeId());
+                return host != null && host.serves(purpose) ? new HostRef[] { host } : null;
+            } else if (scope.getScopeType() == ScopeType.CLUSTER) {
+                return _byCluster.get(purpose).get(scope.getScopeId());
+            } else if (scope.getScopeType() == ScopeType.ZONE) {
+                return _byZone.get(purpose).get(scope.getScopeId());
+            }
+            return null;
+        }
+
+        private static void add(Map<Long, List<HostRef>> map, Long key, HostRef host) {
+            List<HostRef> hosts = map.get(key);
+            if (hosts == null) {
+                hosts = new ArrayList<HostRef>();
+                map.put(key, hosts);
+            }
+            hosts.add(host);
+        }
+
+        private static Map<Long, HostRef[]> toArrays(Map<Long, List<HostRef>> map) {
+            Map<Long, HostRef[]> arrays = new HashMap<Long, HostRef[]>();
+            for (Map.Entry<Long, List<HostRef>> entry : map.entrySet()) {
+                arrays.put(entry.getKey(), entry.getValue().toArray(new HostRef[entry.getValue().size()]));
+            }
+            return arrays;
+        }
+    }
+
+    @Inject
+    AgentManager agentMgr;
+
+    private final Random random = new Random();
+    private volatile Hosts hosts;
+    private ScheduledExecutorService executor;
+    protected int refreshInterval = 60;
+    protected int connectDelay = 5;
+
+    @PostConstruct
+    public void initialize() {
+        executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("EndPoint-Registry"));
+        executor.scheduleWithFixedDelay(new RefreshTask(), refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        agentMgr.registerForHostEvents(this, true, false, false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the host to send the work to, or null if there is no host up
+     * for it in the scope.
+     */
+    public HostRef select(Scope scope, Purpose purpose) {
+        Hosts current = hosts;
+        if (current == null) {
+            current = refresh();
+        }
+        HostRef[] candidates = current.find(scope, purpose);
+        if (candidates == null || candidates.length == 0) {
+            return null;
+        } else if (candidates.length == 1) {
+            return candidates[0];
+        }
+
+        // The power of two choices: nearly as good as the least loaded host without looking at all of them
+        int first = random.nextInt(candidates.length);
+        int second = random.nextInt(candidates.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        return getLoad(candidates[first]) <= getLoad(candidates[second]) ? candidates[first] : candidates[second];
+    }
+
+    protected int getLoad(HostRef host) {
+        AgentAttache attache = agentMgr.findAttache(host._id);
+        return attache != null ? attache.getStorageMotionCount() : 0;
+    }
+
+    /**
+     * Reloads the hosts that are up from the database.
+     */
+    protected Hosts refresh() {
+        SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getStatus(), Op.EQ, Status.Up);
+        sc.addAnd(sc.getEntity().getType(), Op.IN, Host.Type.Routing, Host.Type.SecondaryStorageVM);
+        List<HostRef> refs = new ArrayList<HostRef>();
+        for (HostVO host : sc.list()) {
+            refs.add(new HostRef(host));
+        }
+        Hosts refreshed = new Hosts(refs);
+        hosts = refreshed;
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Loaded " + refs.size() + " hosts for endpoint selection");
+        }
+        return refreshed;
+    }
+
+    protected class RefreshTask implements Runnable {
+        @Override
+        public void run() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                refresh();
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reload the hosts for endpoint selection", e);
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
+    @Override
+    public void processConnect(HostVO host, StartupCommand cmd, boolean forRebalance) {
+        // The host is not up yet, look again once it has had time to be
+        executor.schedule(new RefreshTask(), connectDelay, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized boolean processDisconnect(long agentId, Status state) {
+        Hosts current = hosts;
+        if (current != null && current._byId.containsKey(agentId)) {
+            List<HostRef> remaining = current.list();
+            remaining.remove(current._byId.get(agentId));
+            hosts = new Hosts(remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+        return false;
+    }
+
+    @Override
+    public boolean processCommands(long agentId, long seq, Command[] commands) {
+        return false;
+    }
+
+    @Override
+    public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
+        return null;
+    }
+
+    @Override
+    public boolean isRecurring() {
+        return true;
+    }
+
+    @Override
+    public int getTimeout() {
+        return -1;
+    }
+
+    @Override
+    public boolean processTimeout(long agentId, long seq) {
+        return false;
+    }
+}
@@ -23,18 +23,31 @@ import com.rabbitmq.client.*;
 import org.apache.cloudstack.framework.events.*;
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.mgmt.JmxUtil;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Local(value=EventBus.class)
 public class RabbitMQEventBus extends ManagerBase implements EventBus {
@@ -63,6 +76,37 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private ExecutorService executorService;
     private static DisconnectHandler disconnectHandler;
+
+    // what publish() does when the publish queue is full
+    public enum OverflowPolicy {
+        DropNewest, // the event being published is dropped and publish() fails
+        DropOldest, // the oldest event waiting in the queue is dropped to make room
+        Block       // publish() waits up to publishTimeout for room, then fails
+    }
+
+    // events are published by a pool of publishers, each with a long lived channel in confirm mode,
+    // so publish() only queues the event and never waits on the AMQP server
+    private Integer publisherPoolSize = 2;
+    private Integer publishQueueSize = 10000;
+    private Integer publishBatchSize = 100;
+    private Integer maxUnconfirmed = 1000;
+    private Integer publishTimeout = 5000;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DropNewest;
+
+    private BlockingQueue<PendingEvent> _publishQueue;
+    private final List<Publisher> _publishers = new ArrayList<Publisher>();
+    private ExecutorService _publisherExecutor;
+    private volatile boolean _closed = false;
+
+    // the connection the exchange has been declared on
+    private Connection _exchangeDeclaredOn = null;
+
+    // time from publish() to the confirm from the AMQP server
+    private final LatencyHistogram _publishLatencies = new LatencyHistogram();
+    private final AtomicLong _publishedCount = new AtomicLong();
+    private final AtomicLong _confirmedCount = new AtomicLong();
+    private final AtomicLong _nackedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
     private static final Logger s_logger = Logger.getLogger(RabbitMQEventBus.class);
 
     @Override
@@ -93,6 +137,11 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (publisherPoolSize == null || publisherPoolSize < 1 || publishQueueSize == null || publishQueueSize < 1
+                    || publishBatchSize == null || publishBatchSize < 1 || maxUnconfirmed == null || maxUnconfirmed < 1) {
+                throw new ConfigurationException("Invalid publisher pool size/publish queue size/publish batch size/max unconfirmed");
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
@@ -100,6 +149,13 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         _subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
+        _publishQueue = new ArrayBlockingQueue<PendingEvent>(publishQueueSize);
+
+        try {
+            JmxUtil.registerMBean("RabbitMQEventBus", name, new RabbitMQEventBusMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the event bus publishing to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
 
         return true;
     }
@@ -132,6 +188,30 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         this.retryInterval = retryInterval;
     }
 
+    public void setPublisherPoolSize(Integer publisherPoolSize) {
+        this.publisherPoolSize = publisherPoolSize;
+    }
+
+    public void setPublishQueueSize(Integer publishQueueSize) {
+        this.publishQueueSize = publishQueueSize;
+    }
+
+    public void setPublishBatchSize(Integer publishBatchSize) {
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    public void setMaxUnconfirmed(Integer maxUnconfirmed) {
+        this.maxUnconfirmed = maxUnconfirmed;
+    }
+
+    public void setPublishTimeout(Integer publishTimeout) {
+        this.publishTimeout = publishTimeout;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -227,25 +307,47 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    /** queues the event to be published on to the exchange created on AMQP server. The event is published
+     *  by one of the publishers, publish() fails only if there is no room for it in the publish queue
+     */
     @Override
     public void publish(Event event) throws EventBusException {
 
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
+        PendingEvent pending = new PendingEvent(routingKey, eventDescription.getBytes());
 
-        try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
-        } catch (AlreadyClosedException e) {
-            closeConnection();
-            throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
-        } catch (Exception e) {
-            throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+        if (_publishQueue.offer(pending)) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+        case DropOldest:
+            while (!_publishQueue.offer(pending)) {
+                PendingEvent dropped = _publishQueue.poll();
+                if (dropped != null) {
+                    _droppedCount.incrementAndGet();
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Publish queue is full, dropped event " + dropped._routingKey);
+                    }
+                }
+            }
+            return;
+        case Block:
+            try {
+                if (_publishQueue.offer(pending, publishTimeout, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                _droppedCount.incrementAndGet();
+                throw new EventBusException("Interrupted while waiting to publish event " + routingKey);
+            }
+            break;
+        default:
+            break;
         }
+        _droppedCount.incrementAndGet();
+        throw new EventBusException("Failed to publish event " + routingKey + " as the publish queue is full");
     }
 
     /** creates a routing key from the event details.
@@ -335,13 +437,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private synchronized Connection createConnection() throws Exception {
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setUsername(username);
-            factory.setPassword(password);
-            factory.setVirtualHost("/");
-            factory.setHost(amqpHost);
-            factory.setPort(port);
-            Connection connection = factory.newConnection();
+            Connection connection = newConnection();
             connection.addShutdownListener(disconnectHandler);
             _connection = connection;
             return _connection;
@@ -350,6 +446,16 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    protected Connection newConnection() throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setUsername(username);
+        factory.setPassword(password);
+        factory.setVirtualHost("/");
+        factory.setHost(amqpHost);
+        factory.setPort(port);
+        return factory.newConnection();
+    }
+
     private synchronized void closeConnection() {
         try {
             if (_connection != null) {
@@ -399,10 +505,17 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    // the exchange has to be declared only once on a connection, not for every channel
+    private synchronized void declareExchange(Channel channel) throws Exception {
+        if (_exchangeDeclaredOn != channel.getConnection()) {
+            createExchange(channel, amqpExchangeName);
+            _exchangeDeclaredOn = channel.getConnection();
+        }
+    }
+
     private void publishEventToExchange(Channel channel, String exchangeName,
-                                        String routingKey, String eventDescription) throws Exception {
+                                        String routingKey, byte[] messageBodyBytes) throws Exception {
         try {
-            byte[] messageBodyBytes = eventDescription.getBytes();
             channel.basicPublish(exchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, messageBodyBytes);
         } catch (Exception e) {
             s_logger.error("Failed to publish event " + routingKey + " on exchange " + exchangeName +
@@ -411,6 +524,48 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    // puts an event that could not be published back in the publish queue
+    private void requeue(PendingEvent pending) {
+        if (!_publishQueue.offer(pending)) {
+            _droppedCount.incrementAndGet();
+            s_logger.warn("Publish queue is full, dropped event " + pending._routingKey);
+        }
+    }
+
+    public int getPublishQueueSize() {
+        return _publishQueue.size();
+    }
+
+    public int getUnconfirmedCount() {
+        int count = 0;
+        synchronized (_publishers) {
+            for (Publisher publisher : _publishers) {
+                count += publisher.getUnconfirmedCount();
+            }
+        }
+        return count;
+    }
+
+    public LatencyHistogram getPublishLatencies() {
+        return _publishLatencies;
+    }
+
+    public long getPublishedCount() {
+        return _publishedCount.get();
+    }
+
+    public long getConfirmedCount() {
+        return _confirmedCount.get();
+    }
+
+    public long getNackedCount() {
+        return _nackedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
     private String getEventCategoryFromRoutingKey(String routingKey) {
         String[] keyParts =  routingKey.split("\\.");
         return keyParts[1];
@@ -443,15 +598,48 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean start() {
+        _closed = false;
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+
+        _publisherExecutor = Executors.newFixedThreadPool(publisherPoolSize, new NamedThreadFactory("EventBus-Publisher"));
+        synchronized (_publishers) {
+            for (int i = 0; i < publisherPoolSize; i++) {
+                Publisher publisher = new Publisher();
+                _publishers.add(publisher);
+                _publisherExecutor.submit(publisher);
+            }
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        _closed = true;
 
-        if (_connection.isOpen()) {
+        // give the publishers a chance to publish what is queued before the connection goes away
+        long deadline = System.currentTimeMillis() + publishTimeout;
+        while ((!_publishQueue.isEmpty() || getUnconfirmedCount() > 0) && System.currentTimeMillis() < deadline && !_publishers.isEmpty()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        synchronized (_publishers) {
+            for (Publisher publisher : _publishers) {
+                publisher.stop();
+            }
+            _publishers.clear();
+        }
+        if (_publisherExecutor != null) {
+            _publisherExecutor.shutdownNow();
+        }
+        if (!_publishQueue.isEmpty()) {
+            s_logger.warn("Stopping with " + _publishQueue.size() + " events not published");
+        }
+
+        if (_connection != null && _connection.isOpen()) {
             for (String subscriberId : _subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = _subscribers.get(subscriberId);
                 Channel channel =  subscriberDetails.second();
@@ -469,6 +657,188 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         return true;
     }
 
+    private static class PendingEvent {
+        final String _routingKey;
+        final byte[] _body;
+        final long _queuedAt = System.currentTimeMillis();
+
+        PendingEvent(String routingKey, byte[] body) {
+            _routingKey = routingKey;
+            _body = body;
+        }
+    }
+
+    // a channel in confirm mode with the events published on it that the AMQP server has not confirmed yet
+    private class PublisherChannel implements ConfirmListener {
+        final Channel _channel;
+        final ConcurrentSkipListMap<Long, PendingEvent> _unconfirmed = new ConcurrentSkipListMap<Long, PendingEvent>();
+
+        PublisherChannel(Channel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            long now = System.currentTimeMillis();
+            for (PendingEvent pending : confirmed(deliveryTag, multiple)) {
+                _confirmedCount.incrementAndGet();
+                _publishLatencies.record(now - pending._queuedAt);
+            }
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            // the AMQP server could not take them, try again
+            for (PendingEvent pending : confirmed(deliveryTag, multiple)) {
+                _nackedCount.incrementAndGet();
+                requeue(pending);
+            }
+        }
+
+        private List<PendingEvent> confirmed(long deliveryTag, boolean multiple) {
+            List<PendingEvent> confirmed = new ArrayList<PendingEvent>();
+            if (multiple) {
+                ConcurrentNavigableMap<Long, PendingEvent> head = _unconfirmed.headMap(deliveryTag, true);
+                confirmed.addAll(head.values());
+                head.clear();
+            } else {
+                PendingEvent pending = _unconfirmed.remove(deliveryTag);
+                if (pending != null) {
+                    confirmed.add(pending);
+                }
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            return confirmed;
+        }
+
+        // waits for the AMQP server to confirm enough events to publish one more
+        synchronized void waitForRoom() throws IOException, InterruptedException {
+            while (_unconfirmed.size() >= maxUnconfirmed) {
+                if (!_channel.isOpen()) {
+                    throw new IOException("Channel closed with " + _unconfirmed.size() + " events unconfirmed");
+                }
+                wait(1000);
+            }
+        }
+    }
+
+    /** takes the events off the publish queue in batches and publishes them on its own channel. Confirms
+     *  come back asynchronously. Events that are nacked or still unconfirmed when the channel is lost are
+     *  published again, so an event may be delivered more than once but is not lost while there is room
+     *  in the publish queue
+     */
+    private class Publisher implements Runnable {
+        private volatile PublisherChannel _current = null;
+        private volatile boolean _stopped = false;
+
+        @Override
+        public void run() {
+            List<PendingEvent> batch = new ArrayList<PendingEvent>(publishBatchSize);
+            while (!_stopped) {
+                try {
+                    PendingEvent first = _publishQueue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        if (_current != null && !_current._channel.isOpen()) {
+                            discardChannel();
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    _publishQueue.drainTo(batch, publishBatchSize - 1);
+                    publishBatch(batch);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    s_logger.warn("Failed to publish events to message broker due to " + e.getMessage());
+                    discardChannel();
+                    for (PendingEvent pending : batch) {
+                        requeue(pending);
+                    }
+                    batch.clear();
+                    try {
+                        Thread.sleep(retryInterval);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+            for (PendingEvent pending : batch) {
+                requeue(pending);
+            }
+            discardChannel();
+        }
+
+        public void stop() {
+            _stopped = true;
+        }
+
+        public int getUnconfirmedCount() {
+            PublisherChannel current = _current;
+            return current == null ? 0 : current._unconfirmed.size();
+        }
+
+        private void publishBatch(List<PendingEvent> batch) throws Exception {
+            PublisherChannel current = getChannel();
+            Iterator<PendingEvent> it = batch.iterator();
+            while (it.hasNext()) {
+                PendingEvent pending = it.next();
+                current.waitForRoom();
+
+                // the event has to be known before the confirm for it can come back
+                long seqNo = current._channel.getNextPublishSeqNo();
+                current._unconfirmed.put(seqNo, pending);
+                try {
+                    publishEventToExchange(current._channel, amqpExchangeName, pending._routingKey, pending._body);
+                } catch (Exception e) {
+                    current._unconfirmed.remove(seqNo);
+                    throw e;
+                }
+                it.remove();
+                _publishedCount.incrementAndGet();
+            }
+        }
+
+        private PublisherChannel getChannel() throws Exception {
+            if (_current != null && _current._channel.isOpen()) {
+                return _current;
+            }
+            discardChannel();
+
+            Channel channel = createChannel(getConnection());
+            try {
+                channel.confirmSelect();
+                declareExchange(channel);
+            } catch (Exception e) {
+                channel.abort();
+                throw e;
+            }
+            PublisherChannel current = new PublisherChannel(channel);
+            channel.addConfirmListener(current);
+            _current = current;
+            return current;
+        }
+
+        // the events published on the channel that have not been confirmed are published again
+        private void discardChannel() {
+            PublisherChannel current = _current;
+            if (current == null) {
+                return;
+            }
+            _current = null;
+            try {
+                current._channel.abort();
+            } catch (Exception e) {
+                s_logger.debug("Failed to abort channel due to " + e.getMessage());
+            }
+            for (PendingEvent pending : current._unconfirmed.values()) {
+                requeue(pending);
+            }
+            current._unconfirmed.clear();
+        }
+    }
+
     // logic to deal with loss of connection to AMQP server
     private class DisconnectHandler implements ShutdownListener {
 
@@ -500,16 +870,21 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
         public void run() {
 
-            while (!connected) {
+            while (!connected && !_closed) {
                 try {
                     Thread.sleep(retryInterval);
                 } catch (InterruptedException ie) {
                     // ignore timer interrupts
                 }
 
+                if (_closed) {
+                    break;
+                }
+
                 try {
                     try {
-                        connection = createConnection();
+                        // the publishers may have connected already
+                        connection = getConnection();
                         connected = true;
                     } catch (IOException ie) {
                         continue; // can't establish connection to AMQP server yet, so continue
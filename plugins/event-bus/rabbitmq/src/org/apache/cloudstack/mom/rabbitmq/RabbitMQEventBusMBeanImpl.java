@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class RabbitMQEventBusMBeanImpl extends StandardMBean implements RabbitMQEventBusMBean {
+    private final RabbitMQEventBus _eventBus;
+
+    public RabbitMQEventBusMBeanImpl(RabbitMQEventBus eventBus) {
+        super(RabbitMQEventBusMBean.class, false);
+
+        _eventBus = eventBus;
+    }
+
+    @Override
+    public int getPublishQueueSize() {
+        return _eventBus.getPublishQueueSize();
+    }
+
+    @Override
+    public int getUnconfirmedCount() {
+        return _eventBus.getUnconfirmedCount();
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return _eventBus.getPublishedCount();
+    }
+
+    @Override
+    public long getConfirmedCount() {
+        return _eventBus.getConfirmedCount();
+    }
+
+    @Override
+    public long getNackedCount() {
+        return _eventBus.getNackedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return _eventBus.getDroppedCount();
+    }
+
+    /**
+     * Time in milliseconds from the publishing of an event to its confirm from the AMQP server.
+     */
+    @Override
+    public Map<String, String> getPublishLatencies() {
+        return _eventBus.getPublishLatencies().toMap();
+    }
+
+    @Override
+    public void resetPublishLatencies() {
+        _eventBus.getPublishLatencies().reset();
+    }
+}
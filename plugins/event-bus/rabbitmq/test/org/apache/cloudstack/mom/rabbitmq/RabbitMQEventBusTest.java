@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventBusException;
+import org.junit.After;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+
+public class RabbitMQEventBusTest {
+
+    /**
+     * Stands in for the AMQP server: it takes connections while it is up,
+     * keeps what is published and confirms it from another thread, the way
+     * the server confirms asynchronously.
+     */
+    private static class StandInBroker implements InvocationHandler {
+        volatile boolean up = true;
+        final AtomicInteger channels = new AtomicInteger();
+        final AtomicInteger exchangeDeclares = new AtomicInteger();
+        final List<String> published = new CopyOnWriteArrayList<String>();
+        final ExecutorService confirmer = Executors.newSingleThreadExecutor();
+        Connection connection;
+
+        Connection connect() throws IOException {
+            if (!up) {
+                throw new IOException("Connection refused");
+            }
+            connection = (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+            return connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("createChannel")) {
+                channels.incrementAndGet();
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class }, new StandInChannel());
+            } else if (name.equals("isOpen")) {
+                return true;
+            }
+            return defaultValue(proxy, method, args);
+        }
+
+        private class StandInChannel implements InvocationHandler {
+            long nextSeqNo = 1;
+            boolean open = true;
+            ConfirmListener listener;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getNextPublishSeqNo")) {
+                    return nextSeqNo;
+                } else if (name.equals("addConfirmListener")) {
+                    listener = (ConfirmListener)args[0];
+                    return null;
+                } else if (name.equals("exchangeDeclare")) {
+                    exchangeDeclares.incrementAndGet();
+                    return null;
+                } else if (name.equals("basicPublish")) {
+                    published.add((String)args[1]);
+                    final long seqNo = nextSeqNo++;
+                    final ConfirmListener confirms = listener;
+                    confirmer.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                confirms.handleAck(seqNo, true);
+                            } catch (IOException e) {
+                            }
+                        }
+                    });
+                    return null;
+                } else if (name.equals("isOpen")) {
+                    return open;
+                } else if (name.equals("abort") || name.equals("close")) {
+                    open = false;
+                    return null;
+                } else if (name.equals("getConnection")) {
+                    return connection;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        }
+
+        private static Object defaultValue(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private static class StandInEventBus extends RabbitMQEventBus {
+        final StandInBroker broker;
+
+        StandInEventBus(StandInBroker broker) {
+            this.broker = broker;
+        }
+
+        @Override
+        protected Connection newConnection() throws IOException {
+            return broker.connect();
+        }
+    }
+
+    private StandInBroker _broker;
+    private RabbitMQEventBus _eventBus;
+
+    private void startEventBus(int queueSize, RabbitMQEventBus.OverflowPolicy policy) throws Exception {
+        _eventBus = new StandInEventBus(_broker);
+        _eventBus.setServer("localhost");
+        _eventBus.setPort(5672);
+        _eventBus.setUsername("guest");
+        _eventBus.setPassword("guest");
+        _eventBus.setExchange("cloudstack-events");
+        _eventBus.setRetryInterval(50);
+        _eventBus.setPublisherPoolSize(2);
+        _eventBus.setPublishQueueSize(queueSize);
+        _eventBus.setPublishBatchSize(10);
+        _eventBus.setMaxUnconfirmed(20);
+        _eventBus.setOverflowPolicy(policy);
+        _eventBus.configure("eventNotificationBus", new HashMap<String, Object>());
+        _eventBus.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (_eventBus != null) {
+            _eventBus.stop();
+        }
+        _broker.confirmer.shutdownNow();
+    }
+
+    private Event createEvent(int i) {
+        Event event = new Event("management-server", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-" + i);
+        event.setDescription("{\"id\":" + i + "}");
+        return event;
+    }
+
+    // every event is either confirmed or dropped in the end
+    private void waitForConfirms(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_eventBus.getConfirmedCount() + _eventBus.getDroppedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, _eventBus.getConfirmedCount() + _eventBus.getDroppedCount());
+        assertEquals(0, _eventBus.getPublishQueueSize());
+        assertEquals(0, _eventBus.getUnconfirmedCount());
+    }
+
+    @Test
+    public void testEventsArePublishedOnPooledChannels() throws Exception {
+        _broker = new StandInBroker();
+        startEventBus(1000, RabbitMQEventBus.OverflowPolicy.DropNewest);
+
+        for (int i = 0; i < 500; i++) {
+            _eventBus.publish(createEvent(i));
+        }
+        waitForConfirms(500);
+
+        assertEquals(0, _eventBus.getDroppedCount());
+        assertEquals(500, _broker.published.size());
+        assertEquals(500, _eventBus.getPublishedCount());
+        assertEquals(500, _eventBus.getPublishLatencies().getCount());
+        assertTrue(_broker.channels.get() <= 2);
+        assertEquals(1, _broker.exchangeDeclares.get());
+        assertTrue(_broker.published.contains("management-server.ActionEvent.VM-CREATE.VirtualMachine.uuid-499"));
+    }
+
+    @Test
+    public void testFullQueueDropsNewestEvents() throws Exception {
+        _broker = new StandInBroker();
+        _broker.up = false;
+        startEventBus(10, RabbitMQEventBus.OverflowPolicy.DropNewest);
+
+        int failed = 0;
+        for (int i = 0; i < 15; i++) {
+            try {
+                _eventBus.publish(createEvent(i));
+            } catch (EventBusException e) {
+                failed++;
+            }
+        }
+        // the publishers may hold on to a batch each while the server is down
+        assertTrue(failed <= 5);
+        assertTrue(failed <= _eventBus.getDroppedCount());
+
+        // what was queued goes out once the server is back
+        _broker.up = true;
+        waitForConfirms(15);
+        assertEquals(15 - _eventBus.getDroppedCount(), _broker.published.size());
+        assertEquals(1, _broker.exchangeDeclares.get());
+    }
+
+    @Test
+    public void testFullQueueDropsOldestEvents() throws Exception {
+        _broker = new StandInBroker();
+        _broker.up = false;
+        startEventBus(10, RabbitMQEventBus.OverflowPolicy.DropOldest);
+
+        for (int i = 0; i < 50; i++) {
+            try {
+                _eventBus.publish(createEvent(i));
+            } catch (EventBusException e) {
+                fail("Publishing must not fail when the oldest events are dropped");
+            }
+        }
+        // no more than the queue and a batch for each publisher can be kept
+        assertTrue(_eventBus.getDroppedCount() >= 50 - 30);
+
+        _broker.up = true;
+        waitForConfirms(50);
+        assertEquals(50 - _eventBus.getDroppedCount(), _broker.published.size());
+    }
+}
@@ -22,7 +22,7 @@
 # createtmplt.sh -- install a volume
 
 usage() {
-  printf "Usage: %s: -t <volume-fs> -n <volumename> -f <root disk file> -c <md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <volume-fs> -n <volumename> -f <root disk file> -c <md5 cksum> | -C <md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
 }
 
 
@@ -130,8 +130,9 @@ hvm=false
 cleanup=false
 dflag=
 cflag=
+verified=
 
-while getopts 'vuht:n:f:s:c:d:S:' OPTION
+while getopts 'vuht:n:f:s:c:C:d:S:' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -148,6 +149,10 @@ do
   c)	cflag=1
 		cksum="$OPTARG"
 		;;
+  C)	cflag=1
+		cksum="$OPTARG"
+		verified=true # computed while the file was downloaded
+		;;
   d)	dflag=1
 		descr="$OPTARG"
 		;;
@@ -183,7 +188,7 @@ then
   exit 3
 fi
 
-if [ -n "$cksum" ]
+if [ -n "$cksum" ] && [ -z "$verified" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
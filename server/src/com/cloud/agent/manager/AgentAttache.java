@@ -28,20 +28,24 @@ import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.cloudstack.storage.command.StorageSubSystemCommand;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.Listener;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.BackupSnapshotCommand;
 import com.cloud.agent.api.CheckHealthCommand;
 import com.cloud.agent.api.CheckNetworkCommand;
 import com.cloud.agent.api.CheckVirtualMachineCommand;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
 import com.cloud.agent.api.ClusterSyncCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.CreatePrivateTemplateFromSnapshotCommand;
+import com.cloud.agent.api.CreatePrivateTemplateFromVolumeCommand;
+import com.cloud.agent.api.CreateVolumeFromSnapshotCommand;
 import com.cloud.agent.api.MaintainCommand;
 import com.cloud.agent.api.MigrateCommand;
 import com.cloud.agent.api.PingTestCommand;
@@ -50,12 +54,15 @@ import com.cloud.agent.api.SetupCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.storage.CopyVolumeCommand;
 import com.cloud.agent.api.storage.CreateCommand;
+import com.cloud.agent.api.storage.PrimaryStorageDownloadCommand;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.Status;
+import com.cloud.utils.concurrency.HashedTimerWheel;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
@@ -64,7 +71,9 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
-    private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    // Most listeners are unregistered long before their timeout, the wheel makes cancelling their alarm cheap
+    private static final HashedTimerWheel s_listenerTimer = new HashedTimerWheel("ListenerTimerWheel", 100, TimeUnit.MILLISECONDS, 1024,
+            Executors.newFixedThreadPool(10, new NamedThreadFactory("ListenerTimer")));
     private static final Random                       s_rand                               = new Random(System.currentTimeMillis());
 
     protected static final Comparator<Request> s_reqComparator =
@@ -101,11 +110,14 @@ public abstract class AgentAttache {
 
     protected final long _id;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
+    protected final ConcurrentHashMap<Long, HashedTimerWheel.Timeout> _alarms;
     protected final LinkedList<Request> _requests;
+    protected final Set<Long> _storageMotionSequences;
     protected Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long                                    _nextSequence;
+    protected volatile boolean _binaryCodec;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -113,18 +125,25 @@ public abstract class AgentAttache {
         new String[] { MaintainCommand.class.toString(), MigrateCommand.class.toString(), StopCommand.class.toString(), CheckVirtualMachineCommand.class.toString(), PingTestCommand.class.toString(), CheckHealthCommand.class.toString(), ReadyCommand.class.toString(), ShutdownCommand.class.toString(), SetupCommand.class.toString(), ClusterSyncCommand.class.toString(), CleanupNetworkRulesCmd.class.toString(), CheckNetworkCommand.class.toString() };
     protected final static String[] s_commandsNotAllowedInConnectingMode =
         new String[] { StartCommand.class.toString(), CreateCommand.class.toString() };
+    // Commands that copy volumes, snapshots or templates between storages and keep the host busy for long,
+    // besides the StorageSubSystemCommands the storage subsystem sends to the endpoints it selects
+    protected final static String[] s_storageMotionCommands =
+        new String[] { CopyVolumeCommand.class.toString(), PrimaryStorageDownloadCommand.class.toString(), BackupSnapshotCommand.class.toString(), CreateVolumeFromSnapshotCommand.class.toString(), CreatePrivateTemplateFromVolumeCommand.class.toString(), CreatePrivateTemplateFromSnapshotCommand.class.toString() };
     static {
         Arrays.sort(s_commandsAllowedInMaintenanceMode);
         Arrays.sort(s_commandsNotAllowedInConnectingMode);
+        Arrays.sort(s_storageMotionCommands);
     }
 
 
     protected AgentAttache(AgentManagerImpl agentMgr, final long id, boolean maintenance) {
         _id = id;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
+        _alarms = new ConcurrentHashMap<Long, HashedTimerWheel.Timeout>();
         _currentSequence = null;
         _maintenance = maintenance;
         _requests = new LinkedList<Request>();
+        _storageMotionSequences = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
         _agentMgr = agentMgr;
         _nextSequence = s_rand.nextInt(Short.MAX_VALUE) << 48;
     }
@@ -133,6 +152,13 @@ public abstract class AgentAttache {
         return ++_nextSequence;
     }
 
+    /**
+     * @param binaryCodec true if the agent accepts requests encoded by BinaryCodec.
+     */
+    public void setBinaryCodec(boolean binaryCodec) {
+        _binaryCodec = binaryCodec;
+    }
+
     public synchronized void setMaintenanceMode(final boolean value) {
         _maintenance = value;
     }
@@ -192,7 +218,9 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Cancelling."));
         }
         final Listener listener = _waitForList.remove(seq);
+        _storageMotionSequences.remove(seq);
         if (listener != null) {
+            cancelAlarm(seq);
             listener.processDisconnect(_id, Status.Disconnected);
         }
         int index = findRequest(seq);
@@ -219,7 +247,7 @@ public abstract class AgentAttache {
             s_logger.trace(log(seq, "Registering listener"));
         }
         if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+            _alarms.put(seq, s_listenerTimer.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS));
         }
         _waitForList.put(seq, listener);
     }
@@ -228,9 +256,18 @@ public abstract class AgentAttache {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(sequence, "Unregistering listener"));
         }
+        cancelAlarm(sequence);
+        _storageMotionSequences.remove(sequence);
         return _waitForList.remove(sequence);
     }
 
+    protected void cancelAlarm(final long sequence) {
+        HashedTimerWheel.Timeout alarm = _alarms.remove(sequence);
+        if (alarm != null) {
+            alarm.cancel();
+        }
+    }
+
     protected Listener getListener(final long sequence) {
         return _waitForList.get(sequence);
     }
@@ -242,6 +279,23 @@ public abstract class AgentAttache {
     public int getQueueSize() {
         return _requests.size();
     }
+
+    /**
+     * @return the number of commands copying data between storages that
+     * have been sent or queued to this agent and not answered yet.
+     */
+    public int getStorageMotionCount() {
+        return _storageMotionSequences.size();
+    }
+
+    protected static boolean isStorageMotion(final Command[] cmds) {
+        for (final Command cmd : cmds) {
+            if (cmd instanceof StorageSubSystemCommand || Arrays.binarySearch(s_storageMotionCommands, cmd.getClass().toString()) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
     
     public int getNonRecurringListenersSize() {
         List<Listener> nonRecurringListenersList = new ArrayList<Listener>();
@@ -310,6 +364,8 @@ public abstract class AgentAttache {
         while (it.hasNext()) {
             final Map.Entry<Long, Listener> entry = it.next();
             it.remove();
+            _storageMotionSequences.remove(entry.getKey());
+            cancelAlarm(entry.getKey());
             final Listener monitor = entry.getValue();
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(entry.getKey(), "Sending disconnect to " + monitor.getClass()));
@@ -341,6 +397,9 @@ public abstract class AgentAttache {
         
         if (listener != null) {
             registerListener(seq, listener);
+            if (isStorageMotion(req.getCommands())) {
+                _storageMotionSequences.add(seq);
+            }
         } else if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
@@ -511,6 +570,7 @@ public abstract class AgentAttache {
         @Override
         public void run() {
             try {
+                _alarms.remove(_seq);
                 Listener listener = unregisterListener(_seq);
                 if (listener != null) {
                     cancel(_seq);
@@ -25,7 +25,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -112,6 +111,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.concurrency.StripedLongMap;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -146,7 +146,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     private static final Logger s_logger = Logger.getLogger(AgentManagerImpl.class);
     private static final Logger status_logger = Logger.getLogger(Status.class);
 
-    protected ConcurrentHashMap<Long, AgentAttache> _agents = new ConcurrentHashMap<Long, AgentAttache>(10007);
+    protected StripedLongMap<AgentAttache> _agents = new StripedLongMap<AgentAttache>(256, 10007);
     protected List<Pair<Integer, Listener>> _hostMonitors = new ArrayList<Pair<Integer, Listener>>(17);
     protected List<Pair<Integer, Listener>> _cmdMonitors = new ArrayList<Pair<Integer, Listener>>(17);
     protected List<Pair<Integer, StartupCommandProcessor>> _creationMonitors = new ArrayList<Pair<Integer, StartupCommandProcessor>>(17);
@@ -268,6 +268,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         _hostDao.markHostsAsDisconnected(_nodeId, lastPing);
 
         // _monitor = ComponentLocator.inject(AgentMonitor.class, _nodeId, _hostDao, _vmDao, _dcDao, _podDao, this, _alertMgr, _pingTimeout);
+        _monitor.setPingTimeout(_pingTimeout);
         registerForHostEvents(_monitor, true, true, false);
 
         _executor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentTaskPool"));
@@ -373,11 +374,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Override
     public AgentAttache findAttache(long hostId) {
-        AgentAttache attache = null;
-        synchronized (_agents) {
-            attache = _agents.get(hostId);
-        }
-        return attache;
+        return _agents.get(hostId);
     }
 
     @Override
@@ -576,11 +573,11 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
         AgentAttache removed = null;
         boolean conflict = false;
-        synchronized (_agents) {
-            removed = _agents.remove(hostId);
-            if (removed != null && removed != attache) {
+        synchronized (_agents.lockFor(hostId)) {
+            if (_agents.remove(hostId, attache)) {
+                removed = attache;
+            } else if (_agents.containsKey(hostId)) {
                 conflict = true;
-                _agents.put(hostId, removed);
                 removed = attache;
             }
         }
@@ -799,10 +796,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         s_logger.debug("create DirectAgentAttache for " + host.getId());
         DirectAgentAttache attache = new DirectAgentAttache(this, host.getId(), resource, host.isInMaintenanceStates(), this);
 
-        AgentAttache old = null;
-        synchronized (_agents) {
-            old = _agents.put(host.getId(), attache);
-        }
+        AgentAttache old = _agents.put(host.getId(), attache);
         if (old != null) {
             old.disconnect(Status.Removed);
         }
@@ -820,17 +814,15 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
 
         s_logger.info("Disconnecting agents: " + _agents.size());
-        synchronized (_agents) {
-            for (final AgentAttache agent : _agents.values()) {
-                final HostVO host = _hostDao.findById(agent.getId());
-                if (host == null) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Cant not find host " + agent.getId());
-                    }
-                } else {
-                    if (!agent.forForward()) {
-                        agentStatusTransitTo(host, Event.ManagementServerDown, _nodeId);
-                    }
+        for (final AgentAttache agent : _agents.values()) {
+            final HostVO host = _hostDao.findById(agent.getId());
+            if (host == null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cant not find host " + agent.getId());
+                }
+            } else {
+                if (!agent.forForward()) {
+                    agentStatusTransitTo(host, Event.ManagementServerDown, _nodeId);
                 }
             }
         }
@@ -1089,10 +1081,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         AgentAttache attache = new ConnectedAgentAttache(this, host.getId(), link, host.isInMaintenanceStates());
         link.attach(attache);
 
-        AgentAttache old = null;
-        synchronized (_agents) {
-            old = _agents.put(host.getId(), attache);
-        }
+        AgentAttache old = _agents.put(host.getId(), attache);
         if (old != null) {
             old.disconnect(Status.Removed);
         }
@@ -1108,6 +1097,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (host != null) {
                 ready = new ReadyCommand(host.getDataCenterId(), host.getId());
                 attache = createAttacheForConnect(host, link);
+                attache.setBinaryCodec(request.isBinaryCodecAccepted());
                 attache = notifyMonitorsOfConnection(attache, startup, false);
             }
         } catch (Exception e) {
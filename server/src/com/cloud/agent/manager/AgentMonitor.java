@@ -19,7 +19,11 @@ package com.cloud.agent.manager;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -35,6 +39,7 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.alert.AlertManager;
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.ClusterDao;
@@ -47,11 +52,16 @@ import com.cloud.host.Status.Event;
 import com.cloud.host.dao.HostDao;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.concurrency.HashedTimerWheel;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteriaService;
+import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.fsm.NoTransitionException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.dao.VMInstanceDao;
@@ -60,6 +70,10 @@ import com.cloud.vm.dao.VMInstanceDao;
 public class AgentMonitor extends Thread implements AgentMonitorService {
     private static Logger s_logger = Logger.getLogger(AgentMonitor.class);
     private static Logger status_Logger = Logger.getLogger(Status.class);
+
+    private static final long MAINTENANCE_CHECK_INTERVAL = 60 * 1000;
+    private static final long RECONCILE_INTERVAL = 10 * 60 * 1000;
+
     private long _pingTimeout;
     @Inject private HostDao _hostDao;
     private boolean _stop;
@@ -76,6 +90,16 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     // private ConnectionConcierge _concierge;
     private Map<Long, Long> _pingMap;
 
+    // Every ping re-arms the deadline of its host, so a host only reaches
+    // _behindAgents when its deadline expires without a ping.
+    private final HashedTimerWheel _pingTimer = new HashedTimerWheel("AgentPingTimer", 1, TimeUnit.SECONDS, 512, null);
+    private final ConcurrentHashMap<Long, PingDeadline> _pingDeadlines = new ConcurrentHashMap<Long, PingDeadline>(10007);
+    private final BlockingQueue<PingDeadline> _behindAgents = new LinkedBlockingQueue<PingDeadline>();
+
+    private final LatencyHistogram _detectionLatency = new LatencyHistogram();
+    private final AtomicLong _pingTimeoutCount = new AtomicLong(0);
+    private final AtomicLong _reconciledCount = new AtomicLong(0);
+
     public AgentMonitor() {
         _pingMap = new ConcurrentHashMap<Long, Long>(10007);
     }
@@ -124,6 +148,70 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
 
     public void pingBy(long agentId) {
         _pingMap.put(agentId, InaccurateClock.getTimeInSeconds());
+        armPingDeadline(agentId);
+    }
+
+    @Override
+    public void setPingTimeout(long pingTimeout) {
+        _pingTimeout = pingTimeout;
+    }
+
+    protected void armPingDeadline(long agentId) {
+        if (_pingTimeout <= 0) {
+            return;
+        }
+        PingDeadline deadline = new PingDeadline(agentId);
+        deadline._timeout = _pingTimer.schedule(deadline, _pingTimeout, TimeUnit.SECONDS);
+        PingDeadline old = _pingDeadlines.put(agentId, deadline);
+        if (old != null) {
+            old._timeout.cancel();
+        }
+    }
+
+    protected void cancelPingDeadline(long agentId) {
+        PingDeadline old = _pingDeadlines.remove(agentId);
+        if (old != null) {
+            old._timeout.cancel();
+        }
+    }
+
+    protected class PingDeadline implements Runnable {
+        final long _agentId;
+        final long _deadline;
+        volatile HashedTimerWheel.Timeout _timeout;
+
+        PingDeadline(long agentId) {
+            _agentId = agentId;
+            _deadline = System.currentTimeMillis() + _pingTimeout * 1000;
+        }
+
+        @Override
+        public void run() {
+            // Runs on the wheel thread, a ping that re-armed the deadline in the meantime wins
+            if (_pingDeadlines.remove(_agentId, this)) {
+                _behindAgents.add(this);
+            }
+        }
+    }
+
+    public int getTrackedHostCount() {
+        return _pingDeadlines.size();
+    }
+
+    public long getPingTimeoutCount() {
+        return _pingTimeoutCount.get();
+    }
+
+    public long getReconciledHostCount() {
+        return _reconciledCount.get();
+    }
+
+    /**
+     * @return time in milliseconds from the ping deadline of a host to the
+     * monitor acting on it.
+     */
+    public LatencyHistogram getDetectionLatency() {
+        return _detectionLatency;
     }
 
     // TODO : use host machine time is not safe in clustering environment
@@ -131,58 +219,25 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     public void run() {
         s_logger.info("Agent Monitor is started.");
 
+        long nextMaintenanceCheck = System.currentTimeMillis() + MAINTENANCE_CHECK_INTERVAL;
+        long nextReconcile = System.currentTimeMillis() + RECONCILE_INTERVAL;
         while (!_stop) {
             try {
-                // check every 60 seconds
-                Thread.sleep(60 * 1000);
-            } catch (InterruptedException e) {
-                s_logger.info("Who woke me from my slumber?");
-            }
-
-            try {
-                List<Long> behindAgents = findAgentsBehindOnPing();
-                for (Long agentId : behindAgents) {
-                	SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
-                	sc.addAnd(sc.getEntity().getId(), Op.EQ, agentId);
-                	HostVO h = sc.find();
-                    if (h != null) {
-                        ResourceState resourceState = h.getResourceState();
-                        if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance
-                                || resourceState == ResourceState.ErrorInMaintenance) {
-                            /*
-                             * Host is in non-operation state, so no
-                             * investigation and direct put agent to
-                             * Disconnected
-                             */
-                            status_Logger.debug("Ping timeout but host " + agentId + " is in resource state of "
-                                    + resourceState + ", so no investigation");
-                            _agentMgr.disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
-                        } else {
-                            status_Logger.debug("Ping timeout for host " + agentId + ", do invstigation");
-                            _agentMgr.disconnectWithInvestigation(agentId, Event.PingTimeout);
-                        }
-                	}
+                // Wake up as soon as a ping deadline expires, or for the periodic checks
+                long wait = Math.min(nextMaintenanceCheck, nextReconcile) - System.currentTimeMillis();
+                checkAgentsBehindOnPing(wait);
+
+                long now = System.currentTimeMillis();
+                if (now >= nextReconcile) {
+                    reconcileWithDatabase();
+                    nextReconcile = now + RECONCILE_INTERVAL;
                 }
-
-                SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
-                sc.addAnd(sc.getEntity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
-                List<HostVO> hosts = sc.list();
-
-                for (HostVO host : hosts) {
-                    long hostId = host.getId();
-                    DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
-                    HostPodVO podVO = _podDao.findById(host.getPodId());
-                    String hostDesc = "name: " + host.getName() + " (id:" + hostId + "), availability zone: " + dcVO.getName() + ", pod: " + podVO.getName();
-
-                    if (host.getType() != Host.Type.Storage) {
-                        List<VMInstanceVO> vos = _vmDao.listByHostId(hostId);
-                        List<VMInstanceVO> vosMigrating = _vmDao.listVmsMigratingFromHost(hostId);
-                        if (vos.isEmpty() && vosMigrating.isEmpty()) {
-                            _alertMgr.sendAlert(AlertManager.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Migration Complete for host " + hostDesc, "Host [" + hostDesc + "] is ready for maintenance");
-                            _resourceMgr.resourceStateTransitTo(host, ResourceState.Event.InternalEnterMaintenance, _msId);
-                        }
-                    }
+                if (now >= nextMaintenanceCheck) {
+                    checkHostsPreparingForMaintenance();
+                    nextMaintenanceCheck = now + MAINTENANCE_CHECK_INTERVAL;
                 }
+            } catch (InterruptedException e) {
+                s_logger.info("Who woke me from my slumber?");
             } catch (Throwable th) {
                 s_logger.error("Caught the following exception: ", th);
             }
@@ -191,8 +246,68 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
         s_logger.info("Agent Monitor is leaving the building!");
     }
 
+    /**
+     * @param wait milliseconds to wait for a deadline to expire if none has.
+     */
+    protected void checkAgentsBehindOnPing(long wait) throws InterruptedException {
+        for (Long agentId : findAgentsBehindOnPing(wait)) {
+            handleAgentBehindOnPing(agentId);
+            // The investigation may leave the host up, so it is looked at again
+            // after another timeout unless it pings or is disconnected
+            if (_pingMap.containsKey(agentId) && !_pingDeadlines.containsKey(agentId)) {
+                armPingDeadline(agentId);
+            }
+        }
+    }
+
+    protected void handleAgentBehindOnPing(long agentId) {
+        SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getId(), Op.EQ, agentId);
+        HostVO h = sc.find();
+        if (h != null) {
+            ResourceState resourceState = h.getResourceState();
+            if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance
+                    || resourceState == ResourceState.ErrorInMaintenance) {
+                /*
+                 * Host is in non-operation state, so no
+                 * investigation and direct put agent to
+                 * Disconnected
+                 */
+                status_Logger.debug("Ping timeout but host " + agentId + " is in resource state of "
+                        + resourceState + ", so no investigation");
+                _agentMgr.disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
+            } else {
+                status_Logger.debug("Ping timeout for host " + agentId + ", do invstigation");
+                _agentMgr.disconnectWithInvestigation(agentId, Event.PingTimeout);
+            }
+        }
+    }
+
+    protected void checkHostsPreparingForMaintenance() throws NoTransitionException {
+        SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
+        List<HostVO> hosts = sc.list();
+
+        for (HostVO host : hosts) {
+            long hostId = host.getId();
+            DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
+            HostPodVO podVO = _podDao.findById(host.getPodId());
+            String hostDesc = "name: " + host.getName() + " (id:" + hostId + "), availability zone: " + dcVO.getName() + ", pod: " + podVO.getName();
+
+            if (host.getType() != Host.Type.Storage) {
+                List<VMInstanceVO> vos = _vmDao.listByHostId(hostId);
+                List<VMInstanceVO> vosMigrating = _vmDao.listVmsMigratingFromHost(hostId);
+                if (vos.isEmpty() && vosMigrating.isEmpty()) {
+                    _alertMgr.sendAlert(AlertManager.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Migration Complete for host " + hostDesc, "Host [" + hostDesc + "] is ready for maintenance");
+                    _resourceMgr.resourceStateTransitTo(host, ResourceState.Event.InternalEnterMaintenance, _msId);
+                }
+            }
+        }
+    }
+
     public void signalStop() {
         _stop = true;
+        _pingTimer.stop();
         interrupt();
     }
 
@@ -217,13 +332,21 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
         return processed;
     }
 
-    protected List<Long> findAgentsBehindOnPing() {
+    /**
+     * @param wait milliseconds to wait for a deadline to expire if none has.
+     */
+    protected List<Long> findAgentsBehindOnPing(long wait) throws InterruptedException {
         List<Long> agentsBehind = new ArrayList<Long>();
-        long cutoffTime = InaccurateClock.getTimeInSeconds() - _pingTimeout;
-        for (Map.Entry<Long, Long> entry : _pingMap.entrySet()) {
-            if (entry.getValue() < cutoffTime) {
-                agentsBehind.add(entry.getKey());
+        PingDeadline deadline = wait > 0 ? _behindAgents.poll(wait, TimeUnit.MILLISECONDS) : _behindAgents.poll();
+        while (deadline != null) {
+            long agentId = deadline._agentId;
+            // Skip the hosts that pinged or disconnected since their deadline expired
+            if (_pingMap.containsKey(agentId) && !_pingDeadlines.containsKey(agentId) && !agentsBehind.contains(agentId)) {
+                agentsBehind.add(agentId);
+                _pingTimeoutCount.incrementAndGet();
+                _detectionLatency.record(System.currentTimeMillis() - deadline._deadline);
             }
+            deadline = _behindAgents.poll();
         }
 
         if (agentsBehind.size() > 0) {
@@ -233,6 +356,33 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
         return agentsBehind;
     }
 
+    /**
+     * The deadlines only cover the hosts that connected to or pinged this
+     * server since it started.  Hosts that the database says belong to it
+     * and are behind on ping but that have no deadline get one, so they are
+     * either heard from or found behind within a ping timeout.
+     */
+    protected void reconcileWithDatabase() {
+        if (_pingTimeout <= 0) {
+            return;
+        }
+        long time = (System.currentTimeMillis() >> 10) - _pingTimeout;
+        List<Long> untracked = new ArrayList<Long>();
+        for (HostVO host : _hostDao.findLostHosts(time)) {
+            Long msId = host.getManagementServerId();
+            if (msId != null && msId == _msId && !_pingDeadlines.containsKey(host.getId())) {
+                _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+                armPingDeadline(host.getId());
+                untracked.add(host.getId());
+            }
+        }
+
+        if (untracked.size() > 0) {
+            _reconciledCount.addAndGet(untracked.size());
+            s_logger.info("Started tracking the ping of the following agents found by reconciliation: " + untracked);
+        }
+    }
+
     /**
      * @deprecated We're using the in-memory
      */
@@ -279,11 +429,13 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
 
         // NOTE: We don't use pingBy here because we're initiating.
         _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+        armPingDeadline(host.getId());
     }
 
     @Override
     public boolean processDisconnect(long agentId, Status state) {
         _pingMap.remove(agentId);
+        cancelPingDeadline(agentId);
         return true;
     }
 
@@ -298,6 +450,14 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     }
 
     public void startMonitoring() {
+        if (_msId == 0) {
+            _msId = ManagementServerNode.getManagementServerId();
+        }
+        try {
+            JmxUtil.registerMBean("AgentManager", "AgentMonitor", new AgentMonitorMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the agent monitor to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
     	start();
     }
 }
@@ -0,0 +1,65 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class AgentMonitorMBeanImpl extends StandardMBean implements AgentMonitorMBean {
+    private final AgentMonitor _monitor;
+
+    public AgentMonitorMBeanImpl(AgentMonitor monitor) {
+        super(AgentMonitorMBean.class, false);
+
+        _monitor = monitor;
+    }
+
+    /**
+     * Hosts that have a ping deadline.
+     */
+    @Override
+    public int getTrackedHosts() {
+        return _monitor.getTrackedHostCount();
+    }
+
+    @Override
+    public long getPingTimeouts() {
+        return _monitor.getPingTimeoutCount();
+    }
+
+    /**
+     * Hosts the periodic database check found without a ping deadline.
+     */
+    @Override
+    public long getHostsFoundByReconciliation() {
+        return _monitor.getReconciledHostCount();
+    }
+
+    /**
+     * Time in milliseconds from the ping deadline of a host to the monitor acting on it.
+     */
+    @Override
+    public Map<String, String> getDetectionLatency() {
+        return _monitor.getDetectionLatency().toMap();
+    }
+
+    @Override
+    public void resetDetectionLatency() {
+        _monitor.getDetectionLatency().reset();
+    }
+}
@@ -23,6 +23,7 @@ public interface AgentMonitorService extends Listener {
 	public Boolean isAgentBehindOnPing(long agentId);
     public Long getAgentPingTime(long agentId);
     public void pingBy(long agentId);
+    public void setPingTimeout(long pingTimeout);
     public void signalStop();
     public void startMonitoring();
 }
@@ -230,11 +230,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected AgentAttache createAttache(long id) {
         s_logger.debug("create forwarding ClusteredAgentAttache for " + id);
         final AgentAttache attache = new ClusteredAgentAttache(this, id);
-        AgentAttache old = null;
-        synchronized (_agents) {
-            old = _agents.get(id);
-            _agents.put(id, attache);
-        }
+        AgentAttache old = _agents.put(id, attache);
         if (old != null) {
             old.disconnect(Status.Removed);
         }
@@ -246,11 +242,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         s_logger.debug("create ClusteredAgentAttache for " + host.getId());
         final AgentAttache attache = new ClusteredAgentAttache(this, host.getId(), link, host.isInMaintenanceStates());
         link.attach(attache);
-        AgentAttache old = null;
-        synchronized (_agents) {
-            old = _agents.get(host.getId());
-            _agents.put(host.getId(), attache);
-        }
+        AgentAttache old = _agents.put(host.getId(), attache);
         if (old != null) {
             old.disconnect(Status.Removed);
         }
@@ -264,11 +256,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
         s_logger.debug("create ClusteredDirectAgentAttache for " + host.getId());
         final DirectAgentAttache attache = new ClusteredDirectAgentAttache(this, host.getId(), _nodeId, resource, host.isInMaintenanceStates(), this);
-        AgentAttache old = null;
-        synchronized (_agents) {
-            old = _agents.get(host.getId());
-            _agents.put(host.getId(), attache);
-        }
+        AgentAttache old = _agents.put(host.getId(), attache);
         if (old != null) {
             old.disconnect(Status.Removed);
         }
@@ -581,7 +569,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -1072,15 +1060,15 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             return false;
         }
 
-        synchronized (_agents) {
-            ClusteredDirectAgentAttache attache = (ClusteredDirectAgentAttache)_agents.get(hostId);
+        // The forward attache replaces the direct one under the stripe lock;
+        // the direct one is disconnected after the lock is released, as that
+        // updates the DB and calls the listeners
+        ClusteredDirectAgentAttache attache;
+        synchronized (_agents.lockFor(hostId)) {
+            attache = (ClusteredDirectAgentAttache)_agents.get(hostId);
             if (attache != null && attache.getQueueSize() == 0 && attache.getNonRecurringListenersSize() == 0) {
-            	handleDisconnectWithoutInvestigation(attache, Event.StartAgentRebalance, true);
-                ClusteredAgentAttache forwardAttache = (ClusteredAgentAttache)createAttache(hostId);
-                if (forwardAttache == null) {
-                    s_logger.warn("Unable to create a forward attache for the host " + hostId + " as a part of rebalance process");
-                    return false;
-                }
+                s_logger.debug("create forwarding ClusteredAgentAttache for " + hostId);
+                ClusteredAgentAttache forwardAttache = new ClusteredAgentAttache(this, hostId);
                 s_logger.debug("Putting agent id=" + hostId + " to transfer mode");
                 forwardAttache.setTransferMode(true);
                 _agents.put(hostId, forwardAttache);
@@ -1093,6 +1081,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 return false;
             }
         }
+        handleDisconnectWithoutInvestigation(attache, Event.StartAgentRebalance, true);
         _hostTransferDao.startAgentTransfer(hostId);
         return true;
     }
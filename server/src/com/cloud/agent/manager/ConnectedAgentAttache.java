@@ -43,6 +43,7 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
         try {
+            req.useBinaryCodec(_binaryCodec);
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
@@ -197,6 +197,10 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         }
         
         List<Host> suitableHosts = new ArrayList<Host>();
+        // The overcommit ratios of the clusters seen so far, most hosts share a handful of clusters
+        Map<Long, float[]> overcommitRatios = new HashMap<Long, float[]>();
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
 
         for (HostVO host : hosts) {
         	if(suitableHosts.size() == returnUpTo){
@@ -208,27 +212,31 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
                 }
                 continue;
             }
-                        
+
+            boolean numCpusGood = host.getCpus().intValue() >= offering.getCpu();
+            boolean cpuFreqGood = host.getSpeed().intValue() >= offering.getSpeed();
+            float[] ratios = overcommitRatios.get(host.getClusterId());
+            if (ratios == null) {
+                Cluster cluster = _clusterDao.findById(host.getClusterId());
+                ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(),"cpuOvercommitRatio");
+                ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(),"memoryOvercommitRatio");
+                ratios = new float[] { Float.parseFloat(clusterDetailsCpuOvercommit.getValue()), Float.parseFloat(clusterDetailsRamOvercommmt.getValue()) };
+                overcommitRatios.put(host.getClusterId(), ratios);
+            }
+            float cpuOvercommitRatio = ratios[0];
+            float memoryOvercommitRatio = ratios[1];
+
+            // The capacity check is answered from memory, do it before counting the VMs on the host
+            boolean hostHasCapacity = numCpusGood && cpuFreqGood && _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false,cpuOvercommitRatio,memoryOvercommitRatio, considerReservedCapacity);
+
             //find number of guest VMs occupying capacity on this host.
-            if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)){
+            if (hostHasCapacity && _capacityMgr.checkIfHostReachMaxGuestLimit(host)){
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Host name: " + host.getName() + ", hostId: "+ host.getId() +" already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
                 }
                 continue;
             }
 
-            boolean numCpusGood = host.getCpus().intValue() >= offering.getCpu();
-            boolean cpuFreqGood = host.getSpeed().intValue() >= offering.getSpeed();
-    		int cpu_requested = offering.getCpu() * offering.getSpeed();
-    		long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(),"cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(),"memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false,cpuOvercommitRatio,memoryOvercommitRatio, considerReservedCapacity);
-
             if (numCpusGood && cpuFreqGood && hostHasCapacity) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Found a suitable host, adding to list: " + host.getId());
@@ -23,13 +23,18 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -45,11 +50,10 @@ import org.apache.cloudstack.api.BaseAsyncCreateCmd;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.BaseCmd.CommandType;
 import org.apache.cloudstack.api.BaseListCmd;
-import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Identity;
 import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
-import org.apache.cloudstack.api.Validate;
 import org.apache.cloudstack.api.command.user.event.ArchiveEventsCmd;
 import org.apache.cloudstack.api.command.user.event.DeleteEventsCmd;
 import org.apache.cloudstack.api.command.user.event.ListEventsCmd;
@@ -69,7 +73,6 @@ import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.UserContext;
 import com.cloud.utils.DateUtil;
-import com.cloud.utils.ReflectUtil;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.exception.CSExceptionErrorCode;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -180,7 +183,9 @@ public class ApiDispatcher {
                 pageSize = Long.valueOf((String) pageSizeObj);
             }
 
-            if ((unpackedParams.get(ApiConstants.PAGE) == null) && (pageSize != null && pageSize != BaseListCmd.PAGESIZE_UNLIMITED)) {
+            // A cursor listing goes by the last id of the page before it instead of a page number
+            boolean cursor = unpackedParams.get(ApiConstants.CURSOR) != null;
+            if ((unpackedParams.get(ApiConstants.PAGE) == null) && !cursor && (pageSize != null && pageSize != BaseListCmd.PAGESIZE_UNLIMITED)) {
                 ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
                 ex.setCSErrorCode(CSExceptionErrorCode.getCSErrCode(ex.getClass().getName()));
                 throw ex;
@@ -189,16 +194,11 @@ public class ApiDispatcher {
             }
         }
 
-        List<Field> fields = ReflectUtil.getAllFieldsForClass(cmd.getClass(), BaseCmd.class);
-
-        for (Field field : fields) {
-            Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
-            if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
-                continue;
-            }
+        for (ParameterBinding binding : ParameterBinding.getBindings(cmd.getClass())) {
+            Field field = binding.getField();
+            Parameter parameterAnnotation = binding.getAnnotation();
 
             //TODO: Annotate @Validate on API Cmd classes, FIXME how to process Validate
-            Validate validateAnnotation = field.getAnnotation(Validate.class);
             Object paramObj = unpackedParams.get(parameterAnnotation.name());
             if (paramObj == null) {
                 if (parameterAnnotation.required()) {
@@ -210,7 +210,7 @@ public class ApiDispatcher {
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation);
+                setFieldValue(binding, cmd, paramObj);
             } catch (IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " + parameterAnnotation.name());
@@ -237,7 +237,7 @@ public class ApiDispatcher {
 
             //check access on the resource this field points to
             try {
-                ACL checkAccess = field.getAnnotation(ACL.class);
+                ACL checkAccess = binding.getAcl();
                 CommandType fieldType = parameterAnnotation.type();
 
                 if (checkAccess != null) {
@@ -249,8 +249,8 @@ public class ApiDispatcher {
                     //for maps, specify access to be checkd on key or value.
 
                     // find the controlled entity DBid by uuid
-                    if (parameterAnnotation.entityType() != null) {
-                        Class<?>[] entityList = parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class).value();
+                    if (binding.getEntities() != null) {
+                        Class<?>[] entityList = binding.getEntities();
 
                         for (Class entity : entityList) {
                             // Check if the parameter type is a single
@@ -318,72 +318,137 @@ public class ApiDispatcher {
 
         }
 
+        if (cmd instanceof BaseListCmd && !((BaseListCmd)cmd).isCursorSupported()
+                && (unpackedParams.get(ApiConstants.CURSOR) != null || unpackedParams.get(ApiConstants.COUNT_MODE) != null)) {
+            throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "Unable to execute API command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8)
+                    + ", it does not support the " + ApiConstants.CURSOR + " and " + ApiConstants.COUNT_MODE + " parameters");
+        }
+
         //check access on the entities.
         getInstance().doAccessChecks(cmd, entitiesToAccess);
 
     }
 
-    private static Long translateUuidToInternalId(String uuid, Parameter annotation)
-    {
+    private static final Pattern s_uuidPattern = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+
+    private static Long translateUuidToInternalId(String uuid, ParameterBinding binding) {
+        if (!needsLookup(uuid, binding)) {
+            return translateWithoutLookup(uuid, binding);
+        }
+        return lookupInternalIds(Collections.singleton(uuid), binding).get(uuid);
+    }
+
+    /**
+     * Translates a comma separated list of uuids the way translateUuidToInternalId()
+     * translates one, except that all the uuids are looked up with one query for
+     * every entity type.
+     */
+    private static List<Long> translateUuidsToInternalIds(String value, ParameterBinding binding) {
+        List<String> tokens = new ArrayList<String>();
+        Set<String> uuids = new LinkedHashSet<String>();
+        StringTokenizer st = new StringTokenizer(value, ",");
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken();
+            if (token.isEmpty()) {
+                continue;
+            }
+            tokens.add(token);
+            if (needsLookup(token, binding)) {
+                uuids.add(token);
+            }
+        }
+
+        Map<String, Long> internalIds = uuids.isEmpty() ? Collections.<String, Long> emptyMap() : lookupInternalIds(uuids, binding);
+        List<Long> listParam = new ArrayList<Long>(tokens.size());
+        for (String token : tokens) {
+            listParam.add(uuids.contains(token) ? internalIds.get(token) : translateWithoutLookup(token, binding));
+        }
+        return listParam;
+    }
+
+    /**
+     * @return whether the value has to be looked up to find its internal id.
+     */
+    private static boolean needsLookup(String uuid, ParameterBinding binding) {
+        if (uuid.equals("-1")) {
+            return false;
+        }
+        // Match against Java's UUID regex to check if input is uuid string
+        if (s_uuidPattern.matcher(uuid).matches()) {
+            return true;
+        }
+        // Enforce that it's uuid for newly added apis from version 3.x, allow both uuid and internal id for pre3x apis
+        return binding.isPre3x() && parseLong(uuid) == null;
+    }
+
+    private static Long translateWithoutLookup(String uuid, ParameterBinding binding) {
         if (uuid.equals("-1")) {
             // FIXME: This is to handle a lot of hardcoded special cases where -1 is sent
             // APITODO: Find and get rid of all hardcoded params in API Cmds and service layer
             return -1L;
         }
-        Long internalId = null;
-        // If annotation's empty, the cmd existed before 3.x try conversion to long
-        boolean isPre3x = annotation.since().isEmpty();
-        // Match against Java's UUID regex to check if input is uuid string
-        boolean isUuid = uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
-        // Enforce that it's uuid for newly added apis from version 3.x
-        if (!isPre3x && !isUuid)
+        return binding.isPre3x() ? parseLong(uuid) : null;
+    }
+
+    private static Long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
             return null;
-        // Allow both uuid and internal id for pre3x apis
-        if (isPre3x && !isUuid) {
-            try {
-                internalId = Long.parseLong(uuid);
-            } catch(NumberFormatException e) {
-                internalId = null;
-            }
-            if (internalId != null)
-                return internalId;
         }
+    }
+
+    private static Map<String, Long> lookupInternalIds(Collection<String> uuids, ParameterBinding binding) {
+        Map<String, Long> internalIds = new HashMap<String, Long>();
         // There may be multiple entities defined on the @EntityReference of a Response.class
         // UUID CommandType would expect only one entityType, so use the first entityType
-        Class<?>[] entities = annotation.entityType()[0].getAnnotation(EntityReference.class).value();
-        // Go through each entity which is an interface to a VO class and get a VO object
-        // Try to getId() for the object using reflection, break on first non-null value
-        for (Class<?> entity: entities) {
-            // For backward compatibility, we search within removed entities and let service layer deal
-            // with removed ones, return empty response or error
-            Object objVO = s_instance._entityMgr.findByUuidIncludingRemoved(entity, uuid);
-            if (objVO == null) {
-                continue;
-            }
-            // Invoke the getId method, get the internal long ID
-            // If that fails hide exceptions as the uuid may not exist
-            try {
-                internalId = ((InternalIdentity)objVO).getId();
-            } catch (IllegalArgumentException e) {
-            } catch (NullPointerException e) {
+        Class<?>[] entities = binding.getEntities();
+        if (entities != null) {
+            Set<String> remaining = new LinkedHashSet<String>(uuids);
+            // Go through each entity which is an interface to a VO class, the first one with the uuid wins
+            for (Class<?> entity : entities) {
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                // For backward compatibility, we search within removed entities and let service layer deal
+                // with removed ones, return empty response or error
+                if (Identity.class.isAssignableFrom(entity)) {
+                    for (Object objVO : s_instance._entityMgr.listByUuidsIncludingRemoved(entity, remaining)) {
+                        String uuid = ((Identity) objVO).getUuid();
+                        if (remaining.remove(uuid)) {
+                            internalIds.put(uuid, ((InternalIdentity) objVO).getId());
+                        }
+                    }
+                } else {
+                    for (Iterator<String> it = remaining.iterator(); it.hasNext();) {
+                        String uuid = it.next();
+                        Object objVO = s_instance._entityMgr.findByUuidIncludingRemoved(entity, uuid);
+                        if (objVO != null) {
+                            internalIds.put(uuid, ((InternalIdentity) objVO).getId());
+                            it.remove();
+                        }
+                    }
+                }
             }
-            // Return on first non-null Id for the uuid entity
-            if (internalId != null)
-                break;
         }
-        if (internalId == null) {
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("Object entity uuid = " + uuid + " does not exist in the database.");
-            throw new InvalidParameterValueException("Invalid parameter " + annotation.name() + " value=" + uuid
-                + " due to incorrect long value format, or entity does not exist or due to incorrect parameter annotation for the field in api cmd class.");
+
+        for (String uuid : uuids) {
+            if (internalIds.get(uuid) == null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Object entity uuid = " + uuid + " does not exist in the database.");
+                }
+                throw new InvalidParameterValueException("Invalid parameter " + binding.getName() + " value=" + uuid
+                        + " due to incorrect long value format, or entity does not exist or due to incorrect parameter annotation for the field in api cmd class.");
+            }
         }
-        return internalId;
+        return internalIds;
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static void setFieldValue(Field field, BaseCmd cmdObj, Object paramObj, Parameter annotation) throws IllegalArgumentException, ParseException {
+    private static void setFieldValue(ParameterBinding binding, BaseCmd cmdObj, Object paramObj) throws IllegalArgumentException, ParseException {
+        Field field = binding.getField();
+        Parameter annotation = binding.getAnnotation();
         try {
-            field.setAccessible(true);
             CommandType fieldType = annotation.type();
             switch (fieldType) {
             case BOOLEAN:
@@ -439,6 +504,10 @@ public class ApiDispatcher {
                 }
                 break;
             case LIST:
+                if (annotation.collectionType() == CommandType.UUID) {
+                    field.set(cmdObj, translateUuidsToInternalIds(paramObj.toString(), binding));
+                    break;
+                }
                 List listParam = new ArrayList();
                 StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
                 while (st.hasMoreTokens()) {
@@ -448,12 +517,6 @@ public class ApiDispatcher {
                     case INTEGER:
                         listParam.add(Integer.valueOf(token));
                         break;
-                    case UUID:
-                        if (token.isEmpty())
-                            break;
-                        Long internalId = translateUuidToInternalId(token, annotation);
-                        listParam.add(internalId);
-                        break;
                     case LONG: {
                         listParam.add(Long.valueOf(token));
                     }
@@ -470,7 +533,7 @@ public class ApiDispatcher {
             case UUID:
                 if (paramObj.toString().isEmpty())
                     break;
-                Long internalId = translateUuidToInternalId(paramObj.toString(), annotation);
+                Long internalId = translateUuidToInternalId(paramObj.toString(), binding);
                 field.set(cmdObj, internalId);
                 break;
             case LONG:
@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api;
 
+import java.lang.reflect.Modifier;
+
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.cloudstack.api.ResponseObject;
 
@@ -35,4 +38,16 @@ public class ApiResponseGsonHelper {
     public static GsonBuilder getBuilder() {
         return s_gBuilder;
     }
+
+    /**
+     * @return the Gson responses are serialized with.  Gson is thread safe so
+     * it is created once rather than for every response.
+     */
+    public static Gson getGson() {
+        return GsonHolder.s_gson;
+    }
+
+    private static class GsonHolder {
+        static final Gson s_gson = s_gBuilder.excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+    }
 }
@@ -19,6 +19,7 @@ package com.cloud.api;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -301,6 +302,12 @@ public class ApiServer implements HttpRequestHandler, ApiServerService {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, responseType, auditTrailSb, null);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
         try {
@@ -346,8 +353,13 @@ public class ApiServer implements HttpRequestHandler, ApiServerService {
                     cmdObj.setResponseType(responseType);
 
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    buildAuditTrail(auditTrailSb, command[0], response);
+                    response = queueCommand(cmdObj, paramMap, out);
+                    if (response == null && out != null) {
+                        // The list went straight out, it is not kept around to be logged
+                        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " response streamed");
+                    } else {
+                        buildAuditTrail(auditTrailSb, command[0], response);
+                    }
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + ((command == null) ? "null" : command[0]);
@@ -428,7 +440,7 @@ public class ApiServer implements HttpRequestHandler, ApiServerService {
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) throws Exception {
+    private String queueCommand(BaseCmd cmdObj, Map<String, String> params, Writer out) throws Exception {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -523,7 +535,13 @@ public class ApiServer implements HttpRequestHandler, ApiServerService {
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
+            ResponseObject responseObject = (ResponseObject) cmdObj.getResponseObject();
+            if (out != null && responseObject instanceof ListResponse) {
+                // Lists can be long, they are written out as they are serialized
+                ApiResponseSerializer.toSerializedStream(responseObject, cmdObj.getResponseType(), out);
+                return null;
+            }
+            return ApiResponseSerializer.toSerializedString(responseObject, cmdObj.getResponseType());
         }
     }
 
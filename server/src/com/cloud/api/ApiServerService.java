@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpSession;
@@ -34,4 +35,10 @@ public interface ApiServerService {
     public String getSerializedApiError(ServerApiException ex, Map<String, Object[]> apiCommandParams, String responseType);
 
     public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb) throws ServerApiException;
+
+    /**
+     * Same as handleRequest() except that a list response is written to out
+     * as it is serialized, in which case null is returned.
+     */
+    public String handleRequest(Map params, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException;
 }
@@ -43,6 +43,7 @@ import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.UserContext;
 import com.cloud.utils.StringUtils;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component("apiServlet")
 @SuppressWarnings("serial")
@@ -299,8 +300,14 @@ public class ApiServlet extends HttpServlet {
                 auditTrailSb.insert(0, "(userId=" + UserContext.current().getCallerUserId() + " accountId="
                         + UserContext.current().getCaller().getId() + " sessionId=" + (session != null ? session.getId() : null) + ")");
 
-                    String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                    writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                    // A list response is streamed to the writer, get the response ready for it.  If the
+                    // request fails before the buffer is flushed the partial list is dropped for the error
+                    setContentType(resp, responseType);
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                    String response = _apiServer.handleRequest(params, responseType, auditTrailSb, resp.getWriter());
+                    if (response != null) {
+                        writeResponse(resp, response, HttpServletResponse.SC_OK, responseType);
+                    }
             } else {
                 if (session != null) {
                     try {
@@ -315,13 +322,17 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (ServerApiException se) {
+            auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+            abortIfCommitted(resp, se);
             String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
                 resp.setHeader("X-Description", se.getDescription());
             writeResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType);
-                auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
         } catch (Exception ex) {
                 s_logger.error("unknown exception writing api response", ex);
                 auditTrailSb.append(" unknown exception writing api response");
+            abortIfCommitted(resp, ex);
+            String serializedResponse = _apiServer.getSerializedApiError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error", params, responseType);
+            writeResponse(resp, serializedResponse, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, responseType);
         } finally {
             s_accessLogger.info(auditTrailSb.toString());
             if (s_logger.isDebugEnabled()) {
@@ -345,12 +356,7 @@ public class ApiServlet extends HttpServlet {
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
-
+            setContentType(resp, responseType);
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
         } catch (IOException ioex) {
@@ -364,6 +370,28 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    /**
+     * A streamed list that fails after part of it went out under a 200 can't
+     * be answered with an error, a second body would be read as the rest of
+     * the list.  The exception is left to the container, which closes the
+     * connection so the client sees the list was cut short.  What is still
+     * in the buffer of a response that is not committed yet is dropped.
+     */
+    private void abortIfCommitted(HttpServletResponse resp, Exception ex) {
+        if (resp.isCommitted()) {
+            throw new CloudRuntimeException("Aborting the api response, it failed after it was committed", ex);
+        }
+        resp.resetBuffer();
+    }
+
+    private void setContentType(HttpServletResponse resp, String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     private String getLoginSuccessResponse(HttpSession session, String responseType) {
         StringBuffer sb = new StringBuffer();
@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.cloudstack.api.ACL;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Parameter;
+
+import com.cloud.utils.ReflectUtil;
+
+/**
+ * What ApiDispatcher.processParameters() needs to know about an exposed
+ * parameter of a command class: the field it is set on, its annotations and
+ * the entities it refers to.  It is worked out once for every command class
+ * instead of by reflection on every request.
+ */
+public class ParameterBinding {
+    private static final ConcurrentHashMap<Class<?>, List<ParameterBinding>> s_bindings = new ConcurrentHashMap<Class<?>, List<ParameterBinding>>();
+
+    private final Field _field;
+    private final Parameter _annotation;
+    private final ACL _acl;
+    private final Class<?>[] _entities;
+    private final boolean _pre3x;
+
+    protected ParameterBinding(Field field, Parameter annotation) {
+        _field = field;
+        _field.setAccessible(true);
+        _annotation = annotation;
+        _acl = field.getAnnotation(ACL.class);
+
+        Class<?>[] entityType = annotation.entityType();
+        EntityReference reference = entityType.length > 0 ? entityType[0].getAnnotation(EntityReference.class) : null;
+        _entities = reference != null ? reference.value() : null;
+        // If since is empty, the parameter existed before 3.x and takes internal ids as well as uuids
+        _pre3x = annotation.since().isEmpty();
+    }
+
+    /**
+     * @return the bindings of the exposed parameters of the command class.
+     */
+    public static List<ParameterBinding> getBindings(Class<?> cmdClass) {
+        List<ParameterBinding> bindings = s_bindings.get(cmdClass);
+        if (bindings == null) {
+            bindings = createBindings(cmdClass);
+            List<ParameterBinding> existing = s_bindings.putIfAbsent(cmdClass, bindings);
+            if (existing != null) {
+                bindings = existing;
+            }
+        }
+        return bindings;
+    }
+
+    protected static List<ParameterBinding> createBindings(Class<?> cmdClass) {
+        List<ParameterBinding> bindings = new ArrayList<ParameterBinding>();
+        for (Field field : ReflectUtil.getAllFieldsForClass(cmdClass, BaseCmd.class)) {
+            Parameter annotation = field.getAnnotation(Parameter.class);
+            if (annotation != null && annotation.expose()) {
+                bindings.add(new ParameterBinding(field, annotation));
+            }
+        }
+        return Collections.unmodifiableList(bindings);
+    }
+
+    /**
+     * Forgets the bindings worked out so far.
+     */
+    public static void clear() {
+        s_bindings.clear();
+    }
+
+    public Field getField() {
+        return _field;
+    }
+
+    public Parameter getAnnotation() {
+        return _annotation;
+    }
+
+    public String getName() {
+        return _annotation.name();
+    }
+
+    /**
+     * @return the ACL of the parameter, null if access to what it refers to is not checked.
+     */
+    public ACL getAcl() {
+        return _acl;
+    }
+
+    /**
+     * @return the entity classes of the EntityReference of the entity type of
+     * the parameter, null if it has none.
+     */
+    public Class<?>[] getEntities() {
+        return _entities;
+    }
+
+    public boolean isPre3x() {
+        return _pre3x;
+    }
+}
@@ -0,0 +1,93 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.cloud.exception.InvalidParameterValueException;
+
+/**
+ * The continuation token of a list paged through by id.  It carries the id
+ * of the last row of the page it came with and, if the rows were counted on
+ * the first page, that count.  Clients treat it as opaque, it is the URL safe
+ * base 64 of "version:lastId:count".
+ */
+public class ListCursor {
+    public static final String FIRST_PAGE = "*";
+
+    private static final String VERSION = "1";
+
+    private final Long _lastId;
+    private final Integer _count;
+
+    public ListCursor(Long lastId, Integer count) {
+        _lastId = lastId;
+        _count = count;
+    }
+
+    /**
+     * @return the cursor of the token, null if there is no token.
+     * @throws InvalidParameterValueException if the token is not one of ours.
+     */
+    public static ListCursor parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        if (FIRST_PAGE.equals(token)) {
+            return new ListCursor(null, null);
+        }
+
+        try {
+            String[] parts = new String(Base64.decodeBase64(token), "UTF-8").split(":", -1);
+            if (parts.length == 3 && VERSION.equals(parts[0])) {
+                return new ListCursor(Long.parseLong(parts[1]), parts[2].length() == 0 ? null : Integer.valueOf(parts[2]));
+            }
+        } catch (NumberFormatException e) {
+        } catch (UnsupportedEncodingException e) {
+        }
+        throw new InvalidParameterValueException("Invalid continuation token " + token);
+    }
+
+    public String toToken() {
+        String str = VERSION + ":" + _lastId + ":" + (_count == null ? "" : _count.toString());
+        try {
+            return Base64.encodeBase64URLSafeString(str.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * @return the id of the last row of the page before, null on the first page.
+     */
+    public Long getLastId() {
+        return _lastId;
+    }
+
+    /**
+     * @return the count of the first page, null if it was not counted.
+     */
+    public Integer getCount() {
+        return _count;
+    }
+
+    public boolean isFirstPage() {
+        return _lastId == null;
+    }
+}
@@ -27,6 +27,8 @@ import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
+import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.BaseListCmd.CountMode;
 import org.apache.cloudstack.api.command.admin.host.ListHostsCmd;
 import org.apache.cloudstack.api.command.admin.router.ListRoutersCmd;
 import org.apache.cloudstack.api.command.admin.storage.ListStoragePoolsCmd;
@@ -86,6 +88,7 @@ import com.cloud.api.query.dao.UserAccountJoinDao;
 import com.cloud.api.query.dao.UserVmJoinDao;
 import com.cloud.api.query.dao.VolumeJoinDao;
 import com.cloud.api.query.vo.AccountJoinVO;
+import com.cloud.api.query.vo.BaseViewVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
 import com.cloud.api.query.vo.DataCenterJoinVO;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
@@ -138,6 +141,7 @@ import com.cloud.utils.Ternary;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
@@ -600,6 +604,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
         List<UserVmResponse> vmResponses = ViewResponseHelper.createUserVmResponse("virtualmachine", cmd.getDetails(), result.first().toArray(new UserVmJoinVO[result.first().size()]));
         response.setResponses(vmResponses, result.second());
+        response.setCountOmitted(result.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -654,12 +660,12 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         c.addCriteria(Criteria.ISADMIN, _accountMgr.isAdmin(caller.getType()));
 
         return searchForUserVMsByCriteria(c, caller, domainId, isRecursive,
-                permittedAccounts, listAll, listProjectResourcesCriteria, tags);
+                permittedAccounts, listAll, listProjectResourcesCriteria, tags, cmd);
     }
 
 
     private Pair<List<UserVmJoinVO>, Integer> searchForUserVMsByCriteria(Criteria c, Account caller, Long domainId, boolean isRecursive,
-            List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria, Map<String, String> tags) {
+            List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria, Map<String, String> tags, BaseListCmd cmd) {
         Filter searchFilter = new Filter(UserVmJoinVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
 
         //first search distinct vm id by using query criteria and pagination
@@ -823,9 +829,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair =  _userVmJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair =  searchPage(_userVmJoinDao, sc, searchFilter, true, cmd);
         Integer count = uniqueVmPair.second();
-        if ( count.intValue() == 0 ){
+        if (uniqueVmPair.first().isEmpty()) {
             // handle empty result cases
             return uniqueVmPair;
         }
@@ -840,12 +846,58 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
 
+    /**
+     * Searches for the distinct ids of a page of a view.  Without a cursor
+     * that is the page at the offset of the filter and a count of all the
+     * rows.  With one the page starts after the last id of the page before
+     * it, which the database finds through the primary key however deep the
+     * page is, and the rows are only counted as the countmode parameter asks.
+     * The token of the page after it is left on the command.  The filter must
+     * order the rows by id.
+     */
+    static <T extends BaseViewVO> Pair<List<T>, Integer> searchPage(GenericDao<T, Long> dao, SearchCriteria<T> sc, Filter searchFilter, boolean ascending, BaseListCmd cmd) {
+        CountMode countMode = cmd.getCountMode();
+        ListCursor cursor = ListCursor.parse(cmd.getCursor());
+        if (cursor == null) {
+            if (countMode == CountMode.none) {
+                return new Pair<List<T>, Integer>(dao.search(sc, searchFilter), null);
+            }
+            return dao.searchAndCount(sc, searchFilter);
+        }
+
+        Integer count = null;
+        if (countMode == CountMode.exact || (countMode == CountMode.approximate && cursor.isFirstPage())) {
+            count = dao.getCount(sc);
+        } else if (countMode == CountMode.approximate) {
+            count = cursor.getCount();
+        }
+
+        if (!cursor.isFirstPage()) {
+            sc.addAnd("id", ascending ? Op.GT : Op.LT, cursor.getLastId());
+        }
+        Long pageSize = searchFilter.getLimit();
+        if (pageSize != null) {
+            // The row after the page tells whether there is another page
+            searchFilter.setOffset(0L);
+            searchFilter.setLimit(pageSize + 1);
+        }
+        List<T> rows = dao.search(sc, searchFilter);
+        if (pageSize != null && rows.size() > pageSize) {
+            rows = new ArrayList<T>(rows.subList(0, pageSize.intValue()));
+            Integer carried = countMode == CountMode.approximate ? count : null;
+            cmd.setNextCursor(new ListCursor(rows.get(rows.size() - 1).getId(), carried).toToken());
+        }
+        return new Pair<List<T>, Integer>(rows, count);
+    }
+
     @Override
     public ListResponse<SecurityGroupResponse> searchForSecurityGroups(ListSecurityGroupsCmd cmd) {
         Pair<List<SecurityGroupJoinVO>, Integer> result = searchForSecurityGroupsInternal(cmd);
         ListResponse<SecurityGroupResponse> response = new ListResponse<SecurityGroupResponse>();
         List<SecurityGroupResponse> routerResponses = ViewResponseHelper.createSecurityGroupResponses(result.first());
         response.setResponses(routerResponses, result.second());
+        response.setCountOmitted(result.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -917,9 +969,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search security group together with rules
-        Pair<List<SecurityGroupJoinVO>, Integer> uniqueSgPair =  _securityGroupJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<SecurityGroupJoinVO>, Integer> uniqueSgPair =  searchPage(_securityGroupJoinDao, sc, searchFilter, true, cmd);
         Integer count = uniqueSgPair.second();
-        if ( count.intValue() == 0 ){
+        if (uniqueSgPair.first().isEmpty()) {
             // handle empty result cases
             return uniqueSgPair;
         }
@@ -960,6 +1012,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
         List<DomainRouterResponse> routerResponses = ViewResponseHelper.createDomainRouterResponse(result.first().toArray(new DomainRouterJoinVO[result.first().size()]));
         response.setResponses(routerResponses, result.second());
+        response.setCountOmitted(result.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -1062,9 +1116,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search VR details by ids
-        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = _routerJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = searchPage(_routerJoinDao, sc, searchFilter, true, cmd);
         Integer count = uniqueVrPair.second();
-        if (count.intValue() == 0) {
+        if (uniqueVrPair.first().isEmpty()) {
             // empty result
             return uniqueVrPair;
         }
@@ -1086,6 +1140,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         ListResponse<ProjectResponse> response = new ListResponse<ProjectResponse>();
         List<ProjectResponse> projectResponses = ViewResponseHelper.createProjectResponse(projects.first().toArray(new ProjectJoinVO[projects.first().size()]));
         response.setResponses(projectResponses, projects.second());
+        response.setCountOmitted(projects.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -1217,9 +1273,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search distinct projects to get count
-        Pair<List<ProjectJoinVO>, Integer> uniquePrjPair = _projectJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<ProjectJoinVO>, Integer> uniquePrjPair = searchPage(_projectJoinDao, sc, searchFilter, false, cmd);
         Integer count = uniquePrjPair.second();
-        if (count.intValue() == 0) {
+        if (uniquePrjPair.first().isEmpty()) {
             // handle empty result cases
             return uniquePrjPair;
         }
@@ -1368,6 +1424,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         s_logger.debug(">>>Generating Response>>>");
         List<HostResponse> hostResponses = ViewResponseHelper.createHostResponse(cmd.getDetails(), hosts.first().toArray(new HostJoinVO[hosts.first().size()]));
         response.setResponses(hostResponses, hosts.second());
+        response.setCountOmitted(hosts.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -1455,9 +1513,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search host details by ids
-        Pair<List<HostJoinVO>, Integer> uniqueHostPair =  _hostJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<HostJoinVO>, Integer> uniqueHostPair =  searchPage(_hostJoinDao, sc, searchFilter, true, cmd);
         Integer count = uniqueHostPair.second();
-        if ( count.intValue() == 0 ){
+        if (uniqueHostPair.first().isEmpty()) {
             // handle empty result cases
             return uniqueHostPair;
         }
@@ -1821,6 +1879,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
         List<StoragePoolResponse> poolResponses = ViewResponseHelper.createStoragePoolResponse(result.first().toArray(new StoragePoolJoinVO[result.first().size()]));
         response.setResponses(poolResponses, result.second());
+        response.setCountOmitted(result.second() == null);
+        response.setNextCursor(cmd.getNextCursor());
         return response;
     }
 
@@ -1887,9 +1947,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search Pool details by ids
-        Pair<List<StoragePoolJoinVO>, Integer> uniquePoolPair = _poolJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<StoragePoolJoinVO>, Integer> uniquePoolPair = searchPage(_poolJoinDao, sc, searchFilter, true, cmd);
         Integer count = uniquePoolPair.second();
-        if (count.intValue() == 0) {
+        if (uniquePoolPair.first().isEmpty()) {
             // empty result
             return uniquePoolPair;
         }
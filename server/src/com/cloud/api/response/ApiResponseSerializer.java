@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -42,6 +45,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.uuididentity.dao.IdentityDao;
 import com.cloud.uuididentity.dao.IdentityDaoImpl;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 import com.google.gson.annotations.SerializedName;
 
 public class ApiResponseSerializer {
@@ -56,6 +60,22 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes what toSerializedString() returns to the writer as it goes, a
+     * response object at a time, so that a long list is never held in memory
+     * as one string and the first of it reaches the client before the last of
+     * it is serialized.
+     */
+    public static void toSerializedStream(ResponseObject result, String responseType, Writer out) throws IOException {
+        s_logger.trace("===Serializing Response===");
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            toJSONSerializedStream(result, out);
+        } else {
+            toXMLSerializedStream(result, out);
+        }
+        out.flush();
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -69,102 +89,233 @@ public class ApiResponseSerializer {
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            StringWriter out = new StringWriter();
+            try {
+                toJSONSerializedStream(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize " + result.getResponseName(), e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
 
-            StringBuilder sb = new StringBuilder();
+    private static void toJSONSerializedStream(ResponseObject result, Writer out) throws IOException {
+        if (result == null) {
+            return;
+        }
+        Gson gson = ApiResponseGsonHelper.getGson();
+
+        out.write("{ \"");
+        out.write(result.getResponseName());
+        out.write("\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
+            Integer count = ((ListResponse) result).getCount();
+            String nextCursor = ((ListResponse) result).getNextCursor();
+            // Every field after the first one is preceded by a comma
+            String separator = " ";
+            out.write("{");
+            if (count != null && count.longValue() != 0) {
+                out.write(separator + "\"" + ApiConstants.COUNT + "\":" + count);
+                separator = " ,";
+            }
+            if (nextCursor != null) {
+                out.write(separator + "\"" + ApiConstants.NEXT_CURSOR + "\":\"" + nextCursor + "\"");
+                separator = " ,";
+            }
 
-            sb.append("{ \"").append(result.getResponseName()).append("\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                Integer count = ((ListResponse) result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
-                if (nonZeroCount) {
-                    sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+            if ((responses != null) && !responses.isEmpty()) {
+                out.write(separator + "\"" + responses.get(0).getObjectName() + "\" : [  ");
+                writeJSON(gson, responses.get(0), out);
+                for (int i = 1; i < responses.size(); i++) {
+                    out.write(", ");
+                    writeJSON(gson, responses.get(i), out);
+                }
+                out.write(" ]");
+            }
+            out.write(" }");
+        } else if (result instanceof SuccessResponse) {
+            out.write("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
+        } else if (result instanceof ExceptionResponse) {
+            writeJSON(gson, result, out);
+        } else {
+            String jsonStr = gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                jsonStr = unescape(jsonStr);
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                    out.write(jsonStr);
+                } else {
+                    out.write(" { \"" + result.getObjectName() + "\" : " + jsonStr + " } ");
                 }
+            } else {
+                out.write("{ }");
+            }
+        }
+        out.write(" }");
+    }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+    /**
+     * Writes the object the way unescape(gson.toJson(obj)) would without
+     * creating either string.
+     */
+    private static void writeJSON(Gson gson, ResponseObject obj, Writer out) throws IOException {
+        UnescapingWriter writer = new UnescapingWriter(out);
+        try {
+            gson.toJson(obj, writer);
+        } catch (JsonIOException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        writer.finish();
+    }
 
-                    if (nonZeroCount) {
-                        sb.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
-                    }
+    /**
+     * Turns the unicode escapes gson writes back into the characters they
+     * stand for on the way to the writer it wraps, as unescape() does to a
+     * string.
+     */
+    static class UnescapingWriter extends Writer {
+        private final Writer _out;
+        private final char[] _buffer = new char[4096];
+        private int _buffered = 0;
+        private final char[] _escape = new char[6];
+        private int _escaped = 0;
+
+        UnescapingWriter(Writer out) {
+            _out = out;
+        }
 
-                    for (int i = 1; i < ((ListResponse) result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", ").append(jsonStr);
-                    }
-                    sb.append(" ] }");
-                } else  {
-                    if (!nonZeroCount){
-                        sb.append("{");
-                    }
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(cbuf[i]);
+            }
+        }
 
-                    sb.append(" }");
-                }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"").append(((SuccessResponse) result).getSuccess()).append("\"} ");
-            } else if (result instanceof ExceptionResponse) {
-            	String jsonErrorText = gson.toJson((ExceptionResponse) result);
-            	jsonErrorText = unescape(jsonErrorText);
-            	sb.append(jsonErrorText);
-            } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
-                    }
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            put((char) c);
+        }
+
+        private void put(char c) throws IOException {
+            if (_escaped == 0) {
+                if (c == '\\') {
+                    _escape[_escaped++] = c;
                 } else {
-                    sb.append("{ }");
+                    emit(c);
+                }
+                return;
+            }
+
+            if ((_escaped == 1 && c == 'u') || (_escaped > 1 && Character.digit(c, 16) >= 0)) {
+                _escape[_escaped++] = c;
+                if (_escaped == _escape.length) {
+                    emit((char) Integer.parseInt(new String(_escape, 2, 4), 16));
+                    _escaped = 0;
                 }
+                return;
             }
-            sb.append(" }");
-            return sb.toString();
+
+            // Not an escape after all, c may start the next one
+            releaseEscape();
+            put(c);
+        }
+
+        private void releaseEscape() throws IOException {
+            for (int i = 0; i < _escaped; i++) {
+                emit(_escape[i]);
+            }
+            _escaped = 0;
+        }
+
+        private void emit(char c) throws IOException {
+            if (_buffered == _buffer.length) {
+                _out.write(_buffer, 0, _buffered);
+                _buffered = 0;
+            }
+            _buffer[_buffered++] = c;
+        }
+
+        /**
+         * Writes out whatever is held back, leaving the wrapped writer open.
+         */
+        public void finish() throws IOException {
+            releaseEscape();
+            if (_buffered > 0) {
+                _out.write(_buffer, 0, _buffered);
+                _buffered = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // What is held back is written out by finish(), an escape may be cut in two here
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
         }
-        return null;
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        StringWriter out = new StringWriter();
+        try {
+            toXMLSerializedStream(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + result.getResponseName(), e);
+        }
+        return out.toString();
+    }
+
+    private static void toXMLSerializedStream(ResponseObject result, Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.write("<" + result.getResponseName() + " cloud-stack-version=\"" + ApiDBUtils.getVersion() + "\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse) result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse) result).getCount()).
-                append("</").append(ApiConstants.COUNT).append(">");
+                out.write("<" + ApiConstants.COUNT + ">" + ((ListResponse) result).getCount() + "</" + ApiConstants.COUNT + ">");
+            }
+            String nextCursor = ((ListResponse) result).getNextCursor();
+            if (nextCursor != null) {
+                out.write("<" + ApiConstants.NEXT_CURSOR + ">" + nextCursor + "</" + ApiConstants.NEXT_CURSOR + ">");
             }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.write("</" + result.getResponseName() + ">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<").append(obj.getObjectName()).append(">");
+            out.write("<" + obj.getObjectName() + ">");
         }
-        serializeResponseObjFieldsXML(sb, obj);
+        serializeResponseObjFieldsXML(out, obj);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</").append(obj.getObjectName()).append(">");
+            out.write("</" + obj.getObjectName() + ">");
         }
     }
 
@@ -177,7 +328,7 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
@@ -207,11 +358,11 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject) fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.write("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.write("</jobresult>");
                     }
                 } else if (fieldValue instanceof Collection<?>) {
                     Collection<?> subResponseList = (Collection<Object>) fieldValue;
@@ -222,34 +373,33 @@ public class ApiResponseSerializer {
                             if (serializedName != null) {
                                 subObj.setObjectName(serializedName.value());
                             }
-                            serializeResponseObjXML(sb, subObj);
+                            serializeResponseObjXML(out, subObj);
                         } else {
                             // Only exception reponses carry a list of uuid
                             // strings.
                             // If this is the first IdentityProxy field
                             // encountered, put in a uuidList tag.
                             if (!usedUuidList) {
-                                sb.append("<").append(serializedName.value()).append(">");
+                                out.write("<" + serializedName.value() + ">");
                                 usedUuidList = true;
                             }
-                            sb.append("<uuid>").append(value).append("</uuid>");
+                            out.write("<uuid>" + value + "</uuid>");
                             // We have removed uuid property field due to removal of IdentityProxy class.
                         }
                     }
                     if (usedUuidList) {
                     	// close the uuidList.
-                    	sb.append("</").append(serializedName.value()).append(">");
+                    	out.write("</" + serializedName.value() + ">");
                     }
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<").append(serializedName.value()).append(">").append(BaseCmd.getDateString((Date) fieldValue)).
-                    append("</").append(serializedName.value()).append(">");
+                    out.write("<" + serializedName.value() + ">" + BaseCmd.getDateString((Date) fieldValue) + "</" + serializedName.value() + ">");
                 } else {
                     String resultString = escapeSpecialXmlChars(fieldValue.toString());
                     if (!(obj instanceof ExceptionResponse)) {
                         resultString = encodeParam(resultString);
                     }
 
-                    sb.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                    out.write("<" + serializedName.value() + ">" + resultString + "</" + serializedName.value() + ">");
                 }
             }
         }
@@ -34,4 +34,5 @@ public interface AsyncJobMBean {
 	public String getSyncQueueId();
 	public String getSyncQueueContentType();
 	public String getSyncQueueContentId();
+	public long getQueueWaitTime();
 }
@@ -25,11 +25,13 @@ import com.cloud.utils.DateUtil;
 
 public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
 	private AsyncJobVO _jobVo;
+	private long _queueWaitTime;
 	
-	public AsyncJobMBeanImpl(AsyncJobVO jobVo) {
+	public AsyncJobMBeanImpl(AsyncJobVO jobVo, long queueWaitTime) {
 		super(AsyncJobMBean.class, false);
 		
 		_jobVo = jobVo;
+		_queueWaitTime = queueWaitTime;
 	}
 	
 	public long getAccountId() {
@@ -141,4 +143,10 @@ public class AsyncJobMBeanImpl extends StandardMBean implements AsyncJobMBean {
 		return "N/A";
 	}
 	
+	/**
+	 * Milliseconds the job waited to start, -1 if unknown.
+	 */
+	public long getQueueWaitTime() {
+		return _queueWaitTime;
+	}
 }
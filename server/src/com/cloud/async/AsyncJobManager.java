@@ -41,6 +41,11 @@ public interface AsyncJobManager extends Manager {
     public void releaseSyncSource(AsyncJobExecutor executor);
     
     public void syncAsyncJobExecution(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit);
+
+    /**
+     * Called when another management server has queued an item on the sync queue.
+     */
+    public void onPeerQueueReady(long queueId);
     
     /**
      * Queries for the status or final result of an async job.
@@ -20,13 +20,18 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -61,6 +66,7 @@ import com.cloud.user.User;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentContext;
@@ -84,6 +90,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
+    // the peers are told about queued items, the table is only scanned to catch what they miss
+    private static final int QUEUE_SCAN_INTERVAL = 30000;		// 30 seconds
     private static final int GC_INTERVAL = 10000;				// 10 seconds
 
     @Inject private AsyncJobExecutorContext _context;
@@ -101,6 +109,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private final ScheduledExecutorService _heartbeatScheduler =
             Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
+    private final ExecutorService _queueDispatcher =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-Dispatcher"));
+
+    // Sync queues that may have an item ready to run, each queue is in there once at the most
+    private final BlockingQueue<Long> _readyQueues = new LinkedBlockingQueue<Long>();
+    private final Set<Long> _readyQueueIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final LatencyHistogram _queueWaitTimes = new LatencyHistogram();
+    private SyncQueuePeerNotifier _peerNotifier;
 
     @Override
     public AsyncJobExecutorContext getExecutorContext() {
@@ -286,6 +302,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         if (queue == null) {
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
         } else {
+            queueReady(queue.getId());
+            notifyPeers(queue.getId());
             throw new AsyncCommandQueued(queue, "job-" + job.getId() + " queued");
         }
     }
@@ -390,9 +408,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             public void run() {
                 try {
                     long jobId = 0;
+                    long queueWaitTime = recordQueueWait(job);
 
                     try {
-                        JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job));
+                        JmxUtil.registerMBean("AsyncJobManager", "Active Job " + job.getId(), new AsyncJobMBeanImpl(job, queueWaitTime));
                     } catch(Exception e) {
                         s_logger.warn("Unable to register active job " + job.getId() + " to JMX monitoring due to exception " + ExceptionUtil.toString(e));
                     }
@@ -454,10 +473,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
                     } catch(Throwable e) {
                         if (e instanceof AsyncCommandQueued) {
+                            // syncAsyncJobExecution() has handed the queue to the dispatcher already
                             if (s_logger.isDebugEnabled()) {
                                 s_logger.debug("job " + job.getCmd() + " for job-" + jobId + " was queued, processing the queue.");
                             }
-                            checkQueue(((AsyncCommandQueued)e).getQueue().getId());
                         } else {
                             String errorMsg = null;
                             int errorCode = ApiErrorCode.INTERNAL_ERROR.getHttpCode();
@@ -528,6 +547,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             } catch(RejectedExecutionException e) {
                 s_logger.warn("Execution for job-" + job.getId() + " is rejected, return it to the queue for next turn");
                 _queueMgr.returnItem(item.getId());
+                queueReady(item.getQueueId());
             }
 
         } else {
@@ -571,6 +591,89 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 break;
             }
         }
+    }
+
+    @Override
+    public void onPeerQueueReady(long queueId) {
+        queueReady(queueId);
+    }
+
+    /**
+     * Tells the other management servers about the queued item once it is
+     * committed and they can see it.
+     */
+    protected void notifyPeers(final long queueId) {
+        final SyncQueuePeerNotifier notifier = _peerNotifier;
+        if (notifier == null) {
+            return;
+        }
+        Transaction.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                notifier.notifyQueueReady(queueId);
+            }
+        });
+    }
+
+    /**
+     * Tells the dispatcher that the sync queue may have an item that can run.
+     */
+    protected void queueReady(long queueId) {
+        if (_readyQueueIds.add(queueId)) {
+            _readyQueues.offer(queueId);
+        }
+    }
+
+    private long recordQueueWait(AsyncJobVO job) {
+        // queued jobs wait from the time they were queued, the others from their submission
+        Date since = job.getSyncSource() != null ? job.getSyncSource().getCreated() : job.getCreated();
+        if (since == null) {
+            return -1;
+        }
+        long wait = DateUtil.currentGMTTime().getTime() - since.getTime();
+        _queueWaitTimes.record(wait);
+        return wait;
+    }
+
+    public LatencyHistogram getQueueWaitTimes() {
+        return _queueWaitTimes;
+    }
+
+    public int getReadyQueueSize() {
+        return _readyQueues.size();
+    }
+
+    /**
+     * Waits up to timeoutMs for a ready queue and runs what it can of it.
+     * @return false if no queue became ready in time.
+     */
+    boolean dispatchReadyQueue(long timeoutMs) throws InterruptedException {
+        Long queueId = _readyQueues.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (queueId == null) {
+            return false;
+        }
+
+        // Removed first so the queue can be signaled again while it is checked
+        _readyQueueIds.remove(queueId);
+        checkQueue(queueId);
+        return true;
+    }
+
+    private Runnable getDispatcherTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                while (!_queueDispatcher.isShutdown()) {
+                    try {
+                        dispatchReadyQueue(HEARTBEAT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Throwable e) {
+                        s_logger.error("Unexpected exception when dispatching queue items", e);
+                    }
+                }
+            }
+        };
     }
 
     private Runnable getHeartbeatTask() {
@@ -639,6 +742,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
                             // purge the item and resume queue processing
                             _queueMgr.purgeItem(item.getId());
+                            queueReady(item.getQueueId());
                         }
                     }
 
@@ -715,7 +819,13 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             throw new ConfigurationException("Unable to load db.properties to configure AsyncJobManagerImpl");
         }
 
-        return true;
+        if (_clusterMgr != null) {
+            // Registered before the cluster manager starts so that it hears of every peer
+            _peerNotifier = new SyncQueuePeerNotifier(getMsid(), _clusterMgr);
+            _clusterMgr.registerListener(_peerNotifier);
+        }
+
+        return true;
     }
 
     @Override
@@ -755,10 +865,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             s_logger.error("Unexpected exception " + e.getMessage(), e);
         }
 
-        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL,
-                HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        _queueDispatcher.submit(getDispatcherTask());
+        _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), QUEUE_SCAN_INTERVAL,
+                QUEUE_SCAN_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
                 GC_INTERVAL, TimeUnit.MILLISECONDS);
+
+        try {
+            JmxUtil.registerMBean("AsyncJobManager", "Queue", new AsyncJobQueueMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the async job queue to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
 
         return true;
     }
@@ -777,6 +894,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     @Override
     public boolean stop() {
         _heartbeatScheduler.shutdown();
+        _queueDispatcher.shutdownNow();
         _executor.shutdown();
         return true;
     }
@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class AsyncJobQueueMBeanImpl extends StandardMBean implements AsyncJobQueueMBean {
+	private AsyncJobManagerImpl _jobMgr;
+	
+	public AsyncJobQueueMBeanImpl(AsyncJobManagerImpl jobMgr) {
+		super(AsyncJobQueueMBean.class, false);
+		
+		_jobMgr = jobMgr;
+	}
+	
+	public int getReadyQueueSize() {
+		return _jobMgr.getReadyQueueSize();
+	}
+	
+	/**
+	 * Time in milliseconds from the queueing or the submission of a job to the start of its execution.
+	 */
+	public Map<String, String> getQueueWaitTimes() {
+		return _jobMgr.getQueueWaitTimes().toMap();
+	}
+	
+	public void resetQueueWaitTimes() {
+		_jobMgr.getQueueWaitTimes().reset();
+	}
+}
@@ -16,10 +16,10 @@
 // under the License.
 package com.cloud.async;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -44,6 +44,9 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     @Inject private SyncQueueDao _syncQueueDao;
     @Inject private SyncQueueItemDao _syncQueueItemDao;
 
+    // Identifies the rows of a claim in progress, see SyncQueueItemDao.claimQueueItems()
+    private final AtomicLong _claimBatchId = new AtomicLong(0);
+
     @Override
     @DB
     public SyncQueueVO queue(String syncObjType, long syncObjId, String itemType, long itemId, long queueSizeLimit) {
@@ -133,38 +136,11 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     @DB
     public List<SyncQueueItemVO> dequeueFromAny(Long msid, int maxItems) {
 
-        List<SyncQueueItemVO> resultList = new ArrayList<SyncQueueItemVO>();
         Transaction txt = Transaction.currentTxn();
         try {
             txt.start();
 
-            List<SyncQueueItemVO> l = _syncQueueItemDao.getNextQueueItems(maxItems);
-            if(l != null && l.size() > 0) {
-                for(SyncQueueItemVO item : l) {
-                    SyncQueueVO queueVO = _syncQueueDao.lockRow(item.getQueueId(), true);
-                    SyncQueueItemVO itemVO = _syncQueueItemDao.lockRow(item.getId(), true);
-                    if(queueReadyToProcess(queueVO) && itemVO.getLastProcessNumber() == null) {
-                        Long processNumber = queueVO.getLastProcessNumber();
-                        if(processNumber == null)
-                            processNumber = new Long(1);
-                        else
-                            processNumber = processNumber + 1;
-
-                        Date dt = DateUtil.currentGMTTime();
-                        queueVO.setLastProcessNumber(processNumber);
-                        queueVO.setLastUpdated(dt);
-                        queueVO.setQueueSize(queueVO.getQueueSize() + 1);
-                        _syncQueueDao.update(queueVO.getId(), queueVO);
-
-                        itemVO.setLastProcessMsid(msid);
-                        itemVO.setLastProcessNumber(processNumber);
-                        itemVO.setLastProcessTime(dt);
-                        _syncQueueItemDao.update(item.getId(), itemVO);
-
-                        resultList.add(item);
-                    }
-                }
-            }
+            List<SyncQueueItemVO> resultList = _syncQueueItemDao.claimQueueItems(msid, _claimBatchId.incrementAndGet(), maxItems);
             txt.commit();
             return resultList;
         } catch(Exception e) {
@@ -0,0 +1,80 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SyncQueueReadyCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHostVO;
+
+/**
+ * Tells the other management servers that an item has been queued.  The
+ * peers are the ones the cluster heartbeat has seen join, and the queue
+ * table scan still finds whatever a peer does not hear about.
+ */
+public class SyncQueuePeerNotifier implements ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(SyncQueuePeerNotifier.class);
+
+    ClusterManager _clusterMgr;
+    long _msId;
+    // peer name of the other management servers by their host id
+    final Map<Long, String> _peers = new ConcurrentHashMap<Long, String>();
+
+    public SyncQueuePeerNotifier(long msId, ClusterManager clusterMgr) {
+        _msId = msId;
+        _clusterMgr = clusterMgr;
+    }
+
+    public void notifyQueueReady(long queueId) {
+        Command[] cmds = new Command[] { new SyncQueueReadyCommand(queueId, _msId) };
+        for (String peer : _peers.values()) {
+            try {
+                _clusterMgr.executeAsync(peer, 0, cmds, false);
+            } catch (Exception e) {
+                // The peer finds the item on its next scan of the queue table
+                s_logger.debug("Unable to tell " + peer + " about queue-" + queueId, e);
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            if (node.getId() != selfNodeId) {
+                _peers.put(node.getId(), Long.toString(node.getMsid()));
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            _peers.remove(node.getId());
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+    }
+}
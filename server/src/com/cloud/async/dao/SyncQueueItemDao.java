@@ -24,6 +24,18 @@ import com.cloud.utils.db.GenericDao;
 public interface SyncQueueItemDao extends GenericDao<SyncQueueItemVO, Long> {
 	public SyncQueueItemVO getNextQueueItem(long queueId);
 	public List<SyncQueueItemVO> getNextQueueItems(int maxItems);
+
+	/**
+	 * Claims the oldest pending item of up to maxItems queues that have room
+	 * for it, bumps the size and process number of those queues and returns
+	 * the claimed items.  It takes a fixed number of statements whatever the
+	 * number of items, and it must run inside the caller's transaction.
+	 *
+	 * @param msid management server the items are claimed for.
+	 * @param batchId marks the rows of this claim until it completes, it must
+	 * be unique for the msid among claims in progress.
+	 */
+	public List<SyncQueueItemVO> claimQueueItems(long msid, long batchId, int maxItems);
 	public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive);
 	public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 	public Long getQueueItemIdByContentIdAndType(long contentId, String contentType);
@@ -41,6 +41,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value = { SyncQueueItemDao.class })
@@ -111,6 +112,70 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         }
 		return l;
 	}
+
+    @Override
+    public List<SyncQueueItemVO> claimQueueItems(long msid, long batchId, int maxItems) {
+        // Claimed items carry the negated batch id as their process number until the
+        // claim completes, which lets the following statements find them without an
+        // IN list.  The pick is done in a derived table so that MySQL materializes it
+        // before updating the tables it reads from.
+        String claimSql = "UPDATE sync_queue AS q JOIN sync_queue_item AS i ON q.id = i.queue_id " +
+                " JOIN (SELECT MIN(pi.id) AS id FROM sync_queue AS pq JOIN sync_queue_item AS pi ON pq.id = pi.queue_id " +
+                "   WHERE pq.queue_size < pq.queue_size_limit AND pi.queue_proc_number IS NULL " +
+                "   GROUP BY pq.id ORDER BY id LIMIT 0, ?) AS c ON i.id = c.id " +
+                " SET q.queue_size = q.queue_size + 1, q.queue_proc_number = IFNULL(q.queue_proc_number, 0) + 1, q.last_updated = ?, " +
+                "   i.queue_proc_msid = ?, i.queue_proc_number = ?, i.queue_proc_time = ? " +
+                " WHERE q.queue_size < q.queue_size_limit AND i.queue_proc_number IS NULL";
+        String selectSql = "SELECT i.id, i.queue_id, i.content_type, i.content_id, i.created, q.queue_proc_number " +
+                " FROM sync_queue_item AS i JOIN sync_queue AS q ON q.id = i.queue_id " +
+                " WHERE i.queue_proc_msid = ? AND i.queue_proc_number = ? ORDER BY i.id";
+        String completeSql = "UPDATE sync_queue_item AS i JOIN sync_queue AS q ON q.id = i.queue_id " +
+                " SET i.queue_proc_number = q.queue_proc_number " +
+                " WHERE i.queue_proc_msid = ? AND i.queue_proc_number = ?";
+
+        List<SyncQueueItemVO> l = new ArrayList<SyncQueueItemVO>();
+        Date dt = DateUtil.currentGMTTime();
+        String dtString = DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), dt);
+        long marker = -batchId;
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(claimSql);
+            pstmt.setInt(1, maxItems);
+            pstmt.setString(2, dtString);
+            pstmt.setLong(3, msid);
+            pstmt.setLong(4, marker);
+            pstmt.setString(5, dtString);
+            if (pstmt.executeUpdate() == 0) {
+                return l;
+            }
+
+            pstmt = txn.prepareAutoCloseStatement(selectSql);
+            pstmt.setLong(1, msid);
+            pstmt.setLong(2, marker);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                SyncQueueItemVO item = new SyncQueueItemVO();
+                item.setId(rs.getLong(1));
+                item.setQueueId(rs.getLong(2));
+                item.setContentType(rs.getString(3));
+                item.setContentId(rs.getLong(4));
+                item.setCreated(DateUtil.parseDateString(TimeZone.getTimeZone("GMT"), rs.getString(5)));
+                item.setLastProcessNumber(rs.getLong(6));
+                item.setLastProcessMsid(msid);
+                item.setLastProcessTime(dt);
+                l.add(item);
+            }
+
+            pstmt = txn.prepareAutoCloseStatement(completeSql);
+            pstmt.setLong(1, msid);
+            pstmt.setLong(2, marker);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to claim queue items for msid " + msid + " in batch " + batchId, e);
+        }
+        return l;
+    }
 	
 	@Override
 	public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive) {
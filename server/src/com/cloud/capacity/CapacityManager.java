@@ -56,4 +56,10 @@ public interface CapacityManager extends Manager {
      * @return true if the count of host's running VMs >= hypervisor limit
      */
     boolean checkIfHostReachMaxGuestLimit(HostVO host);
+
+    /**
+     * @return the in-memory capacity of the hosts, for the planners and
+     * allocators to find the clusters and hosts that fit a vm.
+     */
+    HostCapacityIndex getHostCapacityIndex();
 }
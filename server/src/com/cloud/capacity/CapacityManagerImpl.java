@@ -17,11 +17,13 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -29,6 +31,7 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.exception.InsufficientCapacityException;
@@ -130,6 +133,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Inject
     ClusterDao _clusterDao;
     private int _vmCapacityReleaseInterval;
+    private int _capacityIndexSyncInterval;
+    private final HostCapacityIndex _hostCapacityIndex = new HostCapacityIndex();
     private ScheduledExecutorService _executor;
     private boolean _stopped;
     long _extraBytesPerVolume = 0;
@@ -139,6 +144,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
         _storageOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.StorageOverprovisioningFactor.key()), 1.0f);
+        _capacityIndexSyncInterval = NumbersUtil.parseInt(_configDao.getValue(Config.HostCapacityIndexSyncInterval.key()), 60);
 
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacity-Checker"));
         VirtualMachine.State.getStateMachine().registerListener(this);
@@ -152,6 +158,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        if (_capacityIndexSyncInterval > 0) {
+            _executor.scheduleWithFixedDelay(new HostCapacityIndexSyncTask(), 0, _capacityIndexSyncInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
@@ -239,6 +248,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
             txn.commit();
+            updateHostCapacityIndex(txn, capacityCpu, capacityMemory);
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
@@ -332,6 +342,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
             txn.commit();
+            updateHostCapacityIndex(txn, capacityCpu, capacityMem);
         } catch (Exception e) {
             txn.rollback();
             return;
@@ -347,30 +358,34 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     + " , cpuOverprovisioningFactor: " + cpuOvercommitRatio);
         }
 
-        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
-        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+        HostCapacityIndex.HostCapacity capacity = _hostCapacityIndex.getHostCapacity(hostId);
+        if (capacity == null) {
+            CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+            CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
-        if (capacityCpu == null || capacityMem == null) {
-            if (capacityCpu == null) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for CPU not found in Db, for hostId: " + hostId);
+            if (capacityCpu == null || capacityMem == null) {
+                if (capacityCpu == null) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for CPU not found in Db, for hostId: " + hostId);
+                    }
                 }
-            }
-            if (capacityMem == null) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for RAM not found in Db, for hostId: " + hostId);
+                if (capacityMem == null) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cannot checkIfHostHasCapacity, Capacity entry for RAM not found in Db, for hostId: " + hostId);
+                    }
                 }
-            }
 
-            return false;
+                return false;
+            }
+            capacity = new HostCapacityIndex.HostCapacity(capacityCpu, capacityMem);
         }
 
-        long usedCpu = capacityCpu.getUsedCapacity();
-        long usedMem = capacityMem.getUsedCapacity();
-        long reservedCpu = capacityCpu.getReservedCapacity();
-        long reservedMem = capacityMem.getReservedCapacity();
-        long actualTotalCpu = capacityCpu.getTotalCapacity();
-        long actualTotalMem = capacityMem.getTotalCapacity();
+        long usedCpu = capacity.getUsedCpu();
+        long usedMem = capacity.getUsedMemory();
+        long reservedCpu = capacity.getReservedCpu();
+        long reservedMem = capacity.getReservedMemory();
+        long actualTotalCpu = capacity.getTotalCpu();
+        long actualTotalMem = capacity.getTotalMemory();
         long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio );
         long totalMem = (long) (actualTotalMem *memoryOvercommitRatio );
         if (s_logger.isDebugEnabled()) {
@@ -593,8 +608,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 	        }
 	
 	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
+	            _capacityDao.updateAll(Arrays.asList(cpuCap, memCap));
+	            updateHostCapacityIndex(Transaction.currentTxn(), cpuCap, memCap);
 	        } catch (Exception e) {
 	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
 	        }
@@ -603,15 +618,14 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             CapacityState capacityState = _configMgr.findClusterAllocationState(ApiDBUtils.findClusterById(host.getClusterId())) == AllocationState.Disabled ?
             							  CapacityState.Disabled : CapacityState.Enabled;
         	txn.start();
-        	CapacityVO capacity = new CapacityVO(host.getId(),
+        	CapacityVO memCapacity = new CapacityVO(host.getId(),
                     host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory,
                     host.getTotalMemory(),
                     CapacityVO.CAPACITY_TYPE_MEMORY);
-            capacity.setReservedCapacity(reservedMemory);
-            capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
+            memCapacity.setReservedCapacity(reservedMemory);
+            memCapacity.setCapacityState(capacityState);
         	
-            capacity = new CapacityVO(
+            CapacityVO cpuCapacity = new CapacityVO(
                     host.getId(),
                     host.getDataCenterId(),
                     host.getPodId(), 
@@ -619,15 +633,74 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     usedCpu,
                     (long)(host.getCpus().longValue() * host.getSpeed().longValue()),
                     CapacityVO.CAPACITY_TYPE_CPU);
-            capacity.setReservedCapacity(reservedCpu);
-            capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
+            cpuCapacity.setReservedCapacity(reservedCpu);
+            cpuCapacity.setCapacityState(capacityState);
+            _capacityDao.persistAll(Arrays.asList(memCapacity, cpuCapacity));
             txn.commit();
+            updateHostCapacityIndex(txn, cpuCapacity, memCapacity);
             
         }
         
     }
     
+    /**
+     * Hands the capacity rows of a host to the index once the transaction
+     * that wrote them has committed.
+     */
+    private void updateHostCapacityIndex(Transaction txn, final CapacityVO cpu, final CapacityVO memory) {
+        txn.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _hostCapacityIndex.update(cpu, memory);
+            }
+        });
+    }
+
+    @Override
+    public HostCapacityIndex getHostCapacityIndex() {
+        return _hostCapacityIndex;
+    }
+
+    /**
+     * Reloads the host capacity index from op_host_capacity, which brings in
+     * what the other management servers have allocated and released.
+     */
+    protected void syncHostCapacityIndex() {
+        long version = _hostCapacityIndex.getVersion();
+
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> capacities = _capacityDao.search(sc, null);
+
+        SearchCriteria<ClusterDetailsVO> detailsSc = _clusterDetailsDao.createSearchCriteria();
+        detailsSc.addAnd("name", SearchCriteria.Op.IN, "cpuOvercommitRatio", "memoryOvercommitRatio");
+        Map<Long, Float> cpuOvercommitRatios = new HashMap<Long, Float>();
+        Map<Long, Float> memoryOvercommitRatios = new HashMap<Long, Float>();
+        for (ClusterDetailsVO detail : _clusterDetailsDao.search(detailsSc, null)) {
+            Map<Long, Float> ratios = "cpuOvercommitRatio".equals(detail.getName()) ? cpuOvercommitRatios : memoryOvercommitRatios;
+            ratios.put(detail.getClusterId(), NumbersUtil.parseFloat(detail.getValue(), 1.0f));
+        }
+
+        _hostCapacityIndex.reconcile(version, capacities, cpuOvercommitRatios, memoryOvercommitRatios);
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Host capacity index reconciled, " + _hostCapacityIndex.getHostCount() + " hosts");
+        }
+    }
+
+    protected class HostCapacityIndexSyncTask implements Runnable {
+        @Override
+        public void run() {
+            Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                syncHostCapacityIndex();
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reconcile the host capacity index with the database", e);
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
     @Override
     public boolean preStateTransitionEvent(State oldState, Event event, State newState, VirtualMachine vm, boolean transitionStatus, Object opaque) {
         return true;
@@ -0,0 +1,410 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.Pair;
+
+/**
+ * HostCapacityIndex keeps the cpu and memory capacity of every host in
+ * memory, grouped by zone, pod and cluster, so that the deployment planner
+ * and the host allocators can tell which clusters and hosts fit a vm without
+ * going to op_host_capacity.  CapacityManagerImpl updates it whenever it
+ * changes the capacity of a host and reconciles it with the database
+ * periodically, which is also how the changes made by the other management
+ * servers get in.
+ *
+ * Reads take no locks.  Each host is an immutable HostCapacity that is
+ * replaced on update, and each cluster keeps the sums and the largest free
+ * capacity of its hosts, so the cost of a query is the number of clusters it
+ * looks at.
+ */
+public class HostCapacityIndex {
+    private final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentHashMap<Long, ClusterCapacity> _clusters = new ConcurrentHashMap<Long, ClusterCapacity>();
+    private long _version;
+    private volatile boolean _ready;
+
+    /**
+     * The cpu and memory capacity of a host, as in its two op_host_capacity rows.
+     */
+    public static class HostCapacity {
+        private final long _hostId;
+        private final long _zoneId;
+        private final Long _podId;
+        private final Long _clusterId;
+        private final long _usedCpu;
+        private final long _reservedCpu;
+        private final long _totalCpu;
+        private final long _usedMemory;
+        private final long _reservedMemory;
+        private final long _totalMemory;
+        private final long _version;
+
+        public HostCapacity(CapacityVO cpu, CapacityVO memory) {
+            this(cpu, memory, 0);
+        }
+
+        HostCapacity(CapacityVO cpu, CapacityVO memory, long version) {
+            _hostId = cpu.getHostOrPoolId();
+            _zoneId = cpu.getDataCenterId();
+            _podId = cpu.getPodId();
+            _clusterId = cpu.getClusterId();
+            _usedCpu = cpu.getUsedCapacity();
+            _reservedCpu = cpu.getReservedCapacity();
+            _totalCpu = cpu.getTotalCapacity();
+            _usedMemory = memory.getUsedCapacity();
+            _reservedMemory = memory.getReservedCapacity();
+            _totalMemory = memory.getTotalCapacity();
+            _version = version;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getZoneId() {
+            return _zoneId;
+        }
+
+        public Long getPodId() {
+            return _podId;
+        }
+
+        public Long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getUsedCpu() {
+            return _usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return _reservedCpu;
+        }
+
+        public long getTotalCpu() {
+            return _totalCpu;
+        }
+
+        public long getUsedMemory() {
+            return _usedMemory;
+        }
+
+        public long getReservedMemory() {
+            return _reservedMemory;
+        }
+
+        public long getTotalMemory() {
+            return _totalMemory;
+        }
+
+        // What listClustersInZoneOrPodByHostCapacities() counts as available
+        long getAvailable(short capacityType, float overcommitRatio) {
+            if (capacityType == CapacityVO.CAPACITY_TYPE_CPU) {
+                return (long)(_totalCpu * overcommitRatio) - _usedCpu + _reservedCpu;
+            }
+            return (long)(_totalMemory * overcommitRatio) - _usedMemory + _reservedMemory;
+        }
+    }
+
+    /**
+     * The hosts of a cluster and what they add up to.
+     */
+    static class ClusterCapacity {
+        final long _clusterId;
+        final long _zoneId;
+        final Long _podId;
+        final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+        float _cpuOvercommitRatio = 1;
+        float _memoryOvercommitRatio = 1;
+        volatile Totals _totals = new Totals();
+
+        ClusterCapacity(long clusterId, long zoneId, Long podId) {
+            _clusterId = clusterId;
+            _zoneId = zoneId;
+            _podId = podId;
+        }
+
+        boolean isIn(long id, boolean isZone) {
+            return isZone ? _zoneId == id : _podId != null && _podId == id;
+        }
+
+        void recalculate() {
+            Totals totals = new Totals();
+            for (HostCapacity host : _hosts.values()) {
+                totals._usedCpu += host._usedCpu + host._reservedCpu;
+                totals._totalCpu += host._totalCpu * _cpuOvercommitRatio;
+                totals._usedMemory += host._usedMemory + host._reservedMemory;
+                totals._totalMemory += host._totalMemory * _memoryOvercommitRatio;
+                totals._maxAvailableCpu = Math.max(totals._maxAvailableCpu, host.getAvailable(CapacityVO.CAPACITY_TYPE_CPU, _cpuOvercommitRatio));
+                totals._maxAvailableMemory = Math.max(totals._maxAvailableMemory, host.getAvailable(CapacityVO.CAPACITY_TYPE_MEMORY, _memoryOvercommitRatio));
+            }
+            _totals = totals;
+        }
+    }
+
+    static class Totals {
+        long _usedCpu;
+        double _totalCpu;
+        long _usedMemory;
+        double _totalMemory;
+        long _maxAvailableCpu = Long.MIN_VALUE;
+        long _maxAvailableMemory = Long.MIN_VALUE;
+
+        void add(Totals totals) {
+            _usedCpu += totals._usedCpu;
+            _totalCpu += totals._totalCpu;
+            _usedMemory += totals._usedMemory;
+            _totalMemory += totals._totalMemory;
+            _maxAvailableCpu = Math.max(_maxAvailableCpu, totals._maxAvailableCpu);
+            _maxAvailableMemory = Math.max(_maxAvailableMemory, totals._maxAvailableMemory);
+        }
+
+        boolean fits(long requiredCpu, long requiredRam) {
+            return _maxAvailableCpu >= requiredCpu && _maxAvailableMemory >= requiredRam;
+        }
+
+        double getUsedRatio(short capacityType) {
+            if (capacityType == CapacityVO.CAPACITY_TYPE_CPU) {
+                return _totalCpu > 0 ? _usedCpu / _totalCpu : 1;
+            }
+            return _totalMemory > 0 ? _usedMemory / _totalMemory : 1;
+        }
+    }
+
+    /**
+     * @return true once the index has been loaded from the database.  Until
+     * then the callers have to go to the database themselves.
+     */
+    public boolean isReady() {
+        return _ready;
+    }
+
+    public int getHostCount() {
+        return _hosts.size();
+    }
+
+    /**
+     * @return the capacity of the host, or null if the index is not loaded
+     * yet or does not know the host.
+     */
+    public HostCapacity getHostCapacity(long hostId) {
+        return _ready ? _hosts.get(hostId) : null;
+    }
+
+    /**
+     * Records the cpu and memory capacity rows of a host after they have
+     * been written to the database.
+     */
+    public synchronized void update(CapacityVO cpu, CapacityVO memory) {
+        if (cpu.getHostOrPoolId() == null || cpu.getDataCenterId() == null) {
+            return;
+        }
+        put(new HostCapacity(cpu, memory, ++_version));
+    }
+
+    public synchronized void remove(long hostId) {
+        _version++;
+        HostCapacity host = _hosts.remove(hostId);
+        if (host != null && host._clusterId != null) {
+            ClusterCapacity cluster = _clusters.get(host._clusterId);
+            if (cluster != null) {
+                cluster._hosts.remove(hostId);
+                if (cluster._hosts.isEmpty()) {
+                    _clusters.remove(host._clusterId);
+                } else {
+                    cluster.recalculate();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the version to pass to reconcile() for the rows about to be
+     * read from the database.
+     */
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    /**
+     * Replaces the content of the index with what is in the database.  Hosts
+     * updated after the rows were read, that is since the given version,
+     * keep what they were updated with.
+     *
+     * @param version what getVersion() returned before the rows were read.
+     * @param capacities the cpu and memory capacity rows of the hosts.
+     * @param cpuOvercommitRatios the cpu overcommit ratio of each cluster.
+     * @param memoryOvercommitRatios the memory overcommit ratio of each cluster.
+     */
+    public synchronized void reconcile(long version, Collection<CapacityVO> capacities, Map<Long, Float> cpuOvercommitRatios, Map<Long, Float> memoryOvercommitRatios) {
+        Map<Long, CapacityVO> cpus = new HashMap<Long, CapacityVO>();
+        Map<Long, CapacityVO> memories = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getHostOrPoolId() == null || capacity.getDataCenterId() == null) {
+                continue;
+            }
+            if (capacity.getCapacityType() == CapacityVO.CAPACITY_TYPE_CPU) {
+                cpus.put(capacity.getHostOrPoolId(), capacity);
+            } else if (capacity.getCapacityType() == CapacityVO.CAPACITY_TYPE_MEMORY) {
+                memories.put(capacity.getHostOrPoolId(), capacity);
+            }
+        }
+
+        for (HostCapacity host : _hosts.values()) {
+            if (host._version <= version && (!cpus.containsKey(host._hostId) || !memories.containsKey(host._hostId))) {
+                remove(host._hostId);
+            }
+        }
+        for (Map.Entry<Long, CapacityVO> entry : cpus.entrySet()) {
+            CapacityVO memory = memories.get(entry.getKey());
+            HostCapacity current = _hosts.get(entry.getKey());
+            if (memory != null && (current == null || current._version <= version)) {
+                put(new HostCapacity(entry.getValue(), memory, 0));
+            }
+        }
+
+        for (ClusterCapacity cluster : _clusters.values()) {
+            Float ratio = cpuOvercommitRatios.get(cluster._clusterId);
+            cluster._cpuOvercommitRatio = ratio != null ? ratio : 1;
+            ratio = memoryOvercommitRatios.get(cluster._clusterId);
+            cluster._memoryOvercommitRatio = ratio != null ? ratio : 1;
+            cluster.recalculate();
+        }
+        _ready = true;
+    }
+
+    private void put(HostCapacity host) {
+        HostCapacity old = _hosts.put(host._hostId, host);
+        if (old != null && old._clusterId != null && !old._clusterId.equals(host._clusterId)) {
+            ClusterCapacity cluster = _clusters.get(old._clusterId);
+            if (cluster != null) {
+                cluster._hosts.remove(host._hostId);
+                cluster.recalculate();
+            }
+        }
+        if (host._clusterId == null) {
+            return;
+        }
+        ClusterCapacity cluster = _clusters.get(host._clusterId);
+        if (cluster == null) {
+            cluster = new ClusterCapacity(host._clusterId, host._zoneId, host._podId);
+            _clusters.put(host._clusterId, cluster);
+        }
+        cluster._hosts.put(host._hostId, host);
+        cluster.recalculate();
+    }
+
+    /**
+     * Does what CapacityDao.listClustersInZoneOrPodByHostCapacities() does.
+     *
+     * @return the clusters of the zone or pod that have a host with the cpu
+     * and a host with the memory asked for.
+     */
+    public List<Long> listClustersWithCapacity(long id, boolean isZone, long requiredCpu, long requiredRam) {
+        List<Long> clusterIds = new ArrayList<Long>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if (cluster.isIn(id, isZone) && cluster._totals.fits(requiredCpu, requiredRam)) {
+                clusterIds.add(cluster._clusterId);
+            }
+        }
+        return clusterIds;
+    }
+
+    /**
+     * Does what CapacityDao.orderClustersByAggregateCapacity() does.
+     *
+     * @return the clusters of the zone or pod, least used first, and how
+     * much of the given capacity type each of them uses.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, boolean isZone, short capacityType) {
+        Map<Long, Double> usedRatios = new HashMap<Long, Double>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if (cluster.isIn(id, isZone)) {
+                usedRatios.put(cluster._clusterId, cluster._totals.getUsedRatio(capacityType));
+            }
+        }
+        return new Pair<List<Long>, Map<Long, Double>>(order(usedRatios), usedRatios);
+    }
+
+    /**
+     * Does what CapacityDao.listPodsByHostCapacities() is meant to do.
+     *
+     * @return the pods of the zone that have a cluster with the cpu and the
+     * memory asked for.
+     */
+    public List<Long> listPodsWithCapacity(long zoneId, long requiredCpu, long requiredRam) {
+        List<Long> podIds = new ArrayList<Long>();
+        for (Map.Entry<Long, Totals> entry : getPodTotals(zoneId).entrySet()) {
+            if (entry.getValue().fits(requiredCpu, requiredRam)) {
+                podIds.add(entry.getKey());
+            }
+        }
+        return podIds;
+    }
+
+    /**
+     * Does what CapacityDao.orderPodsByAggregateCapacity() is meant to do.
+     *
+     * @return the pods of the zone, least used first, and how much of the
+     * given capacity type each of them uses.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType) {
+        Map<Long, Double> usedRatios = new HashMap<Long, Double>();
+        for (Map.Entry<Long, Totals> entry : getPodTotals(zoneId).entrySet()) {
+            usedRatios.put(entry.getKey(), entry.getValue().getUsedRatio(capacityType));
+        }
+        return new Pair<List<Long>, Map<Long, Double>>(order(usedRatios), usedRatios);
+    }
+
+    private Map<Long, Totals> getPodTotals(long zoneId) {
+        Map<Long, Totals> pods = new HashMap<Long, Totals>();
+        for (ClusterCapacity cluster : _clusters.values()) {
+            if (cluster._zoneId != zoneId || cluster._podId == null) {
+                continue;
+            }
+            Totals totals = pods.get(cluster._podId);
+            if (totals == null) {
+                totals = new Totals();
+                pods.put(cluster._podId, totals);
+            }
+            totals.add(cluster._totals);
+        }
+        return pods;
+    }
+
+    private static List<Long> order(final Map<Long, Double> usedRatios) {
+        List<Long> ids = new ArrayList<Long>(usedRatios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long id1, Long id2) {
+                int result = usedRatios.get(id1).compareTo(usedRatios.get(id2));
+                return result != 0 ? result : id1.compareTo(id2);
+            }
+        });
+        return ids;
+    }
+}
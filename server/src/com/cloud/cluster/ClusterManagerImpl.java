@@ -50,12 +50,16 @@ import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
+import com.cloud.agent.api.CacheInvalidationCommand;
+import com.cloud.agent.api.LockNotificationCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
+import com.cloud.agent.api.SyncQueueReadyCommand;
 import com.cloud.agent.manager.ClusteredAgentManagerImpl;
 import com.cloud.agent.manager.Commands;
+import com.cloud.async.AsyncJobManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.cluster.dao.ManagementServerHostPeerDao;
@@ -145,6 +149,10 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
     private String _clusterNodeIP = "127.0.0.1";
     private boolean _agentLBEnabled = false;
     private double _connectedAgentsThreshold = 0.7;
+    private LockMasterListener _lockMasterListener;
+    private NearCacheListener _nearCacheListener;
+    // looked up when first needed, the async job manager depends on this one
+    private AsyncJobManager _asyncJobMgr;
     private static boolean _agentLbHappened = false;
     
     private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
@@ -358,6 +366,13 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
         }
     }
 
+    private AsyncJobManager getAsyncJobManager() {
+        if (_asyncJobMgr == null) {
+            _asyncJobMgr = ComponentContext.getComponent(AsyncJobManager.class);
+        }
+        return _asyncJobMgr;
+    }
+
     private String handleScheduleHostScanTaskCommand(ScheduleHostScanTaskCommand cmd) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Intercepting resource manager command: " + _gson.toJson(cmd));
@@ -459,6 +474,38 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
         	Answer[] answers = new Answer[1];
         	answers[0] = new Answer(cmd, result, null);
         	return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof LockNotificationCommand) {
+            LockNotificationCommand cmd = (LockNotificationCommand) cmds[0];
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Intercepting lock notification for lck-" + cmd.getKey() + " from " + cmd.getMsId() + ", released: " + cmd.isReleased());
+            }
+            _lockMasterListener.onLockNotification(cmd);
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
+        } else if (cmds.length > 0 && cmds[0] instanceof CacheInvalidationCommand) {
+            // All the invalidations of a transaction on the peer come together
+            Answer[] answers = new Answer[cmds.length];
+            for (int i = 0; i < cmds.length; i++) {
+                CacheInvalidationCommand cmd = (CacheInvalidationCommand) cmds[i];
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Intercepting cache invalidation of " + cmd.getTable() + " id " + cmd.getId() + " from " + cmd.getMsId());
+                }
+                _nearCacheListener.onCacheInvalidation(cmd);
+                answers[i] = new Answer(cmd, true, null);
+            }
+            return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof SyncQueueReadyCommand) {
+            SyncQueueReadyCommand cmd = (SyncQueueReadyCommand) cmds[0];
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Intercepting ready notification of queue-" + cmd.getQueueId() + " from " + cmd.getMsId());
+            }
+            getAsyncJobManager().onPeerQueueReady(cmd.getQueueId());
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
         } else if (cmds.length == 1 && cmds[0] instanceof ScheduleHostScanTaskCommand) {
             ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand) cmds[0];
             String response = handleScheduleHostScanTaskCommand(cmd);
@@ -1342,7 +1389,11 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
             _connectedAgentsThreshold = Double.parseDouble(connectedAgentsThreshold);
         }
 
-        this.registerListener(new LockMasterListener(_msId));
+        _lockMasterListener = new LockMasterListener(_msId, this);
+        this.registerListener(_lockMasterListener);
+
+        _nearCacheListener = new NearCacheListener(_msId, this);
+        this.registerListener(_nearCacheListener);
 
         checkConflicts();
 
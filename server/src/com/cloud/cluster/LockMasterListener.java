@@ -18,17 +18,57 @@ package com.cloud.cluster;
 
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockNotificationCommand;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * when a management server is down.
+ * 
+ * It also relays the lock notifications between the management servers.
  *
  */
-public class LockMasterListener implements ClusterManagerListener {
+public class LockMasterListener implements ClusterManagerListener, Merovingian2.PeerNotifier {
+    private static final Logger s_logger = Logger.getLogger(LockMasterListener.class);
+
     Merovingian2 _lockMaster;
+    ClusterManager _clusterMgr;
+    long _msId;
     
-    public LockMasterListener(long msId) {
+    public LockMasterListener(long msId, ClusterManager clusterMgr) {
         _lockMaster = Merovingian2.createLockMaster(msId);
+        _msId = msId;
+        _clusterMgr = clusterMgr;
+        _lockMaster.setPeerNotifier(this);
+    }
+
+    @Override
+    public void notifyWaiting(long holderMsId, String key) {
+        send(holderMsId, new LockNotificationCommand(key, _msId, false));
+    }
+
+    @Override
+    public void notifyReleased(long waiterMsId, String key) {
+        send(waiterMsId, new LockNotificationCommand(key, _msId, true));
+    }
+
+    protected void send(long msId, LockNotificationCommand cmd) {
+        try {
+            _clusterMgr.executeAsync(Long.toString(msId), 0, new Command[] { cmd }, false);
+        } catch (Exception e) {
+            // Best effort, the waiters look at the lock table again in a few seconds anyways
+            s_logger.debug("Unable to send the notification for lck-" + cmd.getKey() + " to " + msId, e);
+        }
+    }
+
+    public void onLockNotification(LockNotificationCommand cmd) {
+        if (cmd.isReleased()) {
+            _lockMaster.onPeerReleased(cmd.getKey());
+        } else {
+            _lockMaster.onPeerWaiting(cmd.getKey(), cmd.getMsId());
+        }
     }
 
     @Override
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.CacheInvalidationCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.utils.db.NearCache;
+
+/**
+ * Relays the invalidations of the dao near caches between the management
+ * servers.  The peers are the ones the cluster heartbeat has seen join, so
+ * sending the invalidations does not have to look them up in the database.
+ */
+public class NearCacheListener implements ClusterManagerListener, NearCache.PeerNotifier {
+    private static final Logger s_logger = Logger.getLogger(NearCacheListener.class);
+
+    ClusterManager _clusterMgr;
+    long _msId;
+    // peer name of the other management servers by their host id
+    final Map<Long, String> _peers = new ConcurrentHashMap<Long, String>();
+
+    public NearCacheListener(long msId, ClusterManager clusterMgr) {
+        _msId = msId;
+        _clusterMgr = clusterMgr;
+        NearCache.setPeerNotifier(this);
+    }
+
+    @Override
+    public void notifyInvalidated(Map<String, Set<String>> invalidations) {
+        if (_peers.isEmpty()) {
+            return;
+        }
+
+        List<Command> cmds = new ArrayList<Command>();
+        for (Map.Entry<String, Set<String>> entry : invalidations.entrySet()) {
+            if (entry.getValue() == null) {
+                cmds.add(new CacheInvalidationCommand(entry.getKey(), null, _msId));
+            } else {
+                for (String id : entry.getValue()) {
+                    cmds.add(new CacheInvalidationCommand(entry.getKey(), id, _msId));
+                }
+            }
+        }
+        Command[] commands = cmds.toArray(new Command[cmds.size()]);
+
+        for (String peer : _peers.values()) {
+            try {
+                _clusterMgr.executeAsync(peer, 0, commands, false);
+            } catch (Exception e) {
+                // The entities still expire from the peer caches in time
+                s_logger.warn("Unable to tell " + peer + " about the changes to " + invalidations.keySet(), e);
+            }
+        }
+    }
+
+    public void onCacheInvalidation(CacheInvalidationCommand cmd) {
+        NearCache.onPeerInvalidated(cmd.getTable(), cmd.getId());
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            if (node.getId() != selfNodeId) {
+                _peers.put(node.getId(), Long.toString(node.getMsid()));
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            _peers.remove(node.getId());
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        // Whatever the peers changed in the meantime was never heard of
+        NearCache.flushAll();
+    }
+}
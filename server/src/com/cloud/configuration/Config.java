@@ -195,6 +195,10 @@ public enum Config {
 	ManagementHostIPAdr("Advanced", ManagementServer.class, String.class, "host", "localhost", "The ip address of management server", null),
 	ManagementNetwork("Advanced", ManagementServer.class, String.class, "management.network.cidr", null, "The cidr of management server network", null),
 	EventPurgeDelay("Advanced", ManagementServer.class, Integer.class, "event.purge.delay", "15", "Events older than specified number days will be purged. Set this value to 0 to never delete events", null),
+	EventJournalEnabled("Advanced", ManagementServer.class, Boolean.class, "event.journal.enabled", "false", "If true, started and completed action events are written to the database in batches by a background writer instead of by the thread raising them", null),
+	EventJournalBatchSize("Advanced", ManagementServer.class, Integer.class, "event.journal.batch.size", "100", "The maximum number of action events the event journal writes in one batch", null),
+	EventJournalMaxDelay("Advanced", ManagementServer.class, Integer.class, "event.journal.max.delay", "200", "The time (in milliseconds) an action event can wait in the event journal before it is written", null),
+	EventJournalQueueSize("Advanced", ManagementServer.class, Integer.class, "event.journal.queue.size", "10000", "The number of action events the event journal can hold, events are written by the thread raising them when it is full", null),
 	SecStorageVmMTUSize("Advanced", AgentManager.class, Integer.class, "secstorage.vm.mtu.size", String.valueOf(SecondaryStorageVmManager.DEFAULT_SS_VM_MTUSIZE), "MTU size (in Byte) of storage network in secondary storage vms", null),
 	MaxTemplateAndIsoSize("Advanced",  ManagementServer.class, Long.class, "max.template.iso.size", "50", "The maximum size for a downloaded template or ISO (in GB).", null),
 	SecStorageAllowedInternalDownloadSites("Advanced", ManagementServer.class, String.class, "secstorage.allowed.internal.sites", null, "Comma separated list of cidrs internal to the datacenter that can host template download servers, please note 0.0.0.0 is not a valid site", null),
@@ -224,6 +228,7 @@ public enum Config {
 	ControlCidr("Advanced", ManagementServer.class, String.class, "control.cidr", "169.254.0.0/16", "Changes the cidr for the control network traffic.  Defaults to using link local.  Must be unique within pods", null),
 	ControlGateway("Advanced", ManagementServer.class, String.class, "control.gateway", "169.254.0.1", "gateway for the control network traffic", null),
 	HostCapacityTypeToOrderClusters("Advanced", ManagementServer.class, String.class, "host.capacityType.to.order.clusters", "CPU", "The host capacity type (CPU or RAM) is used by deployment planner to order clusters during VM resource allocation", "CPU,RAM"),
+	HostCapacityIndexSyncInterval("Advanced", ManagementServer.class, Integer.class, "host.capacity.index.sync.interval", "60", "The interval (in seconds) at which the in-memory host capacity used by the deployment planner and host allocators is reconciled with the database. Set it to 0 to read host capacity from the database instead", null),
 	ApplyAllocationAlgorithmToPods("Advanced", ManagementServer.class, Boolean.class, "apply.allocation.algorithm.to.pods", "false", "If true, deployment planner applies the allocation heuristics at pods first in the given datacenter during VM resource allocation", "true,false"),
 	VmUserDispersionWeight("Advanced", ManagementServer.class, Float.class, "vm.user.dispersion.weight", "1", "Weight for user dispersion heuristic (as a value between 0 and 1) applied to resource allocation during vm deployment. Weight for capacity heuristic will be (1 - weight of user dispersion)", null),
     VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
@@ -321,6 +326,7 @@ public enum Config {
 
 
 	ResourceCountCheckInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.check.interval", "0", "Time (in seconds) to wait before retrying resource count check task. Default is 0 which is to never run the task", "Seconds"),
+	ResourceCountDeferredRecountInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.deferred.recount.interval", "3600", "Time (in seconds) between recounts of the resource counts of the ROOT domain and of the domains without a limit, which are updated after the transaction commits. 0 never recounts them", "Seconds"),
 	DirectAgentLoadSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.load.size", "16", "The number of direct agents to load each time", null),
 
 	//disabling lb as cluster sync does not work with distributed cluster
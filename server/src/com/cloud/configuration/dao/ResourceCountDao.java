@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.configuration.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -44,6 +45,15 @@ public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
 
     boolean updateById(long id, boolean increment, long delta);
 
+    /**
+     * Adds the delta to the rows in place, the rows do not have to be read
+     * and locked first.
+     * @param ids the ids of the resource_count rows
+     * @param delta the amount to add, negative to subtract
+     * @return the number of rows updated
+     */
+    int changeCountBy(Collection<Long> ids, long delta);
+
     void createResourceCounts(long ownerId, ResourceOwnerType ownerType);
     
     List<ResourceCountVO> listByOwnerId(long ownerId, ResourceOwnerType ownerType);
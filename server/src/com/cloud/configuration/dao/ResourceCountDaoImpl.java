@@ -17,6 +17,7 @@
 package com.cloud.configuration.dao;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -36,11 +37,13 @@ import com.cloud.domain.dao.DomainDaoImpl;
 import com.cloud.exception.UnsupportedServiceException;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.AccountDaoImpl;
+import com.cloud.utils.db.Attribute;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.UpdateBuilder;
 
 @Component
 @Local(value={ResourceCountDao.class})
@@ -49,6 +52,8 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
 
     private final SearchBuilder<ResourceCountVO> AccountSearch;
     private final SearchBuilder<ResourceCountVO> DomainSearch;
+    private final SearchBuilder<ResourceCountVO> IdsSearch;
+    private final Attribute _countAttribute;
 
     @Inject protected DomainDao _domainDao;
     @Inject protected AccountDao _accountDao;
@@ -67,6 +72,13 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         DomainSearch = createSearchBuilder();
         DomainSearch.and("domainId", DomainSearch.entity().getDomainId(), SearchCriteria.Op.NNULL);
         DomainSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("id", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+
+        _countAttribute = _allAttributes.get("count");
+        assert _countAttribute != null : "Cannot find count";
     }
 
     @Override 
@@ -122,6 +134,21 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         return update(resourceCountVO.getId(), resourceCountVO);
     }
 
+    @Override
+    public int changeCountBy(Collection<Long> ids, long delta) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        SearchCriteria<ResourceCountVO> sc = IdsSearch.create();
+        sc.setParameters("id", ids.toArray());
+
+        ResourceCountVO vo = createForUpdate();
+        UpdateBuilder builder = getUpdateBuilder(vo);
+        builder.incr(_countAttribute, delta);
+
+        return update(builder, sc, null);
+    }
+
     @Override
     public Set<Long> listRowsToUpdateForDomain(long domainId, ResourceType type) {
         Set<Long> rowIds = new HashSet<Long>();
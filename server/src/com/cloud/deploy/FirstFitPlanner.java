@@ -36,6 +36,7 @@ import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
@@ -573,11 +574,23 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        boolean useIndex = capacityIndex.isReady();
+        List<Long> clusterIdswithEnoughCapacity;
+        if (useIndex) {
+            clusterIdswithEnoughCapacity = capacityIndex.listClustersWithCapacity(id, isZone, requiredCpu, requiredRam);
+        } else {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (useIndex) {
+            result = capacityIndex.orderClustersByAggregateCapacity(id, isZone, capacityType);
+        } else {
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -608,11 +621,23 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
             capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        boolean useIndex = capacityIndex.isReady();
+        List<Long> podIdswithEnoughCapacity;
+        if (useIndex) {
+            podIdswithEnoughCapacity = capacityIndex.listPodsWithCapacity(zoneId, requiredCpu, requiredRam);
+        } else {
+            podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (useIndex) {
+            result = capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType);
+        } else {
+            result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        }
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
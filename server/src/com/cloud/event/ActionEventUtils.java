@@ -17,6 +17,8 @@
 
 package com.cloud.event;
 
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.event.dao.EventDao;
 import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
@@ -25,8 +27,10 @@ import com.cloud.user.User;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.AnnotationInterceptor;
 import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.db.Transaction;
 import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
@@ -37,6 +41,7 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Method;
@@ -51,10 +56,19 @@ public class ActionEventUtils {
     private static AccountDao _accountDao;
     protected static UserDao _userDao;
     protected static EventBus _eventBus = null;
+    // writes the events no one waits for the id of behind the callers, null if disabled
+    protected static EventJournal _journal = null;
+
+    /**
+     * The id returned for an event handed to the event journal, which has
+     * not been written yet.  It is the id of an EventVO that is not persisted.
+     */
+    public static final long JOURNALED_EVENT_ID = -1;
 
     @Inject EventDao eventDao;
     @Inject AccountDao accountDao;
     @Inject UserDao userDao;
+    @Inject ConfigurationDao configDao;
 
     public ActionEventUtils() {
     }
@@ -64,15 +78,39 @@ public class ActionEventUtils {
     	_eventDao = eventDao;
     	_accountDao = accountDao;
     	_userDao = userDao;
+
+        Map<String, String> configs = configDao.getConfiguration();
+        if (Boolean.parseBoolean(configs.get(Config.EventJournalEnabled.key()))) {
+            int queueSize = NumbersUtil.parseInt(configs.get(Config.EventJournalQueueSize.key()), 10000);
+            int batchSize = NumbersUtil.parseInt(configs.get(Config.EventJournalBatchSize.key()), 100);
+            int maxDelay = NumbersUtil.parseInt(configs.get(Config.EventJournalMaxDelay.key()), 200);
+            _journal = new EventJournal(_eventDao, queueSize, batchSize, maxDelay);
+            _journal.start();
+            s_logger.info("Action events are written by the event journal in batches of up to " + batchSize + " within " + maxDelay + " ms");
+        }
+    }
+
+    @PreDestroy
+    void destroy() {
+        if (_journal != null) {
+            _journal.stop();
+        }
     }
 
     public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
+        return onActionEvent(userId, accountId, domainId, type, description, false);
+    }
+
+    /**
+     * @param durable write the event before returning even if the event journal is enabled.
+     */
+    public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description, boolean durable) {
 
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(),
                 type, com.cloud.event.Event.State.Completed);
 
         Event event = persistActionEvent(userId, accountId, domainId, null, type, Event.State.Completed,
-                description, null);
+                description, null, durable);
 
         return event.getId();
     }
@@ -87,7 +125,7 @@ public class ActionEventUtils {
                 com.cloud.event.Event.State.Scheduled);
 
         Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Scheduled,
-                description, startEventId);
+                description, startEventId, true);
 
         return event.getId();
     }
@@ -97,23 +135,39 @@ public class ActionEventUtils {
      */
     public static Long onStartedActionEvent(Long userId, Long accountId, String type, String description,
                                             long startEventId) {
+        return onStartedActionEvent(userId, accountId, type, description, startEventId, false);
+    }
+
+    /**
+     * @param durable write the event before returning even if the event journal is enabled.
+     */
+    public static Long onStartedActionEvent(Long userId, Long accountId, String type, String description,
+                                            long startEventId, boolean durable) {
 
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
                 com.cloud.event.Event.State.Started);
 
         Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Started,
-                description, startEventId);
+                description, startEventId, durable);
         return event.getId();
     }
 
     public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type,
                                               String description, long startEventId) {
+        return onCompletedActionEvent(userId, accountId, level, type, description, startEventId, false);
+    }
+
+    /**
+     * @param durable write the event before returning even if the event journal is enabled.
+     */
+    public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type,
+                                              String description, long startEventId, boolean durable) {
 
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
                 com.cloud.event.Event.State.Completed);
 
         Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Completed,
-                description, startEventId);
+                description, startEventId, durable);
 
         return event.getId();
     }
@@ -123,13 +177,18 @@ public class ActionEventUtils {
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
                 com.cloud.event.Event.State.Created);
 
-        Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Created, description, null);
+        Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Created, description, null, true);
 
         return event.getId();
     }
 
+    /*
+     * Events the caller needs the id of, or asked to be durable, are written right away. The others go to the
+     * event journal, if it is enabled, once the caller's transaction commits and are written in batches; their
+     * id is not known and JOURNALED_EVENT_ID is returned for it. If the journal is full they are written right away.
+     */
     private static Event persistActionEvent(Long userId, Long accountId, Long domainId, String level, String type,
-                                           Event.State state, String description, Long startEventId) {
+                                           Event.State state, String description, Long startEventId, boolean writeNow) {
         EventVO event = new EventVO();
         event.setUserId(userId);
         event.setAccountId(accountId);
@@ -147,6 +206,23 @@ public class ActionEventUtils {
         if (startEventId != null) {
             event.setStartId(startEventId);
         }
+        if (!writeNow && _journal != null) {
+            final EventVO journaled = event;
+            Transaction txn = Transaction.open("persistActionEvent");
+            try {
+                txn.runAfterCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!_journal.journal(journaled)) {
+                            _eventDao.persist(journaled);
+                        }
+                    }
+                });
+            } finally {
+                txn.close();
+            }
+            return event;
+        }
         event = _eventDao.persist(event);
         return event;
     }
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.event.dao.EventDao;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * EventJournal writes action events to the database behind the threads
+ * that raise them.  Events are queued and a writer thread inserts them in
+ * batches of up to batchSize, no later than maxDelay milliseconds after
+ * the first event of the batch was queued.  An event that does not fit in
+ * the queue is not journaled, the caller is expected to write it itself.
+ */
+public class EventJournal {
+    private static final Logger s_logger = Logger.getLogger(EventJournal.class);
+
+    private final EventDao _eventDao;
+    private final BlockingQueue<JournaledEvent> _queue;
+    private final int _batchSize;
+    private final long _maxDelay;
+    private final Thread _writer;
+    private volatile boolean _stopped = false;
+
+    // time from the queueing of an event to its insert
+    private final LatencyHistogram _writeDelays = new LatencyHistogram();
+
+    public EventJournal(EventDao eventDao, int queueSize, int batchSize, long maxDelay) {
+        _eventDao = eventDao;
+        _queue = new ArrayBlockingQueue<JournaledEvent>(queueSize);
+        _batchSize = batchSize;
+        _maxDelay = maxDelay;
+        _writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "EventJournal-Writer");
+        _writer.setDaemon(true);
+    }
+
+    public void start() {
+        _writer.start();
+    }
+
+    /**
+     * Stops the writer once the events journaled so far are written.
+     */
+    public void stop() {
+        _stopped = true;
+        try {
+            _writer.join(_maxDelay + 10000);
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while waiting for the event journal to be written");
+        }
+        if (!_queue.isEmpty()) {
+            s_logger.warn(_queue.size() + " events in the event journal have not been written");
+        }
+    }
+
+    /**
+     * @return false if the event could not be journaled and has to be
+     * written by the caller.
+     */
+    public boolean journal(EventVO event) {
+        if (_stopped) {
+            return false;
+        }
+        return _queue.offer(new JournaledEvent(event));
+    }
+
+    public int getQueueSize() {
+        return _queue.size();
+    }
+
+    public LatencyHistogram getWriteDelays() {
+        return _writeDelays;
+    }
+
+    protected void runWriter() {
+        List<JournaledEvent> batch = new ArrayList<JournaledEvent>(_batchSize);
+        while (!_stopped || !_queue.isEmpty()) {
+            try {
+                JournaledEvent first = _queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // wait for the batch to fill up, but not past the delay allowed for its first event
+                long deadline = first._journaledAt + _maxDelay;
+                while (true) {
+                    _queue.drainTo(batch, _batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= _batchSize || wait <= 0 || _stopped) {
+                        break;
+                    }
+                    JournaledEvent next = _queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                write(batch);
+            } catch (InterruptedException e) {
+                s_logger.debug("Event journal writer is interrupted");
+            } catch (Throwable th) {
+                s_logger.error("Unexpected exception in the event journal writer", th);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    protected void write(List<JournaledEvent> batch) {
+        List<EventVO> events = new ArrayList<EventVO>(batch.size());
+        for (JournaledEvent journaled : batch) {
+            events.add(journaled._event);
+        }
+
+        Transaction txn = Transaction.open("EventJournal");
+        try {
+            _eventDao.persistAll(events);
+        } catch (Exception e) {
+            // write what can be written
+            s_logger.warn("Unable to write " + events.size() + " events in one batch, writing them one by one", e);
+            for (EventVO event : events) {
+                try {
+                    _eventDao.persist(event);
+                } catch (Exception ex) {
+                    s_logger.warn("Unable to write event " + event.getType() + " for account " + event.getAccountId(), ex);
+                }
+            }
+        } finally {
+            txn.close();
+        }
+
+        long now = System.currentTimeMillis();
+        for (JournaledEvent journaled : batch) {
+            _writeDelays.record(now - journaled._journaledAt);
+        }
+    }
+
+    protected static class JournaledEvent {
+        final EventVO _event;
+        final long _journaledAt = System.currentTimeMillis();
+
+        JournaledEvent(EventVO event) {
+            _event = event;
+        }
+    }
+}
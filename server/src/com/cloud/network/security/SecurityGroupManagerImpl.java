@@ -710,21 +710,23 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                 if ((securityGroupRule != null) && (securityGroupRule.getRuleType() == ruleType)) {
                     continue; // rule already exists.
                 }
-                securityGroupRule = new SecurityGroupRuleVO(ruleType, securityGroup.getId(), startPortOrType, endPortOrCode, protocol, ngVO.getId());
-                securityGroupRule = _securityGroupRuleDao.persist(securityGroupRule);
-                newRules.add(securityGroupRule);
+                newRules.add(new SecurityGroupRuleVO(ruleType, securityGroup.getId(), startPortOrType, endPortOrCode, protocol, ngVO.getId()));
             }
             if (cidrList != null) {
+                // The rules are inserted together at the end, so a cidr given twice is only looked up once
+                Set<String> cidrs = new HashSet<String>();
                 for (String cidr : cidrList) {
+                    if (!cidrs.add(cidr)) {
+                        continue;
+                    }
                     SecurityGroupRuleVO securityGroupRule = _securityGroupRuleDao.findByProtoPortsAndCidr(securityGroup.getId(), protocol, startPortOrType, endPortOrCode, cidr);
                     if ((securityGroupRule != null) && (securityGroupRule.getRuleType() == ruleType)) {
                         continue;
                     }
-                    securityGroupRule = new SecurityGroupRuleVO(ruleType, securityGroup.getId(), startPortOrType, endPortOrCode, protocol, cidr);
-                    securityGroupRule = _securityGroupRuleDao.persist(securityGroupRule);
-                    newRules.add(securityGroupRule);
+                    newRules.add(new SecurityGroupRuleVO(ruleType, securityGroup.getId(), startPortOrType, endPortOrCode, protocol, cidr));
                 }
             }
+            newRules = _securityGroupRuleDao.persistAll(newRules);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Added " + newRules.size() + " rules to security group " + securityGroup.getName());
             }
@@ -19,6 +19,7 @@ package com.cloud.network.security.dao;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLTransactionRollbackException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -188,7 +189,8 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
             Long [] arrayItems = new Long[workItems.size()];
             workItems.toArray(arrayItems);
             for (int i=0; i < queryResult.length; i++) {
-                if (queryResult[i] < 0 ) {
+                // rewritten batches report SUCCESS_NO_INFO for the rows that went in
+                if (queryResult[i] == Statement.EXECUTE_FAILED) {
                     s_logger.debug("Batch query update failed for vm " + arrayItems[i]);
                 }
             }
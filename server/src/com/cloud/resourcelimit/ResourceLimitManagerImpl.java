@@ -18,9 +18,11 @@ package com.cloud.resourcelimit;
 
 import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -71,12 +73,14 @@ import com.cloud.user.AccountVO;
 import com.cloud.user.ResourceLimitService;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericSearchBuilder;
+import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -84,6 +88,8 @@ import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -139,14 +145,26 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
     protected SearchBuilder<ResourceCountVO> ResourceCountSearch;
     ScheduledExecutorService _rcExecutor;
     long _resourceCountCheckInterval = 0;
+    long _deferredRecountInterval = 0;
     Map<ResourceType, Long> accountResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
     Map<ResourceType, Long> projectResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
+    // Time spent locking the resource_count rows limits are checked against
+    protected final Map<ResourceType, LatencyHistogram> _lockWaitTimes = new EnumMap<ResourceType, LatencyHistogram>(ResourceType.class);
+
+    {
+        for (ResourceType type : ResourceType.values()) {
+            _lockWaitTimes.put(type, new LatencyHistogram());
+        }
+    }
 
     @Override
     public boolean start() {
         if (_resourceCountCheckInterval > 0) {
             _rcExecutor.scheduleAtFixedRate(new ResourceCountCheckTask(), _resourceCountCheckInterval, _resourceCountCheckInterval, TimeUnit.SECONDS);
         }
+        if (_deferredRecountInterval > 0) {
+            _rcExecutor.scheduleAtFixedRate(new DeferredResourceCountTask(), _deferredRecountInterval, _deferredRecountInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
@@ -165,7 +183,8 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         ResourceCountSearch.done();
 
         _resourceCountCheckInterval = NumbersUtil.parseInt(_configDao.getValue(Config.ResourceCountCheckInterval.key()), 0);
-        if (_resourceCountCheckInterval > 0) {
+        _deferredRecountInterval = NumbersUtil.parseInt(_configDao.getValue(Config.ResourceCountDeferredRecountInterval.key()), 3600);
+        if (_resourceCountCheckInterval > 0 || _deferredRecountInterval > 0) {
             _rcExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountChecker"));
         }
 
@@ -189,6 +208,12 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         accountResourceLimitMap.put(Resource.ResourceType.cpu, Long.parseLong(_configDao.getValue(Config.DefaultMaxAccountCpus.key())));
         accountResourceLimitMap.put(Resource.ResourceType.memory, Long.parseLong(_configDao.getValue(Config.DefaultMaxAccountMemory.key())));
 
+        try {
+            JmxUtil.registerMBean("ResourceLimitManager", "Resource Counts", new ResourceLimitManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the resource counts to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
+
         return true;
     }
 
@@ -332,17 +357,33 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             project = _projectDao.findByProjectAccountId(account.getId());
         }
 
+        // check all domains in the account's domain hierarchy
+        Long domainId = null;
+        if (project != null) {
+            domainId = project.getDomainId();
+        } else {
+            domainId = account.getDomainId();
+        }
+
         Transaction txn = Transaction.currentTxn();
         txn.start();
         try {
-            // Lock all rows first so nobody else can read it
-            Set<Long> rowIdsToLock = _resourceCountDao.listAllRowsToUpdate(account.getId(), ResourceOwnerType.Account, type);
-            SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
-            sc.setParameters("id", rowIdsToLock.toArray());
-            _resourceCountDao.lockRows(sc, null, true);
+            // Lock the rows there is a limit on first so nobody else can read them. The rows of the domains
+            // without a limit, ROOT's first of all, are not checked so they are left alone
+            long accountLimit = findCorrectResourceLimitForAccount(account, type);
+            Map<Long, Long> domainLimits = findDomainLimits(domainId, type);
+            Set<Long> rowIdsToLock = new TreeSet<Long>();
+            if (accountLimit != Resource.RESOURCE_UNLIMITED) {
+                addRowId(rowIdsToLock, account.getId(), ResourceOwnerType.Account, type);
+            }
+            for (Map.Entry<Long, Long> domainLimit : domainLimits.entrySet()) {
+                if (domainLimit.getValue() != Resource.RESOURCE_UNLIMITED) {
+                    addRowId(rowIdsToLock, domainLimit.getKey(), ResourceOwnerType.Domain, type);
+                }
+            }
+            lockRows(rowIdsToLock, type);
 
             // Check account limits
-            long accountLimit = findCorrectResourceLimitForAccount(account, type);
             long potentialCount = _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type) + numResources;
             if (accountLimit != Resource.RESOURCE_UNLIMITED && potentialCount > accountLimit) {
                 String message = "Maximum number of resources of type '" + type + "' for account name=" + account.getAccountName()
@@ -354,33 +395,63 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                 throw new ResourceAllocationException(message, type);
             }
 
-            // check all domains in the account's domain hierarchy
-            Long domainId = null;
-            if (project != null) {
-                domainId = project.getDomainId();
-            } else {
-                domainId = account.getDomainId();
-            }
-
-            while (domainId != null) {
-                DomainVO domain = _domainDao.findById(domainId);
-                // no limit check if it is ROOT domain
-                if (domainId != Domain.ROOT_DOMAIN) {
-                    ResourceLimitVO domainLimit = _resourceLimitDao.findByOwnerIdAndType(domainId, ResourceOwnerType.Domain, type);
-                    if (domainLimit != null && domainLimit.getMax().longValue() != Resource.RESOURCE_UNLIMITED) {
-                        long domainCount = _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type);
-                        if ((domainCount + numResources) > domainLimit.getMax().longValue()) {
-                            throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + domainId + " has been exceeded.", type);
-                        }
+            for (Map.Entry<Long, Long> domainLimit : domainLimits.entrySet()) {
+                if (domainLimit.getValue() != Resource.RESOURCE_UNLIMITED) {
+                    long domainCount = _resourceCountDao.getResourceCount(domainLimit.getKey(), ResourceOwnerType.Domain, type);
+                    if ((domainCount + numResources) > domainLimit.getValue()) {
+                        throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + domainLimit.getKey() + " has been exceeded.", type);
                     }
                 }
-                domainId = domain.getParent();
             }
         } finally {
             txn.commit();
         }
     }
 
+    /**
+     * @return the domain and every domain above it, nearest first, with the
+     * limit set on each of them for the type or RESOURCE_UNLIMITED if there
+     * is none.  There are no limits on the ROOT domain.
+     */
+    protected Map<Long, Long> findDomainLimits(Long domainId, ResourceType type) {
+        Map<Long, Long> limits = new LinkedHashMap<Long, Long>();
+        while (domainId != null) {
+            DomainVO domain = _domainDao.findById(domainId);
+            long max = Resource.RESOURCE_UNLIMITED;
+            if (domainId != Domain.ROOT_DOMAIN) {
+                ResourceLimitVO domainLimit = _resourceLimitDao.findByOwnerIdAndType(domainId, ResourceOwnerType.Domain, type);
+                if (domainLimit != null) {
+                    max = domainLimit.getMax().longValue();
+                }
+            }
+            limits.put(domainId, max);
+            domainId = domain.getParent();
+        }
+        return limits;
+    }
+
+    protected void addRowId(Set<Long> rowIds, long ownerId, ResourceOwnerType ownerType, ResourceType type) {
+        ResourceCountVO row = _resourceCountDao.findByOwnerAndType(ownerId, ownerType, type);
+        if (row != null) {
+            rowIds.add(row.getId());
+        }
+    }
+
+    protected void lockRows(Set<Long> rowIds, ResourceType type) {
+        if (rowIds.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
+        sc.setParameters("id", rowIds.toArray());
+        _resourceCountDao.lockRows(sc, null, true);
+        _lockWaitTimes.get(type).record(System.currentTimeMillis() - start);
+    }
+
+    public LatencyHistogram getLockWaitTimes(ResourceType type) {
+        return _lockWaitTimes.get(type);
+    }
+
     @Override
     public List<ResourceLimitVO> searchForLimits(Long id, Long accountId, Long domainId, Integer type, Long startIndex, Long pageSizeVal) {
         Account caller = UserContext.current().getCaller();
@@ -609,13 +680,21 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         }
 
         ResourceLimitVO limit = _resourceLimitDao.findByOwnerIdAndType(ownerId, ownerType, resourceType);
+        boolean wasUnlimited = limit == null || limit.getMax().longValue() == Resource.RESOURCE_UNLIMITED;
         if (limit != null) {
             // Update the existing limit
             _resourceLimitDao.update(limit.getId(), max);
-            return _resourceLimitDao.findById(limit.getId());
+            limit = _resourceLimitDao.findById(limit.getId());
         } else {
-            return _resourceLimitDao.persist(new ResourceLimitVO(resourceType, max, ownerId, ownerType));
+            limit = _resourceLimitDao.persist(new ResourceLimitVO(resourceType, max, ownerId, ownerType));
+        }
+
+        // The count of a domain without a limit is only brought up to date once the transactions
+        // commit, so it is recounted before it is checked against the limit for the first time
+        if (ownerType == ResourceOwnerType.Domain && wasUnlimited && max.longValue() != Resource.RESOURCE_UNLIMITED) {
+            recalculateDomainResourceCount(ownerId, resourceType);
         }
+        return limit;
     }
 
     @Override
@@ -675,18 +754,39 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             Transaction txn = Transaction.currentTxn();
             txn.start();
 
-            Set<Long> rowsToLock = _resourceCountDao.listAllRowsToUpdate(accountId, ResourceOwnerType.Account, type);
+            // The rows limits are checked against change with the transaction, in place and in id order
+            // like checkResourceLimit() locks them. The rows of the domains without a limit only add up
+            // what is in use, they change once the transaction commits so that they are not held for as
+            // long as it runs and every allocation in the cloud does not queue up on the ROOT domain
+            AccountVO account = _accountDao.findByIdIncludingRemoved(accountId);
+            Set<Long> rowsToUpdate = new TreeSet<Long>();
+            final Set<Long> rowsToUpdateAfterCommit = new TreeSet<Long>();
+            addRowId(rowsToUpdate, accountId, ResourceOwnerType.Account, type);
+            for (Map.Entry<Long, Long> domainLimit : findDomainLimits(account.getDomainId(), type).entrySet()) {
+                if (domainLimit.getValue() != Resource.RESOURCE_UNLIMITED) {
+                    addRowId(rowsToUpdate, domainLimit.getKey(), ResourceOwnerType.Domain, type);
+                } else {
+                    addRowId(rowsToUpdateAfterCommit, domainLimit.getKey(), ResourceOwnerType.Domain, type);
+                }
+            }
 
-            // Lock rows first
-            SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
-            sc.setParameters("id", rowsToLock.toArray());
-            List<ResourceCountVO> rowsToUpdate = _resourceCountDao.lockRows(sc, null, true);
+            final long change = increment ? delta : -delta;
+            long start = System.currentTimeMillis();
+            if (_resourceCountDao.changeCountBy(rowsToUpdate, change) != rowsToUpdate.size()) {
+                s_logger.trace("Unable to update resource count for the rows " + rowsToUpdate);
+                result = false;
+            }
+            if (!rowsToUpdate.isEmpty()) {
+                _lockWaitTimes.get(type).record(System.currentTimeMillis() - start);
+            }
 
-            for (ResourceCountVO rowToUpdate : rowsToUpdate) {
-                if (!_resourceCountDao.updateById(rowToUpdate.getId(), increment, delta)) {
-                    s_logger.trace("Unable to update resource count for the row " + rowToUpdate);
-                    result = false;
-                }
+            if (!rowsToUpdateAfterCommit.isEmpty()) {
+                txn.runAfterCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateRowsAfterCommit(rowsToUpdateAfterCommit, change);
+                    }
+                });
             }
 
             txn.commit();
@@ -697,6 +797,73 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         return result;
     }
 
+    @DB
+    protected void updateRowsAfterCommit(Set<Long> rowIds, long change) {
+        try {
+            if (_resourceCountDao.changeCountBy(rowIds, change) != rowIds.size()) {
+                s_logger.warn("Unable to update resource count for the rows " + rowIds + "; they are fixed by the next deferred resource count recount");
+            }
+        } catch (Exception e) {
+            s_logger.warn("Unable to update resource count for the rows " + rowIds + "; they are fixed by the next deferred resource count recount", e);
+        }
+    }
+
+    /**
+     * Recounts the rows updateResourceCountForAccount() changes after commit, the
+     * ones of the domain and of the domains under it without a limit, from the
+     * rows of their child domains and accounts.  The other rows are exact and are
+     * left as they are.
+     * @return the count of the domain
+     */
+    protected long recountDeferredDomainResourceCount(long domainId, ResourceType type) {
+        List<DomainVO> domainChildren = _domainDao.findImmediateChildrenForParent(domainId);
+        for (DomainVO domainChild : domainChildren) {
+            recountDeferredDomainResourceCount(domainChild.getId(), type);
+        }
+
+        Map<Long, Long> domainLimits = findDomainLimits(domainId, type);
+        if (domainLimits.get(domainId) != Resource.RESOURCE_UNLIMITED) {
+            return _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type);
+        }
+        return recountDomainRow(domainId, domainChildren, type);
+    }
+
+    @DB
+    protected long recountDomainRow(long domainId, List<DomainVO> domainChildren, ResourceType type) {
+        long newCount = 0;
+
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        try {
+            // Lock the row so the updates after commit wait for the recount
+            Set<Long> rowIdsToLock = new TreeSet<Long>();
+            addRowId(rowIdsToLock, domainId, ResourceOwnerType.Domain, type);
+            lockRows(rowIdsToLock, type);
+
+            long oldCount = _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type);
+            if (type == ResourceType.project) {
+                newCount = newCount + _projectDao.countProjectsForDomain(domainId);
+            }
+            for (DomainVO domainChild : domainChildren) {
+                newCount = newCount + _resourceCountDao.getResourceCount(domainChild.getId(), ResourceOwnerType.Domain, type);
+            }
+            if (type.supportsOwner(ResourceOwnerType.Account)) {
+                for (AccountVO account : _accountDao.findActiveAccountsForDomain(domainId)) {
+                    newCount = newCount + _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type);
+                }
+            }
+
+            if (oldCount != newCount) {
+                _resourceCountDao.setResourceCount(domainId, ResourceOwnerType.Domain, type, newCount);
+                s_logger.info("Discrepency in the resource count " + "(original count=" + oldCount + " correct count = " +
+                        newCount + ") for type " + type + " for domain ID " + domainId + " is fixed during deferred resource count recount.");
+            }
+        } finally {
+            txn.commit();
+        }
+        return newCount;
+    }
+
     @DB
     protected long recalculateDomainResourceCount(long domainId, ResourceType type) {
         long newCount = 0;
@@ -852,6 +1019,35 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         return _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type);
     }
 
+    /**
+     * Fixes the counts of the ROOT domain and of the domains without a limit
+     * when the update after commit was lost, the management server went down
+     * or the update failed.  One management server runs it at a time.
+     */
+    protected class DeferredResourceCountTask implements Runnable {
+        @Override
+        public void run() {
+            GlobalLock lock = GlobalLock.getInternLock("resourcecount.deferred.recount");
+            try {
+                if (lock.lock(0)) {
+                    try {
+                        for (ResourceType type : ResourceCount.ResourceType.values()) {
+                            if (type.supportsOwner(ResourceOwnerType.Domain)) {
+                                recountDeferredDomainResourceCount(Domain.ROOT_DOMAIN, type);
+                            }
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to recount the deferred resource counts", e);
+            } finally {
+                lock.releaseRef();
+            }
+        }
+    }
+
     protected class ResourceCountCheckTask implements Runnable {
         public ResourceCountCheckTask() {
 
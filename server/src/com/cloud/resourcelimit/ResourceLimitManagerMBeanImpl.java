@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.utils.LatencyHistogram;
+
+public class ResourceLimitManagerMBeanImpl extends StandardMBean implements ResourceLimitManagerMBean {
+    private final ResourceLimitManagerImpl _resourceLimitMgr;
+
+    public ResourceLimitManagerMBeanImpl(ResourceLimitManagerImpl resourceLimitMgr) {
+        super(ResourceLimitManagerMBean.class, false);
+
+        _resourceLimitMgr = resourceLimitMgr;
+    }
+
+    /**
+     * Time in milliseconds spent waiting on the resource_count rows of the
+     * limited accounts and domains, by resource type.
+     */
+    @Override
+    public Map<String, Map<String, String>> getLockWaitTimes() {
+        Map<String, Map<String, String>> times = new LinkedHashMap<String, Map<String, String>>();
+        for (ResourceType type : ResourceType.values()) {
+            LatencyHistogram histogram = _resourceLimitMgr.getLockWaitTimes(type);
+            if (histogram.getCount() > 0) {
+                times.put(type.getName(), histogram.toMap());
+            }
+        }
+        return times;
+    }
+
+    @Override
+    public void resetLockWaitTimes() {
+        for (ResourceType type : ResourceType.values()) {
+            _resourceLimitMgr.getLockWaitTimes(type).reset();
+        }
+    }
+}
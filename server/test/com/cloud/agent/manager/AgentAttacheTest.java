@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.cloudstack.storage.command.StorageSubSystemCommand;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.ReadyCommand;
+import com.cloud.agent.api.storage.CopyVolumeCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.host.Status;
+
+public class AgentAttacheTest {
+    private AgentAttache _attache;
+    private Listener _listener;
+
+    // Like CopyCmd and CreateObjectCommand, which live in the storage engine
+    private static class StorageSubSystemCopyCommand extends Command implements StorageSubSystemCommand {
+        @Override
+        public boolean executeInSequence() {
+            return false;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        _attache = new DummyAttache(mock(AgentManagerImpl.class), 1, false);
+        _listener = mock(Listener.class);
+        when(_listener.getTimeout()).thenReturn(-1);
+    }
+
+    private Request send(Command cmd) throws Exception {
+        Request req = new Request(1, 1, new Command[] { cmd }, true, true);
+        req.setSequence(_attache.getNextSequence());
+        _attache.send(req, _listener);
+        return req;
+    }
+
+    @Test
+    public void testStorageMotionCommandsAreCountedUntilAnswered() throws Exception {
+        Request copy = send(new CopyVolumeCommand());
+        send(new ReadyCommand());
+        Request queued = send(new CopyVolumeCommand());
+        assertEquals(2, _attache.getStorageMotionCount());
+
+        _attache.processAnswers(copy.getSequence(), new Response(copy, new Answer[] { new Answer(copy.getCommand()) }));
+        assertEquals(1, _attache.getStorageMotionCount());
+
+        _attache.cancel(queued.getSequence());
+        assertEquals(0, _attache.getStorageMotionCount());
+    }
+
+    @Test
+    public void testStorageSubSystemCommandsAreCounted() throws Exception {
+        Request copy = send(new StorageSubSystemCopyCommand());
+        send(new CopyVolumeCommand());
+        assertEquals(2, _attache.getStorageMotionCount());
+
+        _attache.processAnswers(copy.getSequence(), new Response(copy, new Answer[] { new Answer(copy.getCommand()) }));
+        assertEquals(1, _attache.getStorageMotionCount());
+    }
+
+    @Test
+    public void testStorageMotionCountIsClearedOnDisconnect() throws Exception {
+        send(new CopyVolumeCommand());
+        send(new CopyVolumeCommand());
+        assertEquals(2, _attache.getStorageMotionCount());
+
+        _attache.cleanup(Status.Disconnected);
+        assertEquals(0, _attache.getStorageMotionCount());
+    }
+}
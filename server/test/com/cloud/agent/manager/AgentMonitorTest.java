@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.host.Status;
+
+public class AgentMonitorTest {
+    private AgentMonitor _monitor;
+
+    @Before
+    public void setUp() {
+        _monitor = new AgentMonitor(1, null, null, null, null, null, null, 1);
+    }
+
+    @After
+    public void tearDown() {
+        _monitor.signalStop();
+    }
+
+    @Test
+    public void testHostIsFoundAsSoonAsItsDeadlinePasses() throws Exception {
+        _monitor.pingBy(5);
+        _monitor.pingBy(6);
+        assertEquals(2, _monitor.getTrackedHostCount());
+
+        long start = System.currentTimeMillis();
+        List<Long> behind = _monitor.findAgentsBehindOnPing(5000);
+        while (behind.size() < 2 && System.currentTimeMillis() - start < 5000) {
+            behind.addAll(_monitor.findAgentsBehindOnPing(100));
+        }
+
+        assertEquals(2, behind.size());
+        assertTrue(behind.contains(5L) && behind.contains(6L));
+        assertEquals(2, _monitor.getPingTimeoutCount());
+        assertEquals(2, _monitor.getDetectionLatency().getCount());
+        assertTrue("Detected after " + _monitor.getDetectionLatency().getMax() + " ms", _monitor.getDetectionLatency().getMax() < 3000);
+        assertEquals(0, _monitor.getTrackedHostCount());
+    }
+
+    @Test
+    public void testSilentHostIsInvestigatedAgain() throws Exception {
+        final List<Long> investigated = new ArrayList<Long>();
+        _monitor.signalStop();
+        _monitor = new AgentMonitor(1, null, null, null, null, null, null, 1) {
+            @Override
+            protected void handleAgentBehindOnPing(long agentId) {
+                // The investigation finds the host still up
+                investigated.add(agentId);
+            }
+        };
+
+        _monitor.pingBy(9);
+        long start = System.currentTimeMillis();
+        while (investigated.size() < 2 && System.currentTimeMillis() - start < 8000) {
+            _monitor.checkAgentsBehindOnPing(100);
+        }
+        assertEquals(2, investigated.size());
+        assertEquals(Long.valueOf(9), investigated.get(1));
+        assertEquals(1, _monitor.getTrackedHostCount());
+
+        // Once it is disconnected it is not looked at again
+        _monitor.processDisconnect(9, Status.Disconnected);
+        assertEquals(0, _monitor.getTrackedHostCount());
+        start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 2500) {
+            _monitor.checkAgentsBehindOnPing(100);
+        }
+        assertEquals(2, investigated.size());
+    }
+
+    @Test
+    public void testPingsAndDisconnectsCancelTheDeadline() throws Exception {
+        _monitor.pingBy(7);
+        _monitor.pingBy(8);
+        _monitor.processDisconnect(8, Status.Disconnected);
+
+        long end = System.currentTimeMillis() + 2500;
+        while (System.currentTimeMillis() < end) {
+            _monitor.pingBy(7);
+            assertTrue(_monitor.findAgentsBehindOnPing(200).isEmpty());
+        }
+        assertEquals(0, _monitor.getPingTimeoutCount());
+        assertEquals(1, _monitor.getTrackedHostCount());
+    }
+}
@@ -0,0 +1,165 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.StripedLongMap;
+
+/**
+ * Simulates 10k agents connecting, being looked up and disconnecting from
+ * many threads at once, the way the connect executor and the request
+ * paths use AgentManagerImpl._agents, and compares the registry guarded by
+ * a single monitor with the striped one.  It reports operations per second
+ * and the time the threads spent blocked on monitors.  It is not picked up
+ * by the regular build, run it with
+ * mvn test -Dtest=AttacheRegistryBenchmark
+ */
+public class AttacheRegistryBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(AttacheRegistryBenchmark.class);
+
+    private static final int AGENTS = Integer.getInteger("registry.benchmark.agents", 10000);
+    private static final int THREADS = Integer.getInteger("registry.benchmark.threads", 32);
+    private static final int ROUNDS = Integer.getInteger("registry.benchmark.rounds", 20);
+    private static final int LOOKUPS_PER_CONNECT = 10;
+
+    private final ThreadMXBean _mxBean = ManagementFactory.getThreadMXBean();
+
+    private interface Registry {
+        AgentAttache connect(AgentAttache attache);
+        AgentAttache find(long hostId);
+        boolean disconnect(AgentAttache attache);
+    }
+
+    /**
+     * What AgentManagerImpl did before, every operation went through the
+     * monitor of the map.
+     */
+    private static class MonitorRegistry implements Registry {
+        private final ConcurrentHashMap<Long, AgentAttache> _agents = new ConcurrentHashMap<Long, AgentAttache>(10007);
+
+        @Override
+        public AgentAttache connect(AgentAttache attache) {
+            synchronized (_agents) {
+                return _agents.put(attache.getId(), attache);
+            }
+        }
+
+        @Override
+        public AgentAttache find(long hostId) {
+            synchronized (_agents) {
+                return _agents.get(hostId);
+            }
+        }
+
+        @Override
+        public boolean disconnect(AgentAttache attache) {
+            synchronized (_agents) {
+                AgentAttache removed = _agents.remove(attache.getId());
+                if (removed != null && removed != attache) {
+                    _agents.put(attache.getId(), removed);
+                    return false;
+                }
+                return removed != null;
+            }
+        }
+    }
+
+    private static class StripedRegistry implements Registry {
+        private final StripedLongMap<AgentAttache> _agents = new StripedLongMap<AgentAttache>(256, 10007);
+
+        @Override
+        public AgentAttache connect(AgentAttache attache) {
+            return _agents.put(attache.getId(), attache);
+        }
+
+        @Override
+        public AgentAttache find(long hostId) {
+            return _agents.get(hostId);
+        }
+
+        @Override
+        public boolean disconnect(AgentAttache attache) {
+            synchronized (_agents.lockFor(attache.getId())) {
+                return _agents.remove(attache.getId(), attache);
+            }
+        }
+    }
+
+    public void testMonitorRegistry() throws Exception {
+        run("synchronized map", new MonitorRegistry());
+    }
+
+    public void testStripedRegistry() throws Exception {
+        run("striped map", new StripedRegistry());
+    }
+
+    private void run(String name, final Registry registry) throws Exception {
+        _mxBean.setThreadContentionMonitoringEnabled(true);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] blocked = new long[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            threads[t] = new Thread("Registry-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int round = 0; round < ROUNDS; round++) {
+                        for (long hostId = index; hostId < AGENTS; hostId += THREADS) {
+                            AgentAttache attache = new DummyAttache(null, hostId, false);
+                            registry.connect(attache);
+                            for (int i = 0; i < LOOKUPS_PER_CONNECT; i++) {
+                                registry.find((hostId * 31 + i) % AGENTS);
+                            }
+                            registry.disconnect(attache);
+                        }
+                    }
+                    blocked[index] = _mxBean.getThreadInfo(Thread.currentThread().getId()).getBlockedTime();
+                }
+            };
+            threads[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long totalBlocked = 0;
+        for (long time : blocked) {
+            totalBlocked += time;
+        }
+        long ops = (long)AGENTS * ROUNDS * (LOOKUPS_PER_CONNECT + 2);
+        s_logger.info(name + ": " + AGENTS + " agents, " + THREADS + " threads, " + (ops * 1000000000L / elapsed) + " ops/sec, "
+                + (AGENTS * ROUNDS * 1000000000L / elapsed) + " connect/disconnect cycles/sec, " + totalBlocked + " ms blocked");
+    }
+}
@@ -0,0 +1,162 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.Identity;
+import org.apache.cloudstack.api.InternalIdentity;
+import org.apache.cloudstack.api.command.user.event.DeleteEventsCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+import org.apache.log4j.Logger;
+import org.mockito.Mockito;
+
+import com.cloud.dao.EntityManager;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.UserContext;
+
+/**
+ * Measures what ApiDispatcher.processParameters() costs a command, with the
+ * parameter bindings of the command class worked out on every request as it
+ * used to be and with them worked out once, and counts the entity lookups
+ * a list of uuids takes.  The entity manager answers from memory so that
+ * only the dispatch is measured.  It is not picked up by the regular build,
+ * run it with
+ * mvn test -Dtest=ApiDispatcherBenchmark
+ */
+public class ApiDispatcherBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ApiDispatcherBenchmark.class);
+
+    private static final int DISPATCHES = Integer.getInteger("dispatcher.benchmark.dispatches", 20000);
+    private static final int UUIDS = Integer.getInteger("dispatcher.benchmark.uuids", 20);
+
+    /**
+     * Knows every uuid, the id of an entity is the last part of its uuid.
+     */
+    private static class InMemoryEntities implements InvocationHandler {
+        int lookups;
+
+        EntityManager create() {
+            return (EntityManager)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { EntityManager.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("findByUuidIncludingRemoved")) {
+                lookups++;
+                return new Entity((String)args[1]);
+            } else if (name.equals("listByUuidsIncludingRemoved")) {
+                lookups++;
+                List<Entity> entities = new ArrayList<Entity>();
+                for (Object uuid : (Collection<?>)args[1]) {
+                    entities.add(new Entity((String)uuid));
+                }
+                return entities;
+            }
+            return null;
+        }
+    }
+
+    private static class Entity implements Identity, InternalIdentity {
+        private final String _uuid;
+
+        Entity(String uuid) {
+            _uuid = uuid;
+        }
+
+        @Override
+        public String getUuid() {
+            return _uuid;
+        }
+
+        @Override
+        public long getId() {
+            return Long.parseLong(_uuid.substring(_uuid.lastIndexOf('-') + 1));
+        }
+    }
+
+    public void testDispatchOverhead() throws Exception {
+        InMemoryEntities entities = new InMemoryEntities();
+        ApiDispatcher dispatcher = new ApiDispatcher();
+        dispatcher._entityMgr = entities.create();
+        dispatcher._accountMgr = Mockito.mock(AccountManager.class);
+        dispatcher.init();
+        UserContext.registerContext(2, Mockito.mock(Account.class), null, true);
+
+        try {
+            Map<String, String> listParams = new HashMap<String, String>();
+            listParams.put(ApiConstants.ZONE_ID, uuid(1));
+            listParams.put(ApiConstants.KEYWORD, "web");
+            listParams.put(ApiConstants.STATE, "Running");
+            listParams.put(ApiConstants.LIST_ALL, "true");
+            listParams.put(ApiConstants.PAGE, "1");
+            listParams.put(ApiConstants.PAGE_SIZE, "20");
+
+            StringBuilder ids = new StringBuilder();
+            for (int i = 1; i <= UUIDS; i++) {
+                ids.append(i == 1 ? "" : ",").append(uuid(i));
+            }
+            Map<String, String> deleteParams = new HashMap<String, String>();
+            deleteParams.put(ApiConstants.IDS, ids.toString());
+
+            for (int warmup = 0; warmup < 2; warmup++) {
+                run(ListVMsCmd.class, listParams, false);
+                run(ListVMsCmd.class, listParams, true);
+            }
+            report("listVirtualMachines", ListVMsCmd.class, listParams, entities);
+            report("deleteEvents of " + UUIDS + " ids", DeleteEventsCmd.class, deleteParams, entities);
+        } finally {
+            UserContext.unregisterContext();
+        }
+    }
+
+    private void report(String name, Class<? extends BaseCmd> cmdClass, Map<String, String> params, InMemoryEntities entities) throws Exception {
+        long perRequest = run(cmdClass, params, false);
+        entities.lookups = 0;
+        long cached = run(cmdClass, params, true);
+        s_logger.info(name + ": " + perRequest + " ns per dispatch with bindings worked out every time, " + cached + " ns with cached bindings, "
+                + entities.lookups / DISPATCHES + " entity lookups per dispatch");
+    }
+
+    private long run(Class<? extends BaseCmd> cmdClass, Map<String, String> params, boolean cached) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < DISPATCHES; i++) {
+            if (!cached) {
+                ParameterBinding.clear();
+            }
+            ApiDispatcher.processParameters(cmdClass.newInstance(), new HashMap<String, String>(params));
+        }
+        return (System.nanoTime() - start) / DISPATCHES;
+    }
+
+    private static String uuid(int id) {
+        return String.format("5e1f0c3a-0000-4000-8000-%012d", id);
+    }
+}
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.command.user.event.DeleteEventsCmd;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.dao.EntityManager;
+import com.cloud.event.Event;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.UserContext;
+
+public class ApiDispatcherTest {
+    private static final String UUID1 = "0b5a3f8e-0000-4000-8000-000000000001";
+    private static final String UUID2 = "0b5a3f8e-0000-4000-8000-000000000002";
+    private static final String UUID3 = "0b5a3f8e-0000-4000-8000-000000000003";
+
+    private EntityManager _entityMgr;
+
+    @Before
+    public void setUp() {
+        ApiDispatcher dispatcher = new ApiDispatcher();
+        _entityMgr = mock(EntityManager.class);
+        dispatcher._entityMgr = _entityMgr;
+        dispatcher._accountMgr = mock(AccountManager.class);
+        dispatcher.init();
+
+        UserContext.registerContext(2, mock(Account.class), null, true);
+    }
+
+    @After
+    public void tearDown() {
+        UserContext.unregisterContext();
+    }
+
+    @Test
+    public void testListOfUuidsIsLookedUpWithOneQuery() {
+        List<Event> events = new ArrayList<Event>();
+        events.add(createEvent(UUID2, 22));
+        events.add(createEvent(UUID1, 11));
+        doReturn(events).when(_entityMgr).listByUuidsIncludingRemoved(eq(Event.class), anyCollectionOf(String.class));
+
+        DeleteEventsCmd cmd = new DeleteEventsCmd();
+        ApiDispatcher.processParameters(cmd, createParams(UUID1 + ",5," + UUID2 + "," + UUID1));
+
+        assertEquals(Arrays.asList(11L, 5L, 22L, 11L), cmd.getIds());
+        verify(_entityMgr, times(1)).listByUuidsIncludingRemoved(eq(Event.class), anyCollectionOf(String.class));
+        verify(_entityMgr, never()).findByUuidIncludingRemoved(any(Class.class), anyString());
+    }
+
+    @Test
+    public void testUnknownUuidIsRejected() {
+        List<Event> events = new ArrayList<Event>();
+        events.add(createEvent(UUID1, 11));
+        doReturn(events).when(_entityMgr).listByUuidsIncludingRemoved(eq(Event.class), anyCollectionOf(String.class));
+
+        try {
+            ApiDispatcher.processParameters(new DeleteEventsCmd(), createParams(UUID1 + "," + UUID3));
+            fail("Unknown uuid " + UUID3 + " was accepted");
+        } catch (ServerApiException e) {
+            assertTrue(e.getDescription(), e.getDescription().contains(UUID3));
+        }
+    }
+
+    @Test
+    public void testBindingsAreWorkedOutOnce() {
+        List<ParameterBinding> bindings = ParameterBinding.getBindings(DeleteEventsCmd.class);
+        List<String> names = new ArrayList<String>();
+        for (ParameterBinding binding : bindings) {
+            names.add(binding.getName());
+        }
+        assertTrue(names.containsAll(Arrays.asList(ApiConstants.IDS, ApiConstants.OLDER_THAN, ApiConstants.TYPE)));
+        assertSame(bindings, ParameterBinding.getBindings(DeleteEventsCmd.class));
+    }
+
+    private static Map<String, String> createParams(String ids) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.IDS, ids);
+        params.put(ApiConstants.TYPE, "VM.CREATE");
+        return params;
+    }
+
+    private static Event createEvent(String uuid, long id) {
+        Event event = mock(Event.class);
+        when(event.getUuid()).thenReturn(uuid);
+        when(event.getId()).thenReturn(id);
+        return event;
+    }
+}
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Measures the latency of deployVirtualMachine and of the async job behind
+ * it, to compare the management server with event.journal.enabled set to
+ * false and to true.  It requires a real MS and Db running with the
+ * simulator hypervisor, so it is excluded from the build.  Run it once for
+ * each setting, restarting the MS in between, with
+ * mvn test -Dtest=EventJournalPerfTest -Dperf.zoneid=<uuid> -Dperf.templateid=<uuid> -Dperf.serviceofferingid=<uuid>
+ */
+public class EventJournalPerfTest extends APITest {
+    private static final int VMS = Integer.getInteger("perf.vms", 50);
+
+    @Before
+    public void setup(){
+        // always login for each testcase
+        login("admin", "password");
+    }
+
+    @Test
+    public void testDeployVirtualMachine() throws Exception {
+        List<Long> submitTimes = new ArrayList<Long>();
+        List<Long> jobTimes = new ArrayList<Long>();
+        for (int i = 0; i < VMS; i++) {
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put("response", "json");
+            params.put("sessionkey", sessionKey);
+            params.put("zoneid", System.getProperty("perf.zoneid"));
+            params.put("templateid", System.getProperty("perf.templateid"));
+            params.put("serviceofferingid", System.getProperty("perf.serviceofferingid"));
+            long before = System.currentTimeMillis();
+            String result = this.sendRequest("deployVirtualMachine", params);
+            long submitted = System.currentTimeMillis();
+            String jobId = getResponse(result, "deployvirtualmachineresponse").get("jobid").getAsString();
+            waitForJob(jobId);
+            long after = System.currentTimeMillis();
+            submitTimes.add(submitted - before);
+            jobTimes.add(after - before);
+        }
+        System.out.println("deployVirtualMachine: " + summarize(submitTimes));
+        System.out.println("deployVirtualMachine job: " + summarize(jobTimes));
+    }
+
+    private JsonObject getResponse(String result, String name) {
+        return new JsonParser().parse(result).getAsJsonObject().getAsJsonObject(name);
+    }
+
+    private void waitForJob(String jobId) throws InterruptedException {
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("response", "json");
+        params.put("sessionkey", sessionKey);
+        params.put("jobid", jobId);
+        while (true) {
+            JsonObject job = getResponse(this.sendRequest("queryAsyncJobResult", params), "queryasyncjobresultresponse");
+            int status = job.get("jobstatus").getAsInt();
+            if (status == 1) {
+                return;
+            } else if (status == 2) {
+                throw new CloudRuntimeException("Job " + jobId + " failed: " + job.get("jobresult"));
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private String summarize(List<Long> times) {
+        List<Long> sorted = new ArrayList<Long>(times);
+        Collections.sort(sorted);
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        return "mean " + (total / sorted.size()) + " ms, median " + sorted.get(sorted.size() / 2) + " ms, 90th percentile "
+                + sorted.get(sorted.size() * 9 / 10) + " ms, max " + sorted.get(sorted.size() - 1) + " ms";
+    }
+}
@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.cloud.exception.InvalidParameterValueException;
+
+public class ListCursorTest {
+
+    @Test
+    public void testTokenRoundTrip() {
+        ListCursor cursor = ListCursor.parse(new ListCursor(20480L, 20000).toToken());
+        assertFalse(cursor.isFirstPage());
+        assertEquals(Long.valueOf(20480L), cursor.getLastId());
+        assertEquals(Integer.valueOf(20000), cursor.getCount());
+
+        String token = new ListCursor(7L, null).toToken();
+        assertTrue("Token " + token + " is not URL safe", token.matches("[A-Za-z0-9_-]+"));
+        cursor = ListCursor.parse(token);
+        assertEquals(Long.valueOf(7L), cursor.getLastId());
+        assertNull(cursor.getCount());
+    }
+
+    @Test
+    public void testFirstPage() {
+        assertNull(ListCursor.parse(null));
+        ListCursor cursor = ListCursor.parse(ListCursor.FIRST_PAGE);
+        assertTrue(cursor.isFirstPage());
+        assertNull(cursor.getCount());
+    }
+
+    @Test
+    public void testInvalidTokens() {
+        for (String token : new String[] { "", "abc", "MTp4OjE", "MjoxOjE" }) {
+            try {
+                ListCursor.parse(token);
+                fail("Token " + token + " was accepted");
+            } catch (InvalidParameterValueException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cloudstack.api.BaseListCmd;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.api.query.vo.HostJoinVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCriteria.Op;
+
+public class SearchPageTest {
+    GenericDao<HostJoinVO, Long> _dao;
+    SearchCriteria<HostJoinVO> _sc;
+
+    private static class ListCmd extends BaseListCmd {
+        @Override
+        public void execute() {
+        }
+
+        @Override
+        public String getCommandName() {
+            return "listresponse";
+        }
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        _dao = mock(GenericDao.class);
+        _sc = mock(SearchCriteria.class);
+    }
+
+    private static ListCmd createCmd(String cursor, String countMode) throws Exception {
+        ListCmd cmd = new ListCmd();
+        setField(cmd, "cursor", cursor);
+        setField(cmd, "countMode", countMode);
+        return cmd;
+    }
+
+    private static void setField(BaseListCmd cmd, String name, Object value) throws Exception {
+        Field field = BaseListCmd.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(cmd, value);
+    }
+
+    private static Filter createFilter(long pageSize) {
+        return new Filter(HostJoinVO.class, "id", true, 0L, pageSize);
+    }
+
+    private static List<HostJoinVO> createRows(long... ids) {
+        List<HostJoinVO> rows = new ArrayList<HostJoinVO>(ids.length);
+        for (long id : ids) {
+            HostJoinVO row = new HostJoinVO();
+            row.setId(id);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Test
+    public void testFirstPageIsCountedAndPointsToTheNextOne() throws Exception {
+        ListCmd cmd = createCmd(ListCursor.FIRST_PAGE, null);
+        Filter filter = createFilter(2);
+        when(_dao.getCount(_sc)).thenReturn(5);
+        when(_dao.search(_sc, filter)).thenReturn(createRows(1, 2, 3));
+
+        Pair<List<HostJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, _sc, filter, true, cmd);
+        assertEquals(2, page.first().size());
+        assertEquals(2, page.first().get(1).getId());
+        assertEquals(Integer.valueOf(5), page.second());
+        assertEquals("One more row tells if there is another page", Long.valueOf(3), filter.getLimit());
+        verify(_sc, never()).addAnd(anyString(), any(Op.class), any());
+
+        ListCursor next = ListCursor.parse(cmd.getNextCursor());
+        assertEquals(Long.valueOf(2), next.getLastId());
+        assertEquals(Integer.valueOf(5), next.getCount());
+    }
+
+    @Test
+    public void testNextPageCarriesTheApproximateCount() throws Exception {
+        ListCmd cmd = createCmd(new ListCursor(2L, 5).toToken(), null);
+        Filter filter = createFilter(2);
+        when(_dao.search(_sc, filter)).thenReturn(createRows(3, 4));
+
+        Pair<List<HostJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, _sc, filter, true, cmd);
+        assertEquals(2, page.first().size());
+        assertEquals(Integer.valueOf(5), page.second());
+        assertNull("The last page has no page after it", cmd.getNextCursor());
+        verify(_dao, never()).getCount(_sc);
+        verify(_sc).addAnd("id", Op.GT, 2L);
+    }
+
+    @Test
+    public void testDescendingPagesGoBelowTheLastId() throws Exception {
+        ListCmd cmd = createCmd(new ListCursor(9L, null).toToken(), "exact");
+        Filter filter = createFilter(2);
+        when(_dao.getCount(_sc)).thenReturn(8);
+        when(_dao.search(_sc, filter)).thenReturn(createRows(8, 7, 6));
+
+        Pair<List<HostJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, _sc, filter, false, cmd);
+        assertEquals(Integer.valueOf(8), page.second());
+        verify(_sc).addAnd("id", Op.LT, 9L);
+
+        ListCursor next = ListCursor.parse(cmd.getNextCursor());
+        assertEquals(Long.valueOf(7), next.getLastId());
+        assertNull("An exact count is not carried", next.getCount());
+    }
+
+    @Test
+    public void testNoCountIsRunWithCountModeNone() throws Exception {
+        ListCmd cmd = createCmd(ListCursor.FIRST_PAGE, "none");
+        Filter filter = createFilter(2);
+        when(_dao.search(_sc, filter)).thenReturn(createRows(1, 2, 3));
+
+        Pair<List<HostJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, _sc, filter, true, cmd);
+        assertNull(page.second());
+        assertTrue(cmd.getNextCursor() != null);
+        assertNull(ListCursor.parse(cmd.getNextCursor()).getCount());
+        verify(_dao, never()).getCount(_sc);
+
+        cmd = createCmd(null, "none");
+        filter = createFilter(2);
+        when(_dao.search(_sc, filter)).thenReturn(createRows(1, 2));
+        page = QueryManagerImpl.searchPage(_dao, _sc, filter, true, cmd);
+        assertNull(page.second());
+        verify(_dao, never()).searchAndCount(_sc, filter);
+    }
+}
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.UserResponse;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a list of 5000 responses to a stream the way ApiServlet did, as
+ * one string, and the way it does now, serialized straight to the writer,
+ * and reports the peak heap used and the time until the first byte reaches
+ * the stream.  It is not picked up by the regular build, run it with
+ * mvn test -Dtest=ApiResponseSerializerBenchmark
+ */
+public class ApiResponseSerializerBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseSerializerBenchmark.class);
+
+    private static final int RESPONSES = Integer.getInteger("serializer.benchmark.responses", 5000);
+    private static final int ROUNDS = Integer.getInteger("serializer.benchmark.rounds", 5);
+
+    /**
+     * Counts the bytes written to it and notes when the first one came.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        final long _start = System.nanoTime();
+        long _firstByte = -1;
+        long _bytes;
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+        }
+
+        private void count(int len) {
+            if (_firstByte < 0 && len > 0) {
+                _firstByte = System.nanoTime() - _start;
+            }
+            _bytes += len;
+        }
+    }
+
+    public void testStreamedResponse() throws Exception {
+        ListResponse<UserResponse> list = ApiResponseSerializerTest.createUserList(RESPONSES);
+        for (int warmup = 0; warmup < 2; warmup++) {
+            write(list, false);
+            write(list, true);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            report("toSerializedString()", list, false);
+            report("toSerializedStream()", list, true);
+        }
+    }
+
+    private void report(String name, ListResponse<UserResponse> list, boolean streamed) throws IOException {
+        System.gc();
+        resetPeakHeap();
+        long before = getPeakHeap();
+        CountingOutputStream counter = write(list, streamed);
+        long peak = getPeakHeap() - before;
+        s_logger.info(name + " of " + RESPONSES + " responses: " + counter._bytes + " bytes, first byte after " + counter._firstByte / 1000 + " us, peak heap grew by "
+                + peak / 1024 + " KB");
+    }
+
+    private CountingOutputStream write(ListResponse<UserResponse> list, boolean streamed) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(counter, "UTF-8"));
+        if (streamed) {
+            ApiResponseSerializer.toSerializedStream(list, BaseCmd.RESPONSE_TYPE_JSON, writer);
+        } else {
+            writer.print(ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON));
+        }
+        writer.flush();
+        return counter;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,105 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.UserResponse;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ApiResponseSerializerTest {
+
+    @Test
+    public void testUnescapingWriterMatchesUnescape() throws Exception {
+        String[] inputs = { "plain", "\\u003cb\\u003e", "\\\\u0041", "\\u00", "\\u00zz\\u0041", "ends with \\", "ends with \\u00", "\\uu0041",
+                "\"a\\u0026b\" : \"\\n\"" };
+        for (String input : inputs) {
+            StringWriter out = new StringWriter();
+            ApiResponseSerializer.UnescapingWriter writer = new ApiResponseSerializer.UnescapingWriter(out);
+            // A character at a time so that escapes are cut in every possible place
+            for (int i = 0; i < input.length(); i++) {
+                writer.write(input.charAt(i));
+            }
+            writer.finish();
+            assertEquals(input, ApiResponseSerializer.unescape(input), out.toString());
+        }
+    }
+
+    @Test
+    public void testStreamedListIsTheSerializedString() throws Exception {
+        ListResponse<UserResponse> list = createUserList(50);
+        String expected = ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON);
+
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.toSerializedStream(list, BaseCmd.RESPONSE_TYPE_JSON, out);
+        assertEquals(expected, out.toString());
+    }
+
+    @Test
+    public void testUncountedListLeavesTheCountOut() throws Exception {
+        ListResponse<UserResponse> list = createUserList(2);
+        list.setCountOmitted(true);
+        list.setNextCursor("Mjo1");
+
+        String json = ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON);
+        JsonObject response = new JsonParser().parse(json).getAsJsonObject().getAsJsonObject("listusersresponse");
+        assertFalse(json, response.has("count"));
+        assertEquals("Mjo1", response.get("nextcursor").getAsString());
+        assertEquals(2, response.getAsJsonArray("user").size());
+
+        list.setResponses(new ArrayList<UserResponse>());
+        json = ApiResponseSerializer.toSerializedString(list, BaseCmd.RESPONSE_TYPE_JSON);
+        response = new JsonParser().parse(json).getAsJsonObject().getAsJsonObject("listusersresponse");
+        assertEquals("Mjo1", response.get("nextcursor").getAsString());
+        assertFalse(response.has("user"));
+    }
+
+    static ListResponse<UserResponse> createUserList(int size) {
+        List<UserResponse> users = new ArrayList<UserResponse>(size);
+        for (int i = 0; i < size; i++) {
+            UserResponse user = new UserResponse();
+            user.setId("6c8ab9e4-0000-4000-8000-" + String.format("%012d", i));
+            user.setUsername("user-" + i);
+            user.setFirstname("First <" + i + ">");
+            user.setLastname("Last & " + i);
+            user.setEmail("user-" + i + "@example.com");
+            user.setCreated(new Date(1000L * i));
+            user.setState("enabled");
+            user.setAccountName("account=" + (i % 10));
+            user.setAccountType((short) 0);
+            user.setDomainId("ROOT");
+            user.setDomainName("ROOT");
+            user.setObjectName("user");
+            users.add(user);
+        }
+        ListResponse<UserResponse> list = new ListResponse<UserResponse>();
+        list.setResponses(users, size);
+        list.setResponseName("listusersresponse");
+        return list;
+    }
+}
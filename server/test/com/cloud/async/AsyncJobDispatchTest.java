@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.cluster.ClusterManager;
+
+public class AsyncJobDispatchTest extends TestCase {
+    @Mock SyncQueueManager _queueMgr;
+    @Mock AsyncJobDao _jobDao;
+    @Mock ClusterManager _clusterMgr;
+    @InjectMocks AsyncJobManagerImpl _jobMgr = new AsyncJobManagerImpl();
+
+    @Override
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void testQueueIsSignaledOnce() throws Exception {
+        _jobMgr.queueReady(1L);
+        _jobMgr.queueReady(1L);
+        _jobMgr.queueReady(2L);
+        assertEquals(2, _jobMgr.getReadyQueueSize());
+
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+        assertFalse(_jobMgr.dispatchReadyQueue(0));
+
+        verify(_queueMgr, times(1)).dequeueFromOne(eq(1L), any(Long.class));
+        verify(_queueMgr, times(1)).dequeueFromOne(eq(2L), any(Long.class));
+    }
+
+    @Test
+    public void testQueueCanBeSignaledAgainAfterDispatch() throws Exception {
+        _jobMgr.queueReady(1L);
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+
+        _jobMgr.queueReady(1L);
+        assertEquals(1, _jobMgr.getReadyQueueSize());
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+
+        verify(_queueMgr, times(2)).dequeueFromOne(eq(1L), any(Long.class));
+    }
+
+    @Test
+    public void testDispatchDrainsQueue() throws Exception {
+        SyncQueueItemVO first = createItem(10L, 1L);
+        SyncQueueItemVO second = createItem(11L, 1L);
+        when(_queueMgr.dequeueFromOne(eq(1L), any(Long.class))).thenReturn(first, second, null);
+        // the jobs are gone, so each item is purged instead of being executed
+        when(_jobDao.findById(anyLong())).thenReturn(null);
+
+        _jobMgr.queueReady(1L);
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+
+        verify(_queueMgr, times(3)).dequeueFromOne(eq(1L), any(Long.class));
+        verify(_queueMgr).purgeItem(10L);
+        verify(_queueMgr).purgeItem(11L);
+        verify(_queueMgr, never()).returnItem(anyLong());
+        assertEquals(0, _jobMgr.getReadyQueueSize());
+    }
+
+    @Test
+    public void testPeerNotificationSignalsTheQueue() throws Exception {
+        _jobMgr.onPeerQueueReady(3L);
+        assertEquals(1, _jobMgr.getReadyQueueSize());
+
+        assertTrue(_jobMgr.dispatchReadyQueue(0));
+        verify(_queueMgr, times(1)).dequeueFromOne(eq(3L), any(Long.class));
+    }
+
+    @Test
+    public void testDispatchWaitsForSignal() throws Exception {
+        assertFalse(_jobMgr.dispatchReadyQueue(100));
+        verify(_queueMgr, never()).dequeueFromOne(anyLong(), any(Long.class));
+    }
+
+    private static SyncQueueItemVO createItem(long id, long queueId) {
+        SyncQueueItemVO item = new SyncQueueItemVO();
+        item.setId(id);
+        item.setQueueId(queueId);
+        item.setContentId(id);
+        return item;
+    }
+}
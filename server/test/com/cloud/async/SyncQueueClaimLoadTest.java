@@ -0,0 +1,128 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.cloud.utils.component.ComponentContext;
+
+/**
+ * Measures how many items per second dequeueFromAny() claims when the work
+ * is spread over 1, 10 and 100 sync objects, with a few management server
+ * threads competing for it.  It needs the database configured in
+ * db.properties, run it with mvn test -Dtest=SyncQueueClaimLoadTest
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/SyncQueueTestContext.xml")
+public class SyncQueueClaimLoadTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(SyncQueueClaimLoadTest.class);
+
+    private static final String SYNC_OBJ_TYPE = "SyncQueueClaimLoadTest";
+    private static final int ITEMS = Integer.getInteger("syncqueue.loadtest.items", 2000);
+    private static final int THREADS = 4;
+    private static final int ITEMS_PER_CLAIM = 20;
+
+    @Inject SyncQueueManager _mgr;
+
+    @Before
+    public void setup() throws Exception {
+        ComponentContext.initComponentsLifeCycle();
+        for (int i = 0; i < THREADS; i++) {
+            for (SyncQueueItemVO item : _mgr.getActiveQueueItems(msid(i), false)) {
+                _mgr.purgeItem(item.getId());
+            }
+        }
+    }
+
+    @Test
+    public void testOneSyncObject() throws Exception {
+        run(1);
+    }
+
+    @Test
+    public void testTenSyncObjects() throws Exception {
+        run(10);
+    }
+
+    @Test
+    public void testHundredSyncObjects() throws Exception {
+        run(100);
+    }
+
+    private void run(final int syncObjects) throws Exception {
+        long firstObjId = System.currentTimeMillis();
+        for (int i = 0; i < ITEMS; i++) {
+            _mgr.queue(SYNC_OBJ_TYPE, firstObjId + i % syncObjects, "Async-job", i, 1);
+        }
+
+        final Set<Long> claimed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger(0);
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            final long msid = msid(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (claimed.size() < ITEMS) {
+                        List<SyncQueueItemVO> items = _mgr.dequeueFromAny(msid, ITEMS_PER_CLAIM);
+                        if (items == null || items.isEmpty()) {
+                            Thread.yield();
+                            continue;
+                        }
+                        for (SyncQueueItemVO item : items) {
+                            if (!claimed.add(item.getId())) {
+                                duplicates.incrementAndGet();
+                            }
+                            _mgr.purgeItem(item.getId());
+                        }
+                    }
+                }
+            }, "Claim-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        s_logger.info(syncObjects + " sync objects: claimed " + claimed.size() + " items in " + (elapsed / 1000000) + " ms, "
+                + (claimed.size() * 1000000000L / elapsed) + " claims/sec");
+        Assert.assertEquals(ITEMS, claimed.size());
+        Assert.assertEquals(0, duplicates.get());
+    }
+
+    private static long msid(int thread) {
+        return 9000 + thread;
+    }
+}
@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SyncQueueReadyCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ManagementServerHostVO;
+
+public class SyncQueuePeerNotifierTest extends TestCase {
+    private static final long SELF_ID = 1;
+    private static final long SELF_MSID = 1001;
+
+    private static ManagementServerHostVO createNode(long id, long msid) {
+        ManagementServerHostVO node = new ManagementServerHostVO();
+        node.setId(id);
+        node.setMsid(msid);
+        return node;
+    }
+
+    @Test
+    public void testJoinedPeersAreTold() {
+        ClusterManager clusterMgr = mock(ClusterManager.class);
+        SyncQueuePeerNotifier notifier = new SyncQueuePeerNotifier(SELF_MSID, clusterMgr);
+        notifier.onManagementNodeJoined(Arrays.asList(createNode(SELF_ID, SELF_MSID), createNode(2, 1002), createNode(3, 1003)), SELF_ID);
+
+        notifier.notifyQueueReady(5L);
+        ArgumentCaptor<Command[]> cmds = ArgumentCaptor.forClass(Command[].class);
+        verify(clusterMgr).executeAsync(eq("1002"), eq(0L), cmds.capture(), eq(false));
+        verify(clusterMgr).executeAsync(eq("1003"), eq(0L), any(Command[].class), eq(false));
+        verify(clusterMgr, never()).executeAsync(eq("1001"), eq(0L), any(Command[].class), eq(false));
+
+        SyncQueueReadyCommand cmd = (SyncQueueReadyCommand)cmds.getValue()[0];
+        assertEquals(5L, cmd.getQueueId());
+        assertEquals(SELF_MSID, cmd.getMsId());
+    }
+
+    @Test
+    public void testPeersThatLeftAreNotTold() {
+        ClusterManager clusterMgr = mock(ClusterManager.class);
+        SyncQueuePeerNotifier notifier = new SyncQueuePeerNotifier(SELF_MSID, clusterMgr);
+        notifier.onManagementNodeJoined(Arrays.asList(createNode(2, 1002)), SELF_ID);
+        notifier.onManagementNodeLeft(Arrays.asList(createNode(2, 1002)), SELF_ID);
+
+        notifier.notifyQueueReady(5L);
+        verify(clusterMgr, never()).executeAsync(anyString(), eq(0L), any(Command[].class), eq(false));
+    }
+}
@@ -0,0 +1,158 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+
+/**
+ * Measures how long the capacity part of a deployment plan takes when
+ * FirstFitPlanner and FirstFitAllocator get it from the HostCapacityIndex:
+ * ordering the pods and clusters of a zone of 10000 hosts, finding the ones
+ * that fit and checking the hosts of the first cluster, while the vms
+ * deployed take capacity from the hosts they land on.  It also counts the
+ * queries the same plan sends to op_host_capacity without the index.  It is
+ * not picked up by the regular build, run it with
+ * mvn test -Dtest=HostCapacityIndexBenchmark
+ */
+public class HostCapacityIndexBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(HostCapacityIndexBenchmark.class);
+
+    private static final int PODS = Integer.getInteger("capacityindex.benchmark.pods", 20);
+    private static final int CLUSTERS_PER_POD = Integer.getInteger("capacityindex.benchmark.clusters", 25);
+    private static final int HOSTS_PER_CLUSTER = Integer.getInteger("capacityindex.benchmark.hosts", 20);
+    private static final int PLANS = Integer.getInteger("capacityindex.benchmark.plans", 20000);
+
+    private static final long MB = 1024L * 1024L;
+    private static final long VM_CPU = 1000;
+    private static final long VM_RAM = 1024 * MB;
+
+    public void testDeployPlanLatency() {
+        HostCapacityIndex index = new HostCapacityIndex();
+        Map<Long, CapacityVO[]> hosts = new HashMap<Long, CapacityVO[]>();
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        Map<Long, Float> cpuRatios = new HashMap<Long, Float>();
+        Map<Long, Float> memoryRatios = new HashMap<Long, Float>();
+        Random random = new Random(1);
+        long hostId = 1;
+        for (long pod = 1; pod <= PODS; pod++) {
+            for (long cluster = pod * 1000; cluster < pod * 1000 + CLUSTERS_PER_POD; cluster++) {
+                cpuRatios.put(cluster, 2.0f);
+                memoryRatios.put(cluster, 1.0f);
+                for (int i = 0; i < HOSTS_PER_CLUSTER; i++, hostId++) {
+                    CapacityVO cpu = new CapacityVO(hostId, 1L, pod, cluster, random.nextInt(32) * VM_CPU, 32 * VM_CPU, CapacityVO.CAPACITY_TYPE_CPU);
+                    CapacityVO memory = new CapacityVO(hostId, 1L, pod, cluster, random.nextInt(64) * VM_RAM, 64 * VM_RAM, CapacityVO.CAPACITY_TYPE_MEMORY);
+                    capacities.addAll(Arrays.asList(cpu, memory));
+                    hosts.put(hostId, new CapacityVO[] { cpu, memory });
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        index.reconcile(index.getVersion(), capacities, cpuRatios, memoryRatios);
+        s_logger.info("Loading " + index.getHostCount() + " hosts took " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        for (int warmup = 0; warmup < 2; warmup++) {
+            plan(index, hosts, PLANS / 4, null);
+        }
+        long[] latencies = new long[PLANS];
+        int queries = plan(index, hosts, PLANS, latencies);
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        s_logger.info(PLANS + " plans over " + index.getHostCount() + " hosts: mean " + total / PLANS / 1000 + " us, p50 " + latencies[PLANS / 2] / 1000 + " us, p99 "
+                + latencies[PLANS * 99 / 100] / 1000 + " us, max " + latencies[PLANS - 1] / 1000 + " us; the same plans send " + queries / PLANS
+                + " queries each to op_host_capacity without the index");
+
+        start = System.nanoTime();
+        index.reconcile(index.getVersion(), capacities, cpuRatios, memoryRatios);
+        s_logger.info("Reconciling " + index.getHostCount() + " hosts took " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Plans and deploys vms until it has done the given number of plans, and
+     * releases all vms whenever the zone is full.
+     *
+     * @return the number of queries the plans would have sent to the database.
+     */
+    private int plan(HostCapacityIndex index, Map<Long, CapacityVO[]> hosts, int plans, long[] latencies) {
+        int queries = 0;
+        for (int i = 0; i < plans; i++) {
+            long start = System.nanoTime();
+            Long deployedTo = null;
+            // listPodsByCapacity() and listClustersByCapacity() then FirstFitAllocator on the first cluster that has a host
+            List<Long> podIds = index.listPodsWithCapacity(1, VM_CPU, VM_RAM);
+            Pair<List<Long>, Map<Long, Double>> pods = index.orderPodsByAggregateCapacity(1, CapacityVO.CAPACITY_TYPE_CPU);
+            pods.first().retainAll(podIds);
+            queries += 2;
+            for (Long podId : pods.first()) {
+                List<Long> clusterIds = index.listClustersWithCapacity(podId, false, VM_CPU, VM_RAM);
+                Pair<List<Long>, Map<Long, Double>> clusters = index.orderClustersByAggregateCapacity(podId, false, CapacityVO.CAPACITY_TYPE_CPU);
+                clusters.first().retainAll(clusterIds);
+                queries += 2;
+                for (Long clusterId : clusters.first()) {
+                    long firstHostId = (clusterId / 1000 - 1) * CLUSTERS_PER_POD * HOSTS_PER_CLUSTER + (clusterId % 1000) * HOSTS_PER_CLUSTER + 1;
+                    for (long hostId = firstHostId; hostId < firstHostId + HOSTS_PER_CLUSTER; hostId++) {
+                        HostCapacityIndex.HostCapacity host = index.getHostCapacity(hostId);
+                        queries += 2;
+                        if ((long)(host.getTotalCpu() * 2.0f) - host.getUsedCpu() - host.getReservedCpu() >= VM_CPU
+                                && host.getTotalMemory() - host.getUsedMemory() - host.getReservedMemory() >= VM_RAM) {
+                            deployedTo = hostId;
+                            break;
+                        }
+                    }
+                    if (deployedTo != null) {
+                        break;
+                    }
+                }
+                if (deployedTo != null) {
+                    break;
+                }
+            }
+            if (latencies != null) {
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            if (deployedTo != null) {
+                // What allocateVmCapacity() hands to the index once it has committed
+                CapacityVO[] capacity = hosts.get(deployedTo);
+                capacity[0].setUsedCapacity(capacity[0].getUsedCapacity() + VM_CPU);
+                capacity[1].setUsedCapacity(capacity[1].getUsedCapacity() + VM_RAM);
+                index.update(capacity[0], capacity[1]);
+            } else {
+                for (CapacityVO[] capacity : hosts.values()) {
+                    capacity[0].setUsedCapacity(0);
+                    capacity[1].setUsedCapacity(0);
+                    index.update(capacity[0], capacity[1]);
+                }
+            }
+        }
+        return queries;
+    }
+}
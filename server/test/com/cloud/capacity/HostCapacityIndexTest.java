@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+
+public class HostCapacityIndexTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private HostCapacityIndex _index;
+    private List<CapacityVO> _capacities;
+    private Map<Long, Float> _cpuRatios;
+    private Map<Long, Float> _memoryRatios;
+
+    @Before
+    public void setUp() {
+        _index = new HostCapacityIndex();
+        _capacities = new ArrayList<CapacityVO>();
+        _cpuRatios = new HashMap<Long, Float>();
+        _memoryRatios = new HashMap<Long, Float>();
+
+        // Zone 1: pod 10 has clusters 100 and 101, pod 11 has cluster 110
+        addHost(1, 1, 10, 100, 1000, 8000, 2 * GB, 16 * GB);
+        addHost(2, 1, 10, 100, 7500, 8000, 15 * GB, 16 * GB);
+        addHost(3, 1, 10, 101, 2000, 4000, 10 * GB, 16 * GB);
+        addHost(4, 1, 11, 110, 6000, 8000, 4 * GB, 8 * GB);
+        // Zone 2
+        addHost(5, 2, 20, 200, 0, 8000, 0, 16 * GB);
+        _cpuRatios.put(110L, 2.0f);
+    }
+
+    private void addHost(long hostId, long zoneId, long podId, long clusterId, long usedCpu, long totalCpu, long usedMemory, long totalMemory) {
+        _capacities.add(new CapacityVO(hostId, zoneId, podId, clusterId, usedCpu, totalCpu, CapacityVO.CAPACITY_TYPE_CPU));
+        _capacities.add(new CapacityVO(hostId, zoneId, podId, clusterId, usedMemory, totalMemory, CapacityVO.CAPACITY_TYPE_MEMORY));
+    }
+
+    private static CapacityVO find(List<CapacityVO> capacities, long hostId, short type) {
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getHostOrPoolId() == hostId && capacity.getCapacityType() == type) {
+                return capacity;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testClustersAndPodsThatFit() {
+        assertNull(_index.getHostCapacity(1));
+        assertFalse(_index.isReady());
+        _index.reconcile(_index.getVersion(), _capacities, _cpuRatios, _memoryRatios);
+        assertTrue(_index.isReady());
+        assertEquals(5, _index.getHostCount());
+
+        // Cluster 101 lacks the cpu and cluster 110 the memory, host 1 has both
+        assertEquals(Arrays.asList(100L), _index.listClustersWithCapacity(1, true, 5000, 5 * GB));
+        // Cluster 110 only has the cpu with its overcommit ratio
+        assertEquals(Arrays.asList(100L, 110L), sorted(_index.listClustersWithCapacity(1, true, 2500, 4 * GB)));
+        assertEquals(Arrays.asList(100L, 101L), sorted(_index.listClustersWithCapacity(10, false, 1000, GB)));
+        assertTrue(_index.listClustersWithCapacity(1, true, 11000, GB).isEmpty());
+        assertTrue(_index.listClustersWithCapacity(2, true, 1000, 17 * GB).isEmpty());
+        assertEquals(Arrays.asList(10L, 11L), sorted(_index.listPodsWithCapacity(1, 2500, 4 * GB)));
+        assertEquals(Arrays.asList(10L), _index.listPodsWithCapacity(1, 5000, 5 * GB));
+
+        // Used over total cpu: cluster 110 is 6000/16000, 101 is 2000/4000 and 100 is 8500/16000
+        Pair<List<Long>, Map<Long, Double>> clusters = _index.orderClustersByAggregateCapacity(1, true, CapacityVO.CAPACITY_TYPE_CPU);
+        assertEquals(Arrays.asList(110L, 101L, 100L), clusters.first());
+        assertEquals(0.375, clusters.second().get(110L), 0.0001);
+        // Used over total memory: cluster 100 is 17/32, pod 11 is 4/8 and pod 10 is 27/48
+        clusters = _index.orderClustersByAggregateCapacity(10, false, CapacityVO.CAPACITY_TYPE_MEMORY);
+        assertEquals(Arrays.asList(100L, 101L), clusters.first());
+        Pair<List<Long>, Map<Long, Double>> pods = _index.orderPodsByAggregateCapacity(1, CapacityVO.CAPACITY_TYPE_MEMORY);
+        assertEquals(Arrays.asList(11L, 10L), pods.first());
+        assertEquals(27.0 / 48, pods.second().get(10L), 0.0001);
+    }
+
+    @Test
+    public void testUpdatesAreKeptByAnOlderReconcile() {
+        _index.reconcile(_index.getVersion(), _capacities, _cpuRatios, _memoryRatios);
+        assertEquals(Arrays.asList(100L), _index.listClustersWithCapacity(10, false, 5000, GB));
+
+        // Read the rows, then a vm is allocated to host 1 before the index is reconciled with them
+        long version = _index.getVersion();
+        List<CapacityVO> stale = new ArrayList<CapacityVO>(_capacities);
+        CapacityVO cpu = new CapacityVO(1L, 1L, 10L, 100L, 6000, 8000, CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO memory = new CapacityVO(1L, 1L, 10L, 100L, 4 * GB, 16 * GB, CapacityVO.CAPACITY_TYPE_MEMORY);
+        _index.update(cpu, memory);
+        assertTrue(_index.listClustersWithCapacity(10, false, 5000, GB).isEmpty());
+
+        // Host 3 is gone from the database
+        stale.remove(find(stale, 3, CapacityVO.CAPACITY_TYPE_CPU));
+        stale.remove(find(stale, 3, CapacityVO.CAPACITY_TYPE_MEMORY));
+        _index.reconcile(version, stale, _cpuRatios, _memoryRatios);
+
+        assertEquals(6000, _index.getHostCapacity(1).getUsedCpu());
+        assertNull(_index.getHostCapacity(3));
+        assertEquals(4, _index.getHostCount());
+        assertEquals(Arrays.asList(100L), _index.orderClustersByAggregateCapacity(10, false, CapacityVO.CAPACITY_TYPE_CPU).first());
+
+        // The next reconcile takes the database for what it is
+        _index.reconcile(_index.getVersion(), stale, _cpuRatios, _memoryRatios);
+        assertEquals(1000, _index.getHostCapacity(1).getUsedCpu());
+    }
+
+    @Test
+    public void testReservedCapacityCountsAsAvailable() {
+        CapacityVO cpu = find(_capacities, 2, CapacityVO.CAPACITY_TYPE_CPU);
+        _index.reconcile(_index.getVersion(), _capacities, _cpuRatios, _memoryRatios);
+        assertTrue(_index.listClustersWithCapacity(10, false, 7200, GB).isEmpty());
+
+        cpu.setReservedCapacity(7000);
+        _index.update(cpu, find(_capacities, 2, CapacityVO.CAPACITY_TYPE_MEMORY));
+
+        // Like listClustersInZoneOrPodByHostCapacities(), a host's reserved capacity can be taken back
+        assertEquals(Arrays.asList(100L), _index.listClustersWithCapacity(10, false, 7200, GB));
+        assertEquals(7000, _index.getHostCapacity(2).getReservedCpu());
+    }
+
+    private static List<Long> sorted(List<Long> ids) {
+        List<Long> sorted = new ArrayList<Long>(ids);
+        java.util.Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,153 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.event.dao.EventDao;
+
+public class EventJournalTest {
+    private final List<Integer> _batches = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<EventVO> _written = Collections.synchronizedList(new ArrayList<EventVO>());
+    private EventJournal _journal;
+
+    @After
+    public void tearDown() {
+        if (_journal != null) {
+            _journal.stop();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private EventDao createEventDao(final boolean failBatches) {
+        EventDao eventDao = mock(EventDao.class);
+        when(eventDao.persistAll(anyList())).thenAnswer(new Answer<List<EventVO>>() {
+            @Override
+            public List<EventVO> answer(InvocationOnMock invocation) throws Throwable {
+                List<EventVO> events = (List<EventVO>)invocation.getArguments()[0];
+                if (failBatches) {
+                    throw new RuntimeException("Batch failed");
+                }
+                _batches.add(events.size());
+                _written.addAll(events);
+                return events;
+            }
+        });
+        when(eventDao.persist(any(EventVO.class))).thenAnswer(new Answer<EventVO>() {
+            @Override
+            public EventVO answer(InvocationOnMock invocation) throws Throwable {
+                EventVO event = (EventVO)invocation.getArguments()[0];
+                _written.add(event);
+                return event;
+            }
+        });
+        return eventDao;
+    }
+
+    private EventVO createEvent(int i) {
+        EventVO event = new EventVO();
+        event.setType(EventTypes.EVENT_VM_START);
+        event.setDescription("Starting VM " + i);
+        return event;
+    }
+
+    private void waitForWrites(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_written.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, _written.size());
+    }
+
+    @Test
+    public void testEventsAreWrittenInBatches() throws Exception {
+        _journal = new EventJournal(createEventDao(false), 1000, 50, 200);
+        _journal.start();
+
+        for (int i = 0; i < 500; i++) {
+            assertTrue(_journal.journal(createEvent(i)));
+        }
+        waitForWrites(500);
+
+        assertTrue("Written in " + _batches.size() + " batches", _batches.size() < 500 / 5);
+        for (int size : _batches) {
+            assertTrue(size <= 50);
+        }
+        assertEquals("Starting VM 0", _written.get(0).getDescription());
+        assertEquals("Starting VM 499", _written.get(499).getDescription());
+    }
+
+    @Test
+    public void testBatchIsWrittenWithinMaxDelay() throws Exception {
+        _journal = new EventJournal(createEventDao(false), 1000, 50, 200);
+        _journal.start();
+
+        long start = System.currentTimeMillis();
+        _journal.journal(createEvent(0));
+        waitForWrites(1);
+        long delay = System.currentTimeMillis() - start;
+        assertTrue("Written after " + delay + " ms", delay < 2000);
+        assertEquals(1, _journal.getWriteDelays().getCount());
+        // a single event waits the whole delay for others to batch with
+        assertTrue(_journal.getWriteDelays().getMax() >= 150);
+    }
+
+    @Test
+    public void testEventsAreWrittenOneByOneWhenBatchFails() throws Exception {
+        _journal = new EventJournal(createEventDao(true), 1000, 50, 50);
+        _journal.start();
+
+        for (int i = 0; i < 20; i++) {
+            _journal.journal(createEvent(i));
+        }
+        waitForWrites(20);
+        assertTrue(_batches.isEmpty());
+    }
+
+    @Test
+    public void testFullOrStoppedJournalRefusesEvents() throws Exception {
+        // not started so nothing is taken off the queue
+        _journal = new EventJournal(createEventDao(false), 10, 50, 50);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(_journal.journal(createEvent(i)));
+        }
+        assertFalse(_journal.journal(createEvent(10)));
+        assertEquals(10, _journal.getQueueSize());
+
+        _journal.start();
+        _journal.stop();
+        assertEquals(0, _journal.getQueueSize());
+        assertEquals(10, _written.size());
+        assertFalse(_journal.journal(createEvent(11)));
+        _journal = null;
+    }
+}
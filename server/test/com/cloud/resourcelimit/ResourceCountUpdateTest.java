@@ -0,0 +1,329 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.configuration.Resource.ResourceOwnerType;
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceCountVO;
+import com.cloud.configuration.ResourceLimitVO;
+import com.cloud.configuration.dao.ResourceCountDao;
+import com.cloud.configuration.dao.ResourceLimitDao;
+import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.exception.ResourceAllocationException;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * ROOT (1) <- domain 2 <- account 10, the resource_count rows are kept in
+ * memory by a mocked ResourceCountDao.
+ */
+public class ResourceCountUpdateTest extends TestCase {
+    private static final long DOMAIN_ID = 2;
+    private static final long ACCOUNT_ID = 10;
+    private static final ResourceType TYPE = ResourceType.user_vm;
+
+    @Mock ResourceCountDao _resourceCountDao;
+    @Mock ResourceLimitDao _resourceLimitDao;
+    @Mock DomainDao _domainDao;
+    @Mock AccountDao _accountDao;
+    @Mock AccountManager _accountMgr;
+    @InjectMocks TestResourceLimitManager _resourceLimitMgr = new TestResourceLimitManager();
+
+    private final Map<String, Long> _rowIds = new HashMap<String, Long>();
+    private final Map<Long, AtomicLong> _counts = new HashMap<Long, AtomicLong>();
+    private AccountVO _account;
+
+    static class TestResourceLimitManager extends ResourceLimitManagerImpl {
+        final Set<Long> lockedRows = Collections.synchronizedSet(new TreeSet<Long>());
+
+        @Override
+        protected void lockRows(Set<Long> rowIds, ResourceType type) {
+            lockedRows.addAll(rowIds);
+        }
+    }
+
+    @Override
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        addRow(ACCOUNT_ID, ResourceOwnerType.Account, 100);
+        addRow(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, 101);
+        addRow(DOMAIN_ID, ResourceOwnerType.Domain, 102);
+
+        DomainVO root = mock(DomainVO.class);
+        when(root.getId()).thenReturn(Domain.ROOT_DOMAIN);
+        when(root.getParent()).thenReturn(null);
+        DomainVO domain = mock(DomainVO.class);
+        when(domain.getId()).thenReturn(DOMAIN_ID);
+        when(domain.getParent()).thenReturn(Domain.ROOT_DOMAIN);
+        when(_domainDao.findById(Domain.ROOT_DOMAIN)).thenReturn(root);
+        when(_domainDao.findById(DOMAIN_ID)).thenReturn(domain);
+        when(_domainDao.findImmediateChildrenForParent(Domain.ROOT_DOMAIN)).thenReturn(Arrays.asList(domain));
+        when(_domainDao.findImmediateChildrenForParent(DOMAIN_ID)).thenReturn(new ArrayList<DomainVO>());
+
+        _account = new AccountVO(ACCOUNT_ID);
+        _account.setDomainId(DOMAIN_ID);
+        when(_accountDao.findByIdIncludingRemoved(ACCOUNT_ID)).thenReturn(_account);
+        when(_accountDao.findActiveAccountsForDomain(Domain.ROOT_DOMAIN)).thenReturn(new ArrayList<AccountVO>());
+        when(_accountDao.findActiveAccountsForDomain(DOMAIN_ID)).thenReturn(Arrays.asList(_account));
+        _resourceLimitMgr.accountResourceLimitMap.put(TYPE, 20L);
+
+        when(_resourceCountDao.findByOwnerAndType(anyLong(), any(ResourceOwnerType.class), eq(TYPE))).thenAnswer(new Answer<ResourceCountVO>() {
+            @Override
+            public ResourceCountVO answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                Long id = _rowIds.get(args[1] + "-" + args[0]);
+                if (id == null) {
+                    return null;
+                }
+                ResourceCountVO row = new ResourceCountVO();
+                row.setId(id);
+                return row;
+            }
+        });
+        when(_resourceCountDao.getResourceCount(anyLong(), any(ResourceOwnerType.class), eq(TYPE))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return getCount((Long)args[0], (ResourceOwnerType)args[1]);
+            }
+        });
+        when(_resourceCountDao.changeCountBy(anyCollection(), anyLong())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                Collection<?> ids = (Collection<?>)invocation.getArguments()[0];
+                long delta = (Long)invocation.getArguments()[1];
+                for (Object id : ids) {
+                    _counts.get(id).addAndGet(delta);
+                }
+                return ids.size();
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        setDomainLimit(1000);
+        final int threads = 8;
+        final int increments = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    Transaction txn = Transaction.open("run");
+                    try {
+                        start.await();
+                        for (int j = 0; j < increments; j++) {
+                            _resourceLimitMgr.incrementResourceCount(ACCOUNT_ID, TYPE);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        txn.close();
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // the limited domain changes with the transactions, ROOT after they commit, neither loses an update
+        assertEquals(threads * increments, getCount(ACCOUNT_ID, ResourceOwnerType.Account));
+        assertEquals(threads * increments, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+        assertEquals(threads * increments, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+    }
+
+    @Test
+    public void testDeferredRowsChangeOnCommit() {
+        Transaction txn = Transaction.open("testDeferredRowsChangeOnCommit");
+        try {
+            txn.start();
+            _resourceLimitMgr.incrementResourceCount(ACCOUNT_ID, TYPE, 3L);
+            assertEquals(3, getCount(ACCOUNT_ID, ResourceOwnerType.Account));
+            assertEquals(0, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+            assertEquals(0, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+            txn.commit();
+
+            assertEquals(3, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+            assertEquals(3, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testDeferredRowsDroppedOnRollback() {
+        Transaction txn = Transaction.open("testDeferredRowsDroppedOnRollback");
+        try {
+            txn.start();
+            _resourceLimitMgr.incrementResourceCount(ACCOUNT_ID, TYPE, 3L);
+            txn.rollback();
+
+            assertEquals(0, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+            assertEquals(0, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testLimitIsExact() throws Exception {
+        setDomainLimit(5);
+        setCount(DOMAIN_ID, ResourceOwnerType.Domain, 4);
+        // ROOT is only updated after commit and may lag behind, it must not be checked
+        setCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, 1000);
+
+        Transaction txn = Transaction.open("testLimitIsExact");
+        try {
+            _resourceLimitMgr.checkResourceLimit(_account, TYPE, 1);
+            try {
+                _resourceLimitMgr.checkResourceLimit(_account, TYPE, 2);
+                fail("The domain limit of 5 is exceeded by 4 + 2");
+            } catch (ResourceAllocationException e) {
+                // expected
+            }
+        } finally {
+            txn.close();
+        }
+        assertEquals(new TreeSet<Long>(Arrays.asList(100L, 102L)), _resourceLimitMgr.lockedRows);
+    }
+
+    @Test
+    public void testLimitIsExactAfterIncrement() throws Exception {
+        setDomainLimit(5);
+
+        Transaction txn = Transaction.open("testLimitIsExactAfterIncrement");
+        try {
+            txn.start();
+            _resourceLimitMgr.incrementResourceCount(ACCOUNT_ID, TYPE, 5L);
+            // the limited domain row has the change before the transaction commits
+            try {
+                _resourceLimitMgr.checkResourceLimit(_account, TYPE, 1);
+                fail("The domain is at its limit");
+            } catch (ResourceAllocationException e) {
+                // expected
+            }
+            txn.commit();
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testRecountFixesDeferredRows() {
+        setCount(ACCOUNT_ID, ResourceOwnerType.Account, 7);
+        setCount(DOMAIN_ID, ResourceOwnerType.Domain, 3);
+        setCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, 0);
+        recordSetResourceCount();
+
+        Transaction txn = Transaction.open("testRecountFixesDeferredRows");
+        try {
+            assertEquals(7, _resourceLimitMgr.recountDeferredDomainResourceCount(Domain.ROOT_DOMAIN, TYPE));
+        } finally {
+            txn.close();
+        }
+        assertEquals(7, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+        assertEquals(7, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+    }
+
+    @Test
+    public void testRecountLeavesLimitedRows() {
+        setDomainLimit(10);
+        setCount(ACCOUNT_ID, ResourceOwnerType.Account, 7);
+        setCount(DOMAIN_ID, ResourceOwnerType.Domain, 3);
+        recordSetResourceCount();
+
+        Transaction txn = Transaction.open("testRecountLeavesLimitedRows");
+        try {
+            assertEquals(3, _resourceLimitMgr.recountDeferredDomainResourceCount(Domain.ROOT_DOMAIN, TYPE));
+        } finally {
+            txn.close();
+        }
+        assertEquals(3, getCount(DOMAIN_ID, ResourceOwnerType.Domain));
+        assertEquals(3, getCount(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain));
+    }
+
+    private void addRow(long ownerId, ResourceOwnerType ownerType, long rowId) {
+        _rowIds.put(ownerType + "-" + ownerId, rowId);
+        _counts.put(rowId, new AtomicLong());
+    }
+
+    private long getCount(long ownerId, ResourceOwnerType ownerType) {
+        return _counts.get(_rowIds.get(ownerType + "-" + ownerId)).get();
+    }
+
+    private void setCount(long ownerId, ResourceOwnerType ownerType, long count) {
+        _counts.get(_rowIds.get(ownerType + "-" + ownerId)).set(count);
+    }
+
+    private void setDomainLimit(long max) {
+        when(_resourceLimitDao.findByOwnerIdAndType(DOMAIN_ID, ResourceOwnerType.Domain, TYPE)).thenReturn(
+                new ResourceLimitVO(TYPE, max, DOMAIN_ID, ResourceOwnerType.Domain));
+    }
+
+    private void recordSetResourceCount() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                setCount((Long)args[0], (ResourceOwnerType)args[1], (Long)args[3]);
+                return null;
+            }
+        }).when(_resourceCountDao).setResourceCount(anyLong(), any(ResourceOwnerType.class), eq(TYPE), anyLong());
+    }
+}
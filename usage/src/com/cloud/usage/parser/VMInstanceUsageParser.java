@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -111,6 +112,7 @@ public class VMInstanceUsageParser {
             }
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String vmIdKey : usageVMUptimeMap.keySet()) {
             Pair<String, Long> vmUptimeInfo = usageVMUptimeMap.get(vmIdKey);
             long runningTime = vmUptimeInfo.second().longValue();
@@ -118,7 +120,7 @@ public class VMInstanceUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (runningTime > 0L) {
                 VMInfo info = vmServiceOfferingMap.get(vmIdKey);
-                createUsageRecord(UsageTypes.RUNNING_VM, runningTime, startDate, endDate, account, info.getVirtualMachineId(), vmUptimeInfo.first(), info.getZoneId(), 
+                createUsageRecord(usageRecords, UsageTypes.RUNNING_VM, runningTime, startDate, endDate, account, info.getVirtualMachineId(), vmUptimeInfo.first(), info.getZoneId(), 
                         info.getServiceOfferingId(), info.getTemplateId(), info.getHypervisorType());
             }
         }
@@ -130,11 +132,12 @@ public class VMInstanceUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (allocatedTime > 0L) {
                 VMInfo info = vmServiceOfferingMap.get(vmIdKey);
-                createUsageRecord(UsageTypes.ALLOCATED_VM, allocatedTime, startDate, endDate, account, info.getVirtualMachineId(), vmAllocInfo.first(), info.getZoneId(), 
+                createUsageRecord(usageRecords, UsageTypes.ALLOCATED_VM, allocatedTime, startDate, endDate, account, info.getVirtualMachineId(), vmAllocInfo.first(), info.getZoneId(), 
                         info.getServiceOfferingId(), info.getTemplateId(), info.getHypervisorType());
             }
         }
 
+        m_usageDao.saveAll(usageRecords);
         return true;
     }
 
@@ -150,7 +153,7 @@ public class VMInstanceUsageParser {
         usageDataMap.put(key, vmUsageInfo);
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, String vmName, long zoneId, long serviceOfferingId, long templateId, String hypervisorType) {
+    private static void createUsageRecord(List<UsageVO> usageRecords, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, String vmName, long zoneId, long serviceOfferingId, long templateId, String hypervisorType) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -175,7 +178,7 @@ public class VMInstanceUsageParser {
         usageDesc += " (ServiceOffering: " + serviceOfferingId + ") (Template: " + templateId + ")";
         UsageVO usageRecord = new UsageVO(Long.valueOf(zoneId), account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), Long.valueOf(vmId), vmName, Long.valueOf(serviceOfferingId), Long.valueOf(templateId), Long.valueOf(vmId), startDate, endDate, hypervisorType);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 
     private static class VMInfo {
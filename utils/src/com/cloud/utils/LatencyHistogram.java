@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in milliseconds into fixed, roughly
+ * logarithmic buckets.  Recording is lock free so it can sit on hot paths.
+ * Percentiles are estimated as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000 };
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong _count = new AtomicLong(0);
+    private final AtomicLong _sum = new AtomicLong(0);
+    private final AtomicLong _max = new AtomicLong(0);
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        _counts.incrementAndGet(i);
+        _count.incrementAndGet();
+        _sum.addAndGet(millis);
+        long max;
+        while (millis > (max = _max.get()) && !_max.compareAndSet(max, millis)) {
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getMean() {
+        long count = _count.get();
+        return count == 0 ? 0 : _sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound, in milliseconds, of the bucket the percentile
+     * falls in, or the maximum recorded for the last bucket.
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        long[] counts = new long[BOUNDS.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = _counts.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < _counts.length(); i++) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+
+    /**
+     * @return count, mean, max, p50, p90, p99 and the non empty buckets,
+     * keyed by their upper bound, in a form that can be shown over JMX.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("count", Long.toString(getCount()));
+        map.put("mean", Long.toString(getMean()));
+        map.put("max", Long.toString(getMax()));
+        map.put("p50", Long.toString(getPercentile(50)));
+        map.put("p90", Long.toString(getPercentile(90)));
+        map.put("p99", Long.toString(getPercentile(99)));
+        for (int i = 0; i < _counts.length(); i++) {
+            long count = _counts.get(i);
+            if (count > 0) {
+                map.put(i < BOUNDS.length ? "<=" + BOUNDS[i] + "ms" : ">" + BOUNDS[BOUNDS.length - 1] + "ms", Long.toString(count));
+            }
+        }
+        return map;
+    }
+}
@@ -38,9 +38,18 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
@@ -51,10 +60,17 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 public final class S3Utils {
@@ -66,6 +82,17 @@ public final class S3Utils {
     private static final int MIN_BUCKET_NAME_LENGTH = 3;
     private static final int MAX_BUCKET_NAME_LENGTH = 63;
 
+    // Objects larger than this are sent in parts and fetched in ranges
+    static final long MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    static final long PART_SIZE = 8L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    // Parts wait in the queue of the pool, only this many are in flight
+    static final int MAX_TRANSFER_THREADS = 8;
+    private static final int PART_ATTEMPTS = 3;
+    private static final long PART_RETRY_DELAY = 500;
+    private static final long TRANSFER_WAIT_INTERVAL = 30;
+
     private S3Utils() {
         super();
     }
@@ -134,7 +161,8 @@ public final class S3Utils {
                     + "bucket %3$s", sourceFile.getName(), key, bucketName));
         }
 
-        acquireClient(clientOptions).putObject(bucketName, key, sourceFile);
+        putFiles(acquireClient(clientOptions), bucketName,
+                singletonList(sourceFile), singletonList(key));
 
     }
 
@@ -151,46 +179,101 @@ public final class S3Utils {
 
         final AmazonS3 connection = acquireClient(clientOptions);
 
-        File tempFile = null;
+        final ObjectMetadata metadata = connection.getObjectMetadata(
+                bucketName, key);
+
+        return getFiles(connection, bucketName, singletonList(key),
+                singletonList(metadata.getContentLength()),
+                singletonList(metadata.getETag()), targetDirectory,
+                namingStrategy).get(0);
+
+    }
+
+    /**
+     * Downloads the objects into temporary files in the target directory and
+     * renames them once all of them are there.  Small objects take one get
+     * each, larger ones are fetched in ranges.  The gets of all objects
+     * share one pool of MAX_TRANSFER_THREADS.  The ranges only match the
+     * ETag the size was read with, so an object replaced during the
+     * download fails it instead of mixing two versions.
+     */
+    private static List<File> getFiles(final AmazonS3 connection,
+            final String bucketName, final List<String> keys,
+            final List<Long> sizes, final List<String> eTags,
+            final File targetDirectory, final FileNamingStrategy namingStrategy) {
+
+        final List<File> tempFiles = new ArrayList<File>();
+        final List<Part> parts = new ArrayList<Part>();
         try {
 
-            tempFile = createTempFile(
-                    join(asList(targetDirectory.getName(), currentTimeMillis(),
-                            "part"), "-"), "tmp", targetDirectory);
-            tempFile.deleteOnExit();
+            for (int i = 0; i < keys.size(); i++) {
+
+                final String key = keys.get(i);
+                final long size = sizes.get(i);
+
+                final File tempFile = createTempFile(
+                        join(asList(targetDirectory.getName(),
+                                currentTimeMillis(), "part"), "-"), "tmp",
+                        targetDirectory);
+                tempFile.deleteOnExit();
+                tempFiles.add(tempFile);
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(format(
+                            "Downloading object %1$s (%2$s bytes) from bucket %3$s to temp file %4$s",
+                            key, size, bucketName, tempFile.getName()));
+                }
+
+                if (size <= MULTIPART_THRESHOLD) {
+                    parts.add(new GetObjectPart(bucketName, key, tempFile));
+                    continue;
+                }
+
+                // Preallocate so that the ranges can be written in any order
+                final RandomAccessFile file = new RandomAccessFile(tempFile,
+                        "rw");
+                try {
+                    file.setLength(size);
+                } finally {
+                    file.close();
+                }
+                final long partSize = determinePartSize(size);
+                for (long offset = 0; offset < size; offset += partSize) {
+                    parts.add(new GetRangePart(bucketName, key, eTags.get(i),
+                            tempFile, offset, Math.min(partSize, size - offset)));
+                }
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(format(
-                        "Downloading object %1$s from bucket %2$s to temp file %3$s",
-                        key, bucketName, tempFile.getName()));
             }
 
-            connection.getObject(new GetObjectRequest(bucketName, key),
-                    tempFile);
+            transferParts(connection, parts);
 
-            final File targetFile = new File(targetDirectory,
-                    namingStrategy.determineFileName(key));
-            tempFile.renameTo(targetFile);
+            final List<File> files = new ArrayList<File>();
+            for (int i = 0; i < keys.size(); i++) {
+                final File targetFile = new File(targetDirectory,
+                        namingStrategy.determineFileName(keys.get(i)));
+                tempFiles.get(i).renameTo(targetFile);
+                files.add(targetFile);
+            }
 
-            return targetFile;
+            return files;
 
         } catch (FileNotFoundException e) {
 
             throw new CloudRuntimeException(
-                    format("Failed open file %1$s in order to get object %2$s from bucket %3$s.",
-                            targetDirectory.getAbsoluteFile(), bucketName, key),
+                    format("Failed open file %1$s in order to get objects %2$s from bucket %3$s.",
+                            targetDirectory.getAbsoluteFile(), keys, bucketName),
                     e);
 
         } catch (IOException e) {
 
             throw new CloudRuntimeException(
                     format("Unable to allocate temporary file in directory %1$s to download %2$s:%3$s from S3",
-                            targetDirectory.getAbsolutePath(), bucketName, key),
+                            targetDirectory.getAbsolutePath(), bucketName, keys),
                     e);
 
         } finally {
 
-            if (tempFile != null) {
+            for (final File tempFile : tempFiles) {
                 tempFile.delete();
             }
 
@@ -212,16 +295,20 @@ public final class S3Utils {
         // List the objects in the source directory on S3
         final List<S3ObjectSummary> objectSummaries = listDirectory(bucketName,
                 sourcePath, connection);
-        final List<File> files = new ArrayList<File>();
+        final List<String> keys = new ArrayList<String>();
+        final List<Long> sizes = new ArrayList<Long>();
+        final List<String> eTags = new ArrayList<String>();
 
         for (final S3ObjectSummary objectSummary : objectSummaries) {
 
-            files.add(getFile(clientOptions, bucketName,
-                    objectSummary.getKey(), targetDirectory, namingStrategy));
+            keys.add(objectSummary.getKey());
+            sizes.add(objectSummary.getSize());
+            eTags.add(objectSummary.getETag());
 
         }
 
-        return unmodifiableList(files);
+        return unmodifiableList(getFiles(connection, bucketName, keys, sizes,
+                eTags, targetDirectory, namingStrategy));
 
     }
 
@@ -272,6 +359,7 @@ public final class S3Utils {
 
         // Send the files to S3 using the passed ObjectNaming strategy to
         // determine the key ...
+        final List<String> keys = new ArrayList<String>();
         for (final File file : files) {
             final String key = namingStrategy.determineKey(file);
             if (LOGGER.isDebugEnabled()) {
@@ -279,7 +367,191 @@ public final class S3Utils {
                         "Putting file %1$s into bucket %2$s with key %3$s.",
                         file.getAbsolutePath(), bucketName, key));
             }
-            client.putObject(bucketName, key, file);
+            keys.add(key);
+        }
+
+        putFiles(client, bucketName, asList(files), keys);
+
+    }
+
+    /**
+     * Sends the files with one put each if they are small and as multipart
+     * uploads if they are not.  The puts and the parts of all files share
+     * one pool of MAX_TRANSFER_THREADS.  The multipart uploads are aborted
+     * if any of them fails.
+     */
+    private static void putFiles(final AmazonS3 client,
+            final String bucketName, final List<File> files,
+            final List<String> keys) {
+
+        final List<MultipartUpload> uploads = new ArrayList<MultipartUpload>();
+        final List<Part> parts = new ArrayList<Part>();
+        boolean completed = false;
+        try {
+
+            for (int i = 0; i < files.size(); i++) {
+
+                final File file = files.get(i);
+                final long size = file.length();
+
+                if (size <= MULTIPART_THRESHOLD) {
+                    parts.add(new PutObjectPart(bucketName, keys.get(i), file));
+                    continue;
+                }
+
+                final String uploadId = client.initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(bucketName, keys
+                                .get(i))).getUploadId();
+                final MultipartUpload upload = new MultipartUpload(bucketName,
+                        keys.get(i), uploadId, file, determinePartSize(size));
+                uploads.add(upload);
+                parts.addAll(upload.getParts());
+
+            }
+
+            transferParts(client, parts);
+
+            for (final MultipartUpload upload : uploads) {
+                client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                        bucketName, upload.key, upload.uploadId, upload
+                                .getPartETags()));
+            }
+            completed = true;
+
+        } finally {
+
+            if (!completed) {
+                for (final MultipartUpload upload : uploads) {
+                    abortMultipartUpload(client, upload);
+                }
+            }
+
+        }
+
+    }
+
+    private static void abortMultipartUpload(final AmazonS3 client,
+            final MultipartUpload upload) {
+
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    upload.bucketName, upload.key, upload.uploadId));
+        } catch (AmazonClientException e) {
+            LOGGER.warn(format(
+                    "Unable to abort multipart upload %1$s of %2$s to bucket %3$s",
+                    upload.uploadId, upload.key, upload.bucketName), e);
+        }
+
+    }
+
+    private static long determinePartSize(final long size) {
+
+        // Stay within the number of parts S3 accepts for an object
+        return Math.max(PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+
+    }
+
+    /**
+     * Runs the parts on a pool of at most MAX_TRANSFER_THREADS and waits for
+     * all of them.  A part is tried PART_ATTEMPTS times, the first part to
+     * fail for good cancels the ones that have not run yet.  It only returns
+     * once no part is running any more, so that the caller can abort the
+     * uploads or delete the files the parts use.
+     */
+    private static void transferParts(final AmazonS3 client,
+            final List<Part> parts) {
+
+        if (parts.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_TRANSFER_THREADS, parts.size()),
+                new NamedThreadFactory("S3Transfer"));
+        try {
+
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Part part : parts) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        transferPart(client, part);
+                        return null;
+                    }
+
+                }));
+            }
+
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new CloudRuntimeException(
+                            "Interrupted while waiting for S3 transfers", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AmazonClientException) {
+                        throw (AmazonClientException) e.getCause();
+                    }
+                    throw new CloudRuntimeException(format(
+                            "S3 transfer failed: %1$s", e.getCause()
+                                    .getMessage()), e.getCause());
+                }
+            }
+
+        } finally {
+
+            executor.shutdownNow();
+            awaitTermination(executor);
+
+        }
+
+    }
+
+    private static void awaitTermination(final ExecutorService executor) {
+
+        try {
+            while (!executor.awaitTermination(TRANSFER_WAIT_INTERVAL,
+                    TimeUnit.SECONDS)) {
+                LOGGER.warn("Waiting for the S3 transfers still running to end");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for the S3 transfers still running to end");
+        }
+
+    }
+
+    private static void transferPart(final AmazonS3 client, final Part part)
+            throws IOException, InterruptedException {
+
+        for (int attempt = 1;; attempt++) {
+
+            try {
+
+                part.transfer(client);
+                return;
+
+            } catch (AmazonClientException e) {
+
+                if (attempt >= PART_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.warn(format("Attempt %1$s of %2$s failed: %3$s",
+                        attempt, part, e.getMessage()));
+
+            } catch (IOException e) {
+
+                if (attempt >= PART_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.warn(format("Attempt %1$s of %2$s failed: %3$s",
+                        attempt, part, e.getMessage()));
+
+            }
+
+            Thread.sleep(attempt * PART_RETRY_DELAY);
+
         }
 
     }
@@ -462,6 +734,210 @@ public final class S3Utils {
         return emptyList();
     }
 
+    /**
+     * A request that can be repeated as a whole when it fails.
+     */
+    private interface Part {
+
+        void transfer(AmazonS3 client) throws IOException;
+
+    }
+
+    private static final class PutObjectPart implements Part {
+
+        private final String bucketName;
+        private final String key;
+        private final File file;
+
+        PutObjectPart(final String bucketName, final String key,
+                final File file) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public void transfer(final AmazonS3 client) {
+            client.putObject(bucketName, key, file);
+        }
+
+        @Override
+        public String toString() {
+            return format("put of %1$s to %2$s", file.getName(), key);
+        }
+
+    }
+
+    private static final class MultipartUpload {
+
+        private final String bucketName;
+        private final String key;
+        private final String uploadId;
+        private final File file;
+        private final long partSize;
+        private final PartETag[] partETags;
+
+        MultipartUpload(final String bucketName, final String key,
+                final String uploadId, final File file, final long partSize) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.file = file;
+            this.partSize = partSize;
+            this.partETags = new PartETag[(int) ((file.length() + partSize - 1) / partSize)];
+        }
+
+        List<Part> getParts() {
+            final List<Part> parts = new ArrayList<Part>(partETags.length);
+            for (int i = 0; i < partETags.length; i++) {
+                parts.add(new UploadPart(this, i + 1));
+            }
+            return parts;
+        }
+
+        synchronized void setPartETag(final PartETag partETag) {
+            partETags[partETag.getPartNumber() - 1] = partETag;
+        }
+
+        synchronized List<PartETag> getPartETags() {
+            return asList(partETags);
+        }
+
+    }
+
+    private static final class UploadPart implements Part {
+
+        private final MultipartUpload upload;
+        private final int partNumber;
+
+        UploadPart(final MultipartUpload upload, final int partNumber) {
+            this.upload = upload;
+            this.partNumber = partNumber;
+        }
+
+        @Override
+        public void transfer(final AmazonS3 client) {
+            final long offset = (partNumber - 1) * upload.partSize;
+            final long size = Math.min(upload.partSize, upload.file.length()
+                    - offset);
+            upload.setPartETag(client.uploadPart(
+                    new UploadPartRequest().withBucketName(upload.bucketName)
+                            .withKey(upload.key)
+                            .withUploadId(upload.uploadId)
+                            .withPartNumber(partNumber)
+                            .withFile(upload.file).withFileOffset(offset)
+                            .withPartSize(size)
+                            .withLastPart(partNumber == upload.partETags.length))
+                    .getPartETag());
+        }
+
+        @Override
+        public String toString() {
+            return format("part %1$s of %2$s to %3$s", partNumber,
+                    upload.file.getName(), upload.key);
+        }
+
+    }
+
+    private static final class GetObjectPart implements Part {
+
+        private final String bucketName;
+        private final String key;
+        private final File file;
+
+        GetObjectPart(final String bucketName, final String key,
+                final File file) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public void transfer(final AmazonS3 client) {
+            client.getObject(new GetObjectRequest(bucketName, key), file);
+        }
+
+        @Override
+        public String toString() {
+            return format("get of %1$s", key);
+        }
+
+    }
+
+    private static final class GetRangePart implements Part {
+
+        private static final int BUFFER_SIZE = 1024 * 1024;
+
+        private final String bucketName;
+        private final String key;
+        private final String eTag;
+        private final File file;
+        private final long offset;
+        private final long size;
+
+        GetRangePart(final String bucketName, final String key,
+                final String eTag, final File file, final long offset,
+                final long size) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.eTag = eTag;
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public void transfer(final AmazonS3 client) throws IOException {
+
+            final GetObjectRequest request = new GetObjectRequest(bucketName,
+                    key).withRange(offset, offset + size - 1);
+            if (eTag != null) {
+                request.withMatchingETagConstraint(eTag);
+            }
+            final S3Object object = client.getObject(request);
+            if (object == null) {
+                // Not worth another attempt, the object is not the one the other ranges come from
+                throw new CloudRuntimeException(format(
+                        "Object %1$s in bucket %2$s changed during the download, its ETag is no longer %3$s",
+                        key, bucketName, eTag));
+            }
+            final InputStream in = object.getObjectContent();
+            final RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+
+                final FileChannel channel = out.getChannel();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                long position = offset;
+                int read;
+                while (position < offset + size
+                        && (read = in.read(buffer, 0, (int) Math.min(
+                                buffer.length, offset + size - position))) >= 0) {
+                    final ByteBuffer block = ByteBuffer.wrap(buffer, 0, read);
+                    while (block.hasRemaining()) {
+                        position += channel.write(block, position);
+                    }
+                }
+                if (position != offset + size) {
+                    throw new IOException(format(
+                            "Range %1$s-%2$s of %3$s ended after %4$s bytes",
+                            offset, offset + size - 1, key, position - offset));
+                }
+
+            } finally {
+                out.close();
+                in.close();
+            }
+
+        }
+
+        @Override
+        public String toString() {
+            return format("range %1$s-%2$s of %3$s", offset, offset + size
+                    - 1, key);
+        }
+
+    }
+
     public interface ClientOptions {
 
         String getAccessKey();
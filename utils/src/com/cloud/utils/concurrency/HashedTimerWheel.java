@@ -0,0 +1,307 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HashedTimerWheel runs tasks after a delay, for the case where there are a
+ * lot of timeouts and most of them are cancelled before they expire, like
+ * the timeouts of the requests sent to agents.
+ *
+ * The time is cut in ticks and the timeouts are hashed by their deadline
+ * into a ring of buckets, each a doubly linked list, that a single thread
+ * walks one bucket per tick.  Scheduling and cancelling only go through a
+ * lock free queue, so both are O(1) and a cancelled timeout is unlinked
+ * on the next tick instead of staying around until it would have expired.
+ * A timeout fires up to one tick late.
+ *
+ * Expired tasks run on the given executor, or on the wheel thread if it is
+ * null, in which case they must be short.
+ */
+public class HashedTimerWheel {
+    private static final Logger s_logger = Logger.getLogger(HashedTimerWheel.class);
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long _tickNanos;
+    private final Bucket[] _wheel;
+    private final int _mask;
+    private final Executor _executor;
+    private final Queue<Timeout> _scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> _cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger _pending = new AtomicInteger(0);
+    private final Thread _worker;
+    private final long _startTime;
+    private volatile boolean _stopped = false;
+    private long _tick = 0;
+
+    /**
+     * @param name name of the thread walking the wheel.
+     * @param tickDuration length of a tick, the precision of the timeouts.
+     * @param ticksPerWheel number of buckets, rounded up to a power of two.
+     * @param executor runs the expired tasks, null to run them on the wheel thread.
+     */
+    public HashedTimerWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive");
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        _wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new Bucket();
+        }
+        _mask = size - 1;
+        _tickNanos = unit.toNanos(tickDuration);
+        _executor = executor;
+        _startTime = System.nanoTime();
+
+        _worker = new Thread(new Worker(), name);
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    /**
+     * @return the handle to cancel the task with.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (_stopped) {
+            throw new RejectedExecutionException("Timer wheel " + _worker.getName() + " is stopped");
+        }
+        long deadline = System.nanoTime() - _startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, deadline);
+        _pending.incrementAndGet();
+        _scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts that are neither expired nor cancelled.
+     */
+    public int getPendingCount() {
+        return _pending.get();
+    }
+
+    /**
+     * Stops the wheel thread, the timeouts still pending never fire.
+     */
+    public void stop() {
+        _stopped = true;
+        _worker.interrupt();
+    }
+
+    public class Timeout {
+        private final Runnable _task;
+        private final long _deadline;
+        private final AtomicInteger _state = new AtomicInteger(INIT);
+        private long _remainingRounds;
+        private Bucket _bucket;
+        private Timeout _prev;
+        private Timeout _next;
+
+        Timeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        /**
+         * @return false if the timeout had already expired or been cancelled.
+         */
+        public boolean cancel() {
+            if (!_state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            _pending.decrementAndGet();
+            _cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return _state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return _state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!_state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            _pending.decrementAndGet();
+            if (_executor == null) {
+                runTask();
+                return;
+            }
+            try {
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTask();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                s_logger.warn("Unable to run the expired task " + _task, e);
+            }
+        }
+
+        private void runTask() {
+            try {
+                _task.run();
+            } catch (Throwable th) {
+                s_logger.warn("Exception in timer task " + _task, th);
+            }
+        }
+    }
+
+    /**
+     * Only touched by the wheel thread.
+     */
+    private static class Bucket {
+        private Timeout _head;
+        private Timeout _tail;
+
+        void add(Timeout timeout) {
+            timeout._bucket = this;
+            if (_head == null) {
+                _head = _tail = timeout;
+            } else {
+                _tail._next = timeout;
+                timeout._prev = _tail;
+                _tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout._next;
+            if (timeout._prev != null) {
+                timeout._prev._next = next;
+            }
+            if (next != null) {
+                next._prev = timeout._prev;
+            }
+            if (timeout == _head) {
+                _head = next;
+            }
+            if (timeout == _tail) {
+                _tail = timeout._prev;
+            }
+            timeout._prev = null;
+            timeout._next = null;
+            timeout._bucket = null;
+            return next;
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = _head;
+            while (timeout != null) {
+                if (timeout._remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout._deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        s_logger.error("Timeout deadline " + timeout._deadline + " is past the tick deadline " + deadline);
+                    }
+                    timeout = next;
+                } else if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else {
+                    timeout._remainingRounds--;
+                    timeout = timeout._next;
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!_stopped) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    break;
+                }
+                removeCancelled();
+                transferScheduled();
+                _wheel[(int)(_tick & _mask)].expire(deadline);
+                _tick++;
+            }
+        }
+
+        /**
+         * @return the time of the tick relative to the start of the wheel,
+         * or -1 if the wheel was stopped while waiting.
+         */
+        private long waitForNextTick() {
+            long deadline = _tickNanos * (_tick + 1);
+            while (true) {
+                long current = System.nanoTime() - _startTime;
+                long sleepMs = (deadline - current + 999999) / 1000000;
+                if (sleepMs <= 0) {
+                    return current;
+                }
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    if (_stopped) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferScheduled() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                Timeout timeout = _scheduled.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long calculated = timeout._deadline / _tickNanos;
+                timeout._remainingRounds = (calculated - _tick) / _wheel.length;
+                // Deadlines already in the past go to the current tick
+                long ticks = Math.max(calculated, _tick);
+                _wheel[(int)(ticks & _mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = _cancelled.poll()) != null) {
+                if (timeout._bucket != null) {
+                    timeout._bucket.remove(timeout);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * StripedLongMap is a concurrent map keyed by primitive longs.  The keys
+ * are spread over a fixed number of stripes, each one a small chained hash
+ * table guarded by its own monitor.  Lookups take no lock at all and
+ * updates only lock the stripe of their key, so there is no monitor that
+ * every caller goes through.
+ *
+ * The monitor of a stripe is exposed by lockFor() so that callers can make
+ * a check and an update on the same key atomic.  All the methods of the map
+ * lock the stripe reentrantly, so they can be called while holding it.
+ * Keep such sections short, every key of the stripe waits on them.
+ */
+public class StripedLongMap<V> {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int MAX_STRIPES = 1 << 16;
+
+    private final Stripe<V>[] _stripes;
+    private final int _stripeShift;
+
+    public StripedLongMap() {
+        this(DEFAULT_STRIPES, 16);
+    }
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two.
+     * @param initialCapacity expected number of keys over all the stripes.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLongMap(int stripes, int initialCapacity) {
+        int count = 1;
+        int shift = 32;
+        while (count < stripes && count < MAX_STRIPES) {
+            count <<= 1;
+            shift--;
+        }
+        _stripeShift = shift;
+        _stripes = new Stripe[count];
+        int perStripe = Math.max(initialCapacity / count, 1);
+        for (int i = 0; i < count; i++) {
+            _stripes[i] = new Stripe<V>(perStripe);
+        }
+    }
+
+    public V get(long key) {
+        int hash = hash(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the value the key had before, or null.
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        int hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * @return the current value if the key has one, otherwise null after
+     * setting it to value.
+     */
+    public V putIfAbsent(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        int hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * @return the value removed, or null.
+     */
+    public V remove(long key) {
+        int hash = hash(key);
+        return stripeFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the key only if it is mapped to the given instance.
+     *
+     * @return true if it was removed.
+     */
+    public boolean remove(long key, V value) {
+        int hash = hash(key);
+        return value != null && stripeFor(hash).remove(key, hash, value) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<V> stripe : _stripes) {
+            size += stripe._count;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return a snapshot of the values, it is not updated by later changes.
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(size());
+        for (Stripe<V> stripe : _stripes) {
+            stripe.collect(values);
+        }
+        return values;
+    }
+
+    /**
+     * @return the monitor that guards every update of the key.
+     */
+    public Object lockFor(long key) {
+        return stripeFor(hash(key));
+    }
+
+    private Stripe<V> stripeFor(int hash) {
+        return _stripes[_stripeShift == 32 ? 0 : hash >>> _stripeShift];
+    }
+
+    /**
+     * Spreads the bits of the key, host and other database ids are
+     * sequential and would otherwise fill the same stripe.
+     */
+    private static int hash(long key) {
+        int h = (int)(key ^ (key >>> 32));
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    protected static final class Node<V> {
+        final long _key;
+        final int _hash;
+        volatile V _value;
+        final Node<V> _next;
+
+        Node(long key, int hash, V value, Node<V> next) {
+            _key = key;
+            _hash = hash;
+            _value = value;
+            _next = next;
+        }
+    }
+
+    /**
+     * The table of a stripe is only ever changed under the stripe monitor.
+     * Readers walk it without locking, chains are never modified in place
+     * except for the value of a node, so a reader sees either the state
+     * before or after an update.
+     */
+    protected static final class Stripe<V> {
+        private volatile AtomicReferenceArray<Node<V>> _table;
+        volatile int _count = 0;
+
+        Stripe(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            _table = new AtomicReferenceArray<Node<V>>(size);
+        }
+
+        V get(long key, int hash) {
+            AtomicReferenceArray<Node<V>> table = _table;
+            for (Node<V> node = table.get(hash & (table.length() - 1)); node != null; node = node._next) {
+                if (node._key == key) {
+                    return node._value;
+                }
+            }
+            return null;
+        }
+
+        synchronized V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            AtomicReferenceArray<Node<V>> table = _table;
+            int index = hash & (table.length() - 1);
+            Node<V> first = table.get(index);
+            for (Node<V> node = first; node != null; node = node._next) {
+                if (node._key == key) {
+                    V old = node._value;
+                    if (!onlyIfAbsent) {
+                        node._value = value;
+                    }
+                    return old;
+                }
+            }
+
+            table.set(index, new Node<V>(key, hash, value, first));
+            if (++_count > table.length() - (table.length() >>> 2)) {
+                rehash();
+            }
+            return null;
+        }
+
+        synchronized V remove(long key, int hash, V expected) {
+            AtomicReferenceArray<Node<V>> table = _table;
+            int index = hash & (table.length() - 1);
+            Node<V> first = table.get(index);
+            Node<V> node = first;
+            while (node != null && node._key != key) {
+                node = node._next;
+            }
+            if (node == null || (expected != null && node._value != expected)) {
+                return null;
+            }
+
+            // Readers may be walking the chain, so the nodes in front of the
+            // removed one are copied rather than unlinked.
+            Node<V> head = node._next;
+            for (Node<V> p = first; p != node; p = p._next) {
+                head = new Node<V>(p._key, p._hash, p._value, head);
+            }
+            table.set(index, head);
+            _count--;
+            return node._value;
+        }
+
+        synchronized void collect(List<V> values) {
+            AtomicReferenceArray<Node<V>> table = _table;
+            for (int i = 0; i < table.length(); i++) {
+                for (Node<V> node = table.get(i); node != null; node = node._next) {
+                    values.add(node._value);
+                }
+            }
+        }
+
+        private void rehash() {
+            AtomicReferenceArray<Node<V>> table = _table;
+            AtomicReferenceArray<Node<V>> bigger = new AtomicReferenceArray<Node<V>>(table.length() << 1);
+            int mask = bigger.length() - 1;
+            for (int i = 0; i < table.length(); i++) {
+                for (Node<V> node = table.get(i); node != null; node = node._next) {
+                    int index = node._hash & mask;
+                    bigger.set(index, new Node<V>(node._key, node._hash, node._value, bigger.get(index)));
+                }
+            }
+            _table = bigger;
+        }
+    }
+}
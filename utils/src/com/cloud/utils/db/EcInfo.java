@@ -34,6 +34,8 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class EcInfo {
     protected String insertSql;
     protected String selectSql;
+    // Selects the id and the element for the ids of the "IN (" list that follows
+    protected String batchSelectSql;
     protected String clearSql;
     protected Class<?> targetClass;
     protected Class<?> rawClass;
@@ -95,7 +97,10 @@ public class EcInfo {
             valuesBuf.append(", ");
         }
 
-        selectSql = selectBuf.append(idAttr.table).append(".").append(idAttr.columnName).append("=?").toString();
+        selectBuf.append(idAttr.table).append(".").append(idAttr.columnName);
+        batchSelectSql = new StringBuilder("SELECT ").append(idAttr.table).append(".").append(idAttr.columnName).append(", ")
+                .append(selectBuf.substring("SELECT ".length())).append(" IN (").toString();
+        selectSql = selectBuf.append("=?").toString();
         insertBuf.append(attr.columnName).append(") ");
         valuesBuf.append("? FROM ").append(attr.table);
         valuesBuf.append(" WHERE ").append(idAttr.table).append(".").append(idAttr.columnName).append("=?");
@@ -17,6 +17,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -60,6 +61,12 @@ public interface GenericDao<T, ID extends Serializable> {
 
     // Finds one unique VO using uuid including removed entities
     T findByUuidIncludingRemoved(String uuid);
+
+    /**
+     * @param uuids
+     * @return the entities with the uuids, including removed ones, with one query.
+     */
+    List<T> listByUuidsIncludingRemoved(Collection<String> uuids);
     
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
@@ -202,6 +209,32 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
+
+    /**
+     * Persist the entity beans with one batch of inserts per table instead
+     * of statements for every bean.  The id fields of the entities are
+     * updated with the new ids.  Entities that came from this dao are
+     * updated as with updateAll().
+     * @param entities the beans to persist.
+     * @return The persisted versions of the objects, in the same order.  A
+     * null is returned if there's no primary key specified in the VO object.
+     **/
+    List<T> persistAll(List<T> entities);
+
+    /**
+     * Same as persistAll() but the entities are not read back, for callers
+     * that only write them.  The id fields are still updated.
+     * @param entities the beans to persist.
+     **/
+    void saveAll(List<T> entities);
+
+    /**
+     * Update the changes made to the entity beans.  The entities that
+     * changed the same fields are updated in one batch.
+     * @param entities beans that came from this dao.
+     * @return number of rows updated.
+     **/
+    int updateAll(List<T> entities);
     
     /**
      * remove the entity bean.  This will call delete automatically if
@@ -278,5 +311,11 @@ public interface GenericDao<T, ID extends Serializable> {
      */
     Pair<List<T>, Integer> searchAndCount(SearchCriteria<T> sc, Filter filter);
 
+    /**
+     * @param sc
+     * @return the number of rows the search finds, the count searchAndCount() returns.
+     */
+    Integer getCount(SearchCriteria<T> sc);
+
     Map<String, Attribute> getAllAttributes();
 }
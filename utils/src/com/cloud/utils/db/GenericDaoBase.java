@@ -18,8 +18,10 @@ package com.cloud.utils.db;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -37,8 +39,11 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -58,9 +63,6 @@ import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -74,6 +76,8 @@ import com.cloud.utils.component.ComponentLifecycleBase;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.exception.ExceptionUtil;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -139,10 +143,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Field _idField;
 
     protected List<Pair<String, Attribute[]>> _insertSqls;
+    protected volatile Boolean _batchKeysConsecutive;
     protected Pair<String, Attribute> _removed;
     protected Pair<String, Attribute[]> _removeSql;
     protected List<Pair<String, Attribute[]>> _deleteSqls;
     protected Map<String, Attribute[]> _idAttributes;
+    // Every table the entity is written to, a write to any of them invalidates the caches
+    protected String[] _cacheTables;
     protected Map<String, TableGenerator> _tgs;
     protected Map<String, Attribute> _allAttributes;
     protected List<Attribute> _ecAttributes;
@@ -152,6 +159,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Enhancer _searchEnhancer;
     protected int _timeoutSeconds;
 
+    // Row mappers by the entity class and the columns of the result set
+    protected final Map<String, RowMapper> _rowMappers = new ConcurrentHashMap<String, RowMapper>();
+    // The result set each thread is currently mapping so the rows after the first skip the lookup
+    private final ThreadLocal<MappedResultSet> _mappedResultSet = new ThreadLocal<MappedResultSet>();
+
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
 
     protected static final String FOR_UPDATE_CLAUSE = " FOR UPDATE ";
@@ -160,6 +172,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
+    // Rows per batch in persistAll()
+    protected static final int s_batchSize = 1000;
+
     public static <J> GenericDao<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
         @SuppressWarnings("unchecked")
         GenericDao<? extends J, ? extends Serializable> dao = (GenericDao<? extends J, ? extends Serializable>)s_daoMaps.get(entityType);
@@ -216,6 +231,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         _idAttributes = generator.getIdAttributes();
         _idField = _idAttributes.get(_table).length > 0 ? _idAttributes.get(_table)[0].field : null;
+        _cacheTables = _idAttributes.keySet().toArray(new String[_idAttributes.size()]);
 
         _tables = generator.buildTableReferences();
 
@@ -406,9 +422,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             if (s_logger.isDebugEnabled() && lock != null) {
                 txn.registerLock(pstmt.toString());
             }
+            final long version = getCacheVersion();
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                result.add(toEntityBean(rs, cache, false));
+            }
+            loadCollections(result);
+            if (cache) {
+                cacheEntities(txn, result, version);
             }
             return result;
         } catch (final SQLException e) {
@@ -470,7 +491,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             List<Field> fields = sc.getSelectFields();
             while (rs.next()) {
                 if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
+                    results.add((M)toEntityBean(rs, false, false));
                 } else if (st == SelectType.Fields || st == SelectType.Result) {
                     M m = sc.getResultType().newInstance();
                     for (int j = 1; j <= fields.size(); j++) {
@@ -481,6 +502,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                     results.add(getObject(sc.getResultType(), rs, 1));
                 }
             }
+            if (st == SelectType.Entity) {
+                loadCollections((List<T>)results);
+            }
 
             return results;
         } catch (final SQLException e) {
@@ -756,9 +780,6 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         Transaction txn = Transaction.currentTxn();
@@ -772,7 +793,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = executeUpdate(ub, sc, null);
+        invalidateCache(txn, id);
 
         txn.commit();
 
@@ -780,6 +802,15 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        final int result = executeUpdate(ub, sc, rows);
+        if (result > 0) {
+            // There is no telling which entities the search matched
+            invalidateCache(Transaction.currentTxn(), null);
+        }
+        return result;
+    }
+
+    protected int executeUpdate(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final Transaction txn = Transaction.currentTxn();
@@ -908,14 +939,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     @Override @DB(txn=false)
-    @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
-        } else {
-            return lockRow(id, null);
+            final T entity = _cache.get(id);
+            if (entity != null) {
+                return copyOf(entity);
+            }
         }
+        return lockRow(id, null);
     }
 
     @Override @DB(txn=false)
@@ -934,6 +965,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override @DB(txn=false)
+    public List<T> listByUuidsIncludingRemoved(final Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd("uuid", SearchCriteria.Op.IN, uuids.toArray());
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override @DB(txn=false)
     public T findByIdIncludingRemoved(ID id) {
         return findById(id, true, null);
@@ -945,9 +986,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             return findById(id);
         }
 
-        if (_cache != null) {
-            _cache.remove(id);
-        }
+        // Reading it puts the fresh entity in the cache
         return lockRow(id, null);
     }
 
@@ -973,8 +1012,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 prepareAttribute(1, pstmt, _idAttributes.get(_table)[0], id);
             }
 
+            final long version = getCacheVersion();
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            if (!rs.next()) {
+                return null;
+            }
+            final T entity = toEntityBean(rs, true);
+            cacheEntity(txn, entity, version);
+            return entity;
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -1079,10 +1124,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 pstmt.setObject(++i, param);
             }
 
+            final long version = getCacheVersion();
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                result.add(toEntityBean(rs, true, false));
             }
+            loadCollections(result);
+            cacheEntities(txn, result, version);
             return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1128,10 +1176,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 pstmt.executeUpdate();
             }
 
+            invalidateCache(txn, id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1159,7 +1205,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCache(txn, null);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1350,6 +1400,272 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    public List<T> persistAll(final List<T> entities) {
+        final Object[] ids = insertAll(entities);
+        if (_idField == null) {
+            return null;
+        }
+
+        // Read them back with one select per batch instead of one per entity
+        final Map<Object, T> found = new HashMap<Object, T>(entities.size());
+        for (int from = 0; from < ids.length; from += s_batchSize) {
+            final Object[] batch = new Object[Math.min(s_batchSize, ids.length - from)];
+            System.arraycopy(ids, from, batch, 0, batch.length);
+            final SearchCriteria<T> sc = createSearchCriteria();
+            sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, batch);
+            for (T entity : searchIncludingRemoved(sc, null, null, false)) {
+                try {
+                    found.put(_idField.get(entity), entity);
+                } catch (final IllegalAccessException e) {
+                    throw new CloudRuntimeException("Yikes! ", e);
+                }
+            }
+        }
+
+        final List<T> persisted = new ArrayList<T>(entities.size());
+        int index = 0;
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                persisted.add(entity);
+            } else {
+                persisted.add(found.get(ids[index++]));
+            }
+        }
+        return persisted;
+    }
+
+    @Override
+    public void saveAll(final List<T> entities) {
+        insertAll(entities);
+    }
+
+    /**
+     * Inserts the new entities and updates the ones that came from this dao.
+     * @return the ids of the new entities, in the order they were given.
+     */
+    @SuppressWarnings("unchecked")
+    protected Object[] insertAll(final List<T> entities) {
+        final List<T> created = new ArrayList<T>(entities.size());
+        final List<T> updated = new ArrayList<T>();
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                assert _idField != null : "Can't call persit if you don't have primary key";
+                updated.add(entity);
+            } else {
+                created.add(entity);
+            }
+        }
+
+        final Object[] ids = new Object[created.size()];
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            if (!updated.isEmpty()) {
+                updateAll(updated);
+            }
+
+            // An id the database generates is not inserted, otherwise the rows that set one keep it
+            if (_idField != null && !_idAttributes.get(_table)[0].is(Attribute.Flag.DbGenerated)) {
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = _idField.get(created.get(i));
+                }
+            }
+
+            final boolean consecutive = isBatchKeysConsecutive(txn);
+            for (int from = 0; from < created.size(); from += s_batchSize) {
+                final int to = Math.min(from + s_batchSize, created.size());
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    // The rows waiting for a key go in a batch of their own, so the keys line up with them
+                    final List<Integer> keyless = new ArrayList<Integer>();
+                    pstmt = null;
+                    for (int i = from; i < to; i++) {
+                        if (_idField != null && ids[i] == null) {
+                            keyless.add(i);
+                            continue;
+                        }
+                        if (pstmt == null) {
+                            pstmt = txn.prepareAutoCloseStatement(pair.first());
+                        }
+                        prepareAttributes(pstmt, created.get(i), pair.second(), 1);
+                        pstmt.addBatch();
+                    }
+                    if (pstmt != null) {
+                        pstmt.executeBatch();
+                    }
+
+                    if (keyless.isEmpty()) {
+                        continue;
+                    }
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    if (consecutive) {
+                        for (int i : keyless) {
+                            prepareAttributes(pstmt, created.get(i), pair.second(), 1);
+                            pstmt.addBatch();
+                        }
+                        pstmt.executeBatch();
+                        setGeneratedKeys(pstmt, created, ids, keyless);
+                    } else {
+                        // The keys of a multi-row insert may be interleaved with other inserts
+                        for (int i : keyless) {
+                            prepareAttributes(pstmt, created.get(i), pair.second(), 1);
+                            pstmt.executeUpdate();
+                            setGeneratedKeys(pstmt, created, ids, Collections.singletonList(i));
+                        }
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (int i = 0; i < ids.length; i++) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(created.get(i));
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+
+                    insertElementCollection(created.get(i), _idAttributes.get(_table)[0], (ID)ids[i], ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+        return ids;
+    }
+
+    /**
+     * Sets the keys generated by the last statement on the rows, in the order
+     * they were added.  There has to be exactly one key for every row.
+     */
+    private void setGeneratedKeys(final PreparedStatement pstmt, final List<T> created, final Object[] ids, final List<Integer> rows) throws SQLException,
+    IllegalAccessException {
+        final ResultSet rs = pstmt.getGeneratedKeys();
+        int count = 0;
+        while (rs != null && rs.next()) {
+            if (count < rows.size()) {
+                final int i = rows.get(count);
+                ids[i] = rs.getObject(1);
+                _idField.set(created.get(i), ids[i]);
+            }
+            count++;
+        }
+        if (count != rows.size()) {
+            throw new CloudRuntimeException("Inserted " + rows.size() + " rows into " + _table + " but got " + count + " generated keys");
+        }
+    }
+
+    /**
+     * The driver sends a batch as one multi-row insert and makes up the keys
+     * by counting from the first one, which innodb only guarantees with
+     * innodb_autoinc_lock_mode 0 or 1.
+     */
+    @DB(txn=false)
+    protected boolean isBatchKeysConsecutive(final Transaction txn) {
+        Boolean consecutive = _batchKeysConsecutive;
+        if (consecutive == null) {
+            consecutive = true;
+            try {
+                final PreparedStatement pstmt = txn.prepareAutoCloseStatement("SELECT @@innodb_autoinc_lock_mode");
+                final ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    consecutive = rs.getInt(1) != 2;
+                }
+            } catch (final SQLException e) {
+                s_logger.debug("Unable to read innodb_autoinc_lock_mode, assuming the keys of a batch are consecutive: " + e.getMessage());
+            }
+            _batchKeysConsecutive = consecutive;
+        }
+        return consecutive;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateAll(final List<T> entities) {
+        // Entities that changed the same fields share the statement
+        final Map<String, PreparedStatement> batches = new LinkedHashMap<String, PreparedStatement>();
+        final List<UpdateBuilder> ubs = new ArrayList<UpdateBuilder>(entities.size());
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                final ID id = (ID)_idField.get(entity);
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                ubs.add(ub);
+                invalidateCache(txn, id);
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], id, ub.getCollectionChanges());
+                }
+
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                sql.append(sc.getWhereClause());
+
+                pstmt = batches.get(sql.toString());
+                if (pstmt == null) {
+                    // Not auto closed as the batches stay open side by side
+                    pstmt = txn.prepareStatement(sql.toString());
+                    batches.put(sql.toString(), pstmt);
+                }
+                int i = 1;
+                for (final Ternary<Attribute, Boolean, Object> value : ub.getChanges()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.third());
+                }
+                for (Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.second());
+                }
+                pstmt.addBatch();
+            }
+
+            int rowsUpdated = 0;
+            for (PreparedStatement batch : batches.values()) {
+                pstmt = batch;
+                for (int count : batch.executeBatch()) {
+                    rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                }
+            }
+            txn.commit();
+
+            for (UpdateBuilder ub : ubs) {
+                ub.clear();
+            }
+            return rowsUpdated;
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("How can it be illegal access...come on", e);
+        } finally {
+            for (PreparedStatement batch : batches.values()) {
+                try {
+                    batch.close();
+                } catch (SQLException e) {
+                    s_logger.trace("Unable to close statement " + batch);
+                }
+            }
+        }
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1520,20 +1836,26 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return j;
     }
 
-    @SuppressWarnings("unchecked") @DB(txn=false)
+    @DB(txn=false)
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
-        final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        return toEntityBean(result, cache, true);
+    }
 
-        toEntityBean(result, entity);
+    /**
+     * @param loadCollections false if the caller loads the element collections
+     * of all the entities it reads with loadCollections().
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T toEntityBean(final ResultSet result, final boolean cache, final boolean loadCollections) throws SQLException {
+        final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
-        if (cache && _cache != null) {
-            try {
-                _cache.put(new Element(_idField.get(entity), entity));
-            } catch (final Exception e) {
-                s_logger.debug("Can't put it in the cache", e);
-            }
+        if (loadCollections) {
+            toEntityBean(result, entity);
+        } else {
+            getRowMapper(result, entity).map(entity, result);
         }
 
+        // The callers put it in the cache once they have all of it, see cacheEntity()
         return entity;
     }
 
@@ -1548,23 +1870,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
-            try {
-                _cache.put(new Element(_idField.get(entity), entity));
-            } catch (final Exception e) {
-                s_logger.debug("Can't put it in the cache", e);
-            }
-        }
-
         return entity;
     }
 
     @DB(txn=false)
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
-        }
+        getRowMapper(result, entity).map(entity, result);
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
         }
@@ -1583,55 +1894,83 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             pstmt.setObject(1, _idField.get(entity));
             rs = pstmt.executeQuery();
             ArrayList lst = new ArrayList();
-            if (ec.targetClass == Integer.class) {
-                while (rs.next()) {
-                    lst.add(rs.getInt(1));
-                }
-            } else if (ec.targetClass == Long.class) {
-                while (rs.next()) {
-                    lst.add(rs.getLong(1));
-                }
-            } else if (ec.targetClass == String.class) {
-                while (rs.next()) {
-                    lst.add(rs.getString(1));
-                }
-            } else if (ec.targetClass == Short.class) {
-                while (rs.next()) {
-                    lst.add(rs.getShort(1));
-                }
-            } else if (ec.targetClass == Date.class) {
-                while (rs.next()) {
-                    lst.add(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(1)));
+            while (rs.next()) {
+                lst.add(getCollectionElement(ec, rs, 1));
+            }
+            setCollection(entity, attr, lst);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Error executing " + pstmt, e);
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Error executing " + pstmt, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Error executing " + pstmt, e);
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
                 }
-            } else if (ec.targetClass == Boolean.class) {
-                while (rs.next()) {
-                    lst.add(rs.getBoolean(1));
+                if (pstmt != null) {
+                    pstmt.close();
                 }
-            } else {
-                assert (false) : "You'll need to add more classeses";
+            } catch (SQLException e) {
+                s_logger.error("Why are we getting an exception at close? ", e);
             }
+        }
+    }
 
-            if (ec.rawClass == null) {
-                Object[] array = (Object[])Array.newInstance(ec.targetClass);
-                lst.toArray(array);
-                try {
-                    attr.field.set(entity, array);
-                } catch (IllegalArgumentException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                } catch (IllegalAccessException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                }
-            } else {
-                try {
-                    Collection coll = (Collection)ec.rawClass.newInstance();
-                    coll.addAll(lst);
-                    attr.field.set(entity, coll);
-                } catch (IllegalAccessException e) {
-                    throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
-                } catch (InstantiationException e) {
-                    throw new CloudRuntimeException("Never should happen", e);
+    /**
+     * Loads the element collections of the entities with one select per
+     * collection for every s_batchSize entities, instead of one select per
+     * collection for every entity.
+     */
+    @DB(txn = true)
+    protected void loadCollections(List<T> entities) {
+        if (_ecAttributes == null || _ecAttributes.isEmpty() || entities.isEmpty()) {
+            return;
+        }
+        for (Attribute attr : _ecAttributes) {
+            for (int from = 0; from < entities.size(); from += s_batchSize) {
+                loadCollection(entities.subList(from, Math.min(from + s_batchSize, entities.size())), attr);
+            }
+        }
+    }
+
+    @DB(txn = true)
+    @SuppressWarnings("unchecked")
+    protected void loadCollection(List<T> entities, Attribute attr) {
+        EcInfo ec = (EcInfo)attr.attache;
+
+        Transaction txn = Transaction.currentTxn();
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        try {
+            Map<Object, ArrayList> elements = new HashMap<Object, ArrayList>(entities.size());
+            for (T entity : entities) {
+                elements.put(_idField.get(entity), new ArrayList());
+            }
+
+            StringBuilder sql = new StringBuilder(ec.batchSelectSql);
+            for (int i = 0; i < elements.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            pstmt = txn.prepareStatement(sql.toString());
+            int i = 1;
+            for (Object id : elements.keySet()) {
+                pstmt.setObject(i++, id);
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                ArrayList lst = elements.get(getObject(_idField.getType(), rs, 1));
+                if (lst != null) {
+                    lst.add(getCollectionElement(ec, rs, 2));
                 }
             }
+
+            for (T entity : entities) {
+                setCollection(entity, attr, elements.get(_idField.get(entity)));
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Error executing " + pstmt, e);
         } catch (IllegalArgumentException e) {
@@ -1652,6 +1991,51 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    protected Object getCollectionElement(EcInfo ec, ResultSet rs, int index) throws SQLException {
+        if (ec.targetClass == Integer.class) {
+            return rs.getInt(index);
+        } else if (ec.targetClass == Long.class) {
+            return rs.getLong(index);
+        } else if (ec.targetClass == String.class) {
+            return rs.getString(index);
+        } else if (ec.targetClass == Short.class) {
+            return rs.getShort(index);
+        } else if (ec.targetClass == Date.class) {
+            return DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index));
+        } else if (ec.targetClass == Boolean.class) {
+            return rs.getBoolean(index);
+        } else {
+            assert (false) : "You'll need to add more classeses";
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void setCollection(T entity, Attribute attr, List<?> lst) {
+        EcInfo ec = (EcInfo)attr.attache;
+        if (ec.rawClass == null) {
+            Object[] array = (Object[])Array.newInstance(ec.targetClass, lst.size());
+            lst.toArray(array);
+            try {
+                attr.field.set(entity, array);
+            } catch (IllegalArgumentException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            }
+        } else {
+            try {
+                Collection coll = (Collection)ec.rawClass.newInstance();
+                coll.addAll(lst);
+                attr.field.set(entity, coll);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Come on we screen for this stuff, don't we?", e);
+            } catch (InstantiationException e) {
+                throw new CloudRuntimeException("Never should happen", e);
+            }
+        }
+    }
+
     @Override
     public void expunge() {
         if (_removed == null) {
@@ -1674,6 +2058,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB(txn=false)
     protected void setField(final Object entity, final ResultSet rs, ResultSetMetaData meta, final int index) throws SQLException {
+        Attribute attr = findAttribute(entity, meta, index);
+        assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
+        setField(entity, attr.field, rs, index);
+    }
+
+    protected Attribute findAttribute(final Object entity, ResultSetMetaData meta, final int index) throws SQLException {
         Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
         if ( attr == null ){
             // work around for mysql bug to return original table name instead of view name in db view case
@@ -1682,8 +2072,58 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 attr = _allColumns.get(new Pair<String, String>(tbl.name(), meta.getColumnLabel(index)));
             }
         }
-        assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
-        setField(entity, attr.field, rs, index);
+        return attr;
+    }
+
+    /**
+     * Returns the row mapper for the columns of the result set.  The mapper is
+     * built the first time a select with these columns is mapped to this type
+     * of entity, and the rows after the first of a result set don't even look
+     * at its meta data.
+     */
+    @DB(txn=false)
+    protected RowMapper getRowMapper(final ResultSet rs, final Object entity) throws SQLException {
+        final Class<?> type = entity.getClass();
+        MappedResultSet mapped = _mappedResultSet.get();
+        if (mapped != null && mapped.type == type && mapped.rs.get() == rs) {
+            return mapped.mapper;
+        }
+
+        ResultSetMetaData meta = rs.getMetaData();
+        int count = meta.getColumnCount();
+        StringBuilder key = new StringBuilder(type.getName());
+        for (int index = 1; index <= count; index++) {
+            key.append(',').append(meta.getTableName(index)).append('.').append(meta.getColumnName(index)).append(' ').append(meta.getColumnLabel(index));
+        }
+
+        RowMapper mapper = _rowMappers.get(key.toString());
+        if (mapper == null) {
+            Field[] fields = new Field[count];
+            for (int index = 1; index <= count; index++) {
+                Attribute attr = findAttribute(entity, meta, index);
+                if (attr == null) {
+                    throw new CloudRuntimeException("How come I can't find " + meta.getTableName(index) + "." + meta.getColumnName(index) + " in " + _entityBeanType);
+                }
+                fields[index - 1] = attr.field;
+            }
+            mapper = new RowMapper(fields);
+            _rowMappers.put(key.toString(), mapper);
+        }
+
+        _mappedResultSet.set(new MappedResultSet(rs, type, mapper));
+        return mapper;
+    }
+
+    private static class MappedResultSet {
+        final WeakReference<ResultSet> rs;
+        final Class<?> type;
+        final RowMapper mapper;
+
+        MappedResultSet(ResultSet rs, Class<?> type, RowMapper mapper) {
+            this.rs = new WeakReference<ResultSet>(rs);
+            this.type = type;
+            this.mapper = mapper;
+        }
     }
 
     @Override
@@ -1705,10 +2145,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             final int result = pstmt.executeUpdate();
+            invalidateCache(txn, id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1728,24 +2166,129 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected NearCache<ID, T> _cache;
+    // The fields copied in and out of the cache
+    protected Field[] _cacheFields;
+
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
 
-        if (value != null) {
-            final CacheManager cm = CacheManager.create();
+        if (_cache != null) {
+            _cache.close();
+            _cache = null;
+        }
+        if (value != null && _idField != null && _idField.getAnnotation(EmbeddedId.class) == null) {
             final int maxElements = NumbersUtil.parseInt(value, 0);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
-            final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
+            _cacheFields = getCacheFields();
+            _cache = new NearCache<ID, T>(getName(), _cacheTables, _idField.getType(), maxElements, live);
+            try {
+                JmxUtil.registerMBean("Near Cache", getName(), _cache);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register the cache of " + getName() + " due to exception " + ExceptionUtil.toString(e));
+            }
             s_logger.info("Cache created: " + _cache.toString());
-        } else {
-            _cache = null;
         }
     }
 
+    @DB(txn=false)
+    protected Field[] getCacheFields() {
+        final List<Field> fields = new ArrayList<Field>();
+        for (Class<?> clazz = _entityBeanType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (final Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    @DB(txn=false)
+    protected long getCacheVersion() {
+        return _cache == null ? 0 : _cache.getVersion();
+    }
+
+    /**
+     * Puts a copy of the entity in the cache if nothing invalidated the
+     * cache since the version was taken.  Entities read inside a database
+     * transaction are left out, the transaction may never commit.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected void cacheEntity(final Transaction txn, final T entity, final long version) {
+        if (_cache == null || entity == null || txn.dbTxnStarted()) {
+            return;
+        }
+        try {
+            if (_removed != null && _removed.second().field.get(entity) != null) {
+                return;
+            }
+            _cache.put((ID)_idField.get(entity), copyOf(entity), version);
+        } catch (final Exception e) {
+            s_logger.debug("Can't put it in the cache", e);
+        }
+    }
+
+    @DB(txn=false)
+    protected void cacheEntities(final Transaction txn, final List<T> entities, final long version) {
+        if (_cache == null) {
+            return;
+        }
+        for (final T entity : entities) {
+            cacheEntity(txn, entity, version);
+        }
+    }
+
+    /**
+     * Drops the entity from the caches of its tables here and on the peers.
+     *
+     * @param id id of the entity written or null if any entity may have changed.
+     */
+    @DB(txn=false)
+    protected void invalidateCache(final Transaction txn, final ID id) {
+        NearCache.invalidate(txn, _cacheTables, id);
+    }
+
+    /**
+     * @return a copy of the entity.  What is in the cache is never handed
+     * out as the callers change the entities they get back.
+     */
+    @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T copyOf(final T entity) {
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (final Field field : _cacheFields) {
+                field.set(copy, copyValue(field.get(entity)));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + entity, e);
+        }
+        return copy;
+    }
+
+    @DB(txn=false)
+    protected static Object copyValue(final Object value) {
+        if (value instanceof Date) {
+            return ((Date)value).clone();
+        } else if (value instanceof Calendar) {
+            return ((Calendar)value).clone();
+        } else if (value instanceof List) {
+            return new ArrayList<Object>((List<?>)value);
+        } else if (value instanceof Set) {
+            return new LinkedHashSet<Object>((Set<?>)value);
+        } else if (value instanceof Map) {
+            return new LinkedHashMap<Object, Object>((Map<?, ?>)value);
+        } else if (value != null && value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return value;
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -1827,6 +2370,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     	return Transaction.s_region_id;
     }
 
+    @Override
     public Integer getCount(SearchCriteria<T> sc) {
         String clause = sc != null ? sc.getWhereClause() : null;
         if (clause != null && clause.length() == 0) {
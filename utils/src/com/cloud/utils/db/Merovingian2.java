@@ -20,23 +20,36 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
-
+/**
+ * Merovingian2 implements the cluster wide locks on top of the op_lock
+ * table.  A thread that can't get a lock waits until a lock held by this
+ * server is released, until the PeerNotifier relays that a lock held by
+ * another server is released, or at the most POLL_INTERVAL before it tries
+ * the table again.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
@@ -52,6 +65,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    /* Longest time a waiter sleeps before it looks at op_lock again */
+    private static final long POLL_INTERVAL = 5000;
+    /* Number of keys the wait times are kept for */
+    private static final int MAX_WAIT_STATS = 1000;
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -60,6 +78,18 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final Map<String, Waiters> _waiters = new HashMap<String, Waiters>();
+    private final ConcurrentHashMap<String, Set<Long>> _peerWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    private volatile PeerNotifier _peerNotifier = null;
+    private final Map<String, WaitStats> _waitStats = new LinkedHashMap<String, WaitStats>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WaitStats> eldest) {
+            return size() > MAX_WAIT_STATS;
+        }
+    };
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -121,31 +151,159 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
         long startTime = InaccurateClock.getTime();
+        boolean waited = false;
+        long notifiedHolder = -1;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
-
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+        Waiters waiters = startWaiting(key);
+        try {
+            while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
+                // Read before trying so a release right after the attempt is not missed
+                long releases = waiters.getReleases();
+                Map<String, String> owner = isLocked(key);
+                int count = owns(owner);
+
+                if (count >= 1) {
+                    return increment(key, threadName, threadId);
+                } else if (count == 0) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        if (waited) {
+                            recordWait(key, InaccurateClock.getTime() - startTime, false);
+                        }
+                        return true;
+                    }
+                } else {
+                    long holder = Long.parseLong(owner.get("mgmt"));
+                    PeerNotifier notifier = _peerNotifier;
+                    if (holder != _msId && holder != notifiedHolder && notifier != null) {
+                        notifier.notifyWaiting(holder, key);
+                        notifiedHolder = holder;
+                    }
                 }
-            }
-            try {
+                waited = true;
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Waiting more time for lck-" + key);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+                long remaining = (timeInSeconds * 1000) - (InaccurateClock.getTime() - startTime);
+                waiters.await(releases, Math.min(POLL_INTERVAL, remaining));
             }
+        } finally {
+            stopWaiting(key, waiters);
         }
+        recordWait(key, InaccurateClock.getTime() - startTime, true);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
         }
         return false;
     }
 
+    protected Waiters startWaiting(String key) {
+        synchronized (_waiters) {
+            Waiters waiters = _waiters.get(key);
+            if (waiters == null) {
+                waiters = new Waiters();
+                _waiters.put(key, waiters);
+            }
+            waiters.threads++;
+            return waiters;
+        }
+    }
+
+    protected void stopWaiting(String key, Waiters waiters) {
+        synchronized (_waiters) {
+            if (--waiters.threads == 0) {
+                _waiters.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads of this server waiting for the key, and tells
+     * the servers that said they are waiting for it.
+     */
+    protected void lockReleased(String key) {
+        wakeUp(key);
+
+        Set<Long> peers = _peerWaiters.remove(key);
+        PeerNotifier notifier = _peerNotifier;
+        if (peers != null && notifier != null) {
+            for (Long peer : peers) {
+                notifier.notifyReleased(peer, key);
+            }
+        }
+    }
+
+    protected void wakeUp(String key) {
+        Waiters waiters;
+        synchronized (_waiters) {
+            waiters = _waiters.get(key);
+        }
+        if (waiters != null) {
+            waiters.signal();
+        }
+    }
+
+    protected void wakeUpAll() {
+        List<Waiters> all;
+        synchronized (_waiters) {
+            all = new ArrayList<Waiters>(_waiters.values());
+        }
+        for (Waiters waiters : all) {
+            waiters.signal();
+        }
+    }
+
+    public void setPeerNotifier(PeerNotifier notifier) {
+        _peerNotifier = notifier;
+    }
+
+    /**
+     * Called when the server msId is waiting for a lock held by this server.
+     */
+    public void onPeerWaiting(String key, long msId) {
+        Set<Long> peers = _peerWaiters.get(key);
+        if (peers == null) {
+            peers = new CopyOnWriteArraySet<Long>();
+            Set<Long> existing = _peerWaiters.putIfAbsent(key, peers);
+            if (existing != null) {
+                peers = existing;
+            }
+        }
+        peers.add(msId);
+
+        // The lock may already be gone, release() removes the row before it looks at the waiters
+        Map<String, String> owner = isLocked(key);
+        if (owner == null || !owner.get("mgmt").equals(Long.toString(_msId))) {
+            if (peers.remove(msId)) {
+                PeerNotifier notifier = _peerNotifier;
+                if (notifier != null) {
+                    notifier.notifyReleased(msId, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a lock held by another server is released.
+     */
+    public void onPeerReleased(String key) {
+        wakeUp(key);
+    }
+
+    protected void recordWait(String key, long millis, boolean timedOut) {
+        WaitStats stats;
+        synchronized (_waitStats) {
+            stats = _waitStats.get(key);
+            if (stats == null) {
+                stats = new WaitStats();
+                _waitStats.put(key, stats);
+            }
+        }
+        stats.histogram.record(millis);
+        if (timedOut) {
+            stats.timeouts.incrementAndGet();
+        }
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -257,6 +415,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (rows > 0) {
+                wakeUpAll();
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -293,8 +454,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    lockReleased(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -370,9 +534,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public int owns(String key) {
+        return owns(isLocked(key));
+    }
+
+    protected int owns(Map<String, String> owner) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
-        Map<String, String> owner = isLocked(key);
         if (owner == null) {
             return 0;
         }
@@ -428,6 +595,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            wakeUpAll();
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
@@ -449,13 +617,90 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                lockReleased(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
             return false;
         }
     }
+
+    @Override
+    public List<Map<String, String>> getLockWaitTimes() {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        synchronized (_waitStats) {
+            for (Map.Entry<String, WaitStats> entry : _waitStats.entrySet()) {
+                Map<String, String> map = new LinkedHashMap<String, String>();
+                map.put("key", entry.getKey());
+                map.put("timeouts", Long.toString(entry.getValue().timeouts.get()));
+                map.putAll(entry.getValue().histogram.toMap());
+                results.add(map);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockWaitTimes() {
+        synchronized (_waitStats) {
+            _waitStats.clear();
+        }
+    }
+
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * Threads of this server waiting for the same key.  releases is bumped
+     * every time the key is released so a waiter can tell whether it missed
+     * a release while it was looking at the table.
+     */
+    protected static class Waiters {
+        int threads = 0;
+        private long _releases = 0;
+
+        synchronized long getReleases() {
+            return _releases;
+        }
+
+        synchronized void signal() {
+            _releases++;
+            notifyAll();
+        }
+
+        synchronized void await(long releases, long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (_releases == releases && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    protected static class WaitStats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong timeouts = new AtomicLong(0);
+    }
+
+    /**
+     * Relays lock notifications to the other management servers.
+     */
+    public interface PeerNotifier {
+        /**
+         * Tells holderMsId that this server is waiting for the key.
+         */
+        void notifyWaiting(long holderMsId, String key);
+
+        /**
+         * Tells waiterMsId that the key held by this server was released.
+         */
+        void notifyReleased(long waiterMsId, String key);
+    }
 }
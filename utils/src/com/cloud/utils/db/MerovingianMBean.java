@@ -29,4 +29,12 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return for every recently contended key, the number of waits that
+     * timed out and a histogram of how long threads waited, in milliseconds.
+     */
+    List<Map<String, String>> getLockWaitTimes();
+
+    void resetLockWaitTimes();
 }
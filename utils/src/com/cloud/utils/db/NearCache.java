@@ -0,0 +1,443 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * NearCache keeps the entities a dao has read by their id so findById()
+ * does not have to go to the database for entities that rarely change.
+ * Every management server has its own copy, so changes are fanned out:
+ * when a dao writes to a table, the entity is dropped from every cache of
+ * that table on this server and, once the transaction is over, again here
+ * and on the peers through the PeerNotifier.
+ *
+ * Every invalidation moves the version of the cache.  Loaders take the
+ * version before they go to the database and an entity is only put in the
+ * cache if the version has not moved since, so an entity that was changed
+ * while it was being read never makes it into the cache.
+ */
+public class NearCache<K, V> extends StandardMBean implements NearCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(NearCache.class);
+
+    // The caches of every table, more than one dao can read the same table
+    private static final ConcurrentHashMap<String, List<NearCache<?, ?>>> s_caches = new ConcurrentHashMap<String, List<NearCache<?, ?>>>();
+
+    private static volatile PeerNotifier s_peerNotifier = null;
+
+    // The invalidations of the transaction in progress on this thread
+    private static final ThreadLocal<Invalidations> s_pending = new ThreadLocal<Invalidations>();
+
+    // More ids than this written to a table in one transaction flush the table instead
+    protected static final int MAX_IDS_PER_TABLE = 64;
+
+    private final String _name;
+    private final String[] _tables;
+    private final Class<?> _keyType;
+    private final int _maxSize;
+    private final long _timeToLive;
+    private final ConcurrentHashMap<K, Entry<V>> _entries;
+
+    private final AtomicLong _version = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param name name of the cache.
+     * @param tables tables the entities are read from.
+     * @param keyType type of the entity ids.
+     * @param maxSize most entities kept.
+     * @param timeToLive seconds an entity is kept, -1 to keep it until it is invalidated.
+     */
+    public NearCache(String name, String[] tables, Class<?> keyType, int maxSize, int timeToLive) {
+        super(NearCacheMBean.class, false);
+        _name = name;
+        _tables = tables;
+        _keyType = keyType;
+        _maxSize = maxSize;
+        _timeToLive = timeToLive < 0 ? 0 : timeToLive * 1000L;
+        _entries = new ConcurrentHashMap<K, Entry<V>>(Math.min(maxSize, 1024));
+
+        for (String table : tables) {
+            List<NearCache<?, ?>> caches = s_caches.get(table);
+            if (caches == null) {
+                caches = new CopyOnWriteArrayList<NearCache<?, ?>>();
+                List<NearCache<?, ?>> existing = s_caches.putIfAbsent(table, caches);
+                if (existing != null) {
+                    caches = existing;
+                }
+            }
+            caches.add(this);
+        }
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Stops the cache from being invalidated.  It is not to be used after.
+     */
+    public void close() {
+        for (String table : _tables) {
+            List<NearCache<?, ?>> caches = s_caches.get(table);
+            if (caches != null) {
+                caches.remove(this);
+            }
+        }
+        _entries.clear();
+    }
+
+    /**
+     * @return the entity or null if it is not in the cache.
+     */
+    public V get(K key) {
+        Entry<V> entry = _entries.get(key);
+        if (entry != null) {
+            if (entry.expires == 0 || entry.expires > System.currentTimeMillis()) {
+                _hits.incrementAndGet();
+                return entry.value;
+            }
+            _entries.remove(key, entry);
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts the entity in the cache unless the cache has been invalidated
+     * since the version was taken.
+     *
+     * @param version what getVersion() returned before the entity was read.
+     * @return true if the entity is in the cache.
+     */
+    public boolean put(K key, V value, long version) {
+        if (_version.get() != version) {
+            return false;
+        }
+
+        if (_entries.size() >= _maxSize && !_entries.containsKey(key)) {
+            evict();
+        }
+
+        Entry<V> entry = new Entry<V>(value, _timeToLive == 0 ? 0 : System.currentTimeMillis() + _timeToLive);
+        _entries.put(key, entry);
+        if (_version.get() != version) {
+            // Invalidated while it was being put in
+            _entries.remove(key, entry);
+            return false;
+        }
+        return true;
+    }
+
+    protected void evict() {
+        // The entries are not kept in any order so the first one found goes
+        Iterator<K> it = _entries.keySet().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+            _evictions.incrementAndGet();
+        }
+    }
+
+    public void invalidate(K key) {
+        _version.incrementAndGet();
+        if (_entries.remove(key) != null) {
+            _invalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void flush() {
+        _version.incrementAndGet();
+        Iterator<K> it = _entries.keySet().iterator();
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+            _invalidations.incrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void invalidate(String id) {
+        if (id == null) {
+            flush();
+        } else if (_keyType == Long.class || _keyType == long.class) {
+            invalidate((K)Long.valueOf(id));
+        } else if (_keyType == Integer.class || _keyType == int.class) {
+            invalidate((K)Integer.valueOf(id));
+        } else {
+            invalidate((K)id);
+        }
+    }
+
+    @Override
+    public String getTables() {
+        StringBuilder str = new StringBuilder();
+        for (String table : _tables) {
+            if (str.length() > 0) {
+                str.append(", ");
+            }
+            str.append(table);
+        }
+        return str.toString();
+    }
+
+    @Override
+    public int getSize() {
+        return _entries.size();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _maxSize;
+    }
+
+    @Override
+    public long getVersion() {
+        return _version.get();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    @Override
+    public void resetCounters() {
+        _hits.set(0);
+        _misses.set(0);
+        _invalidations.set(0);
+        _evictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache[" + _name + "; tables=" + getTables() + "; max=" + _maxSize + "; ttl=" + (_timeToLive / 1000) + "]";
+    }
+
+    public static void setPeerNotifier(PeerNotifier notifier) {
+        s_peerNotifier = notifier;
+    }
+
+    /**
+     * @return true if any of the tables is cached on this server.
+     */
+    public static boolean isCached(String[] tables) {
+        for (String table : tables) {
+            List<NearCache<?, ?>> caches = s_caches.get(table);
+            if (caches != null && !caches.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops an entity that has been written from every cache of its tables.
+     * If the write is part of a database transaction, the entity is dropped
+     * again once the transaction is over and that is when the peers are
+     * told, so nobody can read the old row back into a cache in between.
+     * The peers are told about all the writes of a transaction at once.
+     *
+     * @param txn the transaction the entity was written in.
+     * @param tables tables the entity was written to.
+     * @param id id of the entity or null if any entity of the tables may have changed.
+     */
+    public static void invalidate(Transaction txn, String[] tables, Object id) {
+        if (!isCached(tables)) {
+            return;
+        }
+
+        invalidateLocally(tables, id);
+        if (!txn.dbTxnStarted()) {
+            Invalidations invalidations = new Invalidations(txn);
+            invalidations.add(tables, id);
+            invalidations.run();
+            return;
+        }
+
+        Invalidations pending = s_pending.get();
+        if (pending == null || pending._txn != txn) {
+            pending = new Invalidations(txn);
+            s_pending.set(pending);
+            txn.runAfterCompletion(pending);
+        }
+        pending.add(tables, id);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static void invalidateLocally(String[] tables, Object id) {
+        for (String table : tables) {
+            List<NearCache<?, ?>> caches = s_caches.get(table);
+            if (caches == null) {
+                continue;
+            }
+            for (NearCache<?, ?> cache : caches) {
+                if (id == null) {
+                    cache.flush();
+                } else {
+                    ((NearCache<Object, ?>)cache).invalidate(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a peer has written to the table.
+     *
+     * @param id id of the entity or null if any entity of the table may have changed.
+     */
+    public static void onPeerInvalidated(String table, String id) {
+        List<NearCache<?, ?>> caches = s_caches.get(table);
+        if (caches == null) {
+            return;
+        }
+        for (NearCache<?, ?> cache : caches) {
+            try {
+                cache.invalidate(id);
+            } catch (NumberFormatException e) {
+                s_logger.warn("Flushing " + cache.getName() + " because " + id + " is not an id of " + table);
+                cache.flush();
+            }
+        }
+    }
+
+    /**
+     * Empties every cache on this server, for when the invalidations from
+     * the peers may have been missed.
+     */
+    public static void flushAll() {
+        for (List<NearCache<?, ?>> caches : s_caches.values()) {
+            for (NearCache<?, ?> cache : caches) {
+                cache.flush();
+            }
+        }
+    }
+
+    /**
+     * The entities written to the cached tables in a transaction, dropped
+     * here again and sent to the peers once it is over.
+     */
+    protected static class Invalidations implements Runnable {
+        final Transaction _txn;
+        // The ids written to each table, null if any entity of the table may have changed
+        final Map<String, Set<String>> _tables = new LinkedHashMap<String, Set<String>>();
+
+        Invalidations(Transaction txn) {
+            _txn = txn;
+        }
+
+        void add(String[] tables, Object id) {
+            for (String table : tables) {
+                if (!s_caches.containsKey(table)) {
+                    continue;
+                }
+                if (id == null) {
+                    _tables.put(table, null);
+                } else if (!_tables.containsKey(table)) {
+                    Set<String> ids = new LinkedHashSet<String>();
+                    ids.add(id.toString());
+                    _tables.put(table, ids);
+                } else {
+                    Set<String> ids = _tables.get(table);
+                    if (ids != null) {
+                        ids.add(id.toString());
+                        if (ids.size() > MAX_IDS_PER_TABLE) {
+                            _tables.put(table, null);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (s_pending.get() == this) {
+                s_pending.remove();
+            }
+            if (_tables.isEmpty()) {
+                return;
+            }
+
+            for (Map.Entry<String, Set<String>> entry : _tables.entrySet()) {
+                if (entry.getValue() == null) {
+                    onPeerInvalidated(entry.getKey(), null);
+                } else {
+                    for (String id : entry.getValue()) {
+                        onPeerInvalidated(entry.getKey(), id);
+                    }
+                }
+            }
+
+            PeerNotifier notifier = s_peerNotifier;
+            if (notifier != null) {
+                notifier.notifyInvalidated(_tables);
+            }
+        }
+    }
+
+    protected static class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Tells the other management servers that a table has been written to.
+     */
+    public interface PeerNotifier {
+        /**
+         * @param invalidations the ids of the entities written to each table,
+         * null instead of the ids if any entity of the table may have changed.
+         */
+        void notifyInvalidated(Map<String, Set<String>> invalidations);
+    }
+}
@@ -0,0 +1,48 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+public interface NearCacheMBean {
+
+    String getTables();
+
+    int getSize();
+
+    int getMaxSize();
+
+    /**
+     * @return the number of times the cache was changed, entries are only
+     * put in the cache if it did not change while they were being loaded.
+     */
+    long getVersion();
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * @return the entries dropped because the entity was changed on this
+     * server or on a peer.
+     */
+    long getInvalidations();
+
+    long getEvictions();
+
+    void flush();
+
+    void resetCounters();
+}
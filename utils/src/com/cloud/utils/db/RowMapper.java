@@ -0,0 +1,350 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * RowMapper fills in entities from the rows of a select.  It is built once
+ * for the columns of a result set and works out up front what
+ * GenericDaoBase.setField() used to work out for every cell: the field the
+ * column maps to, how to read it and how to convert it.  Mapping a row is
+ * then a walk over an array of column mappers.
+ */
+public class RowMapper {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // What DateUtil.parseDateString() creates for every date it parses
+    private static final ThreadLocal<DateFormat> s_dateFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df;
+        }
+    };
+
+    private static final int STRING = 0;
+    private static final int LONG = 1;
+    private static final int LONG_OBJECT = 2;
+    private static final int ENUM_STRING = 3;
+    private static final int ENUM_ORDINAL = 4;
+    private static final int INT = 5;
+    private static final int INTEGER = 6;
+    private static final int DATE = 7;
+    private static final int CALENDAR = 8;
+    private static final int BOOLEAN = 9;
+    private static final int BOOLEAN_OBJECT = 10;
+    private static final int URI_TYPE = 11;
+    private static final int URL_TYPE = 12;
+    private static final int IP_STRING = 13;
+    private static final int IP_LONG = 14;
+    private static final int SHORT = 15;
+    private static final int SHORT_OBJECT = 16;
+    private static final int FLOAT = 17;
+    private static final int FLOAT_OBJECT = 18;
+    private static final int DOUBLE = 19;
+    private static final int DOUBLE_OBJECT = 20;
+    private static final int BYTE = 21;
+    private static final int BYTE_OBJECT = 22;
+    private static final int BYTES = 23;
+    private static final int OBJECT = 24;
+
+    private final ColumnMapper[] _columns;
+
+    /**
+     * @param fields the field of each column of the result set, in order.
+     */
+    public RowMapper(Field[] fields) {
+        _columns = new ColumnMapper[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            _columns[i] = new ColumnMapper(fields[i]);
+        }
+    }
+
+    public int getColumnCount() {
+        return _columns.length;
+    }
+
+    /**
+     * Sets the fields of the entity from the current row of the result set.
+     */
+    public void map(Object entity, ResultSet rs) throws SQLException {
+        for (int i = 0; i < _columns.length; i++) {
+            _columns[i].map(entity, rs, i + 1);
+        }
+    }
+
+    protected static class ColumnMapper {
+        private final Field _field;
+        private final int _kind;
+        private final boolean _encrypted;
+        private final Enum<?>[] _constants;
+        private final Map<String, Enum<?>> _constantsByName;
+
+        public ColumnMapper(Field field) {
+            _field = field;
+            Encrypt encrypt = field.getAnnotation(Encrypt.class);
+            _encrypted = encrypt != null && encrypt.encrypt();
+
+            final Class<?> type = field.getType();
+            final Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
+            if (type.isEnum()) {
+                _constants = (Enum<?>[])type.getEnumConstants();
+                _constantsByName = new HashMap<String, Enum<?>>();
+                for (Enum<?> e : _constants) {
+                    _constantsByName.put(e.name(), e);
+                }
+                _kind = enumType == EnumType.ORDINAL ? ENUM_ORDINAL : ENUM_STRING;
+                return;
+            }
+
+            _constants = null;
+            _constantsByName = null;
+            if (type == String.class) {
+                _kind = STRING;
+            } else if (type == long.class) {
+                _kind = LONG;
+            } else if (type == Long.class) {
+                _kind = LONG_OBJECT;
+            } else if (type == int.class) {
+                _kind = INT;
+            } else if (type == Integer.class) {
+                _kind = INTEGER;
+            } else if (type == Date.class) {
+                _kind = DATE;
+            } else if (type == Calendar.class) {
+                _kind = CALENDAR;
+            } else if (type == boolean.class) {
+                _kind = BOOLEAN;
+            } else if (type == Boolean.class) {
+                _kind = BOOLEAN_OBJECT;
+            } else if (type == URI.class) {
+                _kind = URI_TYPE;
+            } else if (type == URL.class) {
+                _kind = URL_TYPE;
+            } else if (type == Ip.class) {
+                _kind = enumType == EnumType.STRING ? IP_STRING : IP_LONG;
+            } else if (type == short.class) {
+                _kind = SHORT;
+            } else if (type == Short.class) {
+                _kind = SHORT_OBJECT;
+            } else if (type == float.class) {
+                _kind = FLOAT;
+            } else if (type == Float.class) {
+                _kind = FLOAT_OBJECT;
+            } else if (type == double.class) {
+                _kind = DOUBLE;
+            } else if (type == Double.class) {
+                _kind = DOUBLE_OBJECT;
+            } else if (type == byte.class) {
+                _kind = BYTE;
+            } else if (type == Byte.class) {
+                _kind = BYTE_OBJECT;
+            } else if (type == byte[].class) {
+                _kind = BYTES;
+            } else {
+                _kind = OBJECT;
+            }
+        }
+
+        public Field getField() {
+            return _field;
+        }
+
+        public void map(Object entity, ResultSet rs, int index) throws SQLException {
+            try {
+                switch (_kind) {
+                case STRING: {
+                    byte[] bytes = rs.getBytes(index);
+                    if (bytes == null) {
+                        _field.set(entity, null);
+                    } else {
+                        String str = new String(bytes, UTF8);
+                        _field.set(entity, _encrypted ? DBEncryptionUtil.decrypt(str) : str);
+                    }
+                    break;
+                }
+                case LONG:
+                    _field.setLong(entity, rs.getLong(index));
+                    break;
+                case LONG_OBJECT: {
+                    long value = rs.getLong(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case ENUM_STRING: {
+                    String name = rs.getString(index);
+                    if (name == null) {
+                        break;
+                    }
+                    Enum<?> e = _constantsByName.get(name);
+                    if (e == null) {
+                        for (Enum<?> constant : _constants) {
+                            if (constant.name().equalsIgnoreCase(name)) {
+                                e = constant;
+                                break;
+                            }
+                        }
+                    }
+                    if (e != null) {
+                        _field.set(entity, e);
+                    }
+                    break;
+                }
+                case ENUM_ORDINAL: {
+                    int ordinal = rs.getInt(index);
+                    if (ordinal >= 0 && ordinal < _constants.length) {
+                        _field.set(entity, _constants[ordinal]);
+                    }
+                    break;
+                }
+                case INT:
+                    _field.setInt(entity, rs.getInt(index));
+                    break;
+                case INTEGER: {
+                    int value = rs.getInt(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case DATE:
+                    if (rs.getDate(index) == null) {
+                        _field.set(entity, null);
+                    } else {
+                        _field.set(entity, parseDate(rs.getString(index)));
+                    }
+                    break;
+                case CALENDAR:
+                    if (rs.getDate(index) == null) {
+                        _field.set(entity, null);
+                    } else {
+                        final Calendar cal = Calendar.getInstance();
+                        cal.setTime(parseDate(rs.getString(index)));
+                        _field.set(entity, cal);
+                    }
+                    break;
+                case BOOLEAN:
+                    _field.setBoolean(entity, rs.getBoolean(index));
+                    break;
+                case BOOLEAN_OBJECT: {
+                    boolean value = rs.getBoolean(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case URI_TYPE: {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URI(str));
+                    } catch (URISyntaxException e) {
+                        throw new CloudRuntimeException("Invalid URI: " + str, e);
+                    }
+                    break;
+                }
+                case URL_TYPE: {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URL(str));
+                    } catch (MalformedURLException e) {
+                        throw new CloudRuntimeException("Invalid URL: " + str, e);
+                    }
+                    break;
+                }
+                case IP_STRING: {
+                    String str = rs.getString(index);
+                    _field.set(entity, str == null ? null : new Ip(NetUtils.ip2Long(str)));
+                    break;
+                }
+                case IP_LONG:
+                    _field.set(entity, new Ip(rs.getLong(index)));
+                    break;
+                case SHORT:
+                    _field.setShort(entity, rs.getShort(index));
+                    break;
+                case SHORT_OBJECT: {
+                    short value = rs.getShort(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case FLOAT:
+                    _field.setFloat(entity, rs.getFloat(index));
+                    break;
+                case FLOAT_OBJECT: {
+                    float value = rs.getFloat(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case DOUBLE:
+                    _field.setDouble(entity, rs.getDouble(index));
+                    break;
+                case DOUBLE_OBJECT: {
+                    double value = rs.getDouble(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case BYTE:
+                    _field.setByte(entity, rs.getByte(index));
+                    break;
+                case BYTE_OBJECT: {
+                    byte value = rs.getByte(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                    break;
+                }
+                case BYTES:
+                    _field.set(entity, rs.getBytes(index));
+                    break;
+                default:
+                    _field.set(entity, rs.getObject(index));
+                    break;
+                }
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("Yikes! ", e);
+            }
+        }
+
+        private static Date parseDate(String str) {
+            try {
+                return s_dateFormat.get().parse(str);
+            } catch (ParseException e) {
+                throw new CloudRuntimeException("Unable to parse date " + str, e);
+            }
+        }
+    }
+}
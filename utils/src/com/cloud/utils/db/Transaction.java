@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -116,6 +117,11 @@ public class Transaction {
 
     private Transaction _prev = null;
 
+    // Run once the database transaction in progress is over
+    private List<Runnable> _completionTasks = null;
+    // Run only if it is committed
+    private List<Runnable> _commitTasks = null;
+
     public static Transaction currentTxn() {
         Transaction txn = tls.get();
         assert txn != null : "No Transaction on stack.  Did you mark the method with @DB?";
@@ -204,6 +210,56 @@ public class Transaction {
         return _txn;
     }
 
+    /**
+     * Runs the task once the database transaction in progress has been
+     * committed or rolled back, or right away if there is none.
+     */
+    public void runAfterCompletion(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_completionTasks == null) {
+            _completionTasks = new ArrayList<Runnable>();
+        }
+        _completionTasks.add(task);
+    }
+
+    /**
+     * Runs the task once the database transaction in progress has been
+     * committed, or right away if there is none.  The task is dropped if
+     * the transaction is rolled back.
+     */
+    public void runAfterCommit(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_commitTasks == null) {
+            _commitTasks = new ArrayList<Runnable>();
+        }
+        _commitTasks.add(task);
+    }
+
+    protected void runCompletionTasks(boolean committed) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        if (committed && _commitTasks != null) {
+            tasks.addAll(_commitTasks);
+        }
+        if (_completionTasks != null) {
+            tasks.addAll(_completionTasks);
+        }
+        _commitTasks = null;
+        _completionTasks = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run " + task + " after the transaction", e);
+            }
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -647,6 +703,7 @@ public class Transaction {
         closeConnection();
 
         _stack.clear();
+        runCompletionTasks(false);
         Merovingian2 lockMaster = Merovingian2.getLockMaster();
         if (lockMaster != null) {
             lockMaster.cleanupThread();
@@ -728,17 +785,32 @@ public class Transaction {
         }
 
         _txn = false;
+        boolean committed = false;
         try {
             if (_conn != null) {
                 _conn.commit();
+                committed = true;
                 s_logger.trace("txn: DB Changes committed. Time = " + (System.currentTimeMillis() - _txnTime));
                 clearLockTimes();
                 closeConnection();
             }
+            committed = true;
             return true;
         } catch (final SQLException e) {
-            rollbackTransaction();
+            if (!committed) {
+                // _txn is already off, so rollbackTransaction() would not do it
+                try {
+                    _conn.rollback();
+                } catch (final SQLException re) {
+                    s_logger.warn("Unable to rollback", re);
+                }
+                clearLockTimes();
+                closeConnection();
+            }
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
+        } finally {
+            // The tasks must not be left for the next transaction of this thread
+            runCompletionTasks(committed);
         }
     }
 
@@ -856,6 +928,7 @@ public class Transaction {
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        runCompletionTasks(false);
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -1108,7 +1181,7 @@ public class Transaction {
                     usageMaxWait, usageMaxIdle);
 
             final ConnectionFactory usageConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + usageHost + ":" + usagePort + "/" + usageDbName +
-                    "?autoReconnect=" + usageAutoReconnect, usageUsername, usagePassword);
+                    "?autoReconnect=" + usageAutoReconnect + "&rewriteBatchedStatements=true", usageUsername, usagePassword);
 
             final PoolableConnectionFactory usagePoolableConnectionFactory = new PoolableConnectionFactory(usageConnectionFactory, usageConnectionPool,
                     new StackKeyedObjectPoolFactory(), null, false, false);
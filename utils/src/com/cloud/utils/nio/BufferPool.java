@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool keeps direct ByteBuffers in power of two size classes so the
+ * links of a NioConnection don't allocate new buffers for every packet.
+ * Requests larger than the biggest size class get a heap buffer that is
+ * not pooled.  Buffers that are never released are simply garbage
+ * collected.
+ */
+public class BufferPool {
+    private final int _minSize;
+    private final int _maxSize;
+    private final int _maxPooledPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _pools;
+    private final AtomicInteger[] _pooledCounts;
+    private final AtomicLong _allocations = new AtomicLong(0);
+
+    /**
+     * @param minSize capacity of the smallest size class, must be a power of two.
+     * @param maxSize capacity of the biggest size class.
+     * @param maxPooledPerClass number of free buffers kept in each size class.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass) {
+        if (Integer.bitCount(minSize) != 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid size classes: " + minSize + "-" + maxSize);
+        }
+        _minSize = minSize;
+        _maxPooledPerClass = maxPooledPerClass;
+
+        int classes = 1;
+        int size = minSize;
+        while (size < maxSize) {
+            size <<= 1;
+            classes++;
+        }
+        _maxSize = size;
+        _pools = new ConcurrentLinkedQueue[classes];
+        _pooledCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _pooledCounts[i] = new AtomicInteger(0);
+        }
+    }
+
+    private int sizeClass(int size) {
+        if (size > _maxSize) {
+            return -1;
+        }
+        int index = 0;
+        int capacity = _minSize;
+        while (capacity < size) {
+            capacity <<= 1;
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        if (index < 0) {
+            _allocations.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = _pools[index].poll();
+        if (buffer == null) {
+            _allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(_minSize << index);
+        }
+        _pooledCounts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.  The caller must
+     * not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int index = sizeClass(buffer.capacity());
+        if (index < 0 || (_minSize << index) != buffer.capacity()) {
+            return;
+        }
+        if (_pooledCounts[index].incrementAndGet() > _maxPooledPerClass) {
+            _pooledCounts[index].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _pools[index].offer(buffer);
+    }
+
+    /**
+     * @return number of buffers that had to be allocated because none was
+     * free in the pool.
+     */
+    public long getAllocationCount() {
+        return _allocations.get();
+    }
+}
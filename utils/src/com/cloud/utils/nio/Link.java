@@ -50,6 +50,8 @@ public class Link {
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
+    private final BufferPool _pool;
+    private final ByteBuffer _headerBuffer;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
     private Object _attach;
@@ -58,15 +60,27 @@ public class Link {
 
     private SSLEngine _sslEngine;
 
+    /* State of a server side handshake driven by the selector, see doHandshake(SocketChannel) */
+    private boolean _handshakeDone;
+    private ByteBuffer _hsNetIn;        // kept in fill mode
+    private ByteBuffer _hsNetOut;       // kept in drain mode
+    private ByteBuffer _hsAppBuf;
+    private ByteBuffer _pendingInput;   // bytes read during handshake that belong to the first packets
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _pool = connection.getBufferPool();
+        _headerBuffer = ByteBuffer.allocate(4);
+        _readBuffer = null;
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
         _readHeader = true;
         _gotFollowingPacket = false;
+        _handshakeDone = true;
     }
 
     public Link (Link link) {
@@ -132,57 +146,57 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        int pkgBufSize = sslSession.getPacketBufferSize() + 40;
+        ByteBuffer pkgBuf = pool != null ? pool.acquire(pkgBufSize) : ByteBuffer.allocate(pkgBufSize);
+        ByteBuffer headBuf = pool != null ? pool.acquire(4) : ByteBuffer.allocate(4);
+        // Header and packet go out in one gathering write
+        ByteBuffer[] outBufs = new ByteBuffer[] { headBuf, pkgBuf };
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
             totalLen += buffer.limit();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
+        try {
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                headBuf.clear();
+                pkgBuf.clear();
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                        engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
-            }
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
+                }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+                int header = pkgBuf.position();
+                pkgBuf.flip();
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                headBuf.putInt(header);
+                headBuf.flip();
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                long remaining = headBuf.remaining() + pkgBuf.remaining();
+                while (remaining > 0) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing " + remaining);
+                    }
+                    remaining -= ch.write(outBufs);
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
             }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
-                }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+        } finally {
+            if (pool != null) {
+                pool.release(pkgBuf);
+                pool.release(headBuf);
             }
         }
     }
@@ -198,7 +212,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, null);
         } 
     }
 
@@ -208,20 +222,17 @@ public class Link {
 
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
-            if (_readBuffer.position() == 0) {
-                _readBuffer.limit(4);
-            }
-
-            if (ch.read(_readBuffer) == -1) {
+            if (readFromChannel(ch, _headerBuffer) == -1) {
                 throw new IOException("Connection closed with -1 on reading size.");
             }
 
-            if (_readBuffer.hasRemaining()) {
+            if (_headerBuffer.hasRemaining()) {
                 s_logger.trace("Need to read the rest of the packet length");
                 return null;
             }
-            _readBuffer.flip();
-            int header = _readBuffer.getInt();
+            _headerBuffer.flip();
+            int header = _headerBuffer.getInt();
+            _headerBuffer.clear();
             int readSize = (short)header;
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Packet length is " + readSize);
@@ -232,7 +243,7 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _plaintextBuffer = _pool.acquire(_sslEngine.getSession().getApplicationBufferSize() + 40);
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -241,19 +252,12 @@ public class Link {
                 _gotFollowingPacket = false;
             }
 
-            _readBuffer.clear();
             _readHeader = false;
-
-            if (_readBuffer.capacity() < readSize) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
-                }
-                _readBuffer = ByteBuffer.allocate(readSize);
-            }
+            _readBuffer = _pool.acquire(readSize);
             _readBuffer.limit(readSize);
         }
 
-        if (ch.read(_readBuffer) == -1) {
+        if (readFromChannel(ch, _readBuffer) == -1) {
             throw new IOException("Connection closed with -1 on read.");
         }
 
@@ -266,16 +270,24 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
+        int appBufSize = sslSession.getApplicationBufferSize() + 40;
         SSLEngineResult engResult;
         int remaining = 0;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (_plaintextBuffer.remaining() < appBufSize) {
+                // We need to expand _plaintextBuffer for more data
+                ByteBuffer newBuffer = _pool.acquire(_plaintextBuffer.capacity() * 2 + appBufSize);
+                _plaintextBuffer.flip();
+                newBuffer.put(_plaintextBuffer);
+                _pool.release(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            // Unwrap straight into the plain text buffer, no intermediate copy
+            int position = _plaintextBuffer.position();
+            engResult = _sslEngine.unwrap(_readBuffer, _plaintextBuffer);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
@@ -285,27 +297,21 @@ public class Link {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                s_logger.trace("Done with packet: " + (_plaintextBuffer.position() - position));
             }
         }
 
-        _readBuffer.clear();
+        _pool.release(_readBuffer);
+        _readBuffer = null;
         _readHeader = true;
 
         if (!_gotFollowingPacket) {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _pool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -315,6 +321,30 @@ public class Link {
         }
     }
 
+    /**
+     * Reads from the channel, first draining any bytes that were received
+     * together with the last handshake packets.
+     */
+    private int readFromChannel(SocketChannel ch, ByteBuffer buffer) throws IOException {
+        if (_pendingInput == null) {
+            return ch.read(buffer);
+        }
+
+        int count = Math.min(buffer.remaining(), _pendingInput.remaining());
+        ByteBuffer slice = _pendingInput.duplicate();
+        slice.limit(slice.position() + count);
+        buffer.put(slice);
+        _pendingInput.position(_pendingInput.position() + count);
+        if (!_pendingInput.hasRemaining()) {
+            _pendingInput = null;
+        }
+        return count;
+    }
+
+    public boolean hasPendingInput() {
+        return _pendingInput != null;
+    }
+
     public void send(byte[] data) throws ClosedChannelException {
         send(data, false);
     }
@@ -324,22 +354,16 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        // The buffers are queued as is, doWrite() encrypts them straight from the caller's memory
+        _writeQueue.add(data);
         if  (close) {
             _writeQueue.add(new ByteBuffer[0]);
         }
@@ -371,10 +395,7 @@ public class Link {
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _pool);
         }
         return false;
     }
@@ -439,6 +460,118 @@ public class Link {
         return sslContext;
     }
 
+    public boolean isHandshakeDone() {
+        return _handshakeDone;
+    }
+
+    /**
+     * Prepares this link for a non-blocking server side handshake.  The
+     * handshake is then advanced by calling doHandshake(SocketChannel) each
+     * time the selector reports the channel ready.
+     */
+    public void beginHandshake() throws IOException {
+        SSLSession sslSession = _sslEngine.getSession();
+        _hsNetIn = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        _hsNetOut = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        _hsNetOut.flip();
+        _hsAppBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+        _handshakeDone = false;
+        _sslEngine.beginHandshake();
+    }
+
+    /**
+     * Advances the handshake as far as it can go without blocking.  Must be
+     * called from the selector thread.  When it returns false the interest
+     * ops of the key have been set to what the handshake is waiting for, or
+     * to 0 while the delegated tasks of the SSLEngine run on the worker pool.
+     *
+     * @param ch channel of this link, in non-blocking mode.
+     * @return true if the handshake is done.
+     * @throws IOException if the handshake failed or the peer went away.
+     */
+    public boolean doHandshake(SocketChannel ch) throws IOException {
+        while (true) {
+            if (_hsNetOut.hasRemaining()) {
+                ch.write(_hsNetOut);
+                if (_hsNetOut.hasRemaining()) {
+                    _key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+
+            HandshakeStatus hsStatus = _sslEngine.getHandshakeStatus();
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("SSL: Handshake status " + hsStatus + " for " + _addr);
+            }
+
+            SSLEngineResult engResult;
+            if (hsStatus == HandshakeStatus.FINISHED || hsStatus == HandshakeStatus.NOT_HANDSHAKING) {
+                finishHandshake();
+                return true;
+            } else if (hsStatus == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return false;
+            } else if (hsStatus == HandshakeStatus.NEED_WRAP) {
+                _hsNetOut.clear();
+                engResult = _sslEngine.wrap(EMPTY_BUFFER, _hsNetOut);
+                _hsNetOut.flip();
+                if (engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("Fail to handshake! " + engResult.getStatus());
+                }
+            } else {
+                _hsNetIn.flip();
+                _hsAppBuf.clear();
+                engResult = _sslEngine.unwrap(_hsNetIn, _hsAppBuf);
+                _hsNetIn.compact();
+                if (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if (!_hsNetIn.hasRemaining()) {
+                        throw new IOException("SSL: Handshake packet is larger than " + _hsNetIn.capacity() + " bytes");
+                    }
+                    int count = ch.read(_hsNetIn);
+                    if (count == -1) {
+                        throw new IOException("Connection closed with -1 during handshake.");
+                    }
+                    if (count == 0) {
+                        _key.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    }
+                } else if (engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("Fail to handshake! " + engResult.getStatus());
+                }
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        final SelectionKey key = _key;
+        key.interestOps(0);
+        _connection.scheduleHandshakeTask(new Runnable() {
+            @Override
+            public void run() {
+                Runnable task;
+                while ((task = _sslEngine.getDelegatedTask()) != null) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("SSL: Running delegated task!");
+                    }
+                    task.run();
+                }
+                // Wake up the selector so it continues the handshake
+                _connection.change(SelectionKey.OP_WRITE, key, null);
+            }
+        });
+    }
+
+    private void finishHandshake() {
+        _hsNetIn.flip();
+        if (_hsNetIn.hasRemaining()) {
+            _pendingInput = _hsNetIn;
+        }
+        _hsNetIn = null;
+        _hsNetOut = null;
+        _hsAppBuf = null;
+        _handshakeDone = true;
+    }
+
     public static void doHandshake(SocketChannel ch, SSLEngine sslEngine,
             boolean isClient) throws IOException {
         if (s_logger.isTraceEnabled()) {
@@ -58,6 +58,10 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    // Only a server runs the handshakes of the links it accepts
+    protected ExecutorService _sslHandshakeExecutor;
+    protected SSLContext _sslContext;
+    protected BufferPool _bufferPool;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -67,6 +71,11 @@ public abstract class NioConnection implements Runnable {
         _port = port;
         _factory = factory;
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _bufferPool = new BufferPool(64, 64 * 1024, 64);
+    }
+
+    public BufferPool getBufferPool() {
+        return _bufferPool;
     }
 
     public void start() {
@@ -87,6 +96,9 @@ public abstract class NioConnection implements Runnable {
 
     public void stop() {
     	_executor.shutdown();
+    	if (_sslHandshakeExecutor != null) {
+    	    _sslHandshakeExecutor.shutdown();
+    	}
         _isRunning = false;
         if (_thread != null) {
             _thread.interrupt();
@@ -184,22 +196,19 @@ public abstract class NioConnection implements Runnable {
             s_logger.trace("Connection accepted for " + socket);
         }
         
-        // Begin SSL handshake in BLOCKING mode
-        socketChannel.configureBlocking(true);
+        // The SSL handshake is driven by the selector, see handshake()
+        socketChannel.configureBlocking(false);
 
         SSLEngine sslEngine = null;
         try {
-            SSLContext sslContext = Link.initSSLContext(false);
-            sslEngine = sslContext.createSSLEngine();
+            if (_sslContext == null) {
+                _sslContext = Link.initSSLContext(false);
+            }
+            sslEngine = _sslContext.createSSLEngine();
             sslEngine.setUseClientMode(false);
             sslEngine.setNeedClientAuth(false);
-
-            Link.doHandshake(socketChannel, sslEngine, false);
-
         } catch (Exception e) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Socket " + socket + " closed on read.  Probably -1 returned: " + e.getMessage());
-            }
+            s_logger.warn("SSL: Unable to create the SSL engine, closing " + socket, e);
             try {
                 socketChannel.close();
                 socket.close();
@@ -207,18 +216,50 @@ public abstract class NioConnection implements Runnable {
             }
             return;
         }
-        
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("SSL: Handshake done");
-        }
-        socketChannel.configureBlocking(false);
+
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        SelectionKey linkKey = socketChannel.register(key.selector(), SelectionKey.OP_READ, link);
+        link.setKey(linkKey);
+        try {
+            link.beginHandshake();
+        } catch (IOException e) {
+            logDebug(e, linkKey, 5);
+            closeConnection(linkKey);
+            link.terminated();
+            return;
+        }
+        handshake(linkKey);
+    }
+
+    /**
+     * Advances the SSL handshake of a newly accepted link.  Once it is done,
+     * the link is registered and the CONNECT task is handed to the handlers.
+     */
+    protected void handshake(SelectionKey key) throws IOException {
+        Link link = (Link)key.attachment();
+        try {
+            if (!link.doHandshake((SocketChannel)key.channel())) {
+                return;
+            }
+        } catch (Exception e) {
+            logDebug(e, key, 4);
+            closeConnection(key);
+            link.terminated();
+            return;
+        }
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("SSL: Handshake done");
+        }
+        key.interestOps(SelectionKey.OP_READ);
         Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
+        registerLink(link.getSocketAddress(), link);
         _executor.execute(task);
+        if (link.hasPendingInput()) {
+            read(key);
+        }
     }
     
     protected void terminate(SelectionKey key) {
@@ -234,20 +275,27 @@ public abstract class NioConnection implements Runnable {
     
     protected void read(SelectionKey key) throws IOException {
         Link link = (Link)key.attachment();
+        if (!link.isHandshakeDone()) {
+            handshake(key);
+            return;
+        }
         try {
             SocketChannel socketChannel = (SocketChannel)key.channel();
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Reading from: " + socketChannel.socket().toString());
             }
-            byte[] data = link.read(socketChannel);
-            if (data == null) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Packet is incomplete.  Waiting for more.");
+            // Bytes left over from the handshake don't trigger the selector, so drain them here
+            do {
+                byte[] data = link.read(socketChannel);
+                if (data == null) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Packet is incomplete.  Waiting for more.");
+                    }
+                } else {
+                    Task task = _factory.create(Task.Type.DATA, link, data);
+                    _executor.execute(task);
                 }
-                return;
-            }
-            Task task = _factory.create(Task.Type.DATA, link, data);
-            _executor.execute(task);
+            } while (link.hasPendingInput());
         } catch (Exception e) {
             logDebug(e, key, 1);
             terminate(key);
@@ -381,8 +429,16 @@ public abstract class NioConnection implements Runnable {
     	_executor.execute(task);
     }
 
+    protected void scheduleHandshakeTask(Runnable task) {
+        _sslHandshakeExecutor.execute(task);
+    }
+
     protected void write(SelectionKey key) throws IOException {
         Link link = (Link)key.attachment();
+        if (!link.isHandshakeDone()) {
+            handshake(key);
+            return;
+        }
         try {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Writing to " + link.getSocketAddress().toString());
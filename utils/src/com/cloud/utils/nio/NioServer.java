@@ -23,9 +23,14 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
 public class NioServer extends NioConnection {
     private final static Logger s_logger = Logger.getLogger(NioServer.class);
     
@@ -35,6 +40,7 @@ public class NioServer extends NioConnection {
     
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
         super(name, port, workers, factory);
+        _sslHandshakeExecutor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-SSLHandshake"));
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
     }
@@ -0,0 +1,554 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * A stand-in for S3 that answers the requests S3Utils sends, the same
+ * subset of the REST API the awsapi S3 service implements: object put, get
+ * with ranges and If-Match, head, delete, bucket listing and multipart
+ * uploads.  Objects are kept as files in a directory so that large ones
+ * fit.  The requests for parts, uploaded parts and ranged gets, can be made
+ * to fail and to take a while, and the server counts how many of them run
+ * at once.
+ */
+public class LocalS3Server implements HttpRequestHandler {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private final ServerSocket _socket;
+    private final ExecutorService _executor = Executors.newCachedThreadPool(new NamedThreadFactory("LocalS3Server"));
+    private final HttpService _service;
+    private final HttpParams _params = new BasicHttpParams();
+    private final File _dir;
+    private final Map<String, StoredObject> _objects = new ConcurrentHashMap<String, StoredObject>();
+    private final Map<String, File> _uploads = new ConcurrentHashMap<String, File>();
+
+    private final AtomicInteger _failures = new AtomicInteger();
+    private volatile long _partDelay;
+    private volatile Runnable _partListener;
+    private final AtomicInteger _partRequests = new AtomicInteger();
+    private final AtomicInteger _runningParts = new AtomicInteger();
+    private final AtomicInteger _maxRunningParts = new AtomicInteger();
+
+    private static class StoredObject {
+        final File file;
+        final String etag;
+        final Date lastModified = new Date();
+
+        StoredObject(File file, String etag) {
+            this.file = file;
+            this.etag = etag;
+        }
+    }
+
+    public LocalS3Server(File dir) throws IOException {
+        _dir = dir;
+
+        BasicHttpProcessor processor = new BasicHttpProcessor();
+        processor.addInterceptor(new ResponseDate());
+        processor.addInterceptor(new ResponseContent());
+        processor.addInterceptor(new ResponseConnControl());
+        HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+        registry.register("*", this);
+        _service = new HttpService(processor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory());
+        _service.setHandlerResolver(registry);
+        _service.setParams(_params);
+
+        _socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!_socket.isClosed()) {
+                    try {
+                        final Socket socket = _socket.accept();
+                        _executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Closed by stop()
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(Socket socket) {
+        DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
+        try {
+            connection.bind(socket, _params);
+            while (connection.isOpen() && !_socket.isClosed()) {
+                _service.handleRequest(connection, new BasicHttpContext());
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (HttpException e) {
+            // Not a request this server understands
+        } finally {
+            try {
+                connection.shutdown();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public void stop() {
+        try {
+            _socket.close();
+        } catch (IOException e) {
+        }
+        _executor.shutdownNow();
+    }
+
+    public String getEndPoint() {
+        return "127.0.0.1:" + _socket.getLocalPort();
+    }
+
+    /**
+     * Makes the next part requests fail with an internal error.
+     */
+    public void failParts(int count) {
+        _failures.set(count);
+    }
+
+    public void setPartDelay(long millis) {
+        _partDelay = millis;
+    }
+
+    /**
+     * Runs the listener as each part request comes in.
+     */
+    public void setPartListener(Runnable listener) {
+        _partListener = listener;
+    }
+
+    public int getRunningParts() {
+        return _runningParts.get();
+    }
+
+    /**
+     * Replaces the object with the content of the file, like a put would.
+     */
+    public void replaceObject(String bucket, String key, File content) throws IOException {
+        File file = File.createTempFile("object", ".s3", _dir);
+        InputStream in = new FileInputStream(content);
+        try {
+            putStoredObject(bucket, key, new StoredObject(file, "\"" + store(in, file) + "\""));
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getPartRequests() {
+        return _partRequests.get();
+    }
+
+    public int getMaxRunningParts() {
+        return _maxRunningParts.get();
+    }
+
+    public int getPendingUploads() {
+        return _uploads.size();
+    }
+
+    public boolean hasObject(String bucket, String key) {
+        return _objects.containsKey(bucket + "/" + key);
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        URI uri;
+        try {
+            uri = new URI(request.getRequestLine().getUri());
+        } catch (URISyntaxException e) {
+            throw new HttpException("Invalid uri " + request.getRequestLine().getUri(), e);
+        }
+        String[] path = uri.getPath().substring(1).split("/", 2);
+        String bucket = path[0];
+        String key = path.length > 1 ? path[1] : "";
+        Map<String, String> params = parseQuery(uri.getRawQuery());
+        String method = request.getRequestLine().getMethod();
+        InputStream body = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest)request).getEntity().getContent() : null;
+
+        boolean part = (method.equals("PUT") && params.containsKey("partNumber")) || (method.equals("GET") && request.getFirstHeader("Range") != null);
+        if (part) {
+            startPart();
+        }
+        try {
+            if (part && failPart(response, body)) {
+                return;
+            }
+            if (key.length() == 0) {
+                if (method.equals("GET")) {
+                    listObjects(response, bucket, params.get("prefix"));
+                }
+            } else if (method.equals("POST") && params.containsKey("uploads")) {
+                initiateUpload(response, bucket, key);
+            } else if (method.equals("PUT") && params.containsKey("uploadId")) {
+                uploadPart(response, body, params.get("uploadId"), Integer.parseInt(params.get("partNumber")));
+            } else if (method.equals("POST") && params.containsKey("uploadId")) {
+                completeUpload(response, body, bucket, key, params.get("uploadId"));
+            } else if (method.equals("DELETE") && params.containsKey("uploadId")) {
+                File dir = _uploads.remove(params.get("uploadId"));
+                if (dir != null) {
+                    deleteUpload(dir);
+                }
+                response.setStatusCode(204);
+            } else if (method.equals("PUT")) {
+                putObject(response, body, bucket, key);
+            } else if (method.equals("GET") || method.equals("HEAD")) {
+                getObject(request, response, bucket, key);
+            } else if (method.equals("DELETE")) {
+                StoredObject object = _objects.remove(bucket + "/" + key);
+                if (object != null) {
+                    object.file.delete();
+                }
+                response.setStatusCode(204);
+            } else {
+                sendError(response, 405, "MethodNotAllowed");
+            }
+        } finally {
+            if (part) {
+                _runningParts.decrementAndGet();
+            }
+        }
+    }
+
+    private void startPart() {
+        _partRequests.incrementAndGet();
+        int running = _runningParts.incrementAndGet();
+        int max;
+        while ((max = _maxRunningParts.get()) < running && !_maxRunningParts.compareAndSet(max, running)) {
+        }
+        Runnable listener = _partListener;
+        if (listener != null) {
+            listener.run();
+        }
+        if (_partDelay > 0) {
+            try {
+                Thread.sleep(_partDelay);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private boolean failPart(HttpResponse response, InputStream body) throws IOException {
+        int failures;
+        do {
+            failures = _failures.get();
+            if (failures <= 0) {
+                return false;
+            }
+        } while (!_failures.compareAndSet(failures, failures - 1));
+
+        if (body != null) {
+            drain(body);
+        }
+        sendError(response, 500, "InternalError");
+        return true;
+    }
+
+    private void listObjects(HttpResponse response, String bucket, String prefix) throws IOException {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Name>").append(bucket).append("</Name><Prefix>").append(prefix == null ? "" : prefix).append("</Prefix>");
+        xml.append("<Marker></Marker><MaxKeys>1000</MaxKeys><IsTruncated>false</IsTruncated>");
+        for (Map.Entry<String, StoredObject> entry : _objects.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(bucket + "/")) {
+                continue;
+            }
+            String key = name.substring(bucket.length() + 1);
+            if (prefix != null && !key.startsWith(prefix)) {
+                continue;
+            }
+            StoredObject object = entry.getValue();
+            xml.append("<Contents><Key>").append(key).append("</Key>");
+            xml.append("<LastModified>").append(iso.format(object.lastModified)).append("</LastModified>");
+            xml.append("<ETag>").append(object.etag).append("</ETag>");
+            xml.append("<Size>").append(object.file.length()).append("</Size>");
+            xml.append("<StorageClass>STANDARD</StorageClass></Contents>");
+        }
+        xml.append("</ListBucketResult>");
+        sendXml(response, xml.toString());
+    }
+
+    private void initiateUpload(HttpResponse response, String bucket, String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        File dir = new File(_dir, "upload-" + uploadId);
+        dir.mkdirs();
+        _uploads.put(uploadId, dir);
+        sendXml(response, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><InitiateMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Bucket>" + bucket + "</Bucket><Key>" + key
+                + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpResponse response, InputStream body, String uploadId, int partNumber) throws IOException {
+        File dir = _uploads.get(uploadId);
+        if (dir == null) {
+            drain(body);
+            sendError(response, 404, "NoSuchUpload");
+            return;
+        }
+        String etag = store(body, new File(dir, Integer.toString(partNumber)));
+        response.addHeader("ETag", "\"" + etag + "\"");
+    }
+
+    private void completeUpload(HttpResponse response, InputStream body, String bucket, String key, String uploadId) throws IOException {
+        ByteArrayOutputStream parts = new ByteArrayOutputStream();
+        copy(body, parts);
+        File dir = _uploads.remove(uploadId);
+        if (dir == null) {
+            sendError(response, 404, "NoSuchUpload");
+            return;
+        }
+
+        File file = File.createTempFile("object", ".s3", _dir);
+        MessageDigest etags = md5();
+        int count = 0;
+        OutputStream out = new FileOutputStream(file);
+        try {
+            Matcher matcher = PART_NUMBER.matcher(parts.toString("UTF-8"));
+            while (matcher.find()) {
+                MessageDigest digest = md5();
+                InputStream in = new FileInputStream(new File(dir, matcher.group(1)));
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                etags.update(digest.digest());
+                count++;
+            }
+        } finally {
+            out.close();
+        }
+        deleteUpload(dir);
+
+        String etag = "\"" + hex(etags.digest()) + "-" + count + "\"";
+        putStoredObject(bucket, key, new StoredObject(file, etag));
+        sendXml(response, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><CompleteMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Location>http://" + getEndPoint() + "/"
+                + bucket + "/" + key + "</Location><Bucket>" + bucket + "</Bucket><Key>" + key + "</Key><ETag>" + etag + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void putObject(HttpResponse response, InputStream body, String bucket, String key) throws IOException {
+        File file = File.createTempFile("object", ".s3", _dir);
+        String etag = "\"" + store(body, file) + "\"";
+        putStoredObject(bucket, key, new StoredObject(file, etag));
+        response.addHeader("ETag", etag);
+    }
+
+    private void getObject(HttpRequest request, HttpResponse response, String bucket, String key) throws IOException {
+        StoredObject object = _objects.get(bucket + "/" + key);
+        if (object == null) {
+            sendError(response, 404, "NoSuchKey");
+            return;
+        }
+        Header ifMatch = request.getFirstHeader("If-Match");
+        if (ifMatch != null && !unquote(ifMatch.getValue()).equals(unquote(object.etag))) {
+            sendError(response, 412, "PreconditionFailed");
+            return;
+        }
+        long length = object.file.length();
+        long start = 0;
+        long end = length - 1;
+        if (request.getFirstHeader("Range") != null) {
+            Matcher matcher = RANGE.matcher(request.getFirstHeader("Range").getValue());
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+                end = Math.min(Long.parseLong(matcher.group(2)), length - 1);
+                response.setStatusCode(206);
+                response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        SimpleDateFormat rfc822 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+        rfc822.setTimeZone(TimeZone.getTimeZone("GMT"));
+        response.addHeader("ETag", object.etag);
+        response.addHeader("Last-Modified", rfc822.format(object.lastModified));
+        if (request.getRequestLine().getMethod().equals("HEAD")) {
+            // Only the length of the entity is sent
+            response.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[0]), length));
+            return;
+        }
+
+        InputStream in = new FileInputStream(object.file);
+        in.skip(start);
+        InputStreamEntity entity = new InputStreamEntity(in, end - start + 1);
+        entity.setContentType("application/octet-stream");
+        response.setEntity(entity);
+    }
+
+    private void putStoredObject(String bucket, String key, StoredObject object) {
+        StoredObject replaced = _objects.put(bucket + "/" + key, object);
+        if (replaced != null) {
+            replaced.file.delete();
+        }
+    }
+
+    private static void deleteUpload(File dir) {
+        File[] parts = dir.listFiles();
+        if (parts != null) {
+            for (File part : parts) {
+                part.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return the MD5 of what was stored.
+     */
+    private static String store(InputStream in, File file) throws IOException {
+        MessageDigest digest = md5();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+        return hex(digest.digest());
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) >= 0) {
+        }
+    }
+
+    private static void sendXml(HttpResponse response, String xml) throws UnsupportedEncodingException {
+        StringEntity entity = new StringEntity(xml, "UTF-8");
+        entity.setContentType("application/xml");
+        response.setEntity(entity);
+    }
+
+    private static void sendError(HttpResponse response, int status, String code) throws UnsupportedEncodingException {
+        response.setStatusCode(status);
+        sendXml(response, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + code + "</Message><RequestId>0</RequestId></Error>");
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals < 0) {
+                params.put(param, "");
+            } else {
+                params.put(param.substring(0, equals), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String unquote(String etag) {
+        return etag.replace("\"", "");
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+}
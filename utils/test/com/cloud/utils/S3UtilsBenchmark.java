@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.S3Utils.FileNamingStrategy;
+
+/**
+ * Compares the MB/sec of moving a template to and from S3 in one request
+ * each way, the way S3Utils used to, with the parallel parts and ranges
+ * S3Utils sends now.  It runs against the LocalS3Server stand-in, so it
+ * measures how well the transfers use the connection and the disks rather
+ * than a real network, and needs about four times the largest size of free
+ * space in the temporary directory.  The sizes are in MB, by default a 1G
+ * and a 10G template.  It is not picked up by the regular build, run it with
+ * mvn test -Dtest=S3UtilsBenchmark -Ds3utils.benchmark.sizes=1024,10240
+ */
+public class S3UtilsBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(S3UtilsBenchmark.class);
+
+    private static final String SIZES = System.getProperty("s3utils.benchmark.sizes", "1024,10240");
+    private static final String BUCKET = "templates";
+
+    public void testThroughput() throws Exception {
+        File dir = S3UtilsTest.createDirectory("s3bench");
+        new File(dir, "server").mkdirs();
+        LocalS3Server server = new LocalS3Server(new File(dir, "server"));
+        try {
+            File source = new File(dir, "source");
+            File target = new File(dir, "target");
+            source.mkdirs();
+            target.mkdirs();
+
+            ClientOptions options = S3UtilsTest.createClientOptions(server);
+            AmazonS3 client = new AmazonS3Client(new BasicAWSCredentials(options.getAccessKey(), options.getSecretKey()), new ClientConfiguration().withProtocol(Protocol.HTTP));
+            client.setEndpoint(options.getEndPoint());
+
+            for (String size : SIZES.split(",")) {
+                long bytes = Long.parseLong(size.trim()) * 1024 * 1024;
+                File file = S3UtilsTest.createFile(source, "template-" + size.trim() + ".vhd", bytes, bytes);
+                String key = "template/" + file.getName();
+
+                long start = System.nanoTime();
+                client.putObject(BUCKET, key, file);
+                long singlePut = rate(bytes, start);
+
+                File single = new File(target, "single.vhd");
+                start = System.nanoTime();
+                client.getObject(new GetObjectRequest(BUCKET, key), single);
+                long singleGet = rate(bytes, start);
+                assertEquals(bytes, single.length());
+                single.delete();
+                client.deleteObject(BUCKET, key);
+
+                start = System.nanoTime();
+                S3Utils.putFile(options, file, BUCKET, key);
+                long partsPut = rate(bytes, start);
+
+                start = System.nanoTime();
+                File parts = S3Utils.getFile(options, BUCKET, key, target, new FileNamingStrategy() {
+                    @Override
+                    public String determineFileName(String key) {
+                        return "parts.vhd";
+                    }
+                });
+                long rangesGet = rate(bytes, start);
+                assertEquals(bytes, parts.length());
+                parts.delete();
+                client.deleteObject(BUCKET, key);
+                file.delete();
+
+                s_logger.info(size.trim() + "MB put: " + singlePut + " MB/sec in one request, " + partsPut + " MB/sec in parts; get: " + singleGet + " MB/sec in one request, "
+                        + rangesGet + " MB/sec in ranges");
+            }
+        } finally {
+            server.stop();
+            S3UtilsTest.deleteDirectory(dir);
+        }
+    }
+
+    private static long rate(long bytes, long start) {
+        return bytes * 1000000000L / (1024 * 1024) / Math.max(1, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,293 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.S3Utils.FileNamingStrategy;
+import com.cloud.utils.S3Utils.ObjectNamingStrategy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class S3UtilsTest {
+    private static final String BUCKET = "templates";
+
+    private File _dir;
+    private LocalS3Server _server;
+    private ClientOptions _options;
+
+    static ClientOptions createClientOptions(final LocalS3Server server) {
+        return new ClientOptions() {
+            @Override
+            public String getAccessKey() {
+                return "access";
+            }
+
+            @Override
+            public String getSecretKey() {
+                return "secret";
+            }
+
+            @Override
+            public String getEndPoint() {
+                return server.getEndPoint();
+            }
+
+            @Override
+            public Boolean isHttps() {
+                return false;
+            }
+
+            @Override
+            public Integer getConnectionTimeout() {
+                return null;
+            }
+
+            @Override
+            public Integer getMaxErrorRetry() {
+                // Leave the retries to S3Utils
+                return 0;
+            }
+
+            @Override
+            public Integer getSocketTimeout() {
+                return null;
+            }
+        };
+    }
+
+    static File createDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "test");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void deleteDirectory(File dir) {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                deleteDirectory(f);
+            } else {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static File createFile(File dir, String name, long size, long seed) throws IOException {
+        File file = new File(dir, name);
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(seed);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        assertEquals(expected.length(), actual.length());
+        RandomAccessFile in1 = new RandomAccessFile(expected, "r");
+        RandomAccessFile in2 = new RandomAccessFile(actual, "r");
+        try {
+            byte[] block1 = new byte[1024 * 1024];
+            byte[] block2 = new byte[1024 * 1024];
+            for (long position = 0; position < expected.length(); position += block1.length) {
+                int length = (int)Math.min(block1.length, expected.length() - position);
+                in1.readFully(block1, 0, length);
+                in2.readFully(block2, 0, length);
+                assertArrayEquals(actual.getName() + " at " + position, block1, block2);
+            }
+        } finally {
+            in1.close();
+            in2.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _dir = createDirectory("s3utils");
+        new File(_dir, "server").mkdirs();
+        new File(_dir, "source").mkdirs();
+        new File(_dir, "target").mkdirs();
+        _server = new LocalS3Server(new File(_dir, "server"));
+        _options = createClientOptions(_server);
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop();
+        deleteDirectory(_dir);
+    }
+
+    @Test
+    public void testDirectoryGoesUpInPartsAndComesBackInRanges() throws Exception {
+        File source = new File(_dir, "source");
+        createFile(source, "small.vhd", 1000, 1);
+        createFile(source, "large.vhd", 2 * S3Utils.MULTIPART_THRESHOLD + 12345, 2);
+        createFile(source, "larger.vhd", 3 * S3Utils.MULTIPART_THRESHOLD + 1, 3);
+
+        _server.setPartDelay(50);
+        S3Utils.putDirectory(_options, BUCKET, source, new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".vhd");
+            }
+        }, new ObjectNamingStrategy() {
+            @Override
+            public String determineKey(File file) {
+                return "template/1/" + file.getName();
+            }
+        });
+        // 5 + 7 parts of 8M, the small file is a single put
+        assertEquals(12, _server.getPartRequests());
+        assertTrue("At most " + _server.getMaxRunningParts() + " parts at once", _server.getMaxRunningParts() > 1);
+        assertEquals(0, _server.getPendingUploads());
+
+        File target = new File(_dir, "target");
+        List<File> files = S3Utils.getDirectory(_options, BUCKET, "template/1", target, new FileNamingStrategy() {
+            @Override
+            public String determineFileName(String key) {
+                return key.substring(key.lastIndexOf('/') + 1);
+            }
+        });
+        assertEquals(3, files.size());
+        assertEquals(24, _server.getPartRequests());
+        for (File file : files) {
+            assertSameContent(new File(source, file.getName()), file);
+        }
+        assertEquals(3, target.list().length);
+    }
+
+    @Test
+    public void testFailedPartsAreTriedAgain() throws Exception {
+        File file = createFile(new File(_dir, "source"), "snapshot.vhd", 3 * S3Utils.PART_SIZE - 7, 4);
+
+        _server.failParts(2);
+        S3Utils.putFile(_options, file, BUCKET, "snapshots/1/snapshot.vhd");
+        assertEquals(5, _server.getPartRequests());
+
+        _server.failParts(1);
+        File target = S3Utils.getFile(_options, BUCKET, "snapshots/1/snapshot.vhd", new File(_dir, "target"), new FileNamingStrategy() {
+            @Override
+            public String determineFileName(String key) {
+                return "snapshot.vhd";
+            }
+        });
+        assertEquals(9, _server.getPartRequests());
+        assertSameContent(file, target);
+    }
+
+    @Test
+    public void testUploadIsAbortedWhenAPartKeepsFailing() throws Exception {
+        File file = createFile(new File(_dir, "source"), "volume.qcow2", 3 * S3Utils.PART_SIZE, 5);
+
+        _server.failParts(1000);
+        _server.setPartDelay(200);
+        try {
+            S3Utils.putFile(_options, file, BUCKET, "volumes/1/volume.qcow2");
+            fail("The upload went through");
+        } catch (AmazonClientException e) {
+        }
+        // No part was left running to land after the abort
+        assertEquals(0, _server.getRunningParts());
+        assertEquals(0, _server.getPendingUploads());
+        assertFalse(_server.hasObject(BUCKET, "volumes/1/volume.qcow2"));
+    }
+
+    @Test
+    public void testNothingIsLeftWhenARangeKeepsFailing() throws Exception {
+        File file = createFile(new File(_dir, "source"), "volume.qcow2", 3 * S3Utils.PART_SIZE, 6);
+        S3Utils.putFile(_options, file, BUCKET, "volumes/1/volume.qcow2");
+
+        _server.failParts(1000);
+        _server.setPartDelay(200);
+        File target = new File(_dir, "target");
+        try {
+            S3Utils.getFile(_options, BUCKET, "volumes/1/volume.qcow2", target, new FileNamingStrategy() {
+                @Override
+                public String determineFileName(String key) {
+                    return "volume.qcow2";
+                }
+            });
+            fail("The download went through");
+        } catch (AmazonClientException e) {
+        }
+        // The temp file is deleted once no range can write to it any more
+        assertEquals(0, _server.getRunningParts());
+        assertEquals(0, target.list().length);
+    }
+
+    @Test
+    public void testObjectReplacedDuringDownloadFailsIt() throws Exception {
+        File source = new File(_dir, "source");
+        File file = createFile(source, "template.vhd", 3 * S3Utils.PART_SIZE, 7);
+        final File replacement = createFile(source, "replacement.vhd", 3 * S3Utils.PART_SIZE, 8);
+        S3Utils.putFile(_options, file, BUCKET, "template/2/template.vhd");
+
+        final AtomicBoolean replaced = new AtomicBoolean();
+        _server.setPartListener(new Runnable() {
+            @Override
+            public void run() {
+                if (replaced.compareAndSet(false, true)) {
+                    try {
+                        _server.replaceObject(BUCKET, "template/2/template.vhd", replacement);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        });
+        File target = new File(_dir, "target");
+        try {
+            S3Utils.getFile(_options, BUCKET, "template/2/template.vhd", target, new FileNamingStrategy() {
+                @Override
+                public String determineFileName(String key) {
+                    return "template.vhd";
+                }
+            });
+            fail("The download mixed two versions of the object");
+        } catch (CloudRuntimeException e) {
+        }
+        assertTrue(replaced.get());
+        assertEquals(0, target.list().length);
+    }
+}
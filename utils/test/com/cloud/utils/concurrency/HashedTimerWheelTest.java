@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedTimerWheelTest {
+    private HashedTimerWheel _wheel;
+
+    @Before
+    public void setUp() {
+        // A small wheel so that the test delays take several rounds
+        _wheel = new HashedTimerWheel("TestTimer", 10, TimeUnit.MILLISECONDS, 8, null);
+    }
+
+    @After
+    public void tearDown() {
+        _wheel.stop();
+    }
+
+    @Test
+    public void testTimeoutFiresAfterDelay() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedTimerWheel.Timeout timeout = _wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Fired after " + elapsed + " ms", elapsed >= 200);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, _wheel.getPendingCount());
+    }
+
+    @Test
+    public void testCancelledTimeoutsNeverFire() throws Exception {
+        final AtomicInteger fired = new AtomicInteger(0);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+
+        HashedTimerWheel.Timeout[] timeouts = new HashedTimerWheel.Timeout[1000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = _wheel.schedule(task, 50 + i % 100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(timeouts.length, _wheel.getPendingCount());
+        for (int i = 0; i < timeouts.length; i += 2) {
+            assertTrue(timeouts[i].cancel());
+            assertFalse(timeouts[i].cancel());
+        }
+        assertEquals(timeouts.length / 2, _wheel.getPendingCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fired.get() < timeouts.length / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        assertEquals(timeouts.length / 2, fired.get());
+        for (int i = 0; i < timeouts.length; i++) {
+            assertEquals(i % 2 == 1, timeouts[i].isExpired());
+        }
+        assertEquals(0, _wheel.getPendingCount());
+    }
+}
@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedLongMapTest {
+    @Test
+    public void testPutGetRemove() {
+        StripedLongMap<String> map = new StripedLongMap<String>(4, 2);
+        for (long i = 0; i < 1000; i++) {
+            assertNull(map.put(i, "v" + i));
+        }
+        assertEquals(1000, map.size());
+        assertEquals("v10", map.get(10));
+        assertEquals("v10", map.put(10, "w10"));
+        assertEquals("w10", map.get(10));
+        assertEquals("w10", map.putIfAbsent(10, "x10"));
+        assertNull(map.get(1000));
+
+        for (long i = 0; i < 1000; i += 2) {
+            assertEquals(i == 10 ? "w10" : "v" + i, map.remove(i));
+        }
+        assertEquals(500, map.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1, map.containsKey(i));
+        }
+        assertEquals(500, new HashSet<String>(map.values()).size());
+    }
+
+    @Test
+    public void testRemoveOnlyTheExpectedValue() {
+        StripedLongMap<String> map = new StripedLongMap<String>();
+        String first = new String("attache");
+        String second = new String("attache");
+        map.put(Long.MAX_VALUE, first);
+        map.put(Long.MAX_VALUE, second);
+
+        assertFalse(map.remove(Long.MAX_VALUE, first));
+        assertSame(second, map.get(Long.MAX_VALUE));
+        assertTrue(map.remove(Long.MAX_VALUE, second));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final StripedLongMap<Long> map = new StripedLongMap<Long>(8, 16);
+        final int threads = 8;
+        final int keys = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger(0);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long base = t * keys;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long key = base; key < base + keys; key++) {
+                        map.put(key, key);
+                    }
+                    for (long key = base; key < base + keys; key++) {
+                        Long value = map.get(key);
+                        if (value == null || value != key) {
+                            errors.incrementAndGet();
+                        }
+                        if (key % 2 == 0 && !map.remove(key, value)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertEquals(threads * keys / 2, map.size());
+        Set<Long> values = new HashSet<Long>(map.values());
+        for (long key = 0; key < threads * keys; key++) {
+            assertEquals(key % 2 == 1, values.contains(key));
+        }
+    }
+}
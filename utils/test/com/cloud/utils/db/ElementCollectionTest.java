@@ -18,15 +18,31 @@ package com.cloud.utils.db;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.Table;
+
 import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
@@ -69,4 +85,114 @@ public class ElementCollectionTest extends TestCase {
             assert (field.get(this) != null);
         }
     }
+
+    @Entity
+    @Table(name = "tagged")
+    public static class TaggedVO {
+        @Id
+        @Column(name = "id")
+        long id;
+
+        @ElementCollection(targetClass = String.class, fetch = FetchType.EAGER)
+        @Column(name = "tag")
+        @CollectionTable(name = "tagged_tags", joinColumns = @JoinColumn(name = "tagged_id"))
+        List<String> tags;
+
+        public TaggedVO() {
+        }
+
+        public TaggedVO(long id) {
+            this.id = id;
+        }
+    }
+
+    public static class TaggedDao extends GenericDaoBase<TaggedVO, Long> {
+    }
+
+    /**
+     * Answers every select of tags with two tags for each id it is given,
+     * except for the ids that can be divided by 3, which have none.
+     */
+    private static class TagConnection implements InvocationHandler {
+        final List<String> _queries = new ArrayList<String>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("prepareStatement")) {
+                _queries.add((String)args[0]);
+                final List<Object[]> rows = new ArrayList<Object[]>();
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("setObject")) {
+                            long id = (Long)args[1];
+                            if (id % 3 != 0) {
+                                rows.add(new Object[] { id, "tag-" + id + "-a" });
+                                rows.add(new Object[] { id, "tag-" + id + "-b" });
+                            }
+                        } else if (method.getName().equals("executeQuery")) {
+                            return resultSet(rows);
+                        }
+                        return null;
+                    }
+                });
+            }
+            return method.getReturnType() == boolean.class ? false : null;
+        }
+
+        private ResultSet resultSet(final List<Object[]> rows) {
+            return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < rows.size();
+                    } else if (name.equals("getLong")) {
+                        return rows.get(_row)[(Integer)args[0] - 1];
+                    } else if (name.equals("getObject")) {
+                        return rows.get(_row)[(Integer)args[0] - 1];
+                    } else if (name.equals("getString")) {
+                        return rows.get(_row)[(Integer)args[0] - 1].toString();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    public void testBatchSelectSql() {
+        TaggedDao dao = new TaggedDao();
+        EcInfo ec = (EcInfo)dao._ecAttributes.get(0).attache;
+        assertEquals("SELECT tag FROM tagged_tags, tagged WHERE tagged_tags.tagged_id=tagged.id AND tagged.id=?", ec.selectSql);
+        assertEquals("SELECT tagged.id, tag FROM tagged_tags, tagged WHERE tagged_tags.tagged_id=tagged.id AND tagged.id IN (", ec.batchSelectSql);
+    }
+
+    public void testLoadCollectionsInOneQuery() {
+        TaggedDao dao = new TaggedDao();
+        TagConnection conn = new TagConnection();
+        Transaction txn = Transaction.open("testLoadCollectionsInOneQuery", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection((Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, conn));
+
+            List<TaggedVO> entities = new ArrayList<TaggedVO>();
+            for (long id = 1; id <= 6; id++) {
+                entities.add(new TaggedVO(id));
+            }
+            dao.loadCollections(entities);
+
+            assertEquals(1, conn._queries.size());
+            assertTrue(conn._queries.get(0), conn._queries.get(0).endsWith("IN (?, ?, ?, ?, ?, ?)"));
+            for (TaggedVO entity : entities) {
+                if (entity.id % 3 == 0) {
+                    assertTrue(entity.tags.isEmpty());
+                } else {
+                    assertEquals(Arrays.asList("tag-" + entity.id + "-a", "tag-" + entity.id + "-b"), entity.tags);
+                }
+            }
+        } finally {
+            txn.close();
+        }
+    }
 }
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.util.Map;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -73,5 +75,42 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testWaiterIsWokenUpOnRelease() throws Exception {
+        final String key = "wakeup" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final long[] waited = new long[] { -1 };
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                if (_lockMaster.acquire(key, 30)) {
+                    waited[0] = System.currentTimeMillis() - start;
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Merovingian2Test-waiter");
+        waiter.start();
+
+        Thread.sleep(500);
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(30000);
+
+        s_logger.info("Waiter got the lock after " + waited[0] + " ms");
+        Assert.assertTrue("Waiter did not get the lock", waited[0] >= 0);
+        Assert.assertTrue("Waiter should not have polled", waited[0] < 3000);
+
+        boolean found = false;
+        for (Map<String, String> stats : _lockMaster.getLockWaitTimes()) {
+            if (key.equals(stats.get("key"))) {
+                found = true;
+                Assert.assertEquals("1", stats.get("count"));
+                Assert.assertEquals("0", stats.get("timeouts"));
+            }
+        }
+        Assert.assertTrue(found);
+    }
     
 }
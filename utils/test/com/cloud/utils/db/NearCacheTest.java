@@ -0,0 +1,321 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+
+public class NearCacheTest extends TestCase {
+
+    @Entity
+    @Table(name = "cached")
+    public static class CachedVO {
+        @Id
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "name")
+        String name;
+
+        public CachedVO() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class CachedDao extends GenericDaoBase<CachedVO, Long> {
+    }
+
+    /**
+     * A table with the one row, id 7, that counts the selects sent to it.
+     */
+    private static class CachedTable implements InvocationHandler {
+        String name = "zone1";
+        int selects;
+
+        Connection create() {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("prepareStatement")) {
+                final String sql = (String)args[0];
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("executeQuery")) {
+                            selects++;
+                            return resultSet();
+                        } else if (method.getName().equals("executeUpdate")) {
+                            return sql.startsWith("UPDATE") ? 1 : 0;
+                        } else if (method.getName().equals("toString")) {
+                            return sql;
+                        }
+                        return defaultValue(method);
+                    }
+                });
+            }
+            return defaultValue(method);
+        }
+
+        private ResultSet resultSet() {
+            final String[] columns = { "id", "name" };
+            final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("getColumnCount")) {
+                        return columns.length;
+                    } else if (name.equals("getTableName")) {
+                        return "cached";
+                    } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                        return columns[(Integer)args[0] - 1];
+                    }
+                    return defaultValue(method);
+                }
+            });
+            return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < 1;
+                    } else if (name.equals("getMetaData")) {
+                        return meta;
+                    } else if (name.equals("getLong")) {
+                        return 7L;
+                    } else if (name.equals("getBytes")) {
+                        return CachedTable.this.name.getBytes("UTF-8");
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private static class RecordingNotifier implements NearCache.PeerNotifier {
+        final List<String> notified = new ArrayList<String>();
+        int calls;
+
+        @Override
+        public void notifyInvalidated(Map<String, Set<String>> invalidations) {
+            calls++;
+            for (Map.Entry<String, Set<String>> entry : invalidations.entrySet()) {
+                if (entry.getValue() == null) {
+                    notified.add(entry.getKey() + ":null");
+                } else {
+                    for (String id : entry.getValue()) {
+                        notified.add(entry.getKey() + ":" + id);
+                    }
+                }
+            }
+        }
+    }
+
+    private CachedDao createDao() throws Exception {
+        CachedDao dao = new CachedDao();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "10");
+        params.put("cache.time.to.live", "-1");
+        dao.configure("CachedDao", params);
+        return dao;
+    }
+
+    public void testFindByIdIsServedFromTheCache() throws Exception {
+        CachedDao dao = createDao();
+        CachedTable table = new CachedTable();
+        Transaction txn = Transaction.open("testFindByIdIsServedFromTheCache", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            CachedVO first = dao.findById(7L);
+            CachedVO second = dao.findById(7L);
+            assertEquals(1, table.selects);
+            assertEquals("zone1", second.getName());
+            assertEquals(1, dao._cache.getHits());
+            assertEquals(1, dao._cache.getMisses());
+
+            // Changing what came back does not change what is in the cache
+            assertNotSame(first, second);
+            second.setName("changed");
+            assertEquals("zone1", dao.findById(7L).getName());
+            assertEquals(1, table.selects);
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+            dao._cache.close();
+        }
+    }
+
+    public void testUpdateInvalidatesHereAndOnPeersAfterCommit() throws Exception {
+        CachedDao dao = createDao();
+        CachedTable table = new CachedTable();
+        RecordingNotifier notifier = new RecordingNotifier();
+        NearCache.setPeerNotifier(notifier);
+        Transaction txn = Transaction.open("testUpdateInvalidatesHereAndOnPeersAfterCommit", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+            dao.findById(7L);
+
+            txn.start();
+            CachedVO vo = dao.createForUpdate(7L);
+            vo.setName("zone2");
+            dao.update(7L, vo);
+            table.name = "zone2";
+
+            // The peers only hear about it once the change is committed
+            assertTrue(notifier.notified.isEmpty());
+            assertEquals("zone2", dao.findById(7L).getName());
+            assertEquals(2, table.selects);
+            txn.commit();
+            assertEquals(1, notifier.notified.size());
+            assertEquals("cached:7", notifier.notified.get(0));
+
+            // Nothing read inside the transaction was cached
+            assertEquals("zone2", dao.findById(7L).getName());
+            assertEquals(3, table.selects);
+            dao.findById(7L);
+            assertEquals(3, table.selects);
+        } finally {
+            NearCache.setPeerNotifier(null);
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+            dao._cache.close();
+        }
+    }
+
+    public void testWritesOfATransactionAreSentTogether() throws Exception {
+        CachedDao dao = createDao();
+        CachedTable table = new CachedTable();
+        RecordingNotifier notifier = new RecordingNotifier();
+        NearCache.setPeerNotifier(notifier);
+        Transaction txn = Transaction.open("testWritesOfATransactionAreSentTogether", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            txn.start();
+            for (long id : new long[] { 7L, 8L, 7L }) {
+                CachedVO vo = dao.createForUpdate(id);
+                vo.setName("zone2");
+                dao.update(id, vo);
+            }
+            txn.commit();
+            assertEquals(1, notifier.calls);
+            assertEquals("[cached:7, cached:8]", notifier.notified.toString());
+
+            // Outside of a transaction every write is sent on its own
+            CachedVO vo = dao.createForUpdate(7L);
+            vo.setName("zone3");
+            dao.update(7L, vo);
+            assertEquals(2, notifier.calls);
+        } finally {
+            NearCache.setPeerNotifier(null);
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+            dao._cache.close();
+        }
+    }
+
+    public void testPeerInvalidation() throws Exception {
+        CachedDao dao = createDao();
+        CachedTable table = new CachedTable();
+        Transaction txn = Transaction.open("testPeerInvalidation", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+            dao.findById(7L);
+            table.name = "zone3";
+            NearCache.onPeerInvalidated("cached", "7");
+            assertEquals("zone3", dao.findById(7L).getName());
+            assertEquals(2, table.selects);
+            assertEquals(1, dao._cache.getInvalidations());
+
+            // A change to the table as a whole drops every entity
+            dao.findById(7L);
+            NearCache.onPeerInvalidated("cached", null);
+            assertEquals(0, dao._cache.getSize());
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+            dao._cache.close();
+        }
+    }
+
+    public void testEntitiesReadDuringAnInvalidationAreNotCached() {
+        NearCache<Long, String> cache = new NearCache<Long, String>("test", new String[] { "versioned" }, Long.class, 2, -1);
+        try {
+            long version = cache.getVersion();
+            cache.invalidate(1L);
+            assertFalse(cache.put(1L, "stale", version));
+            assertNull(cache.get(1L));
+
+            assertTrue(cache.put(1L, "one", cache.getVersion()));
+            assertTrue(cache.put(2L, "two", cache.getVersion()));
+            assertTrue(cache.put(3L, "three", cache.getVersion()));
+            assertEquals(2, cache.getSize());
+            assertEquals(1, cache.getEvictions());
+        } finally {
+            cache.close();
+        }
+    }
+}
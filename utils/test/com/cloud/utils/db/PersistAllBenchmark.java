@@ -0,0 +1,256 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the statements sent to the database to insert and then update a
+ * list of entities one at a time, the way the usage parsers and the
+ * capacity checker did, and with persistAll() and updateAll().  The dao
+ * runs on a connection that only counts what it is asked to do, so no
+ * database is needed.  It is not picked up by the regular build, run it with
+ * mvn test -Dtest=PersistAllBenchmark
+ */
+public class PersistAllBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(PersistAllBenchmark.class);
+
+    private static final int ENTITIES = Integer.getInteger("persistall.benchmark.entities", 2500);
+
+    @Entity
+    @Table(name = "counted")
+    public static class CountedVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "name")
+        String name;
+
+        @Column(name = "used")
+        long used;
+
+        public CountedVO() {
+        }
+
+        public CountedVO(String name, long used) {
+            this.name = name;
+            this.used = used;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setUsed(long used) {
+            this.used = used;
+        }
+    }
+
+    public static class CountedDao extends GenericDaoBase<CountedVO, Long> {
+    }
+
+    /**
+     * Counts the statements prepared and the times they are sent.  Every
+     * insert generates the next id and every select comes back empty.
+     */
+    private static class CountingConnection implements InvocationHandler {
+        int prepared;
+        int executed;
+        int rows;
+        long nextId = 1;
+
+        Connection create() {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("prepareStatement")) {
+                prepared++;
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new Statement((String)args[0]));
+            }
+            return defaultValue(method);
+        }
+
+        private class Statement implements InvocationHandler {
+            final String _sql;
+            int _batched;
+            final List<Long> _keys = new ArrayList<Long>();
+
+            Statement(String sql) {
+                _sql = sql;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("addBatch")) {
+                    _batched++;
+                    return null;
+                } else if (name.equals("executeBatch")) {
+                    executed++;
+                    int[] counts = new int[_batched];
+                    for (int i = 0; i < _batched; i++) {
+                        counts[i] = 1;
+                        generateKey();
+                    }
+                    rows += _batched;
+                    _batched = 0;
+                    return counts;
+                } else if (name.equals("executeUpdate")) {
+                    executed++;
+                    rows++;
+                    generateKey();
+                    return 1;
+                } else if (name.equals("executeQuery")) {
+                    executed++;
+                    return resultSet(new ArrayList<Long>(), 0);
+                } else if (name.equals("getGeneratedKeys")) {
+                    List<Long> keys = new ArrayList<Long>(_keys);
+                    _keys.clear();
+                    return resultSet(keys, 1);
+                } else if (name.equals("toString")) {
+                    return _sql;
+                }
+                return defaultValue(method);
+            }
+
+            private void generateKey() {
+                if (_sql.startsWith("INSERT")) {
+                    _keys.add(nextId++);
+                }
+            }
+        }
+
+        private static ResultSet resultSet(final List<Long> keys, final int columns) {
+            final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(CountingConnection.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.getName().equals("getColumnCount") ? columns : defaultValue(method);
+                }
+            });
+            return (ResultSet)Proxy.newProxyInstance(CountingConnection.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < keys.size();
+                    } else if (name.equals("getObject")) {
+                        return keys.get(_row);
+                    } else if (name.equals("getMetaData")) {
+                        return meta;
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    public void testStatementCounts() throws Exception {
+        CountedDao dao = new CountedDao();
+        CountingConnection counter = new CountingConnection();
+        Transaction txn = Transaction.open("testStatementCounts", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(counter.create());
+
+            List<CountedVO> entities = createEntities();
+            for (CountedVO entity : entities) {
+                dao.persist(entity);
+            }
+            report("persist()", counter, entities.size());
+
+            entities = createEntities();
+            dao.persistAll(entities);
+            report("persistAll()", counter, entities.size());
+            assertEquals(counter.nextId - 1, entities.get(entities.size() - 1).getId());
+
+            List<CountedVO> updated = createUpdates(dao, entities);
+            for (CountedVO entity : updated) {
+                dao.update(entity.getId(), entity);
+            }
+            report("update()", counter, updated.size());
+
+            updated = createUpdates(dao, entities);
+            assertEquals(updated.size(), dao.updateAll(updated));
+            report("updateAll()", counter, updated.size());
+        } finally {
+            txn.close();
+        }
+    }
+
+    private List<CountedVO> createEntities() {
+        List<CountedVO> entities = new ArrayList<CountedVO>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            entities.add(new CountedVO("entity-" + i, i));
+        }
+        return entities;
+    }
+
+    private List<CountedVO> createUpdates(CountedDao dao, List<CountedVO> entities) {
+        List<CountedVO> updated = new ArrayList<CountedVO>(entities.size());
+        for (CountedVO entity : entities) {
+            CountedVO vo = dao.createForUpdate(entity.getId());
+            vo.setUsed(entity.getId() * 2);
+            updated.add(vo);
+        }
+        return updated;
+    }
+
+    private void report(String name, CountingConnection counter, int entities) {
+        s_logger.info(name + " of " + entities + " entities: " + counter.prepared + " statements prepared, " + counter.executed + " sent, " + counter.rows + " rows written");
+        assertEquals(entities, counter.rows);
+        counter.prepared = 0;
+        counter.executed = 0;
+        counter.rows = 0;
+    }
+}
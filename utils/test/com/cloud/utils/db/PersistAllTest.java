@@ -0,0 +1,301 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class PersistAllTest extends TestCase {
+
+    @Entity
+    @Table(name = "generated")
+    public static class GeneratedVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "name")
+        String name;
+
+        public GeneratedVO() {
+        }
+
+        public GeneratedVO(String name) {
+            this.name = name;
+        }
+    }
+
+    @Entity
+    @Table(name = "assigned")
+    public static class AssignedVO {
+        @Id
+        @Column(name = "id")
+        Long id;
+
+        @Column(name = "name")
+        String name;
+
+        public AssignedVO() {
+        }
+
+        public AssignedVO(Long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    public static class GeneratedDao extends GenericDaoBase<GeneratedVO, Long> {
+    }
+
+    public static class AssignedDao extends GenericDaoBase<AssignedVO, Long> {
+    }
+
+    /**
+     * Hands out the next id for every row inserted by a statement that asked
+     * for the generated keys, and records how the rows were sent.
+     */
+    private static class KeyTable implements InvocationHandler {
+        int lockMode = 1;
+        int droppedKeys;
+        long nextId = 1;
+        int selects;
+        final List<String> sent = new ArrayList<String>();
+
+        Connection create() {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("prepareStatement")) {
+                boolean keys = args.length == 2 && Integer.valueOf(Statement.RETURN_GENERATED_KEYS).equals(args[1]);
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new Recorder((String)args[0], keys));
+            }
+            return defaultValue(method);
+        }
+
+        private class Recorder implements InvocationHandler {
+            final String _sql;
+            final boolean _keys;
+            int _batched;
+            final List<Long> _generated = new ArrayList<Long>();
+
+            Recorder(String sql, boolean keys) {
+                _sql = sql;
+                _keys = keys;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("addBatch")) {
+                    _batched++;
+                    return null;
+                } else if (name.equals("executeBatch")) {
+                    sent.add((_keys ? "keyed batch of " : "batch of ") + _batched);
+                    generate(_batched);
+                    int[] counts = new int[_batched];
+                    _batched = 0;
+                    return counts;
+                } else if (name.equals("executeUpdate")) {
+                    sent.add(_keys ? "keyed row" : "row");
+                    generate(1);
+                    return 1;
+                } else if (name.equals("executeQuery")) {
+                    if (_sql.contains("innodb_autoinc_lock_mode")) {
+                        return resultSet(new Object[] { lockMode });
+                    }
+                    selects++;
+                    return resultSet(new Object[0]);
+                } else if (name.equals("getGeneratedKeys")) {
+                    Object[] keys = _generated.toArray();
+                    _generated.clear();
+                    return resultSet(keys);
+                } else if (name.equals("toString")) {
+                    return _sql;
+                }
+                return defaultValue(method);
+            }
+
+            private void generate(int rows) {
+                if (!_keys) {
+                    return;
+                }
+                for (int i = 0; i < rows; i++) {
+                    _generated.add(nextId++);
+                }
+                for (int i = 0; i < droppedKeys && !_generated.isEmpty(); i++) {
+                    _generated.remove(_generated.size() - 1);
+                }
+            }
+        }
+
+        private static ResultSet resultSet(final Object[] rows) {
+            final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(KeyTable.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.getName().equals("getColumnCount") ? 1 : defaultValue(method);
+                }
+            });
+            return (ResultSet)Proxy.newProxyInstance(KeyTable.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                int _row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        return ++_row < rows.length;
+                    } else if (name.equals("getObject")) {
+                        return rows[_row];
+                    } else if (name.equals("getInt")) {
+                        return ((Number)rows[_row]).intValue();
+                    } else if (name.equals("getMetaData")) {
+                        return meta;
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private static List<GeneratedVO> createGenerated(int count) {
+        List<GeneratedVO> entities = new ArrayList<GeneratedVO>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(new GeneratedVO("entity-" + i));
+        }
+        return entities;
+    }
+
+    public void testGeneratedKeysAreSetInOrder() throws Exception {
+        GeneratedDao dao = new GeneratedDao();
+        KeyTable table = new KeyTable();
+        Transaction txn = Transaction.open("testGeneratedKeysAreSetInOrder", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            List<GeneratedVO> entities = createGenerated(5);
+            dao.saveAll(entities);
+            for (int i = 0; i < entities.size(); i++) {
+                assertEquals(i + 1, entities.get(i).id);
+            }
+            assertEquals("[keyed batch of 5]", table.sent.toString());
+            assertEquals("Nothing is read back", 0, table.selects);
+
+            dao.persistAll(createGenerated(5));
+            assertEquals(1, table.selects);
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+
+    public void testAssignedIdsAreKeptOutOfTheKeyedBatch() throws Exception {
+        AssignedDao dao = new AssignedDao();
+        KeyTable table = new KeyTable();
+        Transaction txn = Transaction.open("testAssignedIdsAreKeptOutOfTheKeyedBatch", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            List<AssignedVO> entities = new ArrayList<AssignedVO>();
+            entities.add(new AssignedVO(100L, "first"));
+            entities.add(new AssignedVO(null, "second"));
+            entities.add(new AssignedVO(200L, "third"));
+            entities.add(new AssignedVO(null, "fourth"));
+            dao.saveAll(entities);
+
+            assertEquals(Long.valueOf(100), entities.get(0).id);
+            assertEquals(Long.valueOf(1), entities.get(1).id);
+            assertEquals(Long.valueOf(200), entities.get(2).id);
+            assertEquals(Long.valueOf(2), entities.get(3).id);
+            assertEquals("[batch of 2, keyed batch of 2]", table.sent.toString());
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+
+    public void testInterleavedKeysAreInsertedRowByRow() throws Exception {
+        GeneratedDao dao = new GeneratedDao();
+        KeyTable table = new KeyTable();
+        table.lockMode = 2;
+        Transaction txn = Transaction.open("testInterleavedKeysAreInsertedRowByRow", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            List<GeneratedVO> entities = createGenerated(3);
+            dao.saveAll(entities);
+            for (int i = 0; i < entities.size(); i++) {
+                assertEquals(i + 1, entities.get(i).id);
+            }
+            assertEquals("[keyed row, keyed row, keyed row]", table.sent.toString());
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+
+    public void testMissingKeysFailThePersist() throws Exception {
+        GeneratedDao dao = new GeneratedDao();
+        KeyTable table = new KeyTable();
+        table.droppedKeys = 1;
+        Transaction txn = Transaction.open("testMissingKeysFailThePersist", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(table.create());
+
+            dao.saveAll(createGenerated(3));
+            fail("Rows without a key should not be persisted");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage().contains("got 2 generated keys"));
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+}
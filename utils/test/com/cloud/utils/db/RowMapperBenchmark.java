@@ -0,0 +1,247 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.DateUtil;
+
+/**
+ * Compares the rows per second GenericDaoBase gets out of a result set when
+ * every cell goes through setField() with the precompiled RowMapper, and
+ * checks that both fill in the same values.  The result set is kept in
+ * memory so that only the mapping is measured.  It is not picked up by the
+ * regular build, run it with
+ * mvn test -Dtest=RowMapperBenchmark
+ */
+public class RowMapperBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(RowMapperBenchmark.class);
+
+    private static final int ROWS = Integer.getInteger("rowmapper.benchmark.rows", 10000);
+    private static final int ROUNDS = Integer.getInteger("rowmapper.benchmark.rounds", 20);
+
+    private static final String[] COLUMNS = { "id", "uuid", "name", "state", "ram_size", "cpu", "speed", "ha_enabled", "limit_cpu_use", "created", "removed", "display_text" };
+
+    public enum State {
+        Running, Stopped, Destroyed
+    }
+
+    @Entity
+    @Table(name = "bench")
+    public static class BenchVO {
+        @Id
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "uuid")
+        String uuid;
+
+        @Column(name = "name")
+        String name;
+
+        @Column(name = "state")
+        @Enumerated(value = EnumType.STRING)
+        State state;
+
+        @Column(name = "ram_size")
+        Integer ramSize;
+
+        @Column(name = "cpu")
+        int cpu;
+
+        @Column(name = "speed")
+        Long speed;
+
+        @Column(name = "ha_enabled")
+        boolean haEnabled;
+
+        @Column(name = "limit_cpu_use")
+        Boolean limitCpuUse;
+
+        @Column(name = "created")
+        @Temporal(value = TemporalType.TIMESTAMP)
+        Date created;
+
+        @Column(name = "removed")
+        @Temporal(value = TemporalType.TIMESTAMP)
+        Date removed;
+
+        @Column(name = "display_text")
+        String displayText;
+
+        public BenchVO() {
+        }
+    }
+
+    public static class BenchDao extends GenericDaoBase<BenchVO, Long> {
+    }
+
+    /**
+     * A forward only result set over rows kept in memory.
+     */
+    private static class InMemoryResultSet implements InvocationHandler {
+        private final Object[][] _rows;
+        private final ResultSetMetaData _meta;
+        private int _row = -1;
+        private boolean _wasNull;
+
+        InMemoryResultSet(Object[][] rows) {
+            _rows = rows;
+            _meta = (ResultSetMetaData)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("getColumnCount")) {
+                        return COLUMNS.length;
+                    } else if (name.equals("getTableName")) {
+                        return "bench";
+                    } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                        return COLUMNS[(Integer)args[0] - 1];
+                    } else if (name.equals("getCatalogName")) {
+                        return "cloud";
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+        }
+
+        ResultSet create() {
+            return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                return ++_row < _rows.length;
+            } else if (name.equals("getMetaData")) {
+                return _meta;
+            } else if (name.equals("wasNull")) {
+                return _wasNull;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+
+            Object value = _rows[_row][(Integer)args[0] - 1];
+            _wasNull = value == null;
+            if (name.equals("getObject")) {
+                return value;
+            } else if (name.equals("getString")) {
+                return value == null ? null : value instanceof Date ? DateUtil.getDateDisplayString(DateUtil.GMT_TIMEZONE, (Date)value) : value.toString();
+            } else if (name.equals("getBytes")) {
+                return value == null ? null : value.toString().getBytes("UTF-8");
+            } else if (name.equals("getLong")) {
+                return value == null ? 0L : ((Number)value).longValue();
+            } else if (name.equals("getInt")) {
+                return value == null ? 0 : ((Number)value).intValue();
+            } else if (name.equals("getBoolean")) {
+                return value == null ? false : (Boolean)value;
+            } else if (name.equals("getDate")) {
+                return value == null ? null : new java.sql.Date(((Date)value).getTime());
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private Object[][] createRows() {
+        Object[][] rows = new Object[ROWS][];
+        long now = (System.currentTimeMillis() / 1000) * 1000;
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new Object[] { (long)i, "3b4f6c1a-0000-4000-8000-" + String.format("%012d", i), "i-2-" + i + "-VM", State.values()[i % 3].toString().toLowerCase(),
+                    i % 7 == 0 ? null : 512 * (i % 8 + 1), i % 4 + 1, i % 5 == 0 ? null : 1000L * (i % 3 + 1), i % 2 == 0, i % 3 == 0 ? null : i % 3 == 1,
+                    new Date(now - i * 1000L), i % 3 == 2 ? new Date(now) : null, "Instance number " + i };
+        }
+        return rows;
+    }
+
+    public void testRowMapper() throws Exception {
+        BenchDao dao = new BenchDao();
+        Object[][] rows = createRows();
+
+        // Both paths must come up with the same entities
+        ResultSet perCell = new InMemoryResultSet(rows).create();
+        ResultSet mapped = new InMemoryResultSet(rows).create();
+        ResultSetMetaData meta = perCell.getMetaData();
+        while (perCell.next() && mapped.next()) {
+            BenchVO expected = new BenchVO();
+            for (int index = 1; index <= COLUMNS.length; index++) {
+                dao.setField(expected, perCell, meta, index);
+            }
+            BenchVO actual = dao.toVO(mapped, false);
+            for (java.lang.reflect.Field field : BenchVO.class.getDeclaredFields()) {
+                field.setAccessible(true);
+                assertEquals(field.getName(), field.get(expected), field.get(actual));
+            }
+        }
+
+        for (int warmup = 0; warmup < 2; warmup++) {
+            runPerCell(dao, rows);
+            runRowMapper(dao, rows);
+        }
+        long perCellRate = runPerCell(dao, rows);
+        long rowMapperRate = runRowMapper(dao, rows);
+        s_logger.info("setField() per cell: " + perCellRate + " rows/sec, row mapper: " + rowMapperRate + " rows/sec");
+    }
+
+    private long runPerCell(BenchDao dao, Object[][] rows) throws SQLException {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            ResultSet rs = new InMemoryResultSet(rows).create();
+            while (rs.next()) {
+                // What toEntityBean() did for every row
+                BenchVO vo = new BenchVO();
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+                    dao.setField(vo, rs, meta, index);
+                }
+            }
+        }
+        return (long)ROWS * ROUNDS * 1000000000L / (System.nanoTime() - start);
+    }
+
+    private long runRowMapper(BenchDao dao, Object[][] rows) throws SQLException {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            ResultSet rs = new InMemoryResultSet(rows).create();
+            while (rs.next()) {
+                dao.toVO(rs, false);
+            }
+        }
+        return (long)ROWS * ROUNDS * 1000000000L / (System.nanoTime() - start);
+    }
+}
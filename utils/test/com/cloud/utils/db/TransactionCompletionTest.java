@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class TransactionCompletionTest extends TestCase {
+
+    /**
+     * A connection that records the commits and rollbacks asked of it and
+     * fails the commits while failCommit is set.
+     */
+    private static class RecordingConnection implements InvocationHandler {
+        boolean failCommit;
+        final List<String> calls = new ArrayList<String>();
+
+        Connection create() {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("commit") || name.equals("rollback")) {
+                calls.add(name);
+                if (name.equals("commit") && failCommit) {
+                    throw new SQLException("Commit failed");
+                }
+            }
+            return method.getReturnType() == boolean.class ? false : null;
+        }
+    }
+
+    private static Runnable record(final List<String> ran, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    public void testFailedCommitRollsBackAndCompletesTheTasks() throws Exception {
+        RecordingConnection conn = new RecordingConnection();
+        conn.failCommit = true;
+        List<String> ran = new ArrayList<String>();
+        Transaction txn = Transaction.open("testFailedCommitRollsBackAndCompletesTheTasks", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(conn.create());
+
+            txn.start();
+            txn.runAfterCommit(record(ran, "after commit"));
+            txn.runAfterCompletion(record(ran, "after completion"));
+            try {
+                txn.commit();
+                fail("The failed commit should be reported");
+            } catch (CloudRuntimeException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+            assertEquals("[commit, rollback]", conn.calls.toString());
+            assertEquals("[after completion]", ran.toString());
+            assertFalse(txn.dbTxnStarted());
+
+            // Nothing is left over for the next transaction of the thread
+            conn.failCommit = false;
+            ran.clear();
+            txn.start();
+            txn.runAfterCompletion(record(ran, "next"));
+            assertTrue(txn.commit());
+            assertEquals("[next]", ran.toString());
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+
+    public void testCommitRunsTheCommitTasks() throws Exception {
+        RecordingConnection conn = new RecordingConnection();
+        List<String> ran = new ArrayList<String>();
+        Transaction txn = Transaction.open("testCommitRunsTheCommitTasks", Transaction.CLOUD_DB, false);
+        try {
+            txn.transitToUserManagedConnection(conn.create());
+
+            txn.start();
+            txn.runAfterCommit(record(ran, "after commit"));
+            txn.runAfterCompletion(record(ran, "after completion"));
+            assertTrue(ran.isEmpty());
+            assertTrue(txn.commit());
+            assertEquals("[commit]", conn.calls.toString());
+            assertEquals("[after commit, after completion]", ran.toString());
+        } finally {
+            txn.transitToAutoManagedConnection(Transaction.CLOUD_DB);
+            txn.close();
+        }
+    }
+}
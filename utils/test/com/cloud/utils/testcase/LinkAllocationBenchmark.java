@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.testcase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+import com.cloud.utils.nio.Task.Type;
+
+/**
+ * Measures the bytes allocated per frame by the selector threads of a
+ * NioServer and a NioClient, which is where Link reads, wraps and writes
+ * every packet.  It is not picked up by the regular build, run it with
+ * mvn test -Dtest=LinkAllocationBenchmark
+ */
+public class LinkAllocationBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(LinkAllocationBenchmark.class);
+
+    private static final int PORT = 7779;
+    private static final int FRAMES = Integer.getInteger("nio.benchmark.frames", 20000);
+    private static final int FRAME_SIZE = Integer.getInteger("nio.benchmark.frameSize", 512);
+
+    private NioServer _server;
+    private NioClient _client;
+    private volatile Link _clientLink;
+    private volatile CountDownLatch _received;
+
+    @Override
+    public void setUp() throws Exception {
+        _server = new NioServer("LinkAllocServer", PORT, 5, new ServerHandlerFactory());
+        _server.start();
+        _client = new NioClient("LinkAllocClient", "127.0.0.1", PORT, 5, new ClientHandlerFactory());
+        _client.start();
+        while (_clientLink == null) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        _client.stop();
+        _server.stop();
+    }
+
+    public void testAllocationsPerFrame() throws Exception {
+        byte[] frame = new byte[FRAME_SIZE];
+
+        // Warm up so the pools and the JIT settle
+        sendFrames(frame, FRAMES / 10);
+
+        com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long[] selectors = new long[] { findThread("LinkAllocServer-Selector"), findThread("LinkAllocClient-Selector") };
+        long before = sum(mxBean.getThreadAllocatedBytes(selectors));
+        long start = System.currentTimeMillis();
+
+        sendFrames(frame, FRAMES);
+
+        long elapsed = System.currentTimeMillis() - start;
+        long allocated = sum(mxBean.getThreadAllocatedBytes(selectors)) - before;
+        s_logger.info(FRAMES + " frames of " + FRAME_SIZE + " bytes in " + elapsed + " ms, selector threads allocated "
+                + (allocated / FRAMES) + " bytes/frame, server pool allocations " + _server.getBufferPool().getAllocationCount()
+                + ", client pool allocations " + _client.getBufferPool().getAllocationCount());
+    }
+
+    private void sendFrames(byte[] frame, int count) throws Exception {
+        _received = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            _clientLink.send(frame);
+        }
+        assertTrue("Timed out waiting for frames", _received.await(5, TimeUnit.MINUTES));
+    }
+
+    private static long findThread(String name) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                return t.getId();
+            }
+        }
+        throw new IllegalStateException("Unable to find thread " + name);
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    public class ClientHandlerFactory implements HandlerFactory {
+        @Override
+        public Task create(Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) {
+                    if (task.getType() == Task.Type.CONNECT) {
+                        _clientLink = task.getLink();
+                    }
+                }
+            };
+        }
+    }
+
+    public class ServerHandlerFactory implements HandlerFactory {
+        @Override
+        public Task create(Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) {
+                    if (task.getType() == Task.Type.DATA) {
+                        _received.countDown();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.testcase;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+import com.cloud.utils.nio.Task.Type;
+
+/**
+ * Measures how many SSL handshakes per second NioServer completes while
+ * many clients connect at once.
+ */
+public class NioHandshakeBenchmark extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(NioHandshakeBenchmark.class);
+
+    private static final int PORT = 7778;
+    private static final int CLIENTS = Integer.getInteger("nio.benchmark.clients", 200);
+    private static final int HANDSHAKES_PER_CLIENT = Integer.getInteger("nio.benchmark.handshakes", 10);
+
+    private NioServer _server;
+    private final AtomicInteger _connected = new AtomicInteger(0);
+
+    @Override
+    public void setUp() {
+        _server = new NioServer("NioHandshakeBenchmark", PORT, 5, new BenchmarkHandlerFactory());
+        _server.start();
+    }
+
+    @Override
+    public void tearDown() {
+        _server.stop();
+    }
+
+    public void testConcurrentHandshakes() throws Exception {
+        final SSLContext sslContext = Link.initSSLContext(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        final AtomicInteger failed = new AtomicInteger(0);
+
+        for (int i = 0; i < CLIENTS; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < HANDSHAKES_PER_CLIENT; j++) {
+                            SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+                            try {
+                                SSLEngine sslEngine = sslContext.createSSLEngine("127.0.0.1", PORT);
+                                sslEngine.setUseClientMode(true);
+                                Link.doHandshake(ch, sslEngine, true);
+                            } finally {
+                                ch.close();
+                            }
+                        }
+                    } catch (Exception e) {
+                        s_logger.warn("Handshake failed", e);
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "NioHandshakeBenchmark-" + i);
+            t.start();
+        }
+
+        long before = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        long after = System.currentTimeMillis();
+
+        int total = CLIENTS * HANDSHAKES_PER_CLIENT;
+        s_logger.info(total + " handshakes from " + CLIENTS + " concurrent clients took " + (after - before) + " ms: "
+                + (total * 1000L / Math.max(1, after - before)) + " handshakes/sec, " + _connected.get() + " links connected, " + failed.get() + " clients failed");
+
+        assertEquals(0, failed.get());
+    }
+
+    public class BenchmarkHandlerFactory implements HandlerFactory {
+        @Override
+        public Task create(Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) {
+                    if (task.getType() == Task.Type.CONNECT) {
+                        _connected.incrementAndGet();
+                    }
+                }
+            };
+        }
+    }
+}
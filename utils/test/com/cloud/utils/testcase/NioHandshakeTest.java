@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.testcase;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+import com.cloud.utils.nio.Task.Type;
+
+public class NioHandshakeTest extends TestCase {
+    private static final int PORT = 7779;
+
+    private NioServer _server;
+    private NioClient _client;
+    private final CountDownLatch _serverConnected = new CountDownLatch(1);
+    private final BlockingQueue<byte[]> _serverReceived = new LinkedBlockingQueue<byte[]>();
+    private final BlockingQueue<Link> _clientLinks = new LinkedBlockingQueue<Link>();
+
+    @Override
+    public void setUp() {
+        _server = new NioServer("NioHandshakeTestServer", PORT, 2, new HandlerFactory() {
+            @Override
+            public Task create(Type type, Link link, byte[] data) {
+                return new Task(type, link, data) {
+                    @Override
+                    protected void doTask(Task task) {
+                        if (task.getType() == Task.Type.CONNECT) {
+                            _serverConnected.countDown();
+                        } else if (task.getType() == Task.Type.DATA) {
+                            _serverReceived.add(task.getData());
+                        }
+                    }
+                };
+            }
+        });
+        _server.start();
+    }
+
+    @Override
+    public void tearDown() {
+        if (_client != null) {
+            _client.stop();
+        }
+        _server.stop();
+    }
+
+    public void testStalledPeerDoesNotHoldUpTheHandshakes() throws Exception {
+        // Starts a handshake record and never finishes it
+        SocketChannel stalled = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+        try {
+            stalled.write(ByteBuffer.wrap(new byte[] { 0x16 }));
+
+            // The client handshake blocks until the server answers, so it is
+            // started aside to fail the test instead of hanging it
+            _client = new NioClient("NioHandshakeTestClient", "127.0.0.1", PORT, 2, new HandlerFactory() {
+                @Override
+                public Task create(Type type, Link link, byte[] data) {
+                    return new Task(type, link, data) {
+                        @Override
+                        protected void doTask(Task task) {
+                            if (task.getType() == Task.Type.CONNECT) {
+                                _clientLinks.add(task.getLink());
+                            }
+                        }
+                    };
+                }
+            });
+            Thread starter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    _client.start();
+                }
+            }, "NioHandshakeTest-starter");
+            starter.setDaemon(true);
+            starter.start();
+
+            assertTrue("The server did not complete the handshake", _serverConnected.await(30, TimeUnit.SECONDS));
+            Link link = _clientLinks.poll(30, TimeUnit.SECONDS);
+            assertNotNull("The client did not complete the handshake", link);
+
+            // The link works once the handshake is done
+            byte[] data = new byte[100000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte)i;
+            }
+            link.send(data);
+            byte[] received = _serverReceived.poll(30, TimeUnit.SECONDS);
+            assertNotNull("Nothing was received over the link", received);
+            assertTrue(Arrays.equals(data, received));
+        } finally {
+            stalled.close();
+        }
+    }
+}